@@ -0,0 +1,84 @@
+package org.opentree.otu.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Node;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.SyntheticStudyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time DatabaseManager.addSource for synthetic studies of different sizes. Each invocation adds one study, which is
+ * deleted again after the invocation so the store does not grow over the run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AddSourceBenchmark {
+
+	/**
+	 * small: 1 tree of 20 tips. medium: 5 trees of 500 tips. huge: 2 trees of 20000 tips.
+	 */
+	@Param({"small", "medium", "huge"})
+	public String size;
+
+	private BenchmarkDatabase db;
+	private NexsonSource source;
+	private Node added;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		db = new BenchmarkDatabase();
+
+		SyntheticStudyGenerator generator = new SyntheticStudyGenerator(42);
+		if ("small".equals(size)) {
+			generator.setTreesPerStudy(1);
+			generator.setTipsPerTree(20);
+		} else if ("medium".equals(size)) {
+			generator.setTreesPerStudy(5);
+			generator.setTipsPerTree(500);
+		} else {
+			generator.setTreesPerStudy(2);
+			generator.setTipsPerTree(20000);
+		}
+		
+		// some existing studies, so the indexes are not empty
+		db.addStudies(generator, "existing", 10);
+		source = generator.makeSource("benchmark");
+	}
+
+	@Benchmark
+	public Node addSource() throws Exception {
+		added = db.manager.addSource(source, DatabaseManager.LOCAL_LOCATION);
+		return added;
+	}
+
+	@TearDown(Level.Invocation)
+	public void removeSource() {
+		if (added != null) {
+			db.manager.deleteSource(added);
+			added = null;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		db.close();
+	}
+}
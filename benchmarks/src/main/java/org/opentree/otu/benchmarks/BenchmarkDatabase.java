@@ -0,0 +1,68 @@
+package org.opentree.otu.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.opentree.otu.DatabaseBrowser;
+import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.SyntheticStudyGenerator;
+
+/**
+ * A temporary embedded graph store for benchmarks. The store is created in a new temporary directory and deleted when
+ * it is closed.
+ */
+public class BenchmarkDatabase {
+
+	public final File dir;
+	public final EmbeddedGraphDatabase graphDb;
+	public final DatabaseManager manager;
+	public final DatabaseBrowser browser;
+
+	public BenchmarkDatabase() throws IOException {
+		dir = File.createTempFile("otu-benchmark", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create the temporary directory " + dir);
+		}
+		graphDb = new EmbeddedGraphDatabase(dir.getAbsolutePath());
+		manager = OTUServiceContext.getInstance(graphDb).getManager();
+		browser = OTUServiceContext.getInstance(graphDb).getBrowser();
+	}
+
+	/**
+	 * Add synthetic local studies with ids prefix0 ... prefix[n-1].
+	 * @return the source meta node of the last study added
+	 */
+	public Node addStudies(SyntheticStudyGenerator generator, String prefix, int n) throws Exception {
+		Node sourceMeta = null;
+		for (int i = 0; i < n; i++) {
+			sourceMeta = manager.addSource(generator.makeSource(prefix + i), DatabaseManager.LOCAL_LOCATION);
+		}
+		return sourceMeta;
+	}
+
+	/**
+	 * Get the root node of the first tree in a local study.
+	 */
+	public Node getFirstTreeRoot(String sourceId) {
+		String treeId = browser.getTreeIdsForSourceId(DatabaseManager.LOCAL_LOCATION, sourceId).get(0);
+		return browser.getTreeRootNode(treeId, DatabaseManager.LOCAL_LOCATION);
+	}
+
+	public void close() {
+		graphDb.shutdown();
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
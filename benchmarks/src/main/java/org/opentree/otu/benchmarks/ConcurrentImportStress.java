@@ -0,0 +1,181 @@
+package org.opentree.otu.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.otu.DatabaseBrowser;
+import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.SyntheticStudyGenerator;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.OTURelType;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Import different studies from several threads at once through the single shared DatabaseManager, and check that no
+ * import picked up state from another: every study has its own trees, the taxon arrays stored on each tree root match
+ * the tips of that tree, and the node of interest reported for a working copy is the copy of the requested node.
+ *
+ * Not a JMH benchmark; run it with
+ * java -cp target/benchmarks.jar org.opentree.otu.benchmarks.ConcurrentImportStress [threads] [studies per thread]
+ */
+public class ConcurrentImportStress {
+
+	public static void main(String[] args) throws Exception {
+
+		int nThreads = args.length > 0 ? Integer.valueOf(args[0]) : Runtime.getRuntime().availableProcessors();
+		final int studiesPerThread = args.length > 1 ? Integer.valueOf(args[1]) : 20;
+
+		final BenchmarkDatabase db = new BenchmarkDatabase();
+		try {
+			final DatabaseManager manager = OTUServiceContext.getInstance(db.graphDb).getManager();
+			final DatabaseBrowser browser = OTUServiceContext.getInstance(db.graphDb).getBrowser();
+
+			ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			long start = System.currentTimeMillis();
+			for (int t = 0; t < nThreads; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws Exception {
+						return importAndCheck(manager, browser, db, thread, studiesPerThread);
+					}
+				}));
+			}
+			executor.shutdown();
+
+			List<String> errors = new ArrayList<String>();
+			for (Future<List<String>> result : results) {
+				errors.addAll(result.get());
+			}
+
+			System.out.println("imported " + (nThreads * studiesPerThread) + " studies on " + nThreads + " threads in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			for (String error : errors) {
+				System.out.println(error);
+			}
+			System.out.println(errors.isEmpty() ? "no errors" : errors.size() + " errors");
+			if (!errors.isEmpty()) {
+				System.exit(1);
+			}
+
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Import a thread's studies, with tree sizes that differ from the other threads, and check each one.
+	 */
+	private static List<String> importAndCheck(DatabaseManager manager, DatabaseBrowser browser, BenchmarkDatabase db,
+			int thread, int nStudies) throws Exception {
+
+		SyntheticStudyGenerator generator = new SyntheticStudyGenerator(thread);
+		generator.setTreesPerStudy(2);
+		generator.setTipsPerTree(50 + 25 * thread);
+		generator.setTipCountVariation(10);
+
+		List<String> errors = new ArrayList<String>();
+		for (int i = 0; i < nStudies; i++) {
+			String sourceId = "thread" + thread + "_study" + i;
+			Node sourceMeta = manager.addSource(generator.makeSource(sourceId), DatabaseManager.LOCAL_LOCATION);
+
+			if (!sourceId.equals(sourceMeta.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()))) {
+				errors.add(sourceId + ": imported as " + sourceMeta.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+			}
+
+			List<String> treeIds = browser.getTreeIdsForSourceId(DatabaseManager.LOCAL_LOCATION, sourceId);
+			if (treeIds.size() != 2) {
+				errors.add(sourceId + ": expected 2 trees but found " + treeIds.size());
+			}
+
+			for (String treeId : treeIds) {
+				Node root = browser.getTreeRootNode(treeId, DatabaseManager.LOCAL_LOCATION);
+				checkTaxonArrays(sourceId, treeId, root, errors);
+			}
+
+			if (!treeIds.isEmpty()) {
+				checkWorkingCopy(sourceId, manager, browser.getTreeRootNode(treeIds.get(0), DatabaseManager.LOCAL_LOCATION),
+						db, errors);
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * The original taxon names stored on the root must be exactly the labels of its own tips.
+	 */
+	private static void checkTaxonArrays(String sourceId, String treeId, Node root, List<String> errors) {
+
+		List<String> expected = new ArrayList<String>();
+		for (Node tip : DatabaseBrowser.getDescendantTips(root)) {
+			if (tip.hasProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName())) {
+				expected.add((String) tip.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()));
+			}
+		}
+
+		List<String> stored = new ArrayList<String>(Arrays.asList((String[]) root.getProperty(
+				OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName(), new String[0])));
+
+		Collections.sort(expected);
+		Collections.sort(stored);
+		if (!expected.equals(stored)) {
+			errors.add(sourceId + ", " + treeId + ": the stored original taxon names do not match the tips of the tree");
+		}
+	}
+
+	/**
+	 * Make a working copy with one of the tips as the node of interest, and check that the reported node is a copy of that
+	 * tip in the new tree.
+	 */
+	private static void checkWorkingCopy(String sourceId, DatabaseManager manager, Node root, BenchmarkDatabase db,
+			List<String> errors) {
+
+		Node tip = DatabaseBrowser.getDescendantTips(root).iterator().next();
+
+		Transaction tx = db.graphDb.beginTx();
+		try {
+			Map<String, Object> result = manager.makeWorkingCopyOfTree(root, tip.getId());
+			tx.success();
+
+			Node workingRoot = db.graphDb.getNodeById((Long) result.get("working_root_node_id"));
+			Object copyId = result.get("node_of_interest_new_id");
+			if (!(copyId instanceof Long)) {
+				errors.add(sourceId + ": the node of interest was not found in the working copy");
+				return;
+			}
+
+			Node copy = db.graphDb.getNodeById((Long) copyId);
+			if (!tip.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName(), "").equals(
+					copy.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName(), ""))) {
+				errors.add(sourceId + ": the node of interest in the working copy has a different label");
+			}
+			if (!getRoot(copy).equals(workingRoot)) {
+				errors.add(sourceId + ": the node of interest is not in the working copy");
+			}
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static Node getRoot(Node node) {
+		Relationship parentRel = node.getSingleRelationship(OTURelType.CHILDOF, Direction.OUTGOING);
+		while (parentRel != null) {
+			node = parentRel.getEndNode();
+			parentRel = node.getSingleRelationship(OTURelType.CHILDOF, Direction.OUTGOING);
+		}
+		return node;
+	}
+}
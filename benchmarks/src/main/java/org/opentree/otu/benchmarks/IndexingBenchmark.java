@@ -0,0 +1,114 @@
+package org.opentree.otu.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.otu.DatabaseIndexer;
+import org.opentree.otu.SyntheticStudyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the throughput of DatabaseIndexer.addTreeToTaxonomicIndexes in tips per second, for a stored tree of each
+ * size. Each invocation adds and commits the taxonomic index entries for the tree; they are removed again between
+ * invocations. OperationsPerInvocation must be a constant, so there is one benchmark method (and state) per tree size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexingBenchmark {
+
+	/**
+	 * A store containing a single tree. Subclasses set the number of tips.
+	 */
+	public abstract static class StoredTree {
+
+		BenchmarkDatabase db;
+		DatabaseIndexer indexer;
+		Node root;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			db = new BenchmarkDatabase();
+			SyntheticStudyGenerator generator = new SyntheticStudyGenerator(42);
+			generator.setTipsPerTree(getTips());
+			db.addStudies(generator, "study", 1);
+			indexer = new DatabaseIndexer(db.graphDb);
+			root = db.getFirstTreeRoot("study0");
+			removeTaxonomicEntries();
+		}
+
+		@TearDown(Level.Invocation)
+		public void removeTaxonomicEntries() {
+			Transaction tx = db.graphDb.beginTx();
+			try {
+				indexer.treeRootNodesByOriginalTaxonName.remove(root);
+				indexer.treeRootNodesByMappedTaxonName.remove(root);
+				indexer.treeRootNodesByMappedTaxonNameNoSpaces.remove(root);
+				indexer.treeRootNodesByMappedTaxonOTTId.remove(root);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			db.close();
+		}
+
+		abstract int getTips();
+
+		void index() {
+			Transaction tx = db.graphDb.beginTx();
+			try {
+				indexer.addTreeToTaxonomicIndexes(root);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Tips1000Tree extends StoredTree {
+		@Override
+		int getTips() {
+			return 1000;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Tips10000Tree extends StoredTree {
+		@Override
+		int getTips() {
+			return 10000;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(1000)
+	public void indexTree1000Tips(Tips1000Tree tree) {
+		tree.index();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(10000)
+	public void indexTree10000Tips(Tips10000Tree tree) {
+		tree.index();
+	}
+}
@@ -0,0 +1,128 @@
+package org.opentree.otu.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Node;
+import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.SyntheticStudyGenerator;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.SearchSort;
+import org.opentree.otu.constants.SearchableProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time DatabaseBrowser.doBasicSearch for each SearchableProperty, returning all the results or just the first page, and the
+ * first page through the search cache. The search value is taken from the first study in the store, so every search has
+ * at least one hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+	@Param({"CURATOR_NAME", "DATA_DEPOSIT", "PUBLICATION_REFERENCE", "SOURCE_ID", "STUDY_PUBLICATION", "YEAR", "TAG_SOURCE",
+		"DESCENDANT_ORIGINAL_TAXON_NAMES", "DESCENDANT_MAPPED_TAXON_NAMES", "DESCENDANT_MAPPED_TAXON_OTT_IDS", "BRANCH_LENGTH_MODE", "TAG_TREE"})
+	public String property;
+
+	@Param({"200"})
+	public int nStudies;
+
+	private BenchmarkDatabase db;
+	private SearchableProperty search;
+	private String value;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		db = new BenchmarkDatabase();
+
+		SyntheticStudyGenerator generator = new SyntheticStudyGenerator(42);
+		generator.setTreesPerStudy(2);
+		generator.setTipsPerTree(100);
+		db.addStudies(generator, "study", nStudies);
+
+		search = SearchableProperty.valueOf(property);
+		value = findSearchValue(search);
+	}
+
+	@Benchmark
+	public void doBasicSearch(Blackhole bh) {
+		for (String sourceId : db.browser.doBasicSearch(search, value)) {
+			bh.consume(sourceId);
+		}
+	}
+
+	/**
+	 * The first page of results, as returned by the search service by default.
+	 */
+	@Benchmark
+	public void doPagedSearch(Blackhole bh) {
+		bh.consume(db.browser.doBasicSearch(search, value, SearchSort.RELEVANCE, false, 0, OTUConstants.SEARCH_DEFAULT_LIMIT));
+	}
+
+	/**
+	 * The first page of results through the search cache. The store does not change, so after the first call every search
+	 * is a cache hit.
+	 */
+	@Benchmark
+	public void doCachedSearch(Blackhole bh) {
+		bh.consume(OTUServiceContext.getInstance(db.graphDb).getSearchCache().search(db.browser, search, value,
+				SearchSort.RELEVANCE, false, 0, OTUConstants.SEARCH_DEFAULT_LIMIT));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		db.close();
+	}
+
+	/**
+	 * Get a value of the searched property from the first study, or its first tree for tree properties.
+	 */
+	private String findSearchValue(SearchableProperty search) {
+
+		Node sourceMeta = db.browser.getSourceMetaNode("study0", DatabaseManager.LOCAL_LOCATION);
+		Node treeRoot = db.getFirstTreeRoot("study0");
+
+		String propertyName = search.property.propertyName();
+		Object found = null;
+		switch (search) {
+		case DESCENDANT_ORIGINAL_TAXON_NAMES:
+			found = ((String[]) treeRoot.getProperty(OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName()))[0];
+			break;
+		case DESCENDANT_MAPPED_TAXON_NAMES:
+			found = ((String[]) treeRoot.getProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName()))[0];
+			break;
+		case DESCENDANT_MAPPED_TAXON_OTT_IDS:
+			found = ((long[]) treeRoot.getProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName()))[0];
+			break;
+		case BRANCH_LENGTH_MODE:
+		case TAG_TREE:
+			found = treeRoot.getProperty(propertyName, null);
+			break;
+		default:
+			found = sourceMeta.getProperty(propertyName, null);
+		}
+
+		if (found == null) {
+			throw new IllegalStateException("The synthetic studies have no value for " + search);
+		}
+		return String.valueOf(found);
+	}
+}
@@ -0,0 +1,198 @@
+package org.opentree.otu.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the taxomachine contextQueryForNames service, for exercising doTNRSForDescendants against large trees
+ * without a real TNRS. Names are matched exactly against the names of a taxonomy file (such as the one written by
+ * SyntheticStudyGenerator). A fraction of the requests can be made to fail, and every response can be delayed, to exercise
+ * the chunking, concurrency and retries of RemoteTNRS.
+ *
+ * Not a JMH benchmark; run it with
+ * java -cp target/benchmarks.jar org.opentree.otu.benchmarks.StubTNRSServer taxonomyFile [port] [failure fraction] [delay ms]
+ * and pass http://localhost:port/ as the TNRS Service URL.
+ */
+public class StubTNRSServer {
+
+	private final Map<String, String> ottIdsByName;
+	private final double failureFraction;
+	private final long delayMs;
+	private final Random random = new Random(42);
+	private final AtomicLong nRequests = new AtomicLong();
+	private final AtomicLong nFailures = new AtomicLong();
+	private HttpServer server;
+
+	public StubTNRSServer(Map<String, String> ottIdsByName, double failureFraction, long delayMs) {
+		this.ottIdsByName = ottIdsByName;
+		this.failureFraction = failureFraction;
+		this.delayMs = delayMs;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("usage: StubTNRSServer taxonomyFile [port] [failure fraction] [delay ms]");
+			System.exit(1);
+		}
+		int port = args.length > 1 ? Integer.valueOf(args[1]) : 7476;
+		double failureFraction = args.length > 2 ? Double.valueOf(args[2]) : 0;
+		long delayMs = args.length > 3 ? Long.valueOf(args[3]) : 0;
+
+		StubTNRSServer stub = new StubTNRSServer(readTaxonomy(args[0]), failureFraction, delayMs);
+		stub.start(port);
+		System.out.println("stub TNRS listening at http://localhost:" + port + "/ with " + stub.ottIdsByName.size() + " names");
+	}
+
+	/**
+	 * Read the names and ott ids from the first and third columns of a taxonomy file.
+	 */
+	public static Map<String, String> readTaxonomy(String taxonomyFile) throws IOException {
+		Map<String, String> ottIdsByName = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new FileReader(taxonomyFile));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] columns = line.split("\t\\|\t?");
+				if (columns.length > 2 && !columns[0].trim().equals("uid")) {
+					ottIdsByName.put(columns[2].trim(), columns[0].trim());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return ottIdsByName;
+	}
+
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange);
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public long getRequestCount() {
+		return nRequests.get();
+	}
+
+	public long getFailureCount() {
+		return nFailures.get();
+	}
+
+	// ===== private methods
+
+	private void respond(HttpExchange exchange) throws IOException {
+
+		nRequests.incrementAndGet();
+		try {
+			if (delayMs > 0) {
+				try {
+					Thread.sleep(delayMs);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			boolean fail;
+			synchronized (random) {
+				fail = random.nextDouble() < failureFraction;
+			}
+			if (fail) {
+				nFailures.incrementAndGet();
+				send(exchange, 500, "{\"error\":\"stub failure\"}");
+				return;
+			}
+
+			JSONObject query;
+			try {
+				query = (JSONObject) new JSONParser().parse(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+			} catch (ParseException ex) {
+				send(exchange, 400, "{\"error\":\"could not parse the query\"}");
+				return;
+			}
+			send(exchange, 200, match((JSONArray) query.get("names"), (JSONArray) query.get("idInts")).toJSONString());
+
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject match(JSONArray names, JSONArray ids) {
+
+		JSONArray results = new JSONArray();
+		JSONArray unmatched = new JSONArray();
+		JSONArray matched = new JSONArray();
+		for (int i = 0; i < names.size(); i++) {
+			String name = (String) names.get(i);
+			Object id = ids.get(i);
+			String ottId = ottIdsByName.get(name);
+			if (ottId == null) {
+				unmatched.add(id);
+				continue;
+			}
+			matched.add(id);
+
+			JSONObject match = new JSONObject();
+			match.put("matched_name", name);
+			match.put("matched_ott_id", ottId);
+			match.put("search_string", name);
+			match.put("score", 1.0);
+			match.put("is_approximate_match", false);
+			match.put("is_homonym", false);
+			JSONArray matches = new JSONArray();
+			matches.add(match);
+
+			JSONObject result = new JSONObject();
+			result.put("id", id);
+			result.put("matches", matches);
+			results.add(result);
+		}
+
+		JSONObject response = new JSONObject();
+		response.put("results", results);
+		response.put("unmatched_name_ids", unmatched);
+		response.put("matched_name_ids", matched);
+		response.put("unambiguous_name_ids", matched);
+		response.put("context", "All life");
+		return response;
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.opentree.otu.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Node;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.SyntheticStudyGenerator;
+import org.opentree.otu.TaxonTreeBitmaps;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Find the trees that contain a set of taxa, taken from the first tree in the store, by intersecting the results of one
+ * ott id index search per taxon, and with the taxon tree bitmaps for all, any and at least half of the taxa.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TaxonSetBenchmark {
+
+	@Param({"10", "100"})
+	public int nOTTIds;
+
+	@Param({"500"})
+	public int nStudies;
+
+	private BenchmarkDatabase db;
+	private TaxonTreeBitmaps treeBitmaps;
+	private long[] ottIds;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		db = new BenchmarkDatabase();
+
+		SyntheticStudyGenerator generator = new SyntheticStudyGenerator(42);
+		generator.setTreesPerStudy(2);
+		generator.setTipsPerTree(100);
+		db.addStudies(generator, "study", nStudies);
+
+		long[] treeOTTIds = (long[]) db.getFirstTreeRoot("study0").getProperty(
+				OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName());
+		ottIds = Arrays.copyOf(treeOTTIds, Math.min(nOTTIds, treeOTTIds.length));
+
+		// load the bitmaps before timing
+		treeBitmaps = OTUServiceContext.getInstance(db.graphDb).getTreeBitmaps();
+		treeBitmaps.findTreesWithAny(ottIds);
+	}
+
+	@Benchmark
+	public void luceneAll(Blackhole bh) {
+		Set<Long> found = null;
+		for (long ottId : ottIds) {
+			Set<Long> trees = new HashSet<Long>();
+			for (Node root : db.browser.getTreeRootNodesForOTTIds(new long[] {ottId})) {
+				trees.add(root.getId());
+			}
+			if (found == null) {
+				found = trees;
+			} else {
+				found.retainAll(trees);
+			}
+		}
+		bh.consume(found);
+	}
+
+	@Benchmark
+	public void bitmapAll(Blackhole bh) {
+		bh.consume(treeBitmaps.findTreesWithAll(ottIds));
+	}
+
+	@Benchmark
+	public void bitmapAny(Blackhole bh) {
+		bh.consume(treeBitmaps.findTreesWithAny(ottIds));
+	}
+
+	@Benchmark
+	public void bitmapAtLeastHalf(Blackhole bh) {
+		bh.consume(treeBitmaps.findTreesWithAtLeast(ottIds, Math.max(1, ottIds.length / 2)));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		db.close();
+	}
+}
@@ -0,0 +1,176 @@
+package org.opentree.otu.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import jade.tree.JadeTree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.otu.DatabaseBrowser;
+import org.opentree.otu.SyntheticStudyGenerator;
+import org.opentree.otu.constants.OTURelType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the operations on a single stored tree: building the JadeTree for display, rerooting, setting the ingroup, and
+ * making a working copy. Trees that are changed by a benchmark are restored after each invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class StoredTree {
+
+		@Param({"100", "1000", "10000"})
+		public int tips;
+
+		BenchmarkDatabase db;
+		Node root;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			db = new BenchmarkDatabase();
+			SyntheticStudyGenerator generator = new SyntheticStudyGenerator(42);
+			generator.setTipsPerTree(tips);
+			db.addStudies(generator, "study", 1);
+			root = db.getFirstTreeRoot("study0");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			db.close();
+		}
+	}
+
+	/**
+	 * A working copy of the stored tree, made before each invocation and discarded after it.
+	 */
+	@State(Scope.Thread)
+	public static class WorkingCopy {
+
+		Node workingRoot;
+		Node rerootTarget;
+
+		@Setup(Level.Invocation)
+		public void makeCopy(StoredTree tree) {
+			workingRoot = makeWorkingCopy(tree);
+			rerootTarget = getNodeAtDepth(workingRoot, 3);
+		}
+
+		@TearDown(Level.Invocation)
+		public void discardCopy(StoredTree tree) {
+			discardWorkingCopy(tree, workingRoot);
+		}
+	}
+
+	/**
+	 * Discards the working copy made by the benchmark after each invocation.
+	 */
+	@State(Scope.Thread)
+	public static class CopyCleanup {
+
+		Node workingRoot;
+
+		@TearDown(Level.Invocation)
+		public void discardCopy(StoredTree tree) {
+			if (workingRoot != null) {
+				discardWorkingCopy(tree, workingRoot);
+				workingRoot = null;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Ingroup {
+		
+		Node[] choices;
+		int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(StoredTree tree) {
+			choices = new Node[] {getNodeAtDepth(tree.root, 1), getNodeAtDepth(tree.root, 4)};
+		}
+	}
+
+	@Benchmark
+	public JadeTree getJadeTreeForGraphNode(StoredTree tree) {
+		return DatabaseBrowser.getJadeTreeForGraphNode(tree.root, tree.tips * 2);
+	}
+
+	@Benchmark
+	public Node rerootTree(StoredTree tree, WorkingCopy copy) {
+		copy.workingRoot = tree.db.manager.rerootTree(copy.rerootTarget);
+		return copy.workingRoot;
+	}
+
+	@Benchmark
+	public void designateIngroup(StoredTree tree, Ingroup ingroup) {
+		tree.db.manager.designateIngroup(ingroup.choices[ingroup.next++ % ingroup.choices.length]);
+	}
+
+	@Benchmark
+	public Node makeWorkingCopyOfTree(StoredTree tree, CopyCleanup cleanup) {
+		cleanup.workingRoot = makeWorkingCopy(tree);
+		return cleanup.workingRoot;
+	}
+
+	// ===== helpers
+
+	private static Node makeWorkingCopy(StoredTree tree) {
+		Transaction tx = tree.db.graphDb.beginTx();
+		try {
+			Long workingRootId = (Long) tree.db.manager.makeWorkingCopyOfTree(tree.root, null).get("working_root_node_id");
+			tx.success();
+			return tree.db.graphDb.getNodeById(workingRootId);
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static void discardWorkingCopy(StoredTree tree, Node workingRoot) {
+		Transaction tx = tree.db.graphDb.beginTx();
+		try {
+			tree.root = tree.db.manager.discardWorkingCopy(workingRoot);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	/**
+	 * Follow the first child of each node down from the root, stopping early at a tip.
+	 */
+	private static Node getNodeAtDepth(Node root, int depth) {
+		Node node = root;
+		for (int i = 0; i < depth; i++) {
+			Relationship childRel = null;
+			for (Relationship rel : node.getRelationships(OTURelType.CHILDOF, Direction.INCOMING)) {
+				childRel = rel;
+				break;
+			}
+			if (childRel == null) {
+				break;
+			}
+			node = childRel.getStartNode();
+		}
+		return node;
+	}
+}
@@ -96,6 +96,13 @@ if [ ! -f $OTU_PLUGIN_INSTALL_LOC ]; then
     mv target/otu-0.0.1-SNAPSHOT.jar $OTU_PLUGIN_INSTALL_LOC
 fi
 
+# register the unmanaged extension used for streaming nexson uploads
+OTU_NEO4J_SERVER_CONF="$OTU_NEO4J_HOME/conf/neo4j-server.properties"
+if ! grep -q "org.opentree.otu.plugins=/otu" $OTU_NEO4J_SERVER_CONF; then
+    printf "\nregistering otu extensions in: $OTU_NEO4J_SERVER_CONF\n"
+    echo "org.neo4j.server.thirdparty_jaxrs_classes=org.opentree.otu.plugins=/otu" >> $OTU_NEO4J_SERVER_CONF
+fi
+
 OTU_DB="$OTU_NEO4J_HOME/data/graph.db"
 if [ $CLEANDB ]; then
 	printf "\nremoving the existing database at: $OTU_DB\n"
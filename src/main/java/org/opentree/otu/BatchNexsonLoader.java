@@ -0,0 +1,522 @@
+package org.opentree.otu;
+
+import jade.tree.JadeNode;
+import jade.tree.JadeTree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.opentree.MessageLogger;
+import org.opentree.nexson.io.NexsonReader;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUGraphProperty;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.OTURelType;
+import org.opentree.otu.constants.SearchableProperty;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Offline bulk loader that reads every nexson in a directory and writes the sources, trees and all the OTUNodeIndex
+ * entries directly into a (stopped) database using the neo4j batch inserter. The resulting store is identical to one
+ * built by repeated calls to DatabaseManager.addSource, so the server plugins can open it unchanged.
+ *
+ * The database must not be open by any other process (i.e. the neo4j server must be stopped) while this is running.
+ *
+ * Usage: BatchNexsonLoader <graphdb dir> [nexson dir] [location]
+ *
+ * If the nexson dir is not supplied, the NEXSON_GIT_DIR graph property of the database is used. The location defaults
+ * to DatabaseManager.LOCAL_LOCATION.
+ */
+public class BatchNexsonLoader {
+
+	// how often to report progress, in studies
+	private static final int PROGRESS_INTERVAL = 100;
+
+	private final BatchInserter inserter;
+	private final BatchInserterIndexProvider indexProvider;
+	private final Map<OTUNodeIndex, BatchInserterIndex> indexes = new EnumMap<OTUNodeIndex, BatchInserterIndex>(OTUNodeIndex.class);
+
+	// the taxomachine ott id index. null if there is no taxonomy installed
+	private BatchInserterIndex taxonNodesByOTTId = null;
+	
+	// the ott id map, used in place of the ott id index when it is current
+	private OTTIdMap ottIdMap = null;
+
+	private final Map<String, Object> graphProperties;
+	private final Set<String> knownRemotes = new LinkedHashSet<String>();
+
+	// source meta node ids for the sources added during this run, by location and then by source id
+	private final Map<String, Map<String, Long>> addedSources = new HashMap<String, Map<String, Long>>();
+
+	private int nStudies = 0;
+	private int nTrees = 0;
+	private int nSkipped = 0;
+	private int nFailed = 0;
+
+	/**
+	 * Open the batch inserter on the database at the specified location. The database will be created if it does not exist.
+	 * @param graphDbDir
+	 */
+	public BatchNexsonLoader(String graphDbDir) {
+		inserter = BatchInserters.inserter(graphDbDir);
+		indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+
+		for (OTUNodeIndex index : OTUNodeIndex.values()) {
+			// these must be opened with the same configuration OTUDatabase uses, or the server will not be able to open them
+			indexes.put(index, indexProvider.nodeIndex(index.indexName(), MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", index.indexType())));
+		}
+
+		graphProperties = inserter.getNodeProperties(inserter.getReferenceNode());
+		Object hasTaxonomy = graphProperties.get(OTUGraphProperty.HAS_TAXONOMY.propertyName());
+		if (hasTaxonomy != null && (Boolean) hasTaxonomy) {
+			taxonNodesByOTTId = indexProvider.nodeIndex(TaxonomyNodeIndex.TAXON_BY_OTT_ID.indexName(),
+					MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "exact"));
+			ottIdMap = OTTIdMap.forStoreDir(inserter.getStoreDir(), (Long) graphProperties.get(OTUGraphProperty.OTT_ID_MAP_STAMP.propertyName()));
+		}
+
+		String[] knownRemotesArr = (String[]) graphProperties.get(OTUGraphProperty.KNOWN_REMOTES.propertyName());
+		if (knownRemotesArr != null) {
+			knownRemotes.addAll(Arrays.asList(knownRemotesArr));
+		}
+	}
+
+	/**
+	 * Return the nexson git dir recorded in the database, or null if none has been set.
+	 */
+	public String getNexsonGitDir() {
+		return (String) graphProperties.get(OTUGraphProperty.NEXSON_GIT_DIR.propertyName());
+	}
+
+	/**
+	 * Load every nexson file in the directory. The source id for each study is taken from the file name, with any
+	 * ".json" extension removed. Hidden files and subdirectories (e.g. the .git directory) are ignored.
+	 *
+	 * @param nexsonDir
+	 * @param location
+	 */
+	public void loadDirectory(File nexsonDir, String location) {
+
+		File[] files = nexsonDir.listFiles();
+		if (files == null) {
+			throw new IllegalArgumentException("Could not read the nexson directory " + nexsonDir.getAbsolutePath());
+		}
+		Arrays.sort(files);
+
+		long start = System.currentTimeMillis();
+		for (File file : files) {
+			if (file.isDirectory() || file.isHidden() || file.getName().startsWith(".")) {
+				continue;
+			}
+
+			String sourceId = sourceIdForFileName(file.getName());
+			try {
+				loadNexsonFile(file, sourceId, location);
+			} catch (Exception ex) {
+				nFailed++;
+				System.out.println("could not load nexson " + file.getName() + ": " + ex.toString());
+			}
+
+			if ((nStudies + nSkipped + nFailed) % PROGRESS_INTERVAL == 0) {
+				report(start);
+			}
+		}
+		report(start);
+	}
+
+	/**
+	 * Read a single nexson file and write it into the database.
+	 * @param file
+	 * @param sourceId
+	 * @param location
+	 * @return
+	 * 		true if the source was added, false if it was skipped because a source with this id already exists at this location
+	 * @throws IOException
+	 */
+	public boolean loadNexsonFile(File file, String sourceId, String location) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		NexsonSource source;
+		try {
+			source = NexsonReader.readNexson(reader, sourceId, false, new MessageLogger(""));
+		} finally {
+			reader.close();
+		}
+
+		return addSource(source, location);
+	}
+
+	/**
+	 * Write a source and all its trees into the database. Mirrors DatabaseManager.addSource, except that existing sources
+	 * are never overwritten.
+	 * @param source
+	 * @param location
+	 * @return
+	 * 		true if the source was added, false if it was skipped because a source with this id already exists at this location
+	 */
+	public boolean addSource(NexsonSource source, String location) {
+
+		String sourceId = source.getId();
+		if (getSourceMetaNodeId(location, sourceId) != null) {
+			nSkipped++;
+			return false;
+		}
+
+		// create the source
+		Map<String, Object> sourceProperties = new HashMap<String, Object>();
+		sourceProperties.put(OTUNodeProperty.LOCATION.propertyName(), location);
+		sourceProperties.put(OTUNodeProperty.SOURCE_ID.propertyName(), sourceId);
+		sourceProperties.put(OTUNodeProperty.IS_SOURCE_META.propertyName(), true);
+		sourceProperties.putAll(source.getProperties());
+		long sourceMeta = inserter.createNode(sourceProperties);
+
+		// add the trees
+		int i = 0;
+		Iterator<JadeTree> treesIter = source.getTrees().iterator();
+		while (treesIter.hasNext()) {
+			JadeTree tree = treesIter.next();
+
+			// the nexson reader sometimes returns null trees, see DatabaseManager.addSource
+			if (tree == null) {
+				continue;
+			}
+
+			String treeIdSuffix = (String) tree.getObject(OTUNodeProperty.NEXSON_ID.propertyName());
+			if (treeIdSuffix == null) {
+				treeIdSuffix = OTUConstants.LOCAL_TREEID_PREFIX + String.valueOf(i);
+			}
+
+			addTree(tree, sourceId + "_" + treeIdSuffix, sourceMeta, location, sourceId);
+			nTrees++;
+			i++;
+		}
+
+		// connect local and remote copies of this source
+		if (location.equals(DatabaseManager.LOCAL_LOCATION)) {
+			for (String remote : knownRemotes) {
+				Long remoteSourceMeta = getSourceMetaNodeId(remote, sourceId);
+				if (remoteSourceMeta != null) {
+					inserter.createRelationship(sourceMeta, remoteSourceMeta, OTURelType.LOCALCOPYOF, null);
+				}
+			}
+		} else {
+			Long localSourceMeta = getSourceMetaNodeId(DatabaseManager.LOCAL_LOCATION, sourceId);
+			if (localSourceMeta != null) {
+				inserter.createRelationship(localSourceMeta, sourceMeta, OTURelType.LOCALCOPYOF, null);
+			}
+			if (knownRemotes.add(location)) {
+				inserter.setNodeProperty(inserter.getReferenceNode(), OTUGraphProperty.KNOWN_REMOTES.propertyName(),
+						knownRemotes.toArray(new String[knownRemotes.size()]));
+			}
+		}
+
+		// index the source
+		Map<OTUNodeIndex, Map<String, Object>> entries = new EnumMap<OTUNodeIndex, Map<String, Object>>(OTUNodeIndex.class);
+		addIndexEntry(entries, OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID, location + OTUConstants.SOURCE_ID_SUFFIX, sourceId);
+		addSearchablePropertyEntries(entries, sourceProperties, OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING);
+		writeIndexEntries(sourceMeta, entries);
+
+		if (!addedSources.containsKey(location)) {
+			addedSources.put(location, new HashMap<String, Long>());
+		}
+		addedSources.get(location).put(sourceId, sourceMeta);
+
+		nStudies++;
+		return true;
+	}
+
+	/**
+	 * Flush and close the indexes and the batch inserter. Must be called or the database will be left in an unusable state.
+	 */
+	public void shutdown() {
+		indexProvider.shutdown();
+		inserter.shutdown();
+	}
+
+	public int getStudyCount() {
+		return nStudies;
+	}
+
+	public int getTreeCount() {
+		return nTrees;
+	}
+
+	// ========== private methods
+
+	/**
+	 * Write a tree into the database and index it. Mirrors DatabaseManager.addTree.
+	 */
+	private long addTree(JadeTree tree, String treeId, long sourceMeta, String location, String sourceId) {
+
+		// properties for the root node. for local trees the root also receives the properties of the root JadeNode
+		Map<String, Object> rootProperties = new HashMap<String, Object>();
+
+		long root;
+		if (location.equals(DatabaseManager.LOCAL_LOCATION)) {
+			root = addTreeStructure(tree.getRoot(), rootProperties);
+			rootProperties.put(OTUNodeProperty.IS_ROOT.propertyName(), true);
+		} else {
+			root = inserter.createNode(null);
+		}
+
+		inserter.createRelationship(sourceMeta, root, OTURelType.METADATAFOR, null);
+		rootProperties.put(OTUNodeProperty.LOCATION.propertyName(), location);
+		rootProperties.put(OTUNodeProperty.SOURCE_ID.propertyName(), sourceId);
+		rootProperties.put(OTUNodeProperty.TREE_ID.propertyName(), treeId);
+		rootProperties.put(OTUNodeProperty.IS_SAVED_COPY.propertyName(), true);
+		rootProperties.putAll(tree.getAssoc());
+
+		TipTaxonArrays taxa = TipTaxonArrays.fromJadeTree(tree);
+		rootProperties.putAll(taxa.toPropertyMap());
+		inserter.setNodeProperties(root, rootProperties);
+
+		// index the tree, following DatabaseIndexer.addTreeRootNodeToIndexes
+		Map<OTUNodeIndex, Map<String, Object>> entries = new EnumMap<OTUNodeIndex, Map<String, Object>>(OTUNodeIndex.class);
+		addIndexEntry(entries, OTUNodeIndex.TREE_ROOT_NODES_BY_TREE_ID, location + OTUConstants.TREE_ID_SUFFIX, treeId);
+		addIndexEntry(entries, OTUNodeIndex.TREE_ROOT_NODES_BY_SOURCE_ID, location + OTUConstants.SOURCE_ID_SUFFIX, sourceId);
+		addSearchablePropertyEntries(entries, rootProperties, OTUConstants.TREE_PROPERTIES_FOR_SIMPLE_INDEXING);
+
+		addIndexEntry(entries, OTUNodeIndex.TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME,
+				OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName(), taxa.getOriginalTaxonNames());
+		addIndexEntry(entries, OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME,
+				OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), taxa.getMappedTaxonNames());
+		addIndexEntry(entries, OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED,
+				OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), taxa.getMappedTaxonNamesNoSpaces());
+
+		addIndexEntry(entries, OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID,
+				OTVocabularyPredicate.OT_OTT_ID.propertyName(), DatabaseIndexer.toNumericValues(taxa.getMappedOTTIds()));
+
+		writeIndexEntries(root, entries);
+
+		return root;
+	}
+
+	/**
+	 * Write the tree structure below the passed in JadeNode using an explicit stack, so that very deep trees
+	 * cannot overflow the call stack. Mirrors DatabaseManager.preorderAddTreeToDB and designateIngroup.
+	 *
+	 * @param jadeRoot
+	 * @param rootProperties
+	 * 		Will be filled with the properties that have been set on the root node, so they can be extended by the caller
+	 * @return
+	 * 		The id of the root node
+	 */
+	private long addTreeStructure(JadeNode jadeRoot, Map<String, Object> rootProperties) {
+
+		// as in DatabaseManager, only the last ingroup root observed during the preorder traversal is used
+		JadeNode ingroupStart = null;
+		Deque<JadeNode> toVisit = new ArrayDeque<JadeNode>();
+		toVisit.push(jadeRoot);
+		while (!toVisit.isEmpty()) {
+			JadeNode cur = toVisit.pop();
+			if (cur.hasAssocObject(OTUNodeProperty.IS_INGROUP_ROOT.propertyName())) {
+				ingroupStart = cur;
+			}
+			pushChildrenInReverse(cur, toVisit);
+		}
+
+		Deque<JadeNode> jadeNodes = new ArrayDeque<JadeNode>();
+		Deque<Long> parents = new ArrayDeque<Long>();
+		Deque<Boolean> withinIngroup = new ArrayDeque<Boolean>();
+		jadeNodes.push(jadeRoot);
+		parents.push(-1L);
+		withinIngroup.push(false);
+
+		long root = -1;
+		Long ingroupStartId = null;
+
+		while (!jadeNodes.isEmpty()) {
+
+			JadeNode curJadeNode = jadeNodes.pop();
+			long parent = parents.pop();
+			boolean ingroup = withinIngroup.pop() || curJadeNode == ingroupStart;
+
+			Map<String, Object> properties = curJadeNode == jadeRoot ? rootProperties : new HashMap<String, Object>();
+
+			if (curJadeNode.hasAssocObject(OTUNodeProperty.IS_INGROUP_ROOT.propertyName())) {
+				properties.put(OTUNodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
+			}
+
+			if (curJadeNode.getName() != null) {
+				properties.put(OTUNodeProperty.NAME.propertyName(), curJadeNode.getName());
+				properties.putAll(curJadeNode.getAssoc());
+			}
+
+			if (curJadeNode.getChildCount() < 1) {
+				properties.put(OTVocabularyPredicate.OT_IS_LEAF.propertyName(), true);
+			}
+
+			if (ingroup) {
+				properties.put(OTUNodeProperty.IS_WITHIN_INGROUP.propertyName(), true);
+			}
+
+			long curNode = inserter.createNode(properties);
+			if (parent >= 0) {
+				inserter.createRelationship(curNode, parent, OTURelType.CHILDOF, null);
+			} else {
+				root = curNode;
+			}
+
+			if (curJadeNode == ingroupStart) {
+				ingroupStartId = curNode;
+			}
+
+			// for otu nodes, connect them to the taxonomy if it exists
+			if (curJadeNode.getChildCount() < 1) {
+				connectToTaxonomy(curNode, properties);
+			}
+
+			List<JadeNode> children = curJadeNode.getChildren();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				jadeNodes.push(children.get(i));
+				parents.push(curNode);
+				withinIngroup.push(ingroup);
+			}
+		}
+
+		if (ingroupStartId != null) {
+			rootProperties.put(OTUNodeProperty.INGROUP_IS_SET.propertyName(), true);
+			rootProperties.put(OTUNodeProperty.INGROUP_START_NODE_ID.propertyName(), ingroupStartId);
+		}
+
+		return root;
+	}
+
+	private static void pushChildrenInReverse(JadeNode node, Deque<JadeNode> stack) {
+		List<JadeNode> children = node.getChildren();
+		for (int i = children.size() - 1; i >= 0; i--) {
+			stack.push(children.get(i));
+		}
+	}
+
+	/**
+	 * Create the EXEMPLAROF relationship from a tip node to its taxon, if the taxonomy is installed and the tip
+	 * has an ott id. Mirrors DatabaseManager.connectTreeNodeToTaxonomy.
+	 */
+	private void connectToTaxonomy(long node, Map<String, Object> properties) {
+		if (taxonNodesByOTTId == null) {
+			return;
+		}
+		Object ottId = properties.get(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+		if (ottId == null) {
+			return;
+		}
+		if (ottIdMap != null) {
+			long taxonNode = ottIdMap.get(((Number) ottId).longValue());
+			if (taxonNode == OTTIdMap.NOT_FOUND) {
+				return;
+			} else if (inserter.nodeExists(taxonNode)) {
+				inserter.createRelationship(node, taxonNode, OTURelType.EXEMPLAROF, null);
+				return;
+			}
+			// the map is out of date, so stop using it
+			ottIdMap = null;
+		}
+		IndexHits<Long> hits = taxonNodesByOTTId.get(OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId);
+		try {
+			Long taxonNode = hits.getSingle();
+			if (taxonNode != null) {
+				inserter.createRelationship(node, taxonNode, OTURelType.EXEMPLAROF, null);
+			}
+		} finally {
+			hits.close();
+		}
+	}
+
+	/**
+	 * Return the id of the source meta node for this source at this location, whether it was in the database
+	 * before we started or was added during this run. Returns null if there is no such source.
+	 */
+	private Long getSourceMetaNodeId(String location, String sourceId) {
+		Map<String, Long> added = addedSources.get(location);
+		if (added != null && added.containsKey(sourceId)) {
+			return added.get(sourceId);
+		}
+		IndexHits<Long> hits = indexes.get(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID).get(location + OTUConstants.SOURCE_ID_SUFFIX, sourceId);
+		try {
+			return hits.size() > 0 ? hits.next() : null;
+		} finally {
+			hits.close();
+		}
+	}
+
+	private static void addSearchablePropertyEntries(Map<OTUNodeIndex, Map<String, Object>> entries, Map<String, Object> properties,
+			SearchableProperty[] searchableProperties) {
+		for (SearchableProperty search : searchableProperties) {
+			Object value = properties.get(search.property.propertyName());
+			if (value != null) {
+				addIndexEntry(entries, (OTUNodeIndex) search.index, search.property.propertyName(), value);
+			}
+		}
+	}
+
+	private static void addIndexEntry(Map<OTUNodeIndex, Map<String, Object>> entries, OTUNodeIndex index, String key, Object value) {
+		if (!entries.containsKey(index)) {
+			entries.put(index, new HashMap<String, Object>());
+		}
+		entries.get(index).put(key, value);
+	}
+
+	/**
+	 * Write all the index entries for a node, using a single document per index as the online indexes do.
+	 */
+	private void writeIndexEntries(long node, Map<OTUNodeIndex, Map<String, Object>> entries) {
+		for (Entry<OTUNodeIndex, Map<String, Object>> entry : entries.entrySet()) {
+			indexes.get(entry.getKey()).add(node, entry.getValue());
+		}
+	}
+
+	private void report(long start) {
+		double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+		System.out.println(String.format("loaded %d studies (%.2f studies/s) and %d trees (%.2f trees/s) in %.1f s; %d skipped, %d failed",
+				nStudies, nStudies / seconds, nTrees, nTrees / seconds, seconds, nSkipped, nFailed));
+	}
+
+	private static String sourceIdForFileName(String fileName) {
+		return fileName.endsWith(".json") ? fileName.substring(0, fileName.length() - ".json".length()) : fileName;
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length < 1 || args.length > 3) {
+			System.out.println("usage: BatchNexsonLoader <graphdb dir> [nexson dir] [location]");
+			System.exit(1);
+		}
+
+		BatchNexsonLoader loader = new BatchNexsonLoader(args[0]);
+		try {
+			String nexsonDir = args.length > 1 ? args[1] : loader.getNexsonGitDir();
+			if (nexsonDir == null) {
+				System.out.println("no nexson dir was supplied and none has been set in the database");
+				return;
+			}
+			String location = args.length > 2 ? args[2] : DatabaseManager.LOCAL_LOCATION;
+			loader.loadDirectory(new File(nexsonDir), location);
+		} finally {
+			loader.shutdown();
+		}
+	}
+}
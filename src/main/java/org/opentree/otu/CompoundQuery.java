@@ -0,0 +1,430 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.OTURelType;
+import org.opentree.otu.constants.SearchableProperty;
+
+/**
+ * A boolean combination of basic searches, which finds trees. A clause on a tree property matches the trees it hits, and a
+ * clause on a source property matches all the trees of the sources it hits, through their METADATAFOR relationships.
+ *
+ * Queries are written as JSON: a clause is {"property": "TAG_TREE", "value": "x"}, with a SearchableProperty name, and
+ * clauses are combined with {"and": [...]}, {"or": [...]} and {"not": {...}}. A NOT clause can only be used within an AND
+ * that has at least one positive clause, since it cannot be evaluated on its own.
+ *
+ * The clauses of an AND are evaluated in order of their number of index hits, smallest first. Only the first is evaluated
+ * into a set of trees, reading the hits that were opened to count them. The others are used to filter that set: each
+ * clause's queries are restricted to the ids of the remaining trees and their source meta nodes, so broad clauses never
+ * have their hits read. A clause with fewer hits than there are ids to check reads its hits instead.
+ *
+ * Query objects hold the hits they have counted until they are run, so each one should only be run once.
+ */
+public abstract class CompoundQuery {
+
+	/**
+	 * The number of index hits for this query, or an upper bound on it. Used to order the clauses of an AND.
+	 */
+	abstract long estimateHits(DatabaseBrowser browser);
+
+	/**
+	 * Find the tree roots matched by this query.
+	 */
+	abstract Set<Node> evaluate(DatabaseBrowser browser);
+
+	/**
+	 * Return the tree roots, of those in candidates, that are matched by this query. Does not change candidates.
+	 */
+	abstract Set<Node> filter(DatabaseBrowser browser, Set<Node> candidates);
+
+	/**
+	 * Close any index hits that were opened to estimate the number of hits and have not been read.
+	 */
+	abstract void release();
+
+	/**
+	 * Find the root nodes of the trees that match this query.
+	 * @param browser
+	 * @return
+	 */
+	public List<Node> findTreeRoots(DatabaseBrowser browser) {
+		try {
+			return new ArrayList<Node>(evaluate(browser));
+		} finally {
+			release();
+		}
+	}
+
+	// ===== building queries
+
+	public static CompoundQuery clause(SearchableProperty search, String value) {
+		return new Clause(search, value);
+	}
+
+	public static CompoundQuery and(CompoundQuery... queries) {
+		return new And(Arrays.asList(queries));
+	}
+
+	public static CompoundQuery or(CompoundQuery... queries) {
+		return new Or(Arrays.asList(queries));
+	}
+
+	public static CompoundQuery not(CompoundQuery query) {
+		return new Not(query);
+	}
+
+	/**
+	 * Read a query from its JSON form.
+	 * @param json
+	 * 		a parsed JSON object
+	 * @return
+	 * @throws IllegalArgumentException
+	 * 		if the JSON is not a valid query
+	 */
+	public static CompoundQuery fromJSON(Object json) {
+
+		if (!(json instanceof JSONObject) || ((JSONObject) json).size() == 0) {
+			throw new IllegalArgumentException("Each query must be a JSON object, but found " + json);
+		}
+		JSONObject object = (JSONObject) json;
+
+		if (object.containsKey("and") || object.containsKey("or")) {
+			String operator = object.containsKey("and") ? "and" : "or";
+			Object operands = object.get(operator);
+			if (object.size() != 1 || !(operands instanceof JSONArray) || ((JSONArray) operands).isEmpty()) {
+				throw new IllegalArgumentException("'" + operator
+						+ "' must be the only key of its object, and have a non-empty list of queries.");
+			}
+			List<CompoundQuery> queries = new ArrayList<CompoundQuery>();
+			for (Object operand : (JSONArray) operands) {
+				queries.add(fromJSON(operand));
+			}
+			return operator.equals("and") ? new And(queries) : new Or(queries);
+
+		} else if (object.containsKey("not")) {
+			if (object.size() != 1) {
+				throw new IllegalArgumentException("'not' must be the only key of its object.");
+			}
+			return new Not(fromJSON(object.get("not")));
+
+		} else {
+			Object property = object.get("property");
+			Object value = object.get("value");
+			if (!(property instanceof String) || value == null) {
+				throw new IllegalArgumentException("A clause must have a 'property' and a 'value', but found " + object);
+			}
+			SearchableProperty search;
+			try {
+				search = SearchableProperty.valueOf(((String) property).toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException("Unknown searchable property " + property);
+			}
+			return new Clause(search, String.valueOf(value));
+		}
+	}
+
+	// ===== query types
+
+	private static final class Clause extends CompoundQuery {
+
+		private final SearchableProperty search;
+		private final String value;
+		private Long hitCount = null;
+
+		// the hits opened by estimateHits, kept to be read by evaluate or filter. null once they have been used or closed
+		private List<IndexHits<Node>> countedHits = null;
+
+		Clause(SearchableProperty search, String value) {
+			this.search = search;
+			this.value = DatabaseBrowser.normalizeSearchValue(search, value);
+		}
+
+		@Override
+		long estimateHits(DatabaseBrowser browser) {
+			if (hitCount == null) {
+				long count = 0;
+				countedHits = browser.getSearchHits(search, value, false);
+				for (IndexHits<Node> hits : countedHits) {
+					count += hits.size();
+				}
+				hitCount = count;
+			}
+			return hitCount;
+		}
+
+		@Override
+		Set<Node> evaluate(DatabaseBrowser browser) {
+			Set<Node> roots = new HashSet<Node>();
+			List<IndexHits<Node>> hitLists = takeHits(browser);
+			try {
+				for (IndexHits<Node> hits : hitLists) {
+					for (Node hit : hits) {
+						addTreeRoots(hit, roots);
+					}
+				}
+			} finally {
+				closeAll(hitLists);
+			}
+			return roots;
+		}
+
+		@Override
+		Set<Node> filter(DatabaseBrowser browser, Set<Node> candidates) {
+
+			Set<Node> matched = new HashSet<Node>();
+			if (candidates.isEmpty()) {
+				return matched;
+			}
+
+			// a hit matches a candidate if it is the tree root itself, or the source meta node for it
+			Map<Long, List<Node>> candidatesByHitId = new HashMap<Long, List<Node>>();
+			for (Node root : candidates) {
+				addCandidate(candidatesByHitId, root.getId(), root);
+				Relationship metaRel = root.getSingleRelationship(OTURelType.METADATAFOR, Direction.INCOMING);
+				if (metaRel != null) {
+					addCandidate(candidatesByHitId, metaRel.getStartNode().getId(), root);
+				}
+			}
+
+			// only read the clause's own hits if there are fewer of them than ids to check
+			List<IndexHits<Node>> hitLists;
+			if (estimateHits(browser) < candidatesByHitId.size()) {
+				hitLists = takeHits(browser);
+			} else {
+				release();
+				hitLists = browser.getSearchHitsAmong(search, value, candidatesByHitId.keySet());
+			}
+			try {
+				for (IndexHits<Node> hits : hitLists) {
+					for (Node hit : hits) {
+						List<Node> roots = candidatesByHitId.remove(hit.getId());
+						if (roots != null) {
+							matched.addAll(roots);
+							if (matched.size() == candidates.size()) {
+								return matched;
+							}
+						}
+					}
+				}
+			} finally {
+				closeAll(hitLists);
+			}
+			return matched;
+		}
+
+		@Override
+		void release() {
+			if (countedHits != null) {
+				closeAll(countedHits);
+				countedHits = null;
+			}
+		}
+
+		/**
+		 * Take the hits opened by estimateHits if they have not been used, or run the queries again.
+		 */
+		private List<IndexHits<Node>> takeHits(DatabaseBrowser browser) {
+			List<IndexHits<Node>> hitLists = countedHits;
+			countedHits = null;
+			return hitLists != null ? hitLists : browser.getSearchHits(search, value, false);
+		}
+
+		private static void addCandidate(Map<Long, List<Node>> candidatesByHitId, long hitId, Node root) {
+			List<Node> roots = candidatesByHitId.get(hitId);
+			if (roots == null) {
+				roots = new ArrayList<Node>(1);
+				candidatesByHitId.put(hitId, roots);
+			}
+			roots.add(root);
+		}
+
+		/**
+		 * Add the tree roots for a hit, which is either a tree root or a source meta node.
+		 */
+		private static void addTreeRoots(Node hit, Set<Node> roots) {
+			if (hit.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())) {
+				for (Relationship rel : hit.getRelationships(OTURelType.METADATAFOR, Direction.OUTGOING)) {
+					roots.add(rel.getEndNode());
+				}
+			} else {
+				roots.add(hit);
+			}
+		}
+	}
+
+	private static final class And extends CompoundQuery {
+
+		private final List<CompoundQuery> queries;
+
+		And(List<CompoundQuery> queries) {
+			this.queries = queries;
+		}
+
+		@Override
+		long estimateHits(DatabaseBrowser browser) {
+			long estimate = Long.MAX_VALUE;
+			for (CompoundQuery query : queries) {
+				estimate = Math.min(estimate, query.estimateHits(browser));
+			}
+			return estimate;
+		}
+
+		@Override
+		Set<Node> evaluate(DatabaseBrowser browser) {
+			List<CompoundQuery> ordered = getOrdered(browser);
+			if (ordered.get(0) instanceof Not) {
+				throw new IllegalArgumentException("An 'and' must contain at least one clause that is not a 'not'.");
+			}
+			return filterAll(browser, ordered.get(0).evaluate(browser), ordered.subList(1, ordered.size()));
+		}
+
+		@Override
+		Set<Node> filter(DatabaseBrowser browser, Set<Node> candidates) {
+			return filterAll(browser, candidates, getOrdered(browser));
+		}
+
+		@Override
+		void release() {
+			releaseAll(queries);
+		}
+
+		private Set<Node> filterAll(DatabaseBrowser browser, Set<Node> candidates, List<CompoundQuery> filters) {
+			for (CompoundQuery query : filters) {
+				if (candidates.isEmpty()) {
+					break;
+				}
+				candidates = query.filter(browser, candidates);
+			}
+			return candidates;
+		}
+
+		/**
+		 * The queries in order of their estimated number of hits, most selective first. NOT queries come last.
+		 */
+		private List<CompoundQuery> getOrdered(final DatabaseBrowser browser) {
+			List<CompoundQuery> ordered = new ArrayList<CompoundQuery>(queries);
+			Collections.sort(ordered, new Comparator<CompoundQuery>() {
+				@Override
+				public int compare(CompoundQuery a, CompoundQuery b) {
+					long ea = a.estimateHits(browser);
+					long eb = b.estimateHits(browser);
+					return ea < eb ? -1 : (ea == eb ? 0 : 1);
+				}
+			});
+			return ordered;
+		}
+	}
+
+	private static final class Or extends CompoundQuery {
+
+		private final List<CompoundQuery> queries;
+
+		Or(List<CompoundQuery> queries) {
+			this.queries = queries;
+		}
+
+		@Override
+		long estimateHits(DatabaseBrowser browser) {
+			long estimate = 0;
+			for (CompoundQuery query : queries) {
+				long e = query.estimateHits(browser);
+				if (e == Long.MAX_VALUE) {
+					return Long.MAX_VALUE;
+				}
+				estimate += e;
+			}
+			return estimate;
+		}
+
+		@Override
+		Set<Node> evaluate(DatabaseBrowser browser) {
+			Set<Node> roots = new HashSet<Node>();
+			for (CompoundQuery query : queries) {
+				roots.addAll(query.evaluate(browser));
+			}
+			return roots;
+		}
+
+		@Override
+		Set<Node> filter(DatabaseBrowser browser, Set<Node> candidates) {
+
+			// each query only needs to check the candidates that have not already been matched
+			Set<Node> matched = new HashSet<Node>();
+			Set<Node> remaining = new HashSet<Node>(candidates);
+			for (CompoundQuery query : queries) {
+				if (remaining.isEmpty()) {
+					break;
+				}
+				Set<Node> found = query.filter(browser, remaining);
+				matched.addAll(found);
+				remaining.removeAll(found);
+			}
+			return matched;
+		}
+
+		@Override
+		void release() {
+			releaseAll(queries);
+		}
+	}
+
+	private static final class Not extends CompoundQuery {
+
+		private final CompoundQuery query;
+
+		Not(CompoundQuery query) {
+			this.query = query;
+		}
+
+		@Override
+		long estimateHits(DatabaseBrowser browser) {
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		Set<Node> evaluate(DatabaseBrowser browser) {
+			throw new IllegalArgumentException("A 'not' can only be used within an 'and' that has another clause.");
+		}
+
+		@Override
+		Set<Node> filter(DatabaseBrowser browser, Set<Node> candidates) {
+			Set<Node> remaining = new HashSet<Node>(candidates);
+			remaining.removeAll(query.filter(browser, candidates));
+			return remaining;
+		}
+
+		@Override
+		void release() {
+			query.release();
+		}
+	}
+
+	// ===== private methods
+
+	private static void releaseAll(List<CompoundQuery> queries) {
+		for (CompoundQuery query : queries) {
+			query.release();
+		}
+	}
+
+	private static void closeAll(List<IndexHits<Node>> hitLists) {
+		for (IndexHits<Node> hits : hitLists) {
+			hits.close();
+		}
+	}
+}
@@ -5,18 +5,34 @@ import java.io.IOException;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.opentree.graphdb.GraphDatabaseAgent;
+import org.opentree.otu.constants.OTUConstants;
 import org.opentree.otu.constants.OTUGraphProperty;
 import org.opentree.properties.BasicType;
 import org.opentree.properties.OTPropertyPredicate;
 
 public class ConfigurationManager extends OTUDatabase {
 	
+	// when set, graph properties are read from the context's snapshot of the committed configuration
+	private final OTUServiceContext context;
+	
 	public ConfigurationManager(GraphDatabaseService gds) {
 		super(gds);
+		context = null;
 	}
 	
 	public ConfigurationManager(GraphDatabaseAgent gda) {
 		super(gda);
+		context = null;
+	}
+	
+	/**
+	 * Used by the OTUServiceContext to create the shared configuration manager.
+	 * @param gds
+	 * @param context
+	 */
+	ConfigurationManager(GraphDatabaseService gds, OTUServiceContext context) {
+		super(gds);
+		this.context = context;
 	}
 	
 	public boolean setNexsonGitDir(String dir) {
@@ -27,11 +43,12 @@ public class ConfigurationManager extends OTUDatabase {
 			return false; 
 		}
 		graphDb.setGraphProperty(OTUGraphProperty.NEXSON_GIT_DIR.propertyName(), dir);
+		invalidateSnapshot();
 		return true;
 	}
 	
 	public String getNexsonGitDir() {
-		String curDir = (String) graphDb.getGraphProperty(OTUGraphProperty.NEXSON_GIT_DIR.propertyName());
+		String curDir = (String) readGraphProperty(OTUGraphProperty.NEXSON_GIT_DIR);
 		if (curDir != null) {
 			return curDir;
 		} else {
@@ -39,16 +56,65 @@ public class ConfigurationManager extends OTUDatabase {
 		}
 	}
 	
+	public String getRemoteNexsonsAPIURL() {
+		String url = (String) readGraphProperty(OTUGraphProperty.REMOTE_NEXSONS_API_URL);
+		return url != null ? url : OTUConstants.DEFAULT_REMOTE_NEXSONS_API_URL;
+	}
+	
+	public String getRemoteNexsonsRawURL() {
+		String url = (String) readGraphProperty(OTUGraphProperty.REMOTE_NEXSONS_RAW_URL);
+		return url != null ? url : OTUConstants.DEFAULT_REMOTE_NEXSONS_RAW_URL;
+	}
+	
+	/**
+	 * Return the hash of the remote commit that the sources at this location were most recently synced to, or null if
+	 * they have never been synced.
+	 * @param location
+	 */
+	public String getLastSyncedRemoteCommit(String location) {
+		String propertyName = lastSyncedCommitPropertyName(location);
+		if (context != null) {
+			return (String) context.getGraphProperty(propertyName);
+		}
+		return (String) graphDb.getNodeById((long) 0).getProperty(propertyName, null);
+	}
+	
+	public void setLastSyncedRemoteCommit(String location, String hash) {
+		graphDb.setGraphProperty(lastSyncedCommitPropertyName(location), hash);
+		invalidateSnapshot();
+	}
+	
 	public Object getGraphProperty(String propertyName) {		
-		return graphDb.getGraphProperty(OTUGraphProperty.valueOf(propertyName.toUpperCase()));
+		return readGraphProperty(OTUGraphProperty.valueOf(propertyName.toUpperCase()));
 	}
 	
 	public Object getGraphProperty(OTPropertyPredicate property) {
-		return graphDb.getGraphProperty(property);
+		return readGraphProperty(property);
+	}
+	
+	/**
+	 * Record that a taxonomy has been installed.
+	 */
+	public void setHasTaxonomy() {
+		graphDb.setGraphProperty(OTUGraphProperty.HAS_TAXONOMY.propertyName(), true);
+		invalidateSnapshot();
+	}
+	
+	/**
+	 * Record whether a taxonomy is being installed.
+	 * @param loading
+	 */
+	public void setTaxonomyLoading(boolean loading) {
+		if (loading) {
+			graphDb.setGraphProperty(OTUGraphProperty.TAXONOMY_IS_LOADING.propertyName(), true);
+		} else {
+			graphDb.removeGraphProperty(OTUGraphProperty.TAXONOMY_IS_LOADING);
+		}
+		invalidateSnapshot();
 	}
 	
 	public boolean hasTaxonomy() {
-		Object hasTax = graphDb.getGraphProperty(OTUGraphProperty.HAS_TAXONOMY);
+		Object hasTax = readGraphProperty(OTUGraphProperty.HAS_TAXONOMY);
 		if (hasTax != null) {
 			if ((Boolean) hasTax == true) {
 				return true;
@@ -57,10 +123,60 @@ public class ConfigurationManager extends OTUDatabase {
 		return false;
 	}
 	
+	/**
+	 * Get the stamp of the current OTTIdMap, or null if there is no current map.
+	 * @return
+	 */
+	public Long getOTTIdMapStamp() {
+		return (Long) readGraphProperty(OTUGraphProperty.OTT_ID_MAP_STAMP);
+	}
+	
+	public void setOTTIdMapStamp(long stamp) {
+		graphDb.setGraphProperty(OTUGraphProperty.OTT_ID_MAP_STAMP.propertyName(), stamp);
+		invalidateSnapshot();
+	}
+	
+	/**
+	 * Record that there is no current OTTIdMap, e.g. because the taxonomy is being replaced.
+	 */
+	public void removeOTTIdMapStamp() {
+		graphDb.removeGraphProperty(OTUGraphProperty.OTT_ID_MAP_STAMP);
+		invalidateSnapshot();
+	}
+	
+	public boolean isDeferredIndexing() {
+		Object deferred = readGraphProperty(OTUGraphProperty.DEFERRED_INDEXING);
+		return deferred != null && (Boolean) deferred;
+	}
+	
 	public void setGraphProperty(String propertyName, String value, String type) {		
 		BasicType basicType = BasicType.valueOf(type.toUpperCase());
 		OTPropertyPredicate graphProperty = OTUGraphProperty.valueOf(propertyName.toUpperCase());
 		
 		graphDb.setGraphProperty(graphProperty.propertyName(), basicType.convertToValue(value));
+		invalidateSnapshot();
+	}
+	
+	// ===== private methods
+	
+	private static String lastSyncedCommitPropertyName(String location) {
+		return OTUGraphProperty.REMOTE_NEXSONS_LAST_SYNCED_COMMIT.propertyName() + "_" + location;
+	}
+	
+	private Object readGraphProperty(OTPropertyPredicate property) {
+		if (context != null) {
+			return context.getGraphProperty(property.propertyName());
+		}
+		return graphDb.getGraphProperty(property);
+	}
+	
+	/**
+	 * Tell the context about a write, so that it drops the shared snapshot and does not refill it from this transaction
+	 * until the transaction finishes.
+	 */
+	private void invalidateSnapshot() {
+		if (context != null) {
+			context.graphPropertiesWritten();
+		}
 	}
 }
@@ -4,20 +4,28 @@ import jade.tree.JadeNode;
 import jade.tree.JadeTree;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import opentree.tnrs.queries.AbstractBaseQuery;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -25,6 +33,7 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.index.lucene.QueryContext;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.kernel.Traversal;
 import org.opentree.GeneralUtils;
@@ -34,6 +43,7 @@ import org.opentree.otu.constants.OTUConstants;
 import org.opentree.otu.constants.OTUGraphProperty;
 import org.opentree.otu.constants.OTUNodeProperty;
 import org.opentree.otu.constants.OTURelType;
+import org.opentree.otu.constants.SearchSort;
 import org.opentree.otu.constants.SearchableProperty;
 import org.opentree.properties.JadeNodeProperty;
 import org.opentree.properties.OTPropertyPredicate;
@@ -45,26 +55,55 @@ public class DatabaseBrowser extends OTUDatabase {
 	public final Index<Node> treeRootNodesBySourceId = getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_SOURCE_ID);
 	public final Index<Node> sourceMetaNodesBySourceId = getNodeIndex(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID);
 	
-	private static Set<String> hiddenSourceProperties;
-	private static Set<String> hiddenTreeProperties;
-	private static Set<String> hiddenTreeNodeProperties;
+	// the property catalogs only depend on the vocabulary, so they are built once
+	private static final Set<String> hiddenSourceProperties = new HashSet<String>();
+	private static final Set<String> hiddenTreeProperties = new HashSet<String>();
+	private static final Set<String> hiddenTreeNodeProperties = new HashSet<String>();
 
-	private static Set<String> availableSourceProperties;
-	private static Set<String> availableTreeProperties;
-	private static Set<String> availableTreeNodeProperties;
+	private static final Set<String> availableSourceProperties = new HashSet<String>();
+	private static final Set<String> availableTreeProperties = new HashSet<String>();
+	private static final Set<String> availableTreeNodeProperties = new HashSet<String>();
+	
+	static {
+		collectPropertySets();
+	}
+	
+	// the field in which neo4j's lucene indexes store the id of each indexed node (LuceneIndex.KEY_DOC_ID)
+	private static final String INDEXED_NODE_ID_KEY = "_id_";
 		
+	// used for the fuzzy taxon name searches. null if there is none, in which case they use a lucene FuzzyQuery
+	private final TaxonNameIndex taxonNames;
+	
+	// used to find out whether ott id searches should also read the fulltext index of earlier versions. null if there is
+	// none, in which case they only read the numeric index
+	private final OTUServiceContext context;
+	
 	public DatabaseBrowser(EmbeddedGraphDatabase embeddedGraph) {
 		super(embeddedGraph);
+		context = OTUServiceContext.getInstance(embeddedGraph);
+		taxonNames = context.getTaxonNames();
 	}
 
 	public DatabaseBrowser(GraphDatabaseService gdbs) {
 		super(gdbs);
-		collectPropertySets();
+		context = OTUServiceContext.getInstance(gdbs);
+		taxonNames = context.getTaxonNames();
 	}
 
 	public DatabaseBrowser(GraphDatabaseAgent gdba) {
 		super(gdba);
-		collectPropertySets();
+		context = null;
+		taxonNames = null;
+	}
+
+	/**
+	 * Used by the OTUServiceContext to create the shared browser.
+	 * @param context
+	 */
+	DatabaseBrowser(OTUServiceContext context) {
+		super(context.getGraphDatabase());
+		this.context = context;
+		this.taxonNames = context.getTaxonNames();
 	}
 
 	public Iterable<String> getAvailableSourceProperties() {
@@ -89,36 +128,192 @@ public class DatabaseBrowser extends OTUDatabase {
 	 * 		A list of strings containing the node ids of the source meta nodes for sources found during search
 	 */
 	public Iterable<String> doBasicSearch(SearchableProperty search, String searchValue) {
+		return doBasicSearch(search, searchValue, SearchSort.RELEVANCE, false, 0, Integer.MAX_VALUE).getSourceIds();
+	}
+
+	/**
+	 * Search the indexes, and get one page of the source ids that match the search. When the results are sorted by
+	 * relevance, the index hits are only read until the page is filled, so the cost of a search depends on the size of
+	 * the page rather than the number of hits. Other sorts have to read every hit, but only keep the ones that can be on
+	 * the page.
+	 * @param search
+	 * 		A SearchableProperty to specify the search domain
+	 * @param searchValue
+	 * 		The value to be searched for
+	 * @param sort
+	 * 		The order of the results
+	 * @param descending
+	 * 		Reverse the order for the YEAR and SOURCE_ID sorts. Relevance is always best first.
+	 * @param offset
+	 * 		The number of sources to skip
+	 * @param limit
+	 * 		The maximum number of sources to return
+	 * @return
+	 */
+	public SearchResults doBasicSearch(SearchableProperty search, String searchValue, SearchSort sort, boolean descending,
+			int offset, int limit) {
 		
-		HashSet<String> sourceIds = new HashSet<String>();
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("The offset and limit must not be negative.");
+		}
+		searchValue = normalizeSearchValue(search, searchValue);
 
-		// fuzzy query on the fulltext index
-		FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term(search.property.propertyName(), QueryParser.escape(searchValue)),
-    			AbstractBaseQuery.getMinIdentity(searchValue));
-		IndexHits<Node> hits = getNodeIndex(search.index).query(fuzzyQuery);
-        try {
-			for (Node hit : hits) {
-				sourceIds.add((String) hit.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
-			}
+		List<IndexHits<Node>> hitLists = getSearchHits(search, searchValue, sort == SearchSort.RELEVANCE);
+		try {
+			return collectSearchResults(hitLists, sort, descending, offset, limit);
 		} finally {
-			hits.close();
+			for (IndexHits<Node> hits : hitLists) {
+				hits.close();
+			}
+		}
+	}
+	
+	/**
+	 * Run the index queries for a basic search, and return their hits. Searches for mapped taxon names have two lists of
+	 * hits, with the exact matches first; other searches have one, or none if the value cannot be searched for. The caller
+	 * must close the returned hits.
+	 * @param search
+	 * @param searchValue
+	 * 		The value to be searched for, as returned by normalizeSearchValue
+	 * @param byScore
+	 * 		Whether the hits of fuzzy queries should be ordered by score. This is slower, so it should only be used when the
+	 * 		order matters.
+	 * @return
+	 */
+	public List<IndexHits<Node>> getSearchHits(SearchableProperty search, String searchValue, boolean byScore) {
+		return getSearchHits(search, searchValue, byScore, null);
+	}
+	
+	/**
+	 * Run the index queries for a basic search, as getSearchHits does, but only return hits among the given nodes. Each
+	 * query is restricted to the ids of the nodes, so only those nodes are checked however many nodes the search hits. The
+	 * caller must close the returned hits.
+	 * @param search
+	 * @param searchValue
+	 * 		The value to be searched for, as returned by normalizeSearchValue
+	 * @param nodeIds
+	 * @return
+	 */
+	public List<IndexHits<Node>> getSearchHitsAmong(SearchableProperty search, String searchValue, Collection<Long> nodeIds) {
+		if (nodeIds.isEmpty()) {
+			return new ArrayList<IndexHits<Node>>();
+		}
+		List<Query> idQueries = new ArrayList<Query>(nodeIds.size());
+		for (Long nodeId : nodeIds) {
+			idQueries.add(new TermQuery(new Term(INDEXED_NODE_ID_KEY, String.valueOf(nodeId))));
+		}
+		return getSearchHits(search, searchValue, false, anyOf(idQueries));
+	}
+	
+	/**
+	 * @param among
+	 * 		a query that the hits must also match, or null
+	 */
+	private List<IndexHits<Node>> getSearchHits(SearchableProperty search, String searchValue, boolean byScore, Query among) {
+
+		List<IndexHits<Node>> hitLists = new ArrayList<IndexHits<Node>>();
+
+		// ott ids are numeric values in an exact index, so they are matched exactly
+		if (search.equals(SearchableProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS)) {
+			long ottId;
+			try {
+				ottId = Long.valueOf(searchValue);
+			} catch (NumberFormatException ex) {
+				return hitLists;
+			}
+			hitLists.add(getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID).query(
+					allOf(getOTTIdQuery(new long[] {ottId}), among)));
+			IndexHits<Node> fulltextHits = queryFulltextOTTIdIndex(new long[] {ottId}, among);
+			if (fulltextHits != null) {
+				hitLists.add(fulltextHits);
+			}
+			return hitLists;
 		}
 
-        // kludge: special case for exact taxon names searches with spaces.
+        // kludge: special case for exact taxon names searches with spaces. these are exact matches, so they come first.
         // having this here avoids having to create lots of unnecessary abstraction
         if (search.equals(SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES)) {
-			hits = getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED)
-					.get(search.property.propertyName(), searchValue);
-            try {
-    			for (Node hit : hits) {
-    				sourceIds.add((String) hit.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
-    			}
-    		} finally {
-    			hits.close();
-    		}
-        }        
-        
-		return sourceIds;
+			Index<Node> exactIndex = getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED);
+			if (among == null) {
+				hitLists.add(exactIndex.get(search.property.propertyName(), searchValue));
+			} else {
+				hitLists.add(exactIndex.query(allOf(new TermQuery(new Term(search.property.propertyName(), searchValue)), among)));
+			}
+        }
+
+		// fuzzy query on the fulltext index. taxon names are matched through the taxon name index, which finds the similar
+		// terms without comparing the value to every term in the index
+		Query fuzzyQuery;
+		if (taxonNames != null && taxonNames.serves(search)) {
+			fuzzyQuery = taxonNames.getQuery(search, searchValue);
+		} else {
+			fuzzyQuery = new FuzzyQuery(new Term(search.property.propertyName(), QueryParser.escape(searchValue)),
+					AbstractBaseQuery.getMinIdentity(searchValue));
+		}
+		QueryContext query = new QueryContext(allOf(fuzzyQuery, among));
+		if (byScore) {
+			query = query.sortByScore();
+		}
+		hitLists.add(getNodeIndex(search.index).query(query));
+		
+		return hitLists;
+	}
+	
+	/**
+	 * Put a search value into the form it is searched for in, so that values that are searched for in the same way are equal.
+	 * Surrounding whitespace is dropped, and ott ids are written in their canonical form. Other values are left alone, since
+	 * fuzzy query terms are not analyzed, so case and inner whitespace affect the results.
+	 * @param search
+	 * @param searchValue
+	 * @return
+	 */
+	public static String normalizeSearchValue(SearchableProperty search, String searchValue) {
+		String normalized = searchValue.trim();
+		if (search.equals(SearchableProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS)) {
+			try {
+				return String.valueOf(Long.valueOf(normalized));
+			} catch (NumberFormatException ex) {
+				// not an ott id, so it will not match anything
+			}
+		}
+		return normalized;
+	}
+	
+	/**
+	 * Get the root nodes of the trees that contain any of these ott ids. The ids are combined into a single query, so the
+	 * index is only searched once however many ids there are. While the fulltext ott id index of earlier versions is being
+	 * migrated, it is searched as well.
+	 * @param ottIds
+	 * @return
+	 */
+	public List<Node> getTreeRootNodesForOTTIds(long[] ottIds) {
+
+		List<Node> roots = getTreeRootNodesForQuery(getOTTIdQuery(ottIds));
+		IndexHits<Node> fulltextHits = queryFulltextOTTIdIndex(ottIds, null);
+		if (fulltextHits != null) {
+			Set<Node> distinct = new LinkedHashSet<Node>(roots);
+			try {
+				for (Node hit : fulltextHits) {
+					distinct.add(hit);
+				}
+			} finally {
+				fulltextHits.close();
+			}
+			roots = new ArrayList<Node>(distinct);
+		}
+		return roots;
+	}
+	
+	/**
+	 * Get the root nodes of the trees that contain any ott id from minOTTId to maxOTTId, inclusive. The fulltext ott id index
+	 * of earlier versions holds the ids as strings, so it cannot be searched by range, and trees that are only in that index
+	 * are not found until it has been migrated (see OTUServiceContext.isMigratingOTTIdIndex).
+	 * @param minOTTId
+	 * @param maxOTTId
+	 * @return
+	 */
+	public List<Node> getTreeRootNodesForOTTIdRange(long minOTTId, long maxOTTId) {
+		return getTreeRootNodesForQuery(QueryContext.numericRange(OTVocabularyPredicate.OT_OTT_ID.propertyName(), minOTTId, maxOTTId));
 	}
 	
 	/**
@@ -612,14 +807,219 @@ public class DatabaseBrowser extends OTUDatabase {
 		return new JadeTree(curJadeRoot);
 	}
 	
-	private void collectPropertySets() {
+	/**
+	 * Make a single query that matches any of these ott ids in the ott id index.
+	 */
+	private static Query getOTTIdQuery(long[] ottIds) {
+
+		String key = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+		List<Query> queries = new ArrayList<Query>(ottIds.length);
+		for (long ottId : ottIds) {
+			queries.add(NumericRangeQuery.newLongRange(key, ottId, ottId, true, true));
+		}
+		return anyOf(queries);
+	}
+	
+	/**
+	 * Search the fulltext ott id index of earlier versions, which holds the ott ids as strings, if it is still being
+	 * migrated. The read lock keeps the migration from deleting the index while it is being opened; hits that are already
+	 * open are unaffected by the deletion.
+	 * @param among
+	 * 		a query that the hits must also match, or null
+	 * @return
+	 * 		the hits, which the caller must close, or null if there is no fulltext index to search
+	 */
+	private IndexHits<Node> queryFulltextOTTIdIndex(long[] ottIds, Query among) {
+
+		if (context == null || !context.isMigratingOTTIdIndex()) {
+			return null;
+		}
+		context.getFulltextOTTIdIndexLock().readLock().lock();
+		try {
+			if (!context.isMigratingOTTIdIndex()) {
+				return null;
+			}
+			String key = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+			List<Query> queries = new ArrayList<Query>(ottIds.length);
+			for (long ottId : ottIds) {
+				queries.add(new TermQuery(new Term(key, String.valueOf(ottId))));
+			}
+			return context.getGraphDatabase().index().forNodes(IndexMaintenance.FULLTEXT_OTT_ID_INDEX_NAME).query(allOf(anyOf(queries), among));
+		} finally {
+			context.getFulltextOTTIdIndexLock().readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Combine queries into one that matches anything any of them match. The maximum number of clauses in a BooleanQuery is
+	 * global to lucene, and changing it would affect every other query, so larger sets of queries are nested instead.
+	 */
+	private static Query anyOf(List<Query> queries) {
+		int maxClauses = Math.max(2, BooleanQuery.getMaxClauseCount());
+		while (queries.size() > maxClauses) {
+			List<Query> groups = new ArrayList<Query>((queries.size() + maxClauses - 1) / maxClauses);
+			for (int start = 0; start < queries.size(); start += maxClauses) {
+				groups.add(toBooleanQuery(queries.subList(start, Math.min(start + maxClauses, queries.size()))));
+			}
+			queries = groups;
+		}
+		return toBooleanQuery(queries);
+	}
+	
+	/**
+	 * Combine two queries into one that only matches what both of them match. The second may be null, in which case the
+	 * first is returned.
+	 */
+	private static Query allOf(Query query, Query among) {
+		if (among == null) {
+			return query;
+		}
+		BooleanQuery both = new BooleanQuery(true);
+		both.add(query, Occur.MUST);
+		both.add(among, Occur.MUST);
+		return both;
+	}
+	
+	private static BooleanQuery toBooleanQuery(List<Query> queries) {
+		BooleanQuery query = new BooleanQuery(true);
+		for (Query clause : queries) {
+			query.add(clause, Occur.SHOULD);
+		}
+		return query;
+	}
+	
+	/**
+	 * Collect one page of distinct source ids from the hits of a search, and find out whether there are any more sources
+	 * after it. The hit lists are read in order, and are not closed.
+	 */
+	private SearchResults collectSearchResults(List<IndexHits<Node>> hitLists, SearchSort sort, boolean descending, int offset, int limit) {
 		
-		hiddenSourceProperties = new HashSet<String>();
-		hiddenTreeProperties = new HashSet<String>();
-		hiddenTreeNodeProperties = new HashSet<String>();
-		availableSourceProperties = new HashSet<String>();
-		availableTreeProperties = new HashSet<String>();
-		availableTreeNodeProperties = new HashSet<String>();
+		int totalHits = 0;
+		for (IndexHits<Node> hits : hitLists) {
+			totalHits += hits.size();
+		}
+
+		// the number of sources up to the end of the page
+		int pageEnd = limit > Integer.MAX_VALUE - offset ? Integer.MAX_VALUE : offset + limit;
+		Set<String> seen = new HashSet<String>();
+		List<String> page = new ArrayList<String>();
+		
+		if (sort == SearchSort.RELEVANCE) {
+			// the hits are already in order, so we can stop as soon as we have found one source after the page
+			for (IndexHits<Node> hits : hitLists) {
+				for (Node hit : hits) {
+					if (seen.size() > pageEnd) {
+						break;
+					}
+					String sourceId = (String) hit.getProperty(OTUNodeProperty.SOURCE_ID.propertyName());
+					if (seen.add(sourceId) && seen.size() > offset && seen.size() <= pageEnd) {
+						page.add(sourceId);
+					}
+				}
+			}
+			return new SearchResults(page, totalHits, seen.size() > pageEnd, offset, limit, sort);
+		}
+		
+		// keep the best pageEnd sources in a heap with the worst one at the head
+		final Comparator<SortedSearchHit> order = SortedSearchHit.getComparator(descending);
+		PriorityQueue<SortedSearchHit> best = new PriorityQueue<SortedSearchHit>(11, Collections.reverseOrder(order));
+		if (pageEnd > 0) {
+			for (IndexHits<Node> hits : hitLists) {
+				for (Node hit : hits) {
+					String sourceId = (String) hit.getProperty(OTUNodeProperty.SOURCE_ID.propertyName());
+					if (seen.add(sourceId)) {
+						best.add(new SortedSearchHit(sourceId, sort == SearchSort.YEAR ? getSourceYear(hit) : sourceId));
+						if (best.size() > pageEnd) {
+							best.poll();
+						}
+					}
+				}
+			}
+		}
+		
+		List<SortedSearchHit> sorted = new ArrayList<SortedSearchHit>(best);
+		Collections.sort(sorted, order);
+		for (int i = offset; i < sorted.size(); i++) {
+			page.add(sorted.get(i).sourceId);
+		}
+		boolean hasMore = pageEnd == 0 ? totalHits > 0 : seen.size() > pageEnd;
+		return new SearchResults(page, totalHits, hasMore, offset, limit, sort);
+	}
+	
+	/**
+	 * Get the publication year of the source that a search hit belongs to, or null if it does not have a usable one. Hits
+	 * can be source meta nodes or tree root nodes.
+	 */
+	private static Long getSourceYear(Node hit) {
+		Relationship metaRel = hit.getSingleRelationship(OTURelType.METADATAFOR, Direction.INCOMING);
+		Node sourceMeta = metaRel == null ? hit : metaRel.getStartNode();
+		Object year = sourceMeta.getProperty(OTVocabularyPredicate.OT_YEAR.propertyName(), null);
+		if (year instanceof Number) {
+			return ((Number) year).longValue();
+		} else if (year instanceof String) {
+			try {
+				return Long.valueOf(((String) year).trim());
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * A source found by a search, with the value it is sorted by.
+	 */
+	private static final class SortedSearchHit {
+		
+		final String sourceId;
+		final Comparable<Object> key;
+		
+		@SuppressWarnings("unchecked")
+		SortedSearchHit(String sourceId, Comparable<?> key) {
+			this.sourceId = sourceId;
+			this.key = (Comparable<Object>) key;
+		}
+		
+		/**
+		 * Order by key, with missing keys last in either direction, and then by source id.
+		 */
+		static Comparator<SortedSearchHit> getComparator(final boolean descending) {
+			return new Comparator<SortedSearchHit>() {
+				@Override
+				public int compare(SortedSearchHit a, SortedSearchHit b) {
+					if (a.key == null || b.key == null) {
+						if (a.key != b.key) {
+							return a.key == null ? 1 : -1;
+						}
+					} else {
+						int c = a.key.compareTo(b.key);
+						if (c != 0) {
+							return descending ? -c : c;
+						}
+					}
+					return a.sourceId.compareTo(b.sourceId);
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Run a query (a lucene Query or a QueryContext) against the ott id index and collect the tree root nodes it finds.
+	 */
+	private List<Node> getTreeRootNodesForQuery(Object query) {
+		List<Node> roots = new ArrayList<Node>();
+		IndexHits<Node> hits = getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID).query(query);
+		try {
+			for (Node hit : hits) {
+				roots.add(hit);
+			}
+		} finally {
+			hits.close();
+		}
+		return roots;
+	}
+	
+	private static void collectPropertySets() {
 		
 		for (OTPropertyPredicate p : OTUConstants.HIDDEN_SOURCE_PROPERTIES) {
 			hiddenSourceProperties.add(p.propertyName());
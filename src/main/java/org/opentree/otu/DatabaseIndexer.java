@@ -1,5 +1,10 @@
 package org.opentree.otu;
 
+import java.lang.reflect.Array;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import org.opentree.graphdb.GraphDatabaseAgent;
 import org.opentree.otu.constants.OTUConstants;
 import org.opentree.otu.constants.OTUNodeProperty;
@@ -10,6 +15,8 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.ValueContext;
 
 public class DatabaseIndexer extends OTUDatabase {
 
@@ -27,14 +34,81 @@ public class DatabaseIndexer extends OTUDatabase {
 	public final Index<Node> sourceMetaNodesBySourceId = getNodeIndex(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID);
 	public final Index<Node> sourceMetaNodesByOtherProperty = getNodeIndex(OTUNodeIndex.SOURCE_METADATA_NODES_BY_OTHER_PROPERTY);
 	
+	// nodes waiting to be added to the search indexes when deferred indexing is on
+	public final Index<Node> pendingIndexWork = getNodeIndex(OTUNodeIndex.PENDING_INDEX_WORK);
+	public static final String PENDING_INDEX_KEY = "pending";
+	public static final String PENDING_INDEX_VALUE = "1";
+
+	/** The indexes made from the descendant taxon arrays on tree roots */
+	public static final OTUNodeIndex[] TAXONOMIC_INDEXES = {
+		OTUNodeIndex.TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME,
+		OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME,
+		OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED,
+		OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID};
+
+	private final ConfigurationManager config;
+	
+	// told about every write to an index, so that cached searches of the index can be discarded. null if there is none
+	private final SearchCache searchCache;
+	
+	// told about every write to the ott id index, so the taxon tree bitmaps can follow it. null if there are none
+	private final TaxonTreeBitmaps treeBitmaps;
+	
+	// told about the names added to the taxon name indexes, for typo-tolerant searches. null if there is none
+	private final TaxonNameIndex taxonNames;
+	
+	// only available when we were created with a GraphDatabaseService, and used to wake the deferred indexer
+	private final GraphDatabaseService graphService;
+	
 	// ===== constructors
 	
+	/**
+	 * Note that an indexer created from a GraphDatabaseAgent cannot start the DeferredIndexer. If deferred indexing is on,
+	 * work queued by this indexer will be picked up by the next indexer created from a GraphDatabaseService, which starts the
+	 * DeferredIndexer whenever there is queued work.
+	 * @param gdba
+	 */
 	public DatabaseIndexer(GraphDatabaseAgent gdba) {
 		super(gdba);
+		config = new ConfigurationManager(gdba);
+		searchCache = null;
+		treeBitmaps = null;
+		taxonNames = null;
+		graphService = null;
 	}
 	
 	public DatabaseIndexer(GraphDatabaseService gdbs) {
 		super(gdbs);
+		config = new ConfigurationManager(gdbs);
+		searchCache = OTUServiceContext.getInstance(gdbs).getSearchCache();
+		treeBitmaps = OTUServiceContext.getInstance(gdbs).getTreeBitmaps();
+		taxonNames = OTUServiceContext.getInstance(gdbs).getTaxonNames();
+		graphService = gdbs;
+		
+		// make sure any queued work will be processed
+		startDeferredIndexerIfNeeded();
+	}
+	
+	/**
+	 * Used by the OTUServiceContext to create the shared indexer, which reads the configuration through the shared
+	 * configuration manager and reports index writes to the shared search cache, taxon tree bitmaps and taxon name index.
+	 * @param gdbs
+	 * @param config
+	 * @param searchCache
+	 * @param treeBitmaps
+	 * @param taxonNames
+	 */
+	DatabaseIndexer(GraphDatabaseService gdbs, ConfigurationManager config, SearchCache searchCache, TaxonTreeBitmaps treeBitmaps,
+			TaxonNameIndex taxonNames) {
+		super(gdbs);
+		this.config = config;
+		this.searchCache = searchCache;
+		this.treeBitmaps = treeBitmaps;
+		this.taxonNames = taxonNames;
+		graphService = gdbs;
+		
+		// make sure any queued work will be processed
+		startDeferredIndexerIfNeeded();
 	}
 
 	// ===== indexing source metadata nodes
@@ -48,9 +122,22 @@ public class DatabaseIndexer extends OTUDatabase {
 	 * @param property
 	 */
 	public void addSourceMetaNodeToIndexes(Node sourceMetaNode) {
-		sourceMetaNodesBySourceId.add(sourceMetaNode,
-				(String) sourceMetaNode.getProperty(OTUNodeProperty.LOCATION.propertyName())+OTUConstants.SOURCE_ID_SUFFIX,
-				sourceMetaNode.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+		
+		// the source id index is used to look up sources, so it is always updated immediately
+		addSourceIdEntry(sourceMetaNode);
+
+		if (config.isDeferredIndexing()) {
+			queueForSearchIndexing(sourceMetaNode);
+		} else {
+			addSourceMetaNodeToSearchIndexes(sourceMetaNode);
+		}
+	}
+
+	/**
+	 * Add the source metadata node to the indexes used for searching.
+	 * @param sourceMetaNode
+	 */
+	public void addSourceMetaNodeToSearchIndexes(Node sourceMetaNode) {
 		indexNodeBySearchableProperties(sourceMetaNode, OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING);
 	}
 
@@ -60,6 +147,9 @@ public class DatabaseIndexer extends OTUDatabase {
 	public void removeSourceMetaNodeFromIndexes(Node sourceMetaNode) {
 		sourceMetaNodesBySourceId.remove(sourceMetaNode);
 		sourceMetaNodesByOtherProperty.remove(sourceMetaNode);
+		indexChanged(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID);
+		indexChanged(OTUNodeIndex.SOURCE_METADATA_NODES_BY_OTHER_PROPERTY);
+		removeFromSearchIndexingQueue(sourceMetaNode);
 	}
 		
 	// ===== indexing tree root nodes
@@ -72,14 +162,22 @@ public class DatabaseIndexer extends OTUDatabase {
 	 */
 	public void addTreeRootNodeToIndexes(Node treeRootNode) {
 
-		treeRootNodesByTreeId.add(treeRootNode,
-				(String) treeRootNode.getProperty(OTUNodeProperty.LOCATION.propertyName()) + OTUConstants.TREE_ID_SUFFIX,
-				treeRootNode.getProperty(OTUNodeProperty.TREE_ID.propertyName()));
-		
-		treeRootNodesBySourceId.add(treeRootNode,
-				(String) treeRootNode.getProperty(OTUNodeProperty.LOCATION.propertyName()) + OTUConstants.SOURCE_ID_SUFFIX,
-				treeRootNode.getSingleRelationship(OTURelType.METADATAFOR, Direction.INCOMING)
-					.getEndNode().getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+		// the tree id and source id indexes are used to look up trees, so they are always updated immediately
+		addTreeIdEntry(treeRootNode);
+		addTreeSourceIdEntry(treeRootNode);
+
+		if (config.isDeferredIndexing()) {
+			queueForSearchIndexing(treeRootNode);
+		} else {
+			addTreeRootNodeToSearchIndexes(treeRootNode);
+		}
+	}
+	
+	/**
+	 * Add the tree root node to the indexes used for searching, including the taxonomic indexes.
+	 * @param treeRootNode
+	 */
+	public void addTreeRootNodeToSearchIndexes(Node treeRootNode) {
 		
 		// add to property indexes
 		indexNodeBySearchableProperties(treeRootNode, OTUConstants.TREE_PROPERTIES_FOR_SIMPLE_INDEXING);
@@ -97,38 +195,365 @@ public class DatabaseIndexer extends OTUDatabase {
 		treeRootNodesByTreeId.remove(treeRootNode);
 		treeRootNodesBySourceId.remove(treeRootNode);
 		treeRootNodesByOtherProperty.remove(treeRootNode);
+		treeRootNodesByOriginalTaxonName.remove(treeRootNode);
 		treeRootNodesByMappedTaxonName.remove(treeRootNode);
 		treeRootNodesByMappedTaxonNameNoSpaces.remove(treeRootNode);
 		treeRootNodesByMappedTaxonOTTId.remove(treeRootNode);
+		indexChanged(OTUNodeIndex.TREE_ROOT_NODES_BY_TREE_ID);
+		indexChanged(OTUNodeIndex.TREE_ROOT_NODES_BY_SOURCE_ID);
+		indexChanged(OTUNodeIndex.TREE_ROOT_NODES_BY_OTHER_PROPERTY);
+		for (OTUNodeIndex index : TAXONOMIC_INDEXES) {
+			indexChanged(index);
+		}
+		if (treeBitmaps != null) {
+			treeBitmaps.treeRemoved(treeRootNode);
+		}
+		removeFromSearchIndexingQueue(treeRootNode);
 	}
 	
-	// === private methods used during tree root indexing
+	// ===== updating individual entries
 	
 	/**
-	 * Add the tree to the taxonomic indexes
-	 * @param treeRootNode
+	 * Whether the search indexes are maintained by the DeferredIndexer. If so, changed nodes should be requeued rather than
+	 * having their entries updated individually, since queued nodes are indexed from their complete state.
+	 * @return
 	 */
-	private void addTreeToTaxonomicIndexes(Node root) {
+	public boolean isDeferredIndexing() {
+		return config.isDeferredIndexing();
+	}
+	
+	/**
+	 * Update the search index entries for one property of a source metadata node or tree root after the property has been
+	 * changed. Properties that are not searchable for this kind of node have no entries and are ignored. Must be called
+	 * within a transaction.
+	 * 
+	 * @param node
+	 * @param propertyName
+	 * @param oldValue
+	 * 		the previous value, or null if the property was not set
+	 * @param newValue
+	 * 		the new value, or null if the property has been removed
+	 */
+	public void updateSearchablePropertyEntries(Node node, String propertyName, Object oldValue, Object newValue) {
+		SearchableProperty[] searchableProperties = node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())
+				? OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING
+				: OTUConstants.TREE_PROPERTIES_FOR_SIMPLE_INDEXING;
+		for (SearchableProperty search : searchableProperties) {
+			if (search.property.propertyName().equals(propertyName)) {
+				Index<Node> index = getNodeIndex(search.index);
+				if (oldValue != null) {
+					index.remove(node, propertyName, oldValue);
+				}
+				if (newValue != null) {
+					index.add(node, propertyName, newValue);
+				}
+				indexChanged((OTUNodeIndex) search.index);
+			}
+		}
+	}
+	
+	/**
+	 * Update the entries for a tree root in one of the taxonomic indexes after the descendant taxon array for that index has
+	 * changed. Must be called within a transaction.
+	 * 
+	 * @param root
+	 * @param index
+	 * 		one of the TAXONOMIC_INDEXES
+	 * @param removedValue
+	 * 		a value that is no longer in the array, or null
+	 * @param addedValue
+	 * 		a value that was not in the array before, or null
+	 */
+	public void updateTaxonomicEntry(Node root, OTUNodeIndex index, Object removedValue, Object addedValue) {
+		Index<Node> nodeIndex = getNodeIndex(index);
+		String key = getTaxonIndexKey(index);
+		boolean numeric = index == OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID;
+		if (removedValue != null) {
+			nodeIndex.remove(root, key, numeric ? ValueContext.numeric((Number) removedValue) : removedValue);
+		}
+		if (addedValue != null) {
+			nodeIndex.add(root, key, numeric ? ValueContext.numeric((Number) addedValue) : addedValue);
+		}
+		if (numeric && treeBitmaps != null) {
+			treeBitmaps.taxonChanged(root, (Long) removedValue, (Long) addedValue);
+		}
+		if (!numeric && addedValue != null && taxonNames != null) {
+			taxonNames.addNames(index, new String[] {(String) addedValue});
+		}
+		indexChanged(index);
+	}
+	
+	// ===== deferred indexing
+	
+	/**
+	 * Add a node that is waiting in the deferred indexing queue to the search indexes, and remove it from the queue. The
+	 * node is indexed according to its current state in the graph. Must be called within a transaction.
+	 * @param node
+	 */
+	public void processQueuedNode(Node node) {
+		removeFromSearchIndexingQueue(node);
+		if (node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())) {
+			addSourceMetaNodeToSearchIndexes(node);
+		} else {
+			addTreeRootNodeToSearchIndexes(node);
+		}
+	}
+	
+	/**
+	 * Get the nodes waiting in the deferred indexing queue. The caller must close the returned hits.
+	 * @return
+	 */
+	public IndexHits<Node> getQueuedNodes() {
+		return pendingIndexWork.get(PENDING_INDEX_KEY, PENDING_INDEX_VALUE);
+	}
+
+	/**
+	 * Start the DeferredIndexer if deferred indexing is on, or if there are queued nodes. Nodes stay queued if deferred
+	 * indexing is turned off before they are processed, and they must still be drained.
+	 */
+	private void startDeferredIndexerIfNeeded() {
+		if (config.isDeferredIndexing()) {
+			DeferredIndexer.getInstance(graphService);
+			return;
+		}
+		IndexHits<Node> queued = getQueuedNodes();
+		try {
+			if (queued.hasNext()) {
+				DeferredIndexer.getInstance(graphService);
+			}
+		} finally {
+			queued.close();
+		}
+	}
+
+	/**
+	 * Put a node in the deferred indexing queue. The queue is stored in the graph, so it is written in the same transaction
+	 * as the changes that required indexing, and queued work survives restarts.
+	 * @param node
+	 */
+	private void queueForSearchIndexing(Node node) {
+
+		// remove any existing entry so the node is only queued once
+		pendingIndexWork.remove(node);
+		pendingIndexWork.add(node, PENDING_INDEX_KEY, PENDING_INDEX_VALUE);
 		
-		addStringArrayEntriesToIndex(root,
-				treeRootNodesByOriginalTaxonName,
-				OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName(),
-				OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName());
-
-		addStringArrayEntriesToIndex(root,
-				treeRootNodesByMappedTaxonName,
-				OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(),
-				OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+		// keep the time of the earliest unindexed change
+		if (!node.hasProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName())) {
+			node.setProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName(), System.currentTimeMillis());
+		}
 		
-		addStringArrayEntriesToIndex(root,
-				treeRootNodesByMappedTaxonNameNoSpaces,
-				OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.propertyName(),
-				OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+		if (graphService != null) {
+			DeferredIndexer.getInstance(graphService).wake();
+		}
+	}
+	
+	/**
+	 * Remove a node from the deferred indexing queue. Must be called within a transaction.
+	 * @param node
+	 */
+	public void removeFromSearchIndexingQueue(Node node) {
+		pendingIndexWork.remove(node);
+		if (node.hasProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName())) {
+			node.removeProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName());
+		}
+	}
+	
+	// ===== taxonomic indexing
+	
+	/**
+	 * Add the tree to the taxonomic indexes, using the descendant taxon arrays stored on the root. Duplicate values are
+	 * dropped, so each distinct taxon is indexed once for the tree. This is used when a tree is indexed, and can also be used
+	 * to rebuild the taxonomic index entries of an existing tree (after removing them). Must be called within a transaction.
+	 * 
+	 * @param root
+	 */
+	public void addTreeToTaxonomicIndexes(Node root) {
+		for (OTUNodeIndex index : TAXONOMIC_INDEXES) {
+			addTaxonomicEntries(root, index);
+		}
+	}
+	
+	// ===== index maintenance
+	
+	/**
+	 * Whether this node is the root of a tree that belongs in the tree root indexes, i.e. the current root of a tree that is
+	 * attached to a source. Original trees that have been replaced by working copies, and the old roots of rerooted trees, are
+	 * not attached to a source.
+	 * @param node
+	 * @return
+	 */
+	public static boolean isAttachedTreeRoot(Node node) {
+		return node.hasRelationship(OTURelType.METADATAFOR, Direction.INCOMING);
+	}
+	
+	/**
+	 * Get the indexes that should contain this node, according to its current state in the graph. Nodes waiting in the
+	 * deferred indexing queue are only expected in the search indexes once they have been processed, so the search indexes
+	 * are not included for them.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public Set<OTUNodeIndex> getExpectedIndexes(Node node) {
 		
-		addLongArrayEntriesToIndex(root,
-				treeRootNodesByMappedTaxonOTTId,
-				OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(),
-				OTVocabularyPredicate.OT_OTT_ID.propertyName());
+		Set<OTUNodeIndex> expected = EnumSet.noneOf(OTUNodeIndex.class);
+		boolean queued = node.hasProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName());
+		if (queued) {
+			expected.add(OTUNodeIndex.PENDING_INDEX_WORK);
+		}
+
+		if (node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())) {
+			expected.add(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID);
+			if (!queued) {
+				addExpectedPropertyIndexes(node, OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING, expected);
+			}
+
+		} else if (isAttachedTreeRoot(node)) {
+			expected.add(OTUNodeIndex.TREE_ROOT_NODES_BY_TREE_ID);
+			expected.add(OTUNodeIndex.TREE_ROOT_NODES_BY_SOURCE_ID);
+			if (!queued) {
+				addExpectedPropertyIndexes(node, OTUConstants.TREE_PROPERTIES_FOR_SIMPLE_INDEXING, expected);
+				for (OTUNodeIndex index : TAXONOMIC_INDEXES) {
+					if (getArrayLength(node, getTaxonArrayProperty(index)) > 0) {
+						expected.add(index);
+					}
+				}
+			}
+		}
+		
+		return expected;
+	}
+	
+	/**
+	 * Replace the entries for this node in one index with entries made from its current state in the graph. If the node does
+	 * not belong in the index (see getExpectedIndexes) it is just removed. Must be called within a transaction.
+	 * 
+	 * @param node
+	 * @param index
+	 */
+	public void reindexNode(Node node, OTUNodeIndex index) {
+		
+		removeFromIndex(node, index);
+		if (!getExpectedIndexes(node).contains(index)) {
+			return;
+		}
+		
+		switch (index) {
+		case TREE_ROOT_NODES_BY_TREE_ID:
+			addTreeIdEntry(node);
+			break;
+		case TREE_ROOT_NODES_BY_SOURCE_ID:
+			addTreeSourceIdEntry(node);
+			break;
+		case SOURCE_METADATA_NODES_BY_SOURCE_ID:
+			addSourceIdEntry(node);
+			break;
+		case PENDING_INDEX_WORK:
+			pendingIndexWork.add(node, PENDING_INDEX_KEY, PENDING_INDEX_VALUE);
+			break;
+		case TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME:
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME:
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED:
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID:
+			addTaxonomicEntries(node, index);
+			break;
+		default:
+			break;
+		}
+		
+		// the searchable properties have their own entries, which may share an index with the ones above
+		if (!node.hasProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName())) {
+			indexNodeBySearchableProperties(node, node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())
+					? OTUConstants.SOURCE_PROPERTIES_FOR_SIMPLE_INDEXING
+					: OTUConstants.TREE_PROPERTIES_FOR_SIMPLE_INDEXING, index);
+		}
+	}
+	
+	/**
+	 * Remove all the entries for this node from one index. Must be called within a transaction.
+	 * @param node
+	 * @param index
+	 */
+	public void removeFromIndex(Node node, OTUNodeIndex index) {
+		getNodeIndex(index).remove(node);
+		if (index == OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID && treeBitmaps != null) {
+			treeBitmaps.treeRemoved(node);
+		}
+		indexChanged(index);
+	}
+	
+	// === private methods used during tree root indexing
+	
+	private void addTreeIdEntry(Node treeRootNode) {
+		treeRootNodesByTreeId.add(treeRootNode,
+				(String) treeRootNode.getProperty(OTUNodeProperty.LOCATION.propertyName()) + OTUConstants.TREE_ID_SUFFIX,
+				treeRootNode.getProperty(OTUNodeProperty.TREE_ID.propertyName()));
+		indexChanged(OTUNodeIndex.TREE_ROOT_NODES_BY_TREE_ID);
+	}
+
+	private void addTreeSourceIdEntry(Node treeRootNode) {
+		treeRootNodesBySourceId.add(treeRootNode,
+				(String) treeRootNode.getProperty(OTUNodeProperty.LOCATION.propertyName()) + OTUConstants.SOURCE_ID_SUFFIX,
+				treeRootNode.getSingleRelationship(OTURelType.METADATAFOR, Direction.INCOMING)
+					.getEndNode().getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+		indexChanged(OTUNodeIndex.TREE_ROOT_NODES_BY_SOURCE_ID);
+	}
+	
+	private void addSourceIdEntry(Node sourceMetaNode) {
+		sourceMetaNodesBySourceId.add(sourceMetaNode,
+				(String) sourceMetaNode.getProperty(OTUNodeProperty.LOCATION.propertyName())+OTUConstants.SOURCE_ID_SUFFIX,
+				sourceMetaNode.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+		indexChanged(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID);
+	}
+	
+	/**
+	 * Add the entries for one of the taxonomic indexes, from the corresponding descendant taxon array on the root.
+	 */
+	private void addTaxonomicEntries(Node root, OTUNodeIndex index) {
+		if (index == OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID) {
+			addLongArrayEntriesToIndex(root, getNodeIndex(index), getTaxonArrayProperty(index), getTaxonIndexKey(index));
+			if (treeBitmaps != null) {
+				treeBitmaps.treeIndexed(root);
+			}
+		} else {
+			addStringArrayEntriesToIndex(root, getNodeIndex(index), getTaxonArrayProperty(index), getTaxonIndexKey(index));
+			if (taxonNames != null && root.hasProperty(getTaxonArrayProperty(index))) {
+				taxonNames.addNames(index, (String[]) root.getProperty(getTaxonArrayProperty(index)));
+			}
+		}
+		indexChanged(index);
+	}
+	
+	/**
+	 * The key under which values are stored in a taxonomic index.
+	 */
+	private static String getTaxonIndexKey(OTUNodeIndex index) {
+		switch (index) {
+		case TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME:
+			return OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName();
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID:
+			return OTVocabularyPredicate.OT_OTT_ID.propertyName();
+		default:
+			return OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName();
+		}
+	}
+	
+	/**
+	 * The name of the tree root property holding the values for a taxonomic index.
+	 */
+	private static String getTaxonArrayProperty(OTUNodeIndex index) {
+		switch (index) {
+		case TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME:
+			return OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName();
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME:
+			return OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName();
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED:
+			return OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.propertyName();
+		case TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID:
+			return OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName();
+		default:
+			throw new IllegalArgumentException(index + " is not a taxonomic index");
+		}
 	}
 	
 	// ===== generalized private methods used during indexing
@@ -139,29 +564,89 @@ public class DatabaseIndexer extends OTUDatabase {
 	 * @param index
 	 */
 	private void indexNodeBySearchableProperties(Node node, SearchableProperty[] searchablePoperties) {
+		indexNodeBySearchableProperties(node, searchablePoperties, null);
+	}
+
+	/**
+	 * Index a node under the specified properties, only for those properties that belong in the indicated index.
+	 * @param node
+	 * @param searchablePoperties
+	 * @param onlyIndex
+	 * 		the index to add to, or null for all the indexes of the properties
+	 */
+	private void indexNodeBySearchableProperties(Node node, SearchableProperty[] searchablePoperties, OTUNodeIndex onlyIndex) {
 		for (SearchableProperty search : searchablePoperties) {
+			if (onlyIndex != null && search.index != onlyIndex) {
+				continue;
+			}
 			Index<Node> index = getNodeIndex(search.index);
 			if (node.hasProperty(search.property.propertyName())) {
 				index.add(node, search.property.propertyName(), node.getProperty(search.property.propertyName()));
+				indexChanged((OTUNodeIndex) search.index);
 			}
 		}
 	}
 	
+	private void indexChanged(OTUNodeIndex index) {
+		if (searchCache != null) {
+			searchCache.indexChanged(index);
+		}
+	}
+	
+	private static void addExpectedPropertyIndexes(Node node, SearchableProperty[] searchableProperties, Set<OTUNodeIndex> expected) {
+		for (SearchableProperty search : searchableProperties) {
+			if (node.hasProperty(search.property.propertyName())) {
+				expected.add((OTUNodeIndex) search.index);
+			}
+		}
+	}
+	
+	private static int getArrayLength(Node node, String propertyName) {
+		Object value = node.getProperty(propertyName, null);
+		return value == null ? 0 : Array.getLength(value);
+	}
+	
+	/**
+	 * Add each distinct value of a string array property to the index.
+	 */
 	private void addStringArrayEntriesToIndex(Node node, Index<Node> index, String nodePropertyName, String indexProperty) {
 		if (node.hasProperty(nodePropertyName)) {
-			String[] array = (String[]) node.getProperty(nodePropertyName);
-			for (int i = 0; i < array.length; i++) {
-				index.add(node, indexProperty, array[i]);
+			Set<String> values = new LinkedHashSet<String>();
+			for (String value : (String[]) node.getProperty(nodePropertyName)) {
+				values.add(value);
+			}
+			for (String value : values) {
+				index.add(node, indexProperty, value);
 			}
 		}
 	}
 
+	/**
+	 * Add each distinct value of a long array property to the index, as a numeric value.
+	 */
 	private void addLongArrayEntriesToIndex(Node node, Index<Node> index, String nodePropertyName, String indexProperty) {
 		if (node.hasProperty(nodePropertyName)) {
-			long[] array = (long[]) node.getProperty(nodePropertyName);
-			for (int i = 0; i < array.length; i++) {
-				index.add(node, indexProperty, array[i]);
+			for (ValueContext value : toNumericValues((long[]) node.getProperty(nodePropertyName))) {
+				index.add(node, indexProperty, value);
 			}
 		}
 	}
+	
+	/**
+	 * Get the distinct values in the array, wrapped so they will be indexed as numbers rather than strings.
+	 * @param array
+	 * @return
+	 */
+	public static ValueContext[] toNumericValues(long[] array) {
+		Set<Long> distinct = new LinkedHashSet<Long>();
+		for (long value : array) {
+			distinct.add(value);
+		}
+		ValueContext[] values = new ValueContext[distinct.size()];
+		int i = 0;
+		for (Long value : distinct) {
+			values[i++] = ValueContext.numeric(value);
+		}
+		return values;
+	}
 }
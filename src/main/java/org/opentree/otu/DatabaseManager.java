@@ -5,16 +5,16 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import jade.tree.JadeNode;
 import jade.tree.JadeTree;
 import opentree.taxonomy.contexts.TaxonomyNodeIndex;
 
-import org.opentree.GeneralUtils;
 import org.opentree.exceptions.TreeNotFoundException;
 import org.opentree.graphdb.DatabaseUtils;
 import org.opentree.graphdb.GraphDatabaseAgent;
@@ -29,31 +29,27 @@ import org.opentree.properties.OTVocabularyPredicate;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.Traversal;
 
 public class DatabaseManager extends OTUDatabase {
 
-	private DatabaseIndexer indexer;
-	private ConfigurationManager config;
-	private DatabaseBrowser browser;
-	
-	private HashSet<String> knownRemotes;
-	private Node lastObservedIngroupStartNode = null;
-	
-	// used when copying trees to remember a specified node from the old tree that is in the new one
-	Node workingCopyNodeOfInterest = null;
+	// a manager keeps no state between calls, so one instance can be shared by concurrent requests. the only mutable
+	// fields are caches, which are replaced rather than modified.
 
-	// used when storing taxon information to use when for indexing tree root nodes
-	List<String> originalTaxonNames;
-	List<String> mappedTaxonNames;
-	List<String> mappedTaxonNamesNoSpaces;
-	List<Long> mappedOTTIds;
+	private final DatabaseIndexer indexer;
+	private final ConfigurationManager config;
+	private final DatabaseBrowser browser;
+	
+	private volatile Set<String> knownRemotes;
 	
 	protected Index<Node> sourceMetaNodesBySourceId = getNodeIndex(OTUNodeIndex.SOURCE_METADATA_NODES_BY_SOURCE_ID);
 	protected Index<Node> treeRootNodesByTreeId = getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_TREE_ID);
@@ -61,6 +57,20 @@ public class DatabaseManager extends OTUDatabase {
 	// this is a taxomachine index, so we specify index type parameters to override the OTU default behavior of opening indexes as fulltext
 	protected Index<Node> taxonNodesByOTTId = getNodeIndex(TaxonomyNodeIndex.TAXON_BY_OTT_ID, IndexManager.PROVIDER, "lucene", "type", "exact");
 
+	// the graph store directory, used to find the ott id map. null if we were not given a GraphDatabaseService
+	private final String storeDir;
+	
+	// the ott id map, loaded the first time it is needed and reloaded when the stamp of the current map changes. read
+	// without locking, and only replaced while holding ottIdMapLock
+	private volatile LoadedOTTIdMap loadedOTTIdMap = null;
+	private final Object ottIdMapLock = new Object();
+	
+	// the tip properties that the descendant taxon arrays on tree roots are collected from
+	private static final Set<String> TAXONOMIC_TIP_PROPERTIES = new HashSet<String>(Arrays.asList(
+			OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName(),
+			OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(),
+			OTVocabularyPredicate.OT_OTT_ID.propertyName()));
+
 	// ===== constructors
 
 	/**
@@ -70,7 +80,8 @@ public class DatabaseManager extends OTUDatabase {
 	 */
 	public DatabaseManager(GraphDatabaseService graphService) {
 		super(graphService);
-		indexer = new DatabaseIndexer(graphDb);
+		storeDir = graphService instanceof GraphDatabaseAPI ? ((GraphDatabaseAPI) graphService).getStoreDir() : null;
+		indexer = new DatabaseIndexer(graphService);
 		config = new ConfigurationManager(graphDb);
 		browser = new DatabaseBrowser(graphDb);
 		updateKnownRemotesInternal();
@@ -83,12 +94,27 @@ public class DatabaseManager extends OTUDatabase {
 	 */
 	public DatabaseManager(EmbeddedGraphDatabase embeddedGraph) {
 		super(embeddedGraph);
-		indexer = new DatabaseIndexer(graphDb);
+		storeDir = embeddedGraph.getStoreDir();
+		indexer = new DatabaseIndexer(embeddedGraph);
 		config = new ConfigurationManager(graphDb);
 		browser = new DatabaseBrowser(graphDb);
 		updateKnownRemotesInternal();
 	}
 
+	/**
+	 * Use the shared services of the given context. See OTUServiceContext.getManager.
+	 * 
+	 * @param context
+	 */
+	DatabaseManager(OTUServiceContext context) {
+		super(context.getGraphDatabase());
+		storeDir = context.getStoreDir();
+		indexer = context.getIndexer();
+		config = context.getConfig();
+		browser = context.getBrowser();
+		updateKnownRemotesInternal();
+	}
+
 	/**
 	 * Open the graph db through the given agent object.
 	 * 
@@ -96,6 +122,7 @@ public class DatabaseManager extends OTUDatabase {
 	 */
 	public DatabaseManager(GraphDatabaseAgent gdb) {
 		super(gdb);
+		storeDir = null;
 		indexer = new DatabaseIndexer(graphDb);
 		config = new ConfigurationManager(graphDb);
 		browser = new DatabaseBrowser(graphDb);
@@ -145,26 +172,85 @@ public class DatabaseManager extends OTUDatabase {
 	 * @throws DuplicateSourceException 
 	 */
 	public Node addSource(NexsonSource source, String location, boolean overwrite) throws DuplicateSourceException {
+		return addSource(ParsedSource.fromNexsonSource(source), location, overwrite);
+	}
+
+	/**
+	 * Install a study that has already been prepared for import into the db, including loading all included trees.
+	 * The parsing and preparation of the ParsedSource can happen on any thread, see NexsonImportPipeline.
+	 * 
+	 * @param source
+	 * 		A ParsedSource object that contains the source metadata and prepared trees.
+	 * 
+	 * @param location
+	 * 		Used to indicate remote vs local studies. To recognize a study as local, pass the location
+	 * 		string in DatabaseManager.LOCAL_LOCATION. Using any other value for the location will result in this study
+	 * 		being treated as a remote study.
+	 * 
+	 * @param overwrite
+	 * 		Pass a value of true to cause any preexisting studies with this location and source id to be deleted and replaced
+	 * 		by this source. Otherwise the method will throw an exception if there are preexisting studies.
+	 * 
+	 * @return
+	 * 		The source metadata node for the newly added study
+	 * @throws DuplicateSourceException 
+	 */
+	public Node addSource(ParsedSource source, String location, boolean overwrite) throws DuplicateSourceException {
 		
 		// TODO: return meaningful information about the result to the rest query that calls this method
 
-		Node sourceMeta = null;
+		// the source is imported over several transactions, so it is marked as incomplete until all the trees are in
+		Node sourceMeta = beginSourceImport(source.getSourceId(), source.getProperties(), location, overwrite);
+		try {
+			for (ParsedSource.ParsedTree tree : source.getTrees()) {
+				addTree(tree.getTree(), tree.getTreeId(), tree.getTaxa(), sourceMeta);
+			}
+			finishSourceImport(sourceMeta);
+
+		} catch (RuntimeException ex) {
+			// don't leave a partial source behind. if this fails too, the source will still be marked as incomplete
+			// and can be removed later with cleanUpIncompleteImports
+			try {
+				deleteSource(sourceMeta);
+			} catch (RuntimeException cleanupEx) {}
+			throw ex;
+		}
 		
+		return sourceMeta;
+	}
+	
+	/**
+	 * Create the source meta node for a new source and mark it as incomplete. Trees can then be added one at a time with
+	 * addTree, after which finishSourceImport must be called. The source meta node is not indexed until then, so incomplete
+	 * sources are not visible to searches. Used by addSource, and by importers that read sources incrementally.
+	 * 
+	 * When overwriting, the existing source is left in place and recorded on the new one, and finishSourceImport deletes it
+	 * in the same transaction that completes the new source. If the import fails the existing source is untouched.
+	 * 
+	 * @param sourceId
+	 * @param properties
+	 * 		The source metadata properties
+	 * @param location
+	 * 		See addSource
+	 * @param overwrite
+	 * 		See addSource
+	 * @return
+	 * 		The source metadata node for the new source
+	 * @throws DuplicateSourceException
+	 */
+	public Node beginSourceImport(String sourceId, Map<String, Object> properties, String location, boolean overwrite) throws DuplicateSourceException {
+
+		Node sourceMeta = null;
+
 		Transaction tx = graphDb.beginTx();
 		try {
-			
-			String sourceId = source.getId();
 
 			// don't add a study if it already exists, unless overwriting is turned on
 			String property = location + OTUConstants.SOURCE_ID_SUFFIX;
-			sourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, property, sourceId);
-			if (sourceMeta != null) {
-				if (overwrite) {
-					deleteSource(sourceMeta);
-				} else {
-					throw new DuplicateSourceException("Attempt to add a source with the same source id as an "
-							+ "existing local source. This would require merging, but merging is not (yet?) supported.");
-				}
+			Node existingSourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, property, sourceId);
+			if (existingSourceMeta != null && !overwrite) {
+				throw new DuplicateSourceException("Attempt to add a source with the same source id as an "
+						+ "existing local source. This would require merging, but merging is not (yet?) supported.");
 			}
 			
 			// create the source
@@ -174,49 +260,66 @@ public class DatabaseManager extends OTUDatabase {
 			sourceMeta.setProperty(OTUNodeProperty.IS_SOURCE_META.propertyName(), true);
 			
 			// set source properties
-			setNodePropertiesFromMap(sourceMeta, source.getProperties());
+			setNodePropertiesFromMap(sourceMeta, properties);
 
-			// add the trees
-			boolean noValidTrees = true;
-			int i = 0;
-			Iterator<JadeTree> treesIter = source.getTrees().iterator();
-			while (treesIter.hasNext()) {
+			// mark the source as incomplete until all the trees have been added
+			sourceMeta.setProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName(), true);
+			addIncompleteImport(tx, sourceMeta.getId());
 
-				JadeTree tree = treesIter.next();
+			// the existing source is replaced when the import finishes
+			if (existingSourceMeta != null) {
+				sourceMeta.setProperty(OTUNodeProperty.REPLACES_EXISTING_SOURCE.propertyName(), true);
+			}
 
-				// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
-				// really we should fix the nexson reader so it doesn't return null trees
-				if (tree == null) {
-					continue;
-				} else if (noValidTrees == true) {
-					noValidTrees = false;
-				}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
 
-				// get the tree id from the nexson if there is one or create an arbitrary one if not
-//				String treeIdSuffix = (String) tree.getObject(OTUNodeProperty.PHYLOGRAFTER_ID.propertyName());
-				String treeIdSuffix = (String) tree.getObject(OTUNodeProperty.NEXSON_ID.propertyName());
-				if (treeIdSuffix ==  null) {
-					treeIdSuffix = OTUConstants.LOCAL_TREEID_PREFIX + /* .value + */ String.valueOf(i);
-				}
-				
-				// create a unique tree id by including the study id, this is the convention from treemachine
-				String treeId = sourceId + "_" + treeIdSuffix;
+		return sourceMeta;
+	}
+
+	/**
+	 * Connect a newly imported source to any other copies of it, index it, and mark it as complete. If it replaces an
+	 * existing source, that source is deleted in the same transaction. See beginSourceImport.
+	 * @param sourceMeta
+	 */
+	public void finishSourceImport(Node sourceMeta) {
 
-				// add the tree
-				addTree(tree, treeId, sourceMeta);
+		String location = (String) sourceMeta.getProperty(OTUNodeProperty.LOCATION.propertyName());
+		String sourceId = (String) sourceMeta.getProperty(OTUNodeProperty.SOURCE_ID.propertyName());
 
-				i++;
+		Transaction tx = graphDb.beginTx();
+		try {
+			// remove the source this one replaces, unless it has already been removed (e.g. by a concurrent overwrite). it is
+			// looked up again rather than by a stored node id, since neo4j reuses the ids of deleted nodes
+			if (sourceMeta.hasProperty(OTUNodeProperty.REPLACES_EXISTING_SOURCE.propertyName())) {
+				sourceMeta.removeProperty(OTUNodeProperty.REPLACES_EXISTING_SOURCE.propertyName());
+				List<Node> replaced = new ArrayList<Node>();
+				IndexHits<Node> hits = sourceMetaNodesBySourceId.get(location + OTUConstants.SOURCE_ID_SUFFIX, sourceId);
+				try {
+					for (Node hit : hits) {
+						if (!hit.equals(sourceMeta) && isSourceMetaFor(hit, location, sourceId)) {
+							replaced.add(hit);
+						}
+					}
+				} finally {
+					hits.close();
+				}
+				for (Node existing : replaced) {
+					deleteSource(existing);
+				}
 			}
-			
-			if (location == LOCAL_LOCATION) { // if this is a local study then attach it to any existing remotes
+
+			if (location.equals(LOCAL_LOCATION)) { // if this is a local study then attach it to any existing remotes
 				for (Node sourceMetaHit : browser.getRemoteSourceMetaNodesForSourceId(sourceId)) {
 					if (sourceMetaHit.getProperty(OTUNodeProperty.LOCATION.propertyName()).equals(LOCAL_LOCATION) == false) {
 						sourceMeta.createRelationshipTo(sourceMetaHit, OTURelType.LOCALCOPYOF);
 					}
 				}
-
+	
 			} else { // remote study
-
+	
 				// check if there is a local study to attach this remote one to
 				Node localSourceMeta = DatabaseUtils.getSingleNodeIndexHit(sourceMetaNodesBySourceId, LOCAL_LOCATION + OTUConstants.SOURCE_ID_SUFFIX, sourceId);
 				if (localSourceMeta != null) {
@@ -225,20 +328,21 @@ public class DatabaseManager extends OTUDatabase {
 				
 				// add the remote location if necessary
 				if (!knownRemotes.contains(location)) {
-					addKnownRemote(location);
+					addKnownRemote(tx, location);
 				}
 			}
-		
+
+			sourceMeta.removeProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName());
+			removeIncompleteImport(tx, sourceMeta.getId());
+
 			indexer.addSourceMetaNodeToIndexes(sourceMeta);
-			
+
 			tx.success();
 		} finally {
 			tx.finish();
 		}
-		
-		return sourceMeta;
 	}
-	
+
 	/**
 	 * Adds a tree in a JadeTree format into the database under the specified study.
 	 * 
@@ -252,47 +356,134 @@ public class DatabaseManager extends OTUDatabase {
 	 * 		The root node for the added tree.
 	 */
 	public Node addTree(JadeTree tree, String treeId, Node sourceMetaNode) {
+		return addTree(tree, treeId, TipTaxonArrays.fromJadeTree(tree), sourceMetaNode);
+	}
+
+	/**
+	 * Adds a tree in a JadeTree format into the database under the specified study, using tip taxon arrays that
+	 * have already been collected from the tree.
+	 * 
+	 * The tree structure is written over several transactions (see OTUConstants.TREE_IMPORT_COMMIT_INTERVAL). The root
+	 * node is attached to the source first and marked with the IMPORT_IN_PROGRESS property, which is only removed once
+	 * the tree is complete and indexed, so a tree that was only partially written can always be found from its source.
+	 * 
+	 * @param tree
+	 * 		A JadeTree object containing the tree to be added
+	 * @param treeId
+	 * 		The id string to use for this tree. Will be used in indexing so must be unique across all trees in the database
+	 * @param taxa
+	 * 		The tip taxon arrays for this tree
+	 * @param sourceMetaNode
+	 * 		The source metadata node for the source that this tree will be added to
+	 * @return
+	 * 		The root node for the added tree.
+	 */
+	public Node addTree(JadeTree tree, String treeId, TipTaxonArrays taxa, Node sourceMetaNode) {
 
 		// get the location from the source meta node
 		String location = (String) sourceMetaNode.getProperty(OTUNodeProperty.LOCATION.propertyName());
 		String sourceId = (String) sourceMetaNode.getProperty(OTUNodeProperty.SOURCE_ID.propertyName());
 
-		// add the tree to the graph; only add tree structure if this is a local tree
+		// create the root and attach it to the source before anything else
 		Node root = null;
-		if (location.equals(LOCAL_LOCATION)) {
-
-			root = preorderAddTreeToDB(tree.getRoot(), null);
-			
-			// set this property now so that get root traversals will work
-			root.setProperty(OTUNodeProperty.IS_ROOT.propertyName(), true);			
+		Transaction tx = graphDb.beginTx();
+		try {
+			root = graphDb.createNode();
+			sourceMetaNode.createRelationshipTo(root, OTURelType.METADATAFOR);
+			root.setProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName(), true);
 
-			// designate the ingroup if we found one, and then reset the variable!
-			if (lastObservedIngroupStartNode != null) {
-				designateIngroup(lastObservedIngroupStartNode);
-				lastObservedIngroupStartNode = null;
+			if (location.equals(LOCAL_LOCATION)) {
+				// set this property now so that get root traversals will work
+				root.setProperty(OTUNodeProperty.IS_ROOT.propertyName(), true);
 			}
-		} else {
-			root = graphDb.createNode();
+			tx.success();
+		} finally {
+			tx.finish();
 		}
 
-		// attach to source and set the id information
-		sourceMetaNode.createRelationshipTo(root, OTURelType.METADATAFOR);
-		root.setProperty(OTUNodeProperty.LOCATION.propertyName(), location);
-		root.setProperty(OTUNodeProperty.SOURCE_ID.propertyName(), sourceId);
+		// add the tree structure to the graph; only add tree structure if this is a local tree
+		Node ingroupStartNode = null;
+		if (location.equals(LOCAL_LOCATION)) {
+			ingroupStartNode = preorderAddTreeToDB(tree.getRoot(), root);
+		}
 
-		// add node properties
-		root.setProperty(OTUNodeProperty.TREE_ID.propertyName(), treeId);
-		root.setProperty(OTUNodeProperty.IS_SAVED_COPY.propertyName(), true);
-		setNodePropertiesFromMap(root, tree.getAssoc());
+		tx = graphDb.beginTx();
+		try {
+			// record the ingroup if we found one. the ingroup flags themselves were set when the nodes were created
+			if (ingroupStartNode != null) {
+				root.setProperty(OTUNodeProperty.INGROUP_IS_SET.propertyName(), true);
+				root.setProperty(OTUNodeProperty.INGROUP_START_NODE_ID.propertyName(), ingroupStartNode.getId());
+			}
+
+			// set the id information
+			root.setProperty(OTUNodeProperty.LOCATION.propertyName(), location);
+			root.setProperty(OTUNodeProperty.SOURCE_ID.propertyName(), sourceId);
+
+			// add node properties
+			root.setProperty(OTUNodeProperty.TREE_ID.propertyName(), treeId);
+			root.setProperty(OTUNodeProperty.IS_SAVED_COPY.propertyName(), true);
+			setNodePropertiesFromMap(root, tree.getAssoc());
+
+			// store information about the taxa represented in this tree
+			setNodePropertiesFromMap(root, taxa.toPropertyMap());
+
+			root.removeProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName());
+			indexer.addTreeRootNodeToIndexes(root);
+
+			tx.success();
+		} finally {
+			tx.finish();
+		}
 
-		// gather information about the taxa represented in this tree
-		collectTipTaxonArrayPropertiesFromJadeTree(root, tree);
-		
-		indexer.addTreeRootNodeToIndexes(root);
-		
 		return root;
 	}
 	
+	/**
+	 * Remove any sources whose import did not complete, e.g. because the server was stopped in the middle of importing
+	 * a large tree. Sources are imported over several transactions, and are recorded in the INCOMPLETE_IMPORTS graph
+	 * property until they are finished. This should not be called while imports are running, since it will remove them.
+	 * 
+	 * @return
+	 * 		The source ids of the incomplete sources that were removed
+	 */
+	public List<String> cleanUpIncompleteImports() {
+		
+		List<String> removedSourceIds = new ArrayList<String>();
+		for (long sourceMetaId : getIncompleteImports()) {
+
+			Node sourceMeta = null;
+			try {
+				sourceMeta = graphDb.getNodeById(sourceMetaId);
+			} catch (NotFoundException ex) {
+				// already gone
+			}
+
+			if (sourceMeta != null && sourceMeta.hasProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName())) {
+				removedSourceIds.add((String) sourceMeta.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+				deleteSource(sourceMeta);
+			}
+
+			Transaction tx = graphDb.beginTx();
+			try {
+				removeIncompleteImport(tx, sourceMetaId);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+
+		return removedSourceIds;
+	}
+	
+	/**
+	 * Get the node ids of the source meta nodes for all the sources whose import has started but not finished.
+	 * @return
+	 */
+	public long[] getIncompleteImports() {
+		long[] incomplete = (long[]) graphDb.getGraphProperty(OTUGraphProperty.INCOMPLETE_IMPORTS);
+		return incomplete == null ? new long[0] : incomplete;
+	}
+	
 	/**
 	 * Make a working copy of a local tree.
 	 * 
@@ -319,7 +510,7 @@ public class DatabaseManager extends OTUDatabase {
 		working.removeProperty(OTUNodeProperty.IS_SAVED_COPY.propertyName());
 
 		// copy the tree itself
-		copyTreeRecursive(original, working, nodeIdOfInterest);
+		Node copyOfNodeOfInterest = copyTreeRecursive(original, working, nodeIdOfInterest);
 
 		// update indexes
 		indexer.removeTreeRootNodeFromIndexes(original);
@@ -332,15 +523,13 @@ public class DatabaseManager extends OTUDatabase {
 		result.put("working_root_node_id", working.getId());
 		
 		if (nodeIdOfInterest != null) {
-			if (workingCopyNodeOfInterest != null) {
-				result.put("node_of_interest_new_id", workingCopyNodeOfInterest.getId());
+			if (copyOfNodeOfInterest != null) {
+				result.put("node_of_interest_new_id", copyOfNodeOfInterest.getId());
 			} else {
 				result.put("node_of_interest_new_id", "null");
 			}
 		}
 		
-		workingCopyNodeOfInterest = null;
-		
 		return result;
 		
 	}
@@ -449,6 +638,11 @@ public class DatabaseManager extends OTUDatabase {
 
 			// clean up the source indexes
 			indexer.removeSourceMetaNodeFromIndexes(sourceMeta);
+			
+			// if this source was never finished then it no longer needs to be cleaned up
+			if (sourceMeta.hasProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName())) {
+				removeIncompleteImport(tx, sourceMeta.getId());
+			}
 
 			// remove all trees
 			for (Relationship rel : sourceMeta.getRelationships(OTURelType.METADATAFOR, Direction.OUTGOING)) {
@@ -482,10 +676,12 @@ public class DatabaseManager extends OTUDatabase {
 
 		Transaction tx = graphDb.beginTx();
 		try {
+			Map<String, Object> oldValues = new HashMap<String, Object>();
 			for (Entry<String, Object> property : properties.entrySet()) {
+				recordOldValue(node, property.getKey(), oldValues);
 				node.setProperty(property.getKey(), property.getValue());
 			}
-			updateIndexes(node);
+			updateIndexes(node, oldValues);
 			tx.success();
 		} finally {
 			tx.finish();
@@ -509,6 +705,7 @@ public class DatabaseManager extends OTUDatabase {
 
 			int i = 0;
 			BasicType t;
+			Map<String, Object> oldValues = new HashMap<String, Object>();
 			
 			for (String key : keys) {
 				try {
@@ -518,10 +715,11 @@ public class DatabaseManager extends OTUDatabase {
 					throw new IllegalArgumentException("The type " + types[i] + " is not valid property type.");
 				}
 
+				recordOldValue(node, key, oldValues);
 				node.setProperty(key, t.convertToValue(values[i++]));
 			}
 			
-			updateIndexes(node);
+			updateIndexes(node, oldValues);
 			
 			tx.success();
 		} catch (ArrayIndexOutOfBoundsException ex) {
@@ -533,7 +731,77 @@ public class DatabaseManager extends OTUDatabase {
 	}
 	
 	/**
-	 * Update the indexes for a given node.
+	 * Remove properties from a node, updating the indexes for them.
+	 * @param node
+	 * @param keys
+	 */
+	public void removeProperties(Node node, String[] keys) {
+		
+		Transaction tx = graphDb.beginTx();
+		try {
+			Map<String, Object> oldValues = new HashMap<String, Object>();
+			for (String key : keys) {
+				recordOldValue(node, key, oldValues);
+				node.removeProperty(key);
+			}
+			updateIndexes(node, oldValues);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Update the indexes after some properties of a node have changed, by removing the index entries for the old values of
+	 * the changed properties and adding entries for the new ones. Properties that are not indexed for this node cost nothing,
+	 * and a change to the taxon of one tip recollects the descendant taxon arrays of its tree, changing only the entries for
+	 * values that were added to or removed from them. When deferred
+	 * indexing is on, the node's tree or source is reindexed in full instead (see updateIndexes(Node)).
+	 * 
+	 * @param node
+	 * @param oldValues
+	 * 		the values of the changed properties before they were changed, with null values for properties that were not set
+	 */
+	public void updateIndexes(Node node, Map<String, Object> oldValues) {
+		
+		if (indexer.isDeferredIndexing()) {
+			updateIndexes(node);
+			return;
+		}
+
+		if (node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())) {
+			for (Entry<String, Object> old : oldValues.entrySet()) {
+				indexer.updateSearchablePropertyEntries(node, old.getKey(), old.getValue(), node.getProperty(old.getKey(), null));
+			}
+			return;
+		}
+
+		// trees that are not attached to a source (e.g. originals with working copies) are not indexed
+		Node root = DatabaseBrowser.getRootOfTreeContaining(node);
+		if (root == null || !DatabaseIndexer.isAttachedTreeRoot(root)) {
+			return;
+		}
+		
+		if (node.equals(root)) {
+			for (Entry<String, Object> old : oldValues.entrySet()) {
+				indexer.updateSearchablePropertyEntries(root, old.getKey(), old.getValue(), node.getProperty(old.getKey(), null));
+			}
+		}
+		
+		// the descendant taxon arrays are collected from the tips
+		if (!node.hasRelationship(OTURelType.CHILDOF, Direction.INCOMING)) {
+			for (String key : oldValues.keySet()) {
+				if (TAXONOMIC_TIP_PROPERTIES.contains(key)) {
+					updateTipTaxonArrays(root);
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Update the indexes for a given node by reindexing its tree or source in full, recollecting the descendant taxon arrays
+	 * for trees. Use updateIndexes(Node, Map) when the old values of the changed properties are known.
 	 * @param node
 	 */
 	public void updateIndexes(Node node) {
@@ -699,7 +967,7 @@ public class DatabaseManager extends OTUDatabase {
 		}
 		
 		Long ottId = (Long) node.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
-		Node taxonNode = DatabaseUtils.getSingleNodeIndexHit(taxonNodesByOTTId, OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId); // TODO: this should be consistent with the OTVcoabulary
+		Node taxonNode = getTaxonNodeForOTTId(ottId);
 		
 		if (taxonNode != null) {
 			
@@ -711,20 +979,97 @@ public class DatabaseManager extends OTUDatabase {
 		}
 	}
 	
+	/**
+	 * Get the taxonomy node for this ott id. Uses the OTTIdMap if there is a current one, and otherwise falls back to the
+	 * lucene ott id index.
+	 * @param ottId
+	 * @return
+	 * 		the taxonomy node, or null if there is none
+	 */
+	public Node getTaxonNodeForOTTId(Long ottId) {
+		
+		OTTIdMap ottIdMap = getOTTIdMap();
+		if (ottIdMap != null) {
+			long nodeId = ottIdMap.get(ottId);
+			if (nodeId == OTTIdMap.NOT_FOUND) {
+				return null;
+			}
+			try {
+				return graphDb.getNodeById(nodeId);
+			} catch (NotFoundException ex) {
+				// the map is out of date, so stop using it
+				discardOTTIdMap(ottIdMap);
+			}
+		}
+		
+		return DatabaseUtils.getSingleNodeIndexHit(taxonNodesByOTTId, OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId); // TODO: this should be consistent with the OTVcoabulary
+	}
+	
 	// ========== private methods
 	
+	/**
+	 * Get the current ott id map, loading it if it has not been loaded or if the stamp of the current map has changed
+	 * since it was loaded.
+	 * @return
+	 * 		the map, or null if there is no usable map
+	 */
+	private OTTIdMap getOTTIdMap() {
+		Long stamp = config.getOTTIdMapStamp();
+		LoadedOTTIdMap loaded = loadedOTTIdMap;
+		if (loaded != null && loaded.hasStamp(stamp)) {
+			return loaded.map;
+		}
+		synchronized (ottIdMapLock) {
+			// another thread may have loaded it while we waited
+			loaded = loadedOTTIdMap;
+			if (loaded == null || !loaded.hasStamp(stamp)) {
+				loaded = new LoadedOTTIdMap(OTTIdMap.forStoreDir(storeDir, stamp), stamp);
+				loadedOTTIdMap = loaded;
+			}
+			return loaded.map;
+		}
+	}
+	
+	/**
+	 * Stop using an ott id map that has turned out to be out of date, unless it has already been replaced.
+	 * @param stale
+	 */
+	private void discardOTTIdMap(OTTIdMap stale) {
+		synchronized (ottIdMapLock) {
+			LoadedOTTIdMap loaded = loadedOTTIdMap;
+			if (loaded != null && loaded.map == stale) {
+				loadedOTTIdMap = new LoadedOTTIdMap(null, loaded.stamp);
+			}
+		}
+	}
+	
+	/**
+	 * Take the write lock on the node that holds the graph properties, so that a graph property can be read and then
+	 * rewritten without losing changes made by concurrent transactions. The lock is held until the transaction finishes.
+	 * @param tx
+	 * 		the transaction we are running in
+	 */
+	private Node lockGraphProperties(Transaction tx) {
+		Node propertyNode = graphDb.getNodeById((long) 0);
+		tx.acquireWriteLock(propertyNode);
+		return propertyNode;
+	}
+	
 	/**
 	 * A recursive function to facilitate copying trees
 	 * 
 	 * @param original
 	 * @param copy
+	 * @return
+	 * 		the copy of the node with id nodeIdOfInterest, or null if it is not in this part of the tree
 	 */
-	private void copyTreeRecursive(Node original, Node copy, Long nodeIdOfInterest) {
+	private Node copyTreeRecursive(Node original, Node copy, Long nodeIdOfInterest) {
 		
 		// if this node is one we want to remember, then do that
+		Node copyOfNodeOfInterest = null;
 		if (nodeIdOfInterest != null) {
 			if (original.getId() == nodeIdOfInterest) {
-				workingCopyNodeOfInterest = copy;
+				copyOfNodeOfInterest = copy;
 			}
 		}
 		
@@ -747,18 +1092,76 @@ public class DatabaseManager extends OTUDatabase {
 		
 		// recur on the children
 		for (Entry<Node, Node> nodePairToCopy : childrenToCopy.entrySet()) {
-			copyTreeRecursive(nodePairToCopy.getKey(), nodePairToCopy.getValue(), nodeIdOfInterest);
+			Node found = copyTreeRecursive(nodePairToCopy.getKey(), nodePairToCopy.getValue(), nodeIdOfInterest);
+			if (found != null) {
+				copyOfNodeOfInterest = found;
+			}
 		}
+		
+		return copyOfNodeOfInterest;
 	}
 	
+	/**
+	 * Whether a node is the complete source meta node for this source id and location.
+	 */
+	private static boolean isSourceMetaFor(Node node, String location, String sourceId) {
+		return node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())
+				&& !node.hasProperty(OTUNodeProperty.IMPORT_IN_PROGRESS.propertyName())
+				&& location.equals(node.getProperty(OTUNodeProperty.LOCATION.propertyName(), null))
+				&& sourceId.equals(node.getProperty(OTUNodeProperty.SOURCE_ID.propertyName(), null));
+	}
+	
+	/**
+	 * Record a source meta node id in the INCOMPLETE_IMPORTS graph property.
+	 * @param tx
+	 * 		the transaction we are running in
+	 * @param sourceMetaId
+	 */
+	private void addIncompleteImport(Transaction tx, long sourceMetaId) {
+		lockGraphProperties(tx);
+		long[] prev = getIncompleteImports();
+		long[] updated = Arrays.copyOf(prev, prev.length + 1);
+		updated[prev.length] = sourceMetaId;
+		graphDb.setGraphProperty(OTUGraphProperty.INCOMPLETE_IMPORTS.propertyName(), updated);
+	}
+
+	/**
+	 * Remove a source meta node id from the INCOMPLETE_IMPORTS graph property.
+	 * @param tx
+	 * 		the transaction we are running in
+	 * @param sourceMetaId
+	 */
+	private void removeIncompleteImport(Transaction tx, long sourceMetaId) {
+		lockGraphProperties(tx);
+		long[] prev = getIncompleteImports();
+		long[] updated = new long[prev.length];
+		int i = 0;
+		for (long id : prev) {
+			if (id != sourceMetaId) {
+				updated[i++] = id;
+			}
+		}
+		graphDb.setGraphProperty(OTUGraphProperty.INCOMPLETE_IMPORTS.propertyName(), Arrays.copyOf(updated, i));
+	}
+
 	/**
 	 * Add a known remote to the graph property for known remotes, which is a primitive string array. We
 	 * could also just add nodes for all remotes and index them
+	 * @param tx
+	 * 		the transaction we are running in
 	 * @param remote
 	 */
-	private void addKnownRemote(String newRemote) {
+	private void addKnownRemote(Transaction tx, String newRemote) {
 		
+		Node propertyNode = lockGraphProperties(tx);
+
+		// another import may have added it since we last looked
 		List<String> knownRemotesPrev = browser.getKnownRemotes();
+		if (knownRemotesPrev.contains(newRemote)) {
+			updateKnownRemotesInternal();
+			return;
+		}
+
 		String[] knownRemotesNew = new String[knownRemotesPrev.size()+1];
 		
 		int i = 0;
@@ -767,7 +1170,7 @@ public class DatabaseManager extends OTUDatabase {
 		}
 
 		knownRemotesNew[i] = newRemote;
-		graphDb.getNodeById((long)0).setProperty(OTUGraphProperty.KNOWN_REMOTES.propertyName(), knownRemotesNew);
+		propertyNode.setProperty(OTUGraphProperty.KNOWN_REMOTES.propertyName(), knownRemotesNew);
 		
 		updateKnownRemotesInternal();
 	}
@@ -777,63 +1180,108 @@ public class DatabaseManager extends OTUDatabase {
 	 * We keep this cached so we don't have to check the graph property array every time we add a source.
 	 */
 	private void updateKnownRemotesInternal() {
-		knownRemotes = new HashSet<String>();
-		for (String remote : browser.getKnownRemotes()) {
-			knownRemotes.add(remote);
-		}
+		knownRemotes = Collections.unmodifiableSet(new HashSet<String>(browser.getKnownRemotes()));
 	}
 	
 	/**
-	 * A recursive function used to replicate the tree JadeNode structure below the passed in JadeNode in the graph.
-	 * @param curJadeNode
-	 * @param parentGraphNode
+	 * Replicate the tree JadeNode structure below the passed in JadeNode in the graph, using the passed in graph node to
+	 * represent the JadeNode itself. Nodes are created in preorder using an explicit stack rather than recursion so that
+	 * very deep trees cannot overflow the call stack, and the transaction is committed every
+	 * OTUConstants.TREE_IMPORT_COMMIT_INTERVAL nodes so that the transaction state stays small for very large trees.
+	 * 
+	 * Ingroup flags are set on the nodes as they are created, so there is no need to call designateIngroup afterward.
+	 * 
+	 * @param jadeRoot
+	 * @param graphRoot
 	 * @return
+	 * 		The graph node for the ingroup root, or null if there is no ingroup.
 	 */
-	private Node preorderAddTreeToDB(JadeNode curJadeNode, Node parentGraphNode) {
+	private Node preorderAddTreeToDB(JadeNode jadeRoot, Node graphRoot) {
 
-		Node curGraphNode = graphDb.createNode();
+		boolean hasTaxonomy = config.hasTaxonomy();
+		Node ingroupStartNode = null;
+		int nIngroupRoots = 0;
+		
+		LinkedList<PendingTreeNode> stack = new LinkedList<PendingTreeNode>();
+		stack.push(new PendingTreeNode(jadeRoot, null, false));
 
-		// remember the ingroup if we hit one
-		if (curJadeNode.hasAssocObject(OTUNodeProperty.IS_INGROUP_ROOT.propertyName()) == true) {
-//			withinIngroup = true;
-			curGraphNode.setProperty(OTUNodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
-			lastObservedIngroupStartNode = curGraphNode;
-		}
+		int nodesInTx = 0;
+		Transaction tx = graphDb.beginTx();
+		try {
+			while (!stack.isEmpty()) {
+				
+				PendingTreeNode pending = stack.pop();
+				JadeNode curJadeNode = pending.jadeNode;
+				boolean withinIngroup = pending.withinIngroup;
+
+				Node curGraphNode = null;
+				if (pending.parentGraphNode == null) {
+					curGraphNode = graphRoot;
+				} else {
+					curGraphNode = graphDb.createNode();
+					curGraphNode.createRelationshipTo(pending.parentGraphNode, OTURelType.CHILDOF);
+				}
 		
-		// set the ingroup flag if we're within the ingroup
-//		if (withinIngroup) {
-//			curGraphNode.setProperty(NodeProperty.IS_WITHIN_INGROUP.propertyName(), true);
-//		}
+				// remember the ingroup if we hit one
+				if (curJadeNode.hasAssocObject(OTUNodeProperty.IS_INGROUP_ROOT.propertyName()) == true) {
+					curGraphNode.setProperty(OTUNodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
+					ingroupStartNode = curGraphNode;
+					withinIngroup = true;
+					nIngroupRoots++;
+				}
+				
+				// set the ingroup flag if we're within the ingroup
+				if (withinIngroup) {
+					curGraphNode.setProperty(OTUNodeProperty.IS_WITHIN_INGROUP.propertyName(), true);
+				}
+				
+				// add properties
+				if (curJadeNode.getName() != null) {
+					curGraphNode.setProperty(OTUNodeProperty.NAME.propertyName(), curJadeNode.getName());
+					setNodePropertiesFromMap(curGraphNode, curJadeNode.getAssoc()); // why not?
+				}
 		
-		// add properties
-		if (curJadeNode.getName() != null) {
-			curGraphNode.setProperty(OTUNodeProperty.NAME.propertyName(), curJadeNode.getName());
-			setNodePropertiesFromMap(curGraphNode, curJadeNode.getAssoc()); // why not?
-		}
+				// TODO: add bl
+				// dbnode.setProperty("bl", innode.getBL());
+				// TODO: add support
+				
+				if (curJadeNode.getChildCount() < 1) {
 
-		// TODO: add bl
-		// dbnode.setProperty("bl", innode.getBL());
-		// TODO: add support
-		
-		if (parentGraphNode != null) {
-			curGraphNode.createRelationshipTo(parentGraphNode, OTURelType.CHILDOF);
-		}
+					// mark the tips as OTU nodes
+					curGraphNode.setProperty(OTVocabularyPredicate.OT_IS_LEAF.propertyName(), true);
+					
+					// for otu nodes, connect them to the taxonomy if it exists
+					if (hasTaxonomy) {
+						connectTreeNodeToTaxonomy(curGraphNode);
+					}
 
-		for (JadeNode childJadeNode : curJadeNode.getChildren()) {
-			preorderAddTreeToDB(childJadeNode, curGraphNode);
+				} else {
+
+					// push the children in reverse so they come off the stack in their original order
+					List<JadeNode> children = curJadeNode.getChildren();
+					for (int i = children.size() - 1; i >= 0; i--) {
+						stack.push(new PendingTreeNode(children.get(i), curGraphNode, withinIngroup));
+					}
+				}
+
+				if (++nodesInTx >= OTUConstants.TREE_IMPORT_COMMIT_INTERVAL) {
+					tx.success();
+					tx.finish();
+					tx = graphDb.beginTx();
+					nodesInTx = 0;
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
 		}
 		
-		// mark the tips as OTU nodes
-		if (curJadeNode.getChildCount() < 1) {
-			curGraphNode.setProperty(OTVocabularyPredicate.OT_IS_LEAF.propertyName(), true);
-			
-			// for otu nodes, connect them to the taxonomy if it exists
-			if (config.hasTaxonomy()) {
-				connectTreeNodeToTaxonomy(curGraphNode);
-			}
+		// if there was more than one ingroup root, use the last one we saw and clear the flags set for the others
+		if (nIngroupRoots > 1) {
+			designateIngroup(ingroupStartNode);
 		}
 
-		return curGraphNode;
+		return ingroupStartNode;
 	}
 	
 	/**
@@ -848,88 +1296,80 @@ public class DatabaseManager extends OTUDatabase {
 	}
 	
 	/**
-	 * Collects taxonomic names and ids for all the tips of the provided JadeTree and stores this info as node properties
-	 * of the provided graph node. Used to store taxonomic mapping info for the root nodes of trees in the graph.
+	 * Collects taxonomic names and ids for all the tips below the provided graph node and stores this info as node properties
+	 * of that node. Used to store taxonomic mapping info for the root nodes of trees in the graph.
 	 * @param node
-	 * @param tree
 	 */
-	private void collectTipTaxonArrayPropertiesFromJadeTree(Node node, JadeTree tree) {
-		
-		originalTaxonNames = new ArrayList<String>();
-		mappedTaxonNames = new ArrayList<String>();
-		mappedTaxonNamesNoSpaces = new ArrayList<String>();
-		mappedOTTIds = new ArrayList<Long>();
-
-		for (JadeNode treeNode : tree.getRoot().getDescendantLeaves()) {
-
-			originalTaxonNames.add((String) treeNode.getObject(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()));
-
-			if (treeNode.hasAssocObject(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
-				// If the node has not been explicitly mapped, we will not record the name as a mapped name
-				String name = treeNode.getName();
-				mappedTaxonNames.add(name);
-				mappedTaxonNamesNoSpaces.add(name.replace("\\s+", OTUConstants.WHITESPACE_SUBSTITUTE_FOR_SEARCH));
-			}
-
-			Long ottId = (Long) treeNode.getObject(OTVocabularyPredicate.OT_OTT_ID.propertyName());
-			if (ottId != null) {
-				mappedOTTIds.add(ottId);
-			}
-		}
-		assignTaxonArraysToNode(node);
+	private void collectTipTaxonArrayPropertiesFromGraph(Node node) {
+		setNodePropertiesFromMap(node, TipTaxonArrays.fromGraph(node).toPropertyMap());
 	}
 	
 	/**
-	 * Collects taxonomic names and ids for all the tips of the provided JadeTree and stores this info as node properties
-	 * of the provided graph node. Used to store taxonomic mapping info for the root nodes of trees in the graph.
-	 * @param node
-	 * @param tree
+	 * Remember the current value of a property that is about to be changed, for updateIndexes. Only the first value for
+	 * each key is kept, so a property set twice is compared with its original value.
 	 */
-	private void collectTipTaxonArrayPropertiesFromGraph(Node node) {
-		
-		originalTaxonNames = new ArrayList<String>();
-		mappedTaxonNames = new ArrayList<String>();
-		mappedTaxonNamesNoSpaces = new ArrayList<String>();
-		mappedOTTIds = new ArrayList<Long>();
-
-		for (Node tip : DatabaseBrowser.getDescendantTips(node)) {
-
-			originalTaxonNames.add((String) tip.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()));
-
-			// only record explicit mapped names as mapped names
-			if (tip.hasProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName())) {
-				String name = (String) tip.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
-				mappedTaxonNames.add(name);
-				mappedTaxonNamesNoSpaces.add(name.replace("\\s+", OTUConstants.WHITESPACE_SUBSTITUTE_FOR_SEARCH));
-			}
-
-			if (tip.hasProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
-				Long ottId = (Long) tip.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
-				mappedOTTIds.add(ottId);
-			}
+	private static void recordOldValue(Node node, String key, Map<String, Object> oldValues) {
+		if (!oldValues.containsKey(key)) {
+			oldValues.put(key, node.getProperty(key, null));
 		}
-		assignTaxonArraysToNode(node);
 	}
 	
 	/**
-	 * A helper function for the collectTipTaxonArrayProperties functions. Exists only to ensure consistency and simplify code.
-	 * @param node
+	 * Update the descendant taxon arrays on a tree root, and their index entries, after a taxonomic property of one of its
+	 * tips has changed. The arrays are collected again from the tips by TipTaxonArrays.fromGraph, as by
+	 * collectTipTaxonArrayPropertiesFromGraph, and only the index entries for values that were added to or removed from an
+	 * array are changed.
 	 */
-	private void assignTaxonArraysToNode(Node node) {
+	private void updateTipTaxonArrays(Node root) {
+		Map<String, Object> arrays = TipTaxonArrays.fromGraph(root).toPropertyMap();
+		updateTaxonArray(root, OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName(),
+				OTUNodeIndex.TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME, arrays);
+		updateTaxonArray(root, OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(),
+				OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME, arrays);
+		updateTaxonArray(root, OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.propertyName(),
+				OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED, arrays);
+		updateTaxonArray(root, OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(),
+				OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID, arrays);
+	}
+	
+	/**
+	 * Replace a descendant taxon array with the newly collected one, and update the index entries for the values that are
+	 * no longer in it or were not in it before. The arrays can contain repeated values, but each value is only indexed once.
+	 */
+	private void updateTaxonArray(Node root, String arrayProperty, OTUNodeIndex index, Map<String, Object> arrays) {
 		
-		// store the properties we just collected
-		node.setProperty(OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(originalTaxonNames));
-		node.setProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(mappedTaxonNames));
-		node.setProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.propertyName(), GeneralUtils.convertToStringArray(mappedTaxonNamesNoSpaces));
-		node.setProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(mappedOTTIds));
+		Object updated = arrays.get(arrayProperty);
+		Set<Object> oldValues = toValueSet(root.getProperty(arrayProperty, null));
+		Set<Object> newValues = toValueSet(updated);
+		if (oldValues.equals(newValues) && root.hasProperty(arrayProperty)) {
+			root.setProperty(arrayProperty, updated); // the counts of repeated values may still have changed
+			return;
+		}
 		
-		// clean up the mess... just to be sure we don't accidentally use this information somewhere else
-		originalTaxonNames = null;
-		mappedTaxonNames = null;
-		mappedTaxonNamesNoSpaces = null;
-		mappedOTTIds = null;
+		root.setProperty(arrayProperty, updated);
+		for (Object value : oldValues) {
+			if (!newValues.contains(value)) {
+				indexer.updateTaxonomicEntry(root, index, value, null);
+			}
+		}
+		for (Object value : newValues) {
+			if (!oldValues.contains(value)) {
+				indexer.updateTaxonomicEntry(root, index, null, value);
+			}
+		}
+	}
+	
+	private static Set<Object> toValueSet(Object array) {
+		Set<Object> values = new HashSet<Object>();
+		if (array instanceof long[]) {
+			for (long value : (long[]) array) {
+				values.add(value);
+			}
+		} else if (array instanceof String[]) {
+			values.addAll(Arrays.asList((String[]) array));
+		}
+		return values;
 	}
-
 	
 	/**
 	 * Used by the rerooting function
@@ -980,5 +1420,40 @@ public class DatabaseManager extends OTUDatabase {
 		innode.getSingleRelationship(OTURelType.CHILDOF, Direction.OUTGOING).delete();
 		parent.createRelationshipTo(innode, OTURelType.CHILDOF);
 	}
+	
+	/**
+	 * A JadeNode waiting to be added to the graph by preorderAddTreeToDB, along with the graph node for its parent.
+	 */
+	private static class PendingTreeNode {
+
+		final JadeNode jadeNode;
+		final Node parentGraphNode;
+		final boolean withinIngroup;
+		
+		PendingTreeNode(JadeNode jadeNode, Node parentGraphNode, boolean withinIngroup) {
+			this.jadeNode = jadeNode;
+			this.parentGraphNode = parentGraphNode;
+			this.withinIngroup = withinIngroup;
+		}
+	}
+	
+	/**
+	 * An ott id map along with the stamp it was loaded for. The map is null if there was no usable map for the stamp, or if
+	 * it was discarded.
+	 */
+	private static class LoadedOTTIdMap {
+
+		final OTTIdMap map;
+		final Long stamp;
+		
+		LoadedOTTIdMap(OTTIdMap map, Long stamp) {
+			this.map = map;
+			this.stamp = stamp;
+		}
+		
+		boolean hasStamp(Long current) {
+			return current == null ? stamp == null : current.equals(stamp);
+		}
+	}
 
 }
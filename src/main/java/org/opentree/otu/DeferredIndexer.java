@@ -0,0 +1,292 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+
+/**
+ * Processes the deferred indexing queue in the background. When deferred indexing is on (see the DEFERRED_INDEXING graph
+ * property), imports only update the tree id and source id indexes, and queue the new nodes in the pendingIndexWork index.
+ * This class drains that queue in batches, adding the queued nodes to the search indexes, so that imports do not pay for
+ * the fulltext indexing of large taxon arrays. Searches will not see queued nodes until they have been processed; use
+ * getIndexLag to see how far behind the search indexes are, or awaitCatchUp to wait for them. Nodes that cannot be indexed
+ * are dropped from the queue, and the last error is reported by getIndexLag.
+ *
+ * There is one DeferredIndexer per database. It runs on a daemon thread that is stopped when the database shuts down. It
+ * keeps draining the queue if deferred indexing is turned off, and is also started when the database is opened with
+ * deferred indexing off but with nodes still queued.
+ */
+public class DeferredIndexer implements Runnable {
+
+	private static final Map<GraphDatabaseService, DeferredIndexer> instances = new HashMap<GraphDatabaseService, DeferredIndexer>();
+
+	private static final MessageLogger logger = new MessageLogger("deferredIndexer:");
+
+	private final GraphDatabaseService graphDb;
+	private final Object monitor = new Object();
+	private volatile boolean running = true;
+	private boolean workAvailable = true;
+	private boolean idle = false;
+
+	// the last error from the indexing thread, or null
+	private volatile String lastError = null;
+
+	// created on the indexing thread, since DatabaseIndexer itself may be creating this object
+	private DatabaseIndexer indexer;
+
+	private DeferredIndexer(GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	/**
+	 * Get the DeferredIndexer for this database, starting it if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static synchronized DeferredIndexer getInstance(GraphDatabaseService graphDb) {
+		DeferredIndexer instance = instances.get(graphDb);
+		if (instance == null) {
+			instance = new DeferredIndexer(graphDb);
+			instances.put(graphDb, instance);
+			instance.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Tell the indexer that new work has been queued. Work queued in an open transaction is only visible after the
+	 * transaction is committed, so the indexer may need to wait for the next poll to see it.
+	 */
+	public void wake() {
+		synchronized (monitor) {
+			workAvailable = true;
+			idle = false;
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until the queue is empty.
+	 * @param timeoutMs
+	 * 		the maximum time to wait
+	 * @return
+	 * 		true if the queue was emptied before the timeout
+	 */
+	public boolean awaitCatchUp(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		wake();
+		synchronized (monitor) {
+			while (!idle) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || !running) {
+					return false;
+				}
+				monitor.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Report the number of nodes waiting in the queue, the age in milliseconds of the oldest queued change, and the last
+	 * error from the indexing thread.
+	 * @return
+	 */
+	public static Map<String, Object> getIndexLag(GraphDatabaseService graphDb) {
+
+		int pending = 0;
+		long oldest = -1;
+
+		IndexHits<Node> hits = OTUServiceContext.getInstance(graphDb).getIndexer().getQueuedNodes();
+		try {
+			pending = hits.size();
+			for (Node node : hits) {
+				if (node.hasProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName())) {
+					long since = (Long) node.getProperty(OTUNodeProperty.PENDING_INDEX_SINCE.propertyName());
+					if (oldest < 0 || since < oldest) {
+						oldest = since;
+					}
+				}
+			}
+		} finally {
+			hits.close();
+		}
+
+		Map<String, Object> lag = new HashMap<String, Object>();
+		lag.put("pending", pending);
+		lag.put("oldest_pending_ms", oldest < 0 ? 0 : System.currentTimeMillis() - oldest);
+		DeferredIndexer instance;
+		synchronized (DeferredIndexer.class) {
+			instance = instances.get(graphDb);
+		}
+		lag.put("last_error", instance == null ? null : instance.lastError);
+		return lag;
+	}
+
+	@Override
+	public void run() {
+		indexer = new DatabaseIndexer(graphDb);
+		while (running) {
+			int processed = 0;
+			try {
+				processed = processBatch();
+			} catch (Exception ex) {
+				// most likely the database is shutting down, so just check whether we should stop
+				if (!running) {
+					break;
+				}
+				reportError("could not process the queue", ex);
+			}
+
+			if (processed == 0) {
+				synchronized (monitor) {
+					idle = true;
+					monitor.notifyAll();
+					if (!workAvailable) {
+						try {
+							monitor.wait(OTUConstants.DEFERRED_INDEXING_POLL_INTERVAL_MS);
+						} catch (InterruptedException ex) {
+							running = false;
+						}
+					}
+					workAvailable = false;
+				}
+			}
+		}
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	// ===== private methods
+
+	private void start() {
+		graphDb.registerKernelEventHandler(new KernelEventHandler() {
+			@Override
+			public void beforeShutdown() {
+				stop();
+			}
+			@Override
+			public Object getResource() {
+				return null;
+			}
+			@Override
+			public void kernelPanic(ErrorState error) {
+				stop();
+			}
+			@Override
+			public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+				return ExecutionOrder.DOESNT_MATTER;
+			}
+		});
+
+		Thread thread = new Thread(this, "otu-deferred-indexer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void stop() {
+		running = false;
+		synchronized (DeferredIndexer.class) {
+			instances.remove(graphDb);
+		}
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Index up to DEFERRED_INDEXING_BATCH_SIZE queued nodes in a single transaction. If the batch fails, the nodes are
+	 * retried one at a time, and any node that cannot be indexed on its own is dropped from the queue so it cannot block
+	 * the rest of the queue.
+	 * @return
+	 * 		the number of nodes taken from the queue
+	 */
+	private int processBatch() {
+
+		List<Node> batch = new ArrayList<Node>();
+		IndexHits<Node> hits = indexer.getQueuedNodes();
+		try {
+			for (Node node : hits) {
+				batch.add(node);
+				if (batch.size() >= OTUConstants.DEFERRED_INDEXING_BATCH_SIZE) {
+					break;
+				}
+			}
+		} finally {
+			hits.close();
+		}
+
+		if (batch.isEmpty()) {
+			return 0;
+		}
+
+		if (!indexInTransaction(batch)) {
+			for (Node node : batch) {
+				List<Node> single = new ArrayList<Node>();
+				single.add(node);
+				if (!indexInTransaction(single)) {
+					dropFromQueue(node);
+				}
+			}
+		}
+		return batch.size();
+	}
+
+	/**
+	 * Process the nodes in a single transaction.
+	 * @return
+	 * 		true if the transaction was committed
+	 */
+	private boolean indexInTransaction(List<Node> nodes) {
+		boolean committed = false;
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (Node node : nodes) {
+				indexer.processQueuedNode(node);
+			}
+			tx.success();
+			committed = true;
+		} catch (RuntimeException ex) {
+			tx.failure();
+			if (nodes.size() == 1) {
+				reportError("could not index node " + nodes.get(0).getId(), ex);
+			}
+		}
+		try {
+			tx.finish();
+		} catch (RuntimeException ex) {
+			committed = false;
+		}
+		return committed;
+	}
+
+	private void reportError(String message, Exception ex) {
+		lastError = message + ": " + ex.toString();
+		logger.messageStr(message, "error", ex.toString());
+	}
+
+	/**
+	 * Remove a node that could not be indexed from the queue so it does not block the rest of the queue.
+	 */
+	private void dropFromQueue(Node node) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			indexer.removeFromSearchIndexingQueue(node);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.tooling.GlobalGraphOperations;
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.OTURelType;
+
+/**
+ * Checks the OTUNodeIndex indexes against the graph, and rebuilds them from it.
+ *
+ * Both operations start by finding all the source metadata nodes in the graph. The sources are then split into one
+ * partition per thread, and each thread walks its sources and their attached tree roots, working out which indexes each
+ * node belongs in (see DatabaseIndexer.getExpectedIndexes). The result is compared, node by node, to the nodes that each
+ * index actually contains. A node that belongs in an index but is not in it is reported as missing, and a node that is in
+ * an index it does not belong in (e.g. a tree root that has been replaced by a working copy or a reroot) is reported as
+ * stale. The values of the entries are not compared; rebuilding an index rewrites them for every node.
+ *
+ * A rebuild replaces each node's entries in the selected indexes in small transactions, and then removes the stale nodes,
+ * so the indexes stay available for reads throughout and each node is always either fully indexed or not yet rebuilt. A
+ * stale node is checked again before it is removed, so trees imported or indexed while a rebuild is running are kept. The
+ * graph is not locked, so changes made while a check is running may show up as differences, and should be rechecked.
+ *
+ * Only one check or rebuild can run at a time. Its progress can be followed with getStatus.
+ */
+public class IndexMaintenance {
+
+	/** The fulltext index that held the tree root ott id entries before they were indexed as numbers */
+	public static final String FULLTEXT_OTT_ID_INDEX_NAME = "treeRootNodesByMappedTaxonMappedOTTId";
+
+	private static final MessageLogger logger = new MessageLogger("indexMaintenance:");
+
+	private static final Object runLock = new Object();
+	private static volatile Progress current = null;
+
+	private final GraphDatabaseService graphDb;
+	private final DatabaseIndexer indexer;
+	private final int nThreads;
+
+	/**
+	 * @param graphDb
+	 * @param nThreads
+	 * 		The number of partitions to process in parallel
+	 */
+	public IndexMaintenance(GraphDatabaseService graphDb, int nThreads) {
+		if (nThreads < 1) {
+			throw new IllegalArgumentException("The number of threads must be positive.");
+		}
+		this.graphDb = graphDb;
+		this.indexer = OTUServiceContext.getInstance(graphDb).getIndexer();
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Compare every index to the graph and report the missing and stale nodes for each one. Does not change the graph.
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> check() throws InterruptedException {
+		return run("check", EnumSet.allOf(OTUNodeIndex.class), false);
+	}
+
+	/**
+	 * Rebuild the indicated indexes from the graph. Every node that belongs in one of these indexes has its entries
+	 * replaced, and every other node is removed from them.
+	 *
+	 * @param indexes
+	 * 		the indexes to rebuild. If null, all indexes are rebuilt
+	 * @return
+	 * 		a report of the rebuild, including the differences that were found between the graph and the indexes
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> rebuild(Set<OTUNodeIndex> indexes) throws InterruptedException {
+		return run("rebuild", indexes == null ? EnumSet.allOf(OTUNodeIndex.class) : EnumSet.copyOf(indexes), true);
+	}
+
+	/**
+	 * Migrate the tree root ott id entries from the old fulltext index to the numeric TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID
+	 * index. The numeric index is rebuilt from the graph, and the fulltext index is then deleted. Ott id searches read both
+	 * indexes until the rebuild is finished (see OTUServiceContext.isMigratingOTTIdIndex). The OTUServiceContext runs this
+	 * automatically when a database still has the fulltext index.
+	 *
+	 * @return
+	 * 		the report of the rebuild, or null if there was no fulltext index to migrate
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> migrateFulltextOTTIdIndex() throws InterruptedException {
+
+		if (!graphDb.index().existsForNodes(FULLTEXT_OTT_ID_INDEX_NAME)) {
+			return null;
+		}
+
+		Map<String, Object> report = rebuild(EnumSet.of(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID));
+
+		// new searches only read the numeric index from now on. wait for the ones still reading the fulltext index
+		OTUServiceContext context = OTUServiceContext.getInstance(graphDb);
+		context.ottIdIndexMigrated();
+		context.getFulltextOTTIdIndexLock().writeLock().lock();
+		try {
+			Transaction tx = graphDb.beginTx();
+			try {
+				if (graphDb.index().existsForNodes(FULLTEXT_OTT_ID_INDEX_NAME)) {
+					graphDb.index().forNodes(FULLTEXT_OTT_ID_INDEX_NAME).delete();
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		} finally {
+			context.getFulltextOTTIdIndexLock().writeLock().unlock();
+		}
+
+		return report;
+	}
+
+	/**
+	 * Get the progress of the running check or rebuild.
+	 * @return
+	 * 		the operation and phase, the number of nodes processed and the processing rate, or just {"running": false}
+	 * 		if nothing is running
+	 */
+	public static Map<String, Object> getStatus() {
+		Progress progress = current;
+		if (progress == null) {
+			Map<String, Object> status = new LinkedHashMap<String, Object>();
+			status.put("running", false);
+			return status;
+		}
+		return progress.toMap();
+	}
+
+	// ===== private methods
+
+	private Map<String, Object> run(String operation, Set<OTUNodeIndex> indexes, boolean rebuild) throws InterruptedException {
+
+		synchronized (runLock) {
+			if (current != null) {
+				throw new IllegalStateException("An index " + current.operation + " is already running.");
+			}
+			current = new Progress(operation);
+		}
+
+		try {
+			Progress progress = current;
+
+			// find the sources
+			progress.startPhase("finding sources", 0);
+			List<Long> sourceMetaIds = new ArrayList<Long>();
+			for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+				if (node.hasProperty(OTUNodeProperty.IS_SOURCE_META.propertyName())) {
+					sourceMetaIds.add(node.getId());
+				}
+			}
+
+			// walk the sources and their trees in parallel, reindexing them if we are rebuilding
+			progress.startPhase(rebuild ? "reindexing" : "checking", sourceMetaIds.size());
+			PartitionResult walked = walkInParallel(sourceMetaIds, indexes, rebuild, progress);
+
+			// compare the expected nodes to the indexed nodes for each index
+			progress.startPhase(rebuild ? "removing stale entries" : "comparing", indexes.size());
+			Map<String, Object> indexReports = new LinkedHashMap<String, Object>();
+			boolean consistent = true;
+			for (OTUNodeIndex index : indexes) {
+				Set<Long> expected = walked.expected.get(index);
+				Set<Long> indexed = getIndexedNodeIds(index);
+
+				List<Long> missing = new ArrayList<Long>();
+				for (Long id : expected) {
+					if (!indexed.contains(id)) {
+						missing.add(id);
+					}
+				}
+				List<Long> stale = new ArrayList<Long>();
+				for (Long id : indexed) {
+					if (!expected.contains(id)) {
+						stale.add(id);
+					}
+				}
+				int removed = rebuild ? removeFromIndex(index, stale) : 0;
+				consistent &= missing.isEmpty() && stale.isEmpty();
+
+				Map<String, Object> indexReport = new LinkedHashMap<String, Object>();
+				indexReport.put("expected", expected.size());
+				indexReport.put("indexed", indexed.size());
+				indexReport.put("missing", missing.size());
+				indexReport.put("stale", stale.size());
+				if (rebuild) {
+					indexReport.put("removed", removed);
+				}
+				indexReport.put("missing_sample", sample(missing));
+				indexReport.put("stale_sample", sample(stale));
+				indexReports.put(index.indexName(), indexReport);
+				progress.done.incrementAndGet();
+			}
+
+			double seconds = progress.getElapsedSeconds();
+			Map<String, Object> report = new LinkedHashMap<String, Object>();
+			report.put("operation", operation);
+			report.put("consistent", consistent);
+			report.put("source_meta_nodes", sourceMetaIds.size());
+			report.put("tree_root_nodes", walked.nTreeRoots);
+			report.put("seconds", seconds);
+			report.put("nodes_per_second", (sourceMetaIds.size() + walked.nTreeRoots) / seconds);
+			report.put("threads", nThreads);
+			report.put("indexes", indexReports);
+			progress.log("finished");
+			return report;
+
+		} finally {
+			current = null;
+		}
+	}
+
+	/**
+	 * Process the sources in one partition per thread, and merge the results.
+	 */
+	private PartitionResult walkInParallel(List<Long> sourceMetaIds, final Set<OTUNodeIndex> indexes, final boolean rebuild,
+			final Progress progress) throws InterruptedException {
+
+		int partitionSize = (sourceMetaIds.size() + nThreads - 1) / nThreads;
+		List<Future<PartitionResult>> futures = new ArrayList<Future<PartitionResult>>();
+
+		ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (int start = 0; start < sourceMetaIds.size(); start += partitionSize) {
+				final List<Long> partition = sourceMetaIds.subList(start, Math.min(start + partitionSize, sourceMetaIds.size()));
+				futures.add(workers.submit(new Callable<PartitionResult>() {
+					@Override
+					public PartitionResult call() {
+						return walkPartition(partition, indexes, rebuild, progress);
+					}
+				}));
+			}
+
+			PartitionResult merged = new PartitionResult(indexes);
+			for (Future<PartitionResult> future : futures) {
+				try {
+					merged.add(future.get());
+				} catch (ExecutionException ex) {
+					throw new RuntimeException("Index " + progress.operation + " failed", ex.getCause());
+				}
+			}
+			return merged;
+
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Walk the sources in a partition and their attached trees, recording the indexes that each node belongs in. If we are
+	 * rebuilding, each node is reindexed, committing every INDEX_MAINTENANCE_NODES_PER_TRANSACTION nodes.
+	 */
+	private PartitionResult walkPartition(List<Long> sourceMetaIds, Set<OTUNodeIndex> indexes, boolean rebuild, Progress progress) {
+
+		PartitionResult result = new PartitionResult(indexes);
+		List<Node> batch = new ArrayList<Node>();
+
+		for (Long id : sourceMetaIds) {
+			Node sourceMeta;
+			try {
+				sourceMeta = graphDb.getNodeById(id);
+			} catch (NotFoundException ex) {
+				continue; // deleted since we found it
+			}
+
+			batch.add(sourceMeta);
+			for (Relationship rel : sourceMeta.getRelationships(OTURelType.METADATAFOR, Direction.OUTGOING)) {
+				batch.add(rel.getEndNode());
+				result.nTreeRoots++;
+			}
+
+			if (batch.size() >= OTUConstants.INDEX_MAINTENANCE_NODES_PER_TRANSACTION) {
+				processBatch(batch, indexes, rebuild, result);
+			}
+			progress.done.incrementAndGet();
+		}
+		processBatch(batch, indexes, rebuild, result);
+
+		return result;
+	}
+
+	/**
+	 * Record the expected indexes for the nodes in the batch and, if we are rebuilding, reindex them in a single transaction.
+	 * The batch is cleared when this method returns.
+	 */
+	private void processBatch(List<Node> batch, Set<OTUNodeIndex> indexes, boolean rebuild, PartitionResult result) {
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		Transaction tx = rebuild ? graphDb.beginTx() : null;
+		try {
+			for (Node node : batch) {
+				for (OTUNodeIndex index : indexer.getExpectedIndexes(node)) {
+					if (indexes.contains(index)) {
+						result.expected.get(index).add(node.getId());
+					}
+				}
+				if (rebuild) {
+					for (OTUNodeIndex index : indexes) {
+						indexer.reindexNode(node, index);
+					}
+				}
+			}
+			if (rebuild) {
+				tx.success();
+			}
+		} finally {
+			if (rebuild) {
+				tx.finish();
+			}
+		}
+
+		batch.clear();
+	}
+
+	/**
+	 * Get the ids of all the nodes that have entries in an index.
+	 */
+	private Set<Long> getIndexedNodeIds(OTUNodeIndex index) {
+		Set<Long> ids = new HashSet<Long>();
+		IndexHits<Node> hits = indexer.getNodeIndex(index).query("*:*");
+		try {
+			for (Node node : hits) {
+				ids.add(node.getId());
+			}
+		} finally {
+			hits.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * Remove stale nodes from an index. Each node is checked again within the removing transaction, and kept if it now
+	 * belongs in the index, since it may have been imported or indexed after the walk passed its source.
+	 * @return
+	 * 		the number of nodes removed
+	 */
+	private int removeFromIndex(OTUNodeIndex index, List<Long> nodeIds) {
+		int removed = 0;
+		for (int start = 0; start < nodeIds.size(); start += OTUConstants.INDEX_MAINTENANCE_NODES_PER_TRANSACTION) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				for (Long id : nodeIds.subList(start, Math.min(start + OTUConstants.INDEX_MAINTENANCE_NODES_PER_TRANSACTION, nodeIds.size()))) {
+					Node node;
+					try {
+						node = graphDb.getNodeById(id);
+					} catch (NotFoundException ex) {
+						continue; // deleted nodes are no longer returned by the index
+					}
+					if (indexer.getExpectedIndexes(node).contains(index)) {
+						continue;
+					}
+					indexer.removeFromIndex(node, index);
+					removed++;
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+		return removed;
+	}
+
+	private static List<Long> sample(List<Long> ids) {
+		return new ArrayList<Long>(ids.subList(0, Math.min(ids.size(), OTUConstants.INDEX_MAINTENANCE_SAMPLE_SIZE)));
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * The nodes expected in each index, for some part of the graph.
+	 */
+	private static class PartitionResult {
+
+		final Map<OTUNodeIndex, Set<Long>> expected = new EnumMap<OTUNodeIndex, Set<Long>>(OTUNodeIndex.class);
+		int nTreeRoots = 0;
+
+		PartitionResult(Set<OTUNodeIndex> indexes) {
+			for (OTUNodeIndex index : indexes) {
+				expected.put(index, new HashSet<Long>());
+			}
+		}
+
+		void add(PartitionResult other) {
+			for (Map.Entry<OTUNodeIndex, Set<Long>> entry : other.expected.entrySet()) {
+				expected.get(entry.getKey()).addAll(entry.getValue());
+			}
+			nTreeRoots += other.nTreeRoots;
+		}
+	}
+
+	/**
+	 * The progress of a running check or rebuild. Shared by the worker threads.
+	 */
+	private static class Progress {
+
+		final String operation;
+		final long start = System.currentTimeMillis();
+		final AtomicLong done = new AtomicLong();
+		volatile String phase;
+		volatile long total;
+		volatile long phaseStart;
+
+		Progress(String operation) {
+			this.operation = operation;
+		}
+
+		void startPhase(String phase, long total) {
+			this.phase = phase;
+			this.total = total;
+			this.phaseStart = System.currentTimeMillis();
+			done.set(0);
+			log("starting");
+		}
+
+		double getElapsedSeconds() {
+			return Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+		}
+
+		double getRate() {
+			return done.get() / (Math.max(System.currentTimeMillis() - phaseStart, 1) / 1000.0);
+		}
+
+		/**
+		 * Log the start or end of a phase. Progress within a phase is reported by getStatus.
+		 */
+		void log(String event) {
+			logger.messageStr("index " + operation + " " + event, "phase", phase);
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> status = new LinkedHashMap<String, Object>();
+			status.put("running", true);
+			status.put("operation", operation);
+			status.put("phase", phase);
+			status.put("done", done.get());
+			status.put("total", total);
+			status.put("per_second", getRate());
+			status.put("seconds", getElapsedSeconds());
+			return status;
+		}
+	}
+}
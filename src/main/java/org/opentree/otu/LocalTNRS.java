@@ -0,0 +1,357 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import opentree.tnrs.queries.AbstractBaseQuery;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.opentree.otu.constants.OTUConstants;
+
+/**
+ * Matches names to the taxa of the installed taxonomy, using the TaxonAutocomplete index, without a remote TNRS service.
+ * The results have the same form as those of the taxomachine contextQueryForNames service, so they can be used in the same
+ * way.
+ *
+ * Each name is first looked up by its normalized form (see TaxonAutocomplete.toKey), so that names that differ from a
+ * taxon name only in case, underscores or whitespace match it exactly, with a score of 1. Names with exactly one such match
+ * determine the context: the least inclusive taxon containing all of their matches. Names with several exact matches
+ * (homonyms) keep only the matches within the context, if there are any. Names with no exact matches are then matched approximately, by the same rule as a lucene
+ * FuzzyQuery with the minimum similarity given by AbstractBaseQuery.getMinIdentity, among the names that start with the same
+ * few characters. Approximate matches within the context are preferred in the same way, and are scored by their similarity.
+ *
+ * Names are matched in parallel. Nothing is read from the graph, so no transaction is needed.
+ */
+public class LocalTNRS {
+
+	private final TaxonAutocomplete taxonNames;
+	private final int nThreads;
+
+	/**
+	 * @param taxonNames
+	 * 		the index of the installed taxonomy, see TaxonAutocomplete.forStoreDir
+	 * @param nThreads
+	 * 		the maximum number of threads to match names with
+	 */
+	public LocalTNRS(TaxonAutocomplete taxonNames, int nThreads) {
+		this.taxonNames = taxonNames;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Match a list of names.
+	 *
+	 * @param ids
+	 * 		an id for each name, by which the results refer to it
+	 * @param names
+	 * @return
+	 * 		a map with the same structure as the response of contextQueryForNames. Its "results" list holds, for each name
+	 * 		with matches, its id and a list of its matches, each with the matched name, ott id (as a string), node id, score,
+	 * 		and whether it is an approximate match, a synonym or a homonym. The ids of the unmatched, matched and
+	 * 		unambiguously matched names are listed separately, along with the name of the context
+	 * @throws InterruptedException
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject matchNames(List<Long> ids, List<String> names) throws InterruptedException {
+
+		if (ids.size() != names.size()) {
+			throw new IllegalArgumentException("There must be one id for each name");
+		}
+
+		List<NameMatch> nameMatches = new ArrayList<NameMatch>(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			nameMatches.add(new NameMatch(ids.get(i), names.get(i)));
+		}
+
+		// find the exact matches first, since the unambiguous ones determine the context for the rest
+		matchInParallel(nameMatches, -1, true);
+		int context = -1;
+		boolean first = true;
+		for (NameMatch nameMatch : nameMatches) {
+			if (nameMatch.matches.size() == 1) {
+				int taxon = nameMatch.matches.get(0).taxon;
+				context = first ? taxon : commonAncestor(context, taxon);
+				first = false;
+			}
+		}
+		matchInParallel(nameMatches, context, false);
+
+		JSONArray results = new JSONArray();
+		JSONArray unmatched = new JSONArray();
+		JSONArray matched = new JSONArray();
+		JSONArray unambiguous = new JSONArray();
+		for (NameMatch nameMatch : nameMatches) {
+			if (nameMatch.matches.isEmpty()) {
+				unmatched.add(nameMatch.id);
+				continue;
+			}
+			matched.add(nameMatch.id);
+			if (nameMatch.matches.size() == 1 && nameMatch.matches.get(0).score == 1.0) {
+				unambiguous.add(nameMatch.id);
+			}
+
+			// a name with several exact matches is a homonym even if the context left only one of them
+			boolean homonym = nameMatch.exactMatchCount > 1;
+			JSONArray matches = new JSONArray();
+			for (Candidate candidate : nameMatch.matches) {
+				matches.add(toJSON(nameMatch.name, candidate, homonym));
+			}
+			JSONObject result = new JSONObject();
+			result.put("id", nameMatch.id);
+			result.put("matches", matches);
+			results.add(result);
+		}
+
+		JSONObject response = new JSONObject();
+		response.put("results", results);
+		response.put("unmatched_name_ids", unmatched);
+		response.put("matched_name_ids", matched);
+		response.put("unambiguous_name_ids", unambiguous);
+		response.put("context", context < 0 ? OTUConstants.LOCAL_TNRS_DEFAULT_CONTEXT_NAME : taxonNames.getTaxonName(context));
+		return response;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Find the exact matches for each name (if exact is true), or restrict the matches of each name to the context and find
+	 * approximate matches for the names without exact matches. The names are divided among up to nThreads threads.
+	 */
+	private void matchInParallel(List<NameMatch> nameMatches, final int context, final boolean exact)
+			throws InterruptedException {
+
+		int nPartitions = Math.min(nThreads, (nameMatches.size() + OTUConstants.LOCAL_TNRS_MIN_NAMES_PER_THREAD - 1)
+				/ OTUConstants.LOCAL_TNRS_MIN_NAMES_PER_THREAD);
+		if (nPartitions <= 1) {
+			matchPartition(nameMatches, context, exact);
+			return;
+		}
+
+		int partitionSize = (nameMatches.size() + nPartitions - 1) / nPartitions;
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+		ExecutorService workers = Executors.newFixedThreadPool(nPartitions);
+		try {
+			for (int start = 0; start < nameMatches.size(); start += partitionSize) {
+				final List<NameMatch> partition = nameMatches.subList(start, Math.min(start + partitionSize, nameMatches.size()));
+				futures.add(workers.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						matchPartition(partition, context, exact);
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Object> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException ex) {
+					throw new RuntimeException("Name matching failed", ex.getCause());
+				}
+			}
+
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private void matchPartition(List<NameMatch> nameMatches, int context, boolean exact) {
+		for (NameMatch nameMatch : nameMatches) {
+			if (exact) {
+				nameMatch.matches = findExactMatches(nameMatch.key);
+				nameMatch.exactMatchCount = nameMatch.matches.size();
+			} else if (nameMatch.matches.isEmpty()) {
+				nameMatch.matches = restrictToContext(findApproximateMatches(nameMatch.name, nameMatch.key), context);
+			} else if (nameMatch.matches.size() > 1) {
+				nameMatch.matches = restrictToContext(nameMatch.matches, context);
+			}
+		}
+	}
+
+	/**
+	 * The taxa whose normalized names or synonyms are equal to this key. Each taxon is matched once, by its accepted name
+	 * if possible.
+	 */
+	private List<Candidate> findExactMatches(byte[] key) {
+		Map<Long, Candidate> byOTTId = new LinkedHashMap<Long, Candidate>();
+		int[] range = taxonNames.findEntries(key, true);
+		for (int entry = range[0]; entry < range[1]; entry++) {
+			Candidate candidate = new Candidate(entry, 1.0);
+			Candidate previous = byOTTId.get(candidate.ottId);
+			if (previous == null || (previous.synonym && !candidate.synonym)) {
+				byOTTId.put(candidate.ottId, candidate);
+			}
+		}
+		return new ArrayList<Candidate>(byOTTId.values());
+	}
+
+	/**
+	 * The taxa whose normalized names or synonyms are similar to this key, best first. Only names that share a prefix of
+	 * LOCAL_TNRS_FUZZY_PREFIX_LENGTH bytes with the key are considered.
+	 */
+	private List<Candidate> findApproximateMatches(String name, byte[] key) {
+
+		if (key.length == 0) {
+			return new ArrayList<Candidate>();
+		}
+
+		float minSimilarity = AbstractBaseQuery.getMinIdentity(name);
+		int maxEdits = Math.max(0, (int) ((1 - minSimilarity) * key.length));
+
+		Map<Long, Candidate> byOTTId = new HashMap<Long, Candidate>();
+		byte[] prefix = new byte[Math.min(key.length, OTUConstants.LOCAL_TNRS_FUZZY_PREFIX_LENGTH)];
+		System.arraycopy(key, 0, prefix, 0, prefix.length);
+		int[] range = taxonNames.findEntries(prefix, false);
+		for (int entry = range[0]; entry < range[1]; entry++) {
+			int length = taxonNames.getKeyLength(entry);
+			if (Math.abs(length - key.length) > maxEdits) {
+				continue;
+			}
+			int edits = taxonNames.editDistance(entry, key, maxEdits);
+			if (edits > maxEdits) {
+				continue;
+			}
+			double similarity = 1 - (double) edits / Math.min(length, key.length);
+			if (similarity <= minSimilarity) {
+				continue;
+			}
+			Candidate candidate = new Candidate(entry, similarity);
+			Candidate previous = byOTTId.get(candidate.ottId);
+			if (previous == null || previous.score < candidate.score) {
+				byOTTId.put(candidate.ottId, candidate);
+			}
+		}
+
+		List<Candidate> matches = new ArrayList<Candidate>(byOTTId.values());
+		Collections.sort(matches, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				return Double.compare(b.score, a.score);
+			}
+		});
+		return matches.size() > OTUConstants.LOCAL_TNRS_MAX_FUZZY_MATCHES
+				? new ArrayList<Candidate>(matches.subList(0, OTUConstants.LOCAL_TNRS_MAX_FUZZY_MATCHES))
+				: matches;
+	}
+
+	/**
+	 * The candidates within the context taxon, or all of them if none are.
+	 */
+	private List<Candidate> restrictToContext(List<Candidate> candidates, int context) {
+		if (context < 0) {
+			return candidates;
+		}
+		List<Candidate> within = new ArrayList<Candidate>();
+		for (Candidate candidate : candidates) {
+			if (isWithin(candidate.taxon, context)) {
+				within.add(candidate);
+			}
+		}
+		return within.isEmpty() ? candidates : within;
+	}
+
+	private boolean isWithin(int taxon, int ancestor) {
+		for (int t = taxon; t >= 0; t = taxonNames.getParent(t)) {
+			if (t == ancestor) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The least inclusive taxon containing both taxa, or -1 if they are not in the same taxonomy tree.
+	 */
+	private int commonAncestor(int a, int b) {
+		if (a < 0 || b < 0) {
+			return -1;
+		}
+		int depthA = depth(a);
+		int depthB = depth(b);
+		for (; depthA > depthB; depthA--) {
+			a = taxonNames.getParent(a);
+		}
+		for (; depthB > depthA; depthB--) {
+			b = taxonNames.getParent(b);
+		}
+		while (a != b) {
+			a = taxonNames.getParent(a);
+			b = taxonNames.getParent(b);
+		}
+		return a;
+	}
+
+	private int depth(int taxon) {
+		int depth = 0;
+		for (int t = taxonNames.getParent(taxon); t >= 0; t = taxonNames.getParent(t)) {
+			depth++;
+		}
+		return depth;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject toJSON(String searchString, Candidate candidate, boolean homonym) {
+		JSONObject match = new JSONObject();
+		match.put("matched_name", taxonNames.getName(candidate.entry));
+		match.put("matched_ott_id", String.valueOf(candidate.ottId));
+		long nodeId = taxonNames.getNodeId(candidate.entry);
+		if (nodeId != OTTIdMap.NOT_FOUND) {
+			match.put("matched_node_id", nodeId);
+		}
+		match.put("search_string", searchString);
+		match.put("score", candidate.score);
+		match.put("is_approximate_match", candidate.score < 1.0);
+		match.put("is_synonym", candidate.synonym);
+		match.put("is_homonym", homonym);
+		return match;
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * A name and its matches. Each NameMatch is only used by one thread at a time.
+	 */
+	private static final class NameMatch {
+
+		final long id;
+		final String name;
+		final byte[] key;
+		List<Candidate> matches;
+		int exactMatchCount = 0; // before the context was applied
+
+		NameMatch(long id, String name) {
+			this.id = id;
+			this.name = name;
+			this.key = TaxonAutocomplete.toKey(name);
+		}
+	}
+
+	private final class Candidate {
+
+		final int entry;
+		final long ottId;
+		final int taxon;
+		final boolean synonym;
+		final double score;
+
+		Candidate(int entry, double score) {
+			this.entry = entry;
+			this.ottId = taxonNames.getOTTId(entry);
+			this.taxon = taxonNames.getTaxon(ottId);
+			this.synonym = taxonNames.isSynonym(entry);
+			this.score = score;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package org.opentree.otu;
+
+import jade.tree.JadeNode;
+import jade.tree.JadeTree;
+import jade.tree.TreeReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.exceptions.DuplicateSourceException;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Imports a file of one or more newick trees (e.g. a set of bootstrap or posterior trees) into the graph as a single source.
+ * Trees are read from the input one at a time, and each one is written to the graph and then discarded before the next one
+ * is read, so memory use depends only on the size of the largest tree and not on the number of trees.
+ *
+ * Trees are separated by semicolons. Semicolons within quoted labels or [comments] are ignored.
+ */
+public class NewickSourceImporter {
+
+	private final GraphDatabaseService graphDb;
+	private final DatabaseManager manager;
+	private final int treesPerTransaction;
+
+	public NewickSourceImporter(GraphDatabaseService graphDb) {
+		this(graphDb, OTUConstants.NEWICK_TREES_PER_TRANSACTION);
+	}
+
+	/**
+	 * @param graphDb
+	 * @param treesPerTransaction
+	 * 		The number of trees to commit in each transaction
+	 */
+	public NewickSourceImporter(GraphDatabaseService graphDb, int treesPerTransaction) {
+		if (treesPerTransaction < 1) {
+			throw new IllegalArgumentException("treesPerTransaction must be at least 1");
+		}
+		this.graphDb = graphDb;
+		this.manager = OTUServiceContext.getInstance(graphDb).getManager();
+		this.treesPerTransaction = treesPerTransaction;
+	}
+
+	/**
+	 * Read newick trees from the reader and import them into the graph under a single new source. If any tree cannot be read,
+	 * the partially imported source is removed and the exception is rethrown.
+	 *
+	 * @param newick
+	 * @param sourceId
+	 * @param location
+	 * 		See DatabaseManager.addSource
+	 * @param overwrite
+	 * 		See DatabaseManager.addSource
+	 * @return
+	 * 		A summary of the import, containing the source id and the tree id and number of tips for each tree
+	 * @throws IOException
+	 * @throws DuplicateSourceException
+	 */
+	public Map<String, Object> importNewick(Reader newick, String sourceId, String location, boolean overwrite)
+			throws IOException, DuplicateSourceException {
+
+		NewickTreeSplitter splitter = new NewickTreeSplitter(newick);
+		List<Map<String, Object>> treeSummaries = new ArrayList<Map<String, Object>>();
+
+		Node sourceMeta = manager.beginSourceImport(sourceId, new HashMap<String, Object>(), location, overwrite);
+		try {
+			String treeString = splitter.next();
+			while (treeString != null) {
+
+				// the outer transaction holds the trees' nested transactions open, so we commit once per batch
+				Transaction tx = graphDb.beginTx();
+				try {
+					for (int i = 0; i < treesPerTransaction && treeString != null; i++) {
+						treeSummaries.add(addTree(treeString, sourceId, treeSummaries.size(), sourceMeta));
+						treeString = splitter.next();
+					}
+					tx.success();
+				} finally {
+					tx.finish();
+				}
+			}
+			manager.finishSourceImport(sourceMeta);
+
+		} catch (IOException ex) {
+			abort(sourceMeta);
+			throw ex;
+		} catch (RuntimeException ex) {
+			abort(sourceMeta);
+			throw ex;
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("sourceId", sourceId);
+		result.put("nTrees", treeSummaries.size());
+		result.put("trees", treeSummaries);
+		return result;
+	}
+
+	// ===== private methods
+
+	private Map<String, Object> addTree(String treeString, String sourceId, int position, Node sourceMeta) {
+
+		JadeTree tree = new TreeReader().readTree(treeString);
+
+		// newick labels are the original labels
+		for (JadeNode tip : tree.getRoot().getDescendantLeaves()) {
+			if (tip.getName() != null) {
+				tip.assocObject(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName(), tip.getName());
+			}
+		}
+
+		String treeId = ParsedSource.makeTreeId(sourceId, tree, position);
+		TipTaxonArrays taxa = TipTaxonArrays.fromJadeTree(tree);
+		manager.addTree(tree, treeId, taxa, sourceMeta);
+
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("treeId", treeId);
+		summary.put("nTips", taxa.getTipCount());
+		return summary;
+	}
+
+	/**
+	 * Don't leave a partial source behind. If this fails too, the source will still be marked as incomplete and can be
+	 * removed later with DatabaseManager.cleanUpIncompleteImports.
+	 */
+	private void abort(Node sourceMeta) {
+		try {
+			manager.deleteSource(sourceMeta);
+		} catch (RuntimeException ex) {}
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * Splits a stream of newick text into individual tree strings.
+	 */
+	static class NewickTreeSplitter {
+
+		private final Reader reader;
+
+		NewickTreeSplitter(Reader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Read the next tree from the stream.
+		 * @return
+		 * 		The tree string, including its terminating semicolon, or null if there are no more trees
+		 * @throws IOException
+		 */
+		String next() throws IOException {
+
+			StringBuilder tree = new StringBuilder();
+			boolean inQuote = false;
+			int commentDepth = 0;
+
+			int c = reader.read();
+			while (c >= 0) {
+				char ch = (char) c;
+				tree.append(ch);
+
+				if (inQuote) {
+					// quotes within quoted labels are escaped by doubling them, which this handles as leaving and re-entering
+					if (ch == '\'') {
+						inQuote = false;
+					}
+				} else if (commentDepth > 0) {
+					if (ch == '[') {
+						commentDepth++;
+					} else if (ch == ']') {
+						commentDepth--;
+					}
+				} else if (ch == '\'') {
+					inQuote = true;
+				} else if (ch == '[') {
+					commentDepth++;
+				} else if (ch == ';') {
+					return tree.toString().trim();
+				}
+
+				c = reader.read();
+			}
+
+			// allow the last tree to be missing its semicolon
+			String remainder = tree.toString().trim();
+			if (remainder.length() == 0) {
+				return null;
+			}
+			if (inQuote || commentDepth > 0) {
+				throw new IllegalArgumentException("Unexpected end of newick input within a quoted label or comment");
+			}
+			return remainder + ";";
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package org.opentree.otu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.MessageLogger;
+import org.opentree.nexson.io.NexsonReader;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.exceptions.DuplicateSourceException;
+
+/**
+ * An ingest pipeline for loading many nexsons into a running database. A pool of parser threads reads the nexsons and
+ * prepares them as ParsedSource objects, which are passed through a bounded queue to a single writer that commits
+ * them to the graph in batches of several studies per transaction. Only small studies are batched: a batch holds fewer
+ * tips in total than OTUConstants.TREE_IMPORT_COMMIT_INTERVAL, and a study at least that large is written on its own,
+ * so that DatabaseManager.addSource can commit its trees in chunks.
+ *
+ * Parsing scales across cores while the graph only ever sees one writer. Because the queue is bounded, parser threads
+ * block when the writer falls behind, so the memory used by the pipeline is limited to roughly
+ * (queueCapacity + nParsers + studiesPerTransaction) prepared studies, no matter how many studies are being loaded.
+ */
+public class NexsonImportPipeline {
+
+	private final GraphDatabaseService graphDb;
+	private final DatabaseManager manager;
+
+	private final int nParsers;
+	private final int queueCapacity;
+	private final int studiesPerTransaction;
+
+	/**
+	 * @param graphDb
+	 * @param nParsers
+	 * 		The number of threads that will parse nexsons
+	 * @param queueCapacity
+	 * 		The maximum number of parsed studies waiting to be written
+	 * @param studiesPerTransaction
+	 * 		The maximum number of studies to commit in a single transaction
+	 */
+	public NexsonImportPipeline(GraphDatabaseService graphDb, int nParsers, int queueCapacity, int studiesPerTransaction) {
+		if (nParsers < 1 || queueCapacity < 1 || studiesPerTransaction < 1) {
+			throw new IllegalArgumentException("The number of parsers, queue capacity and studies per transaction must all be positive.");
+		}
+		this.graphDb = graphDb;
+		this.manager = OTUServiceContext.getInstance(graphDb).getManager();
+		this.nParsers = nParsers;
+		this.queueCapacity = queueCapacity;
+		this.studiesPerTransaction = studiesPerTransaction;
+	}
+
+	/**
+	 * Parse and load all the indicated nexsons. The calling thread acts as the single writer, and this method returns
+	 * once every input has either been written to the graph or has failed.
+	 *
+	 * @param inputs
+	 * @param location
+	 * 		The location for the new sources, see DatabaseManager.addSource
+	 * @param overwrite
+	 * 		Whether to replace existing sources with the same id at this location, see DatabaseManager.addSource
+	 * @return
+	 * 		A report of the results of the import
+	 * @throws InterruptedException
+	 */
+	public ImportReport run(List<NexsonInput> inputs, String location, boolean overwrite) throws InterruptedException {
+
+		ImportReport report = new ImportReport();
+		final BlockingQueue<ParseResult> parsed = new ArrayBlockingQueue<ParseResult>(queueCapacity);
+
+		ExecutorService parsers = Executors.newFixedThreadPool(nParsers);
+		try {
+			for (final NexsonInput input : inputs) {
+				parsers.execute(new Runnable() {
+					@Override
+					public void run() {
+						ParseResult result = parse(input);
+						try {
+							parsed.put(result); // blocks while the writer is behind
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			parsers.shutdown();
+
+			// drain the queue, committing whenever we have a full batch or the queue runs dry
+			List<ParsedSource> batch = new ArrayList<ParsedSource>();
+			int batchTips = 0;
+			int remaining = inputs.size();
+			while (remaining > 0) {
+				ParseResult result = batch.isEmpty() ? parsed.take() : parsed.poll();
+				if (result == null) {
+					commit(batch, location, overwrite, report);
+					batchTips = 0;
+					continue;
+				}
+
+				remaining--;
+				if (result.source == null) {
+					report.failed.put(result.sourceId, result.error);
+				} else {
+					// keep the tips in a batch under the commit interval, so that its transaction stays small
+					int tips = result.source.getTipCount();
+					if (!batch.isEmpty() && batchTips + tips >= OTUConstants.TREE_IMPORT_COMMIT_INTERVAL) {
+						commit(batch, location, overwrite, report);
+						batchTips = 0;
+					}
+					batch.add(result.source);
+					batchTips += tips;
+					if (batch.size() >= studiesPerTransaction || batchTips >= OTUConstants.TREE_IMPORT_COMMIT_INTERVAL) {
+						commit(batch, location, overwrite, report);
+						batchTips = 0;
+					}
+				}
+			}
+			commit(batch, location, overwrite, report);
+
+		} finally {
+			// stop any parsers that are still running if we did not finish normally
+			parsers.shutdownNow();
+		}
+
+		report.finish();
+		return report;
+	}
+
+	/**
+	 * Read a single nexson into a ParsedSource. Runs on the parser threads.
+	 */
+	private static ParseResult parse(NexsonInput input) {
+		try {
+			Reader reader = input.openReader();
+			try {
+				return new ParseResult(input.getSourceId(),
+						ParsedSource.fromNexsonSource(NexsonReader.readNexson(reader, input.getSourceId(), false, new MessageLogger(""))), null);
+			} finally {
+				reader.close();
+			}
+		} catch (Throwable ex) {
+			// errors too (a deeply nested nexson can overflow the stack), since the writer waits for a result for every input
+			return new ParseResult(input.getSourceId(), null, ex.toString());
+		}
+	}
+
+	/**
+	 * Write a batch of sources in a single transaction. If any of them cannot be written, the transaction is rolled
+	 * back and the sources are retried one at a time so that a single bad study does not take down the batch. A batch
+	 * of one source is written without an enclosing transaction, so addSource commits it in chunks. The batch is cleared
+	 * when this method returns.
+	 */
+	private void commit(List<ParsedSource> batch, String location, boolean overwrite, ImportReport report) {
+
+		if (batch.isEmpty()) {
+			return;
+		}
+		if (batch.size() == 1) {
+			addAlone(batch.get(0), location, overwrite, report);
+			batch.clear();
+			return;
+		}
+
+		boolean batchFailed = false;
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (ParsedSource source : batch) {
+				manager.addSource(source, location, overwrite);
+			}
+			tx.success();
+		} catch (Exception ex) {
+			tx.failure();
+			batchFailed = true;
+		} finally {
+			try {
+				tx.finish();
+			} catch (RuntimeException ex) {
+				batchFailed = true;
+			}
+		}
+
+		if (batchFailed) {
+			for (ParsedSource source : batch) {
+				addAlone(source, location, overwrite, report);
+			}
+		} else {
+			for (ParsedSource source : batch) {
+				report.added(source);
+			}
+			report.nTransactions++;
+		}
+
+		batch.clear();
+	}
+
+	/**
+	 * Write a single source with no enclosing transaction, recording any failure in the report.
+	 */
+	private void addAlone(ParsedSource source, String location, boolean overwrite, ImportReport report) {
+		try {
+			manager.addSource(source, location, overwrite);
+			report.added(source);
+		} catch (DuplicateSourceException ex) {
+			report.failed.put(source.getSourceId(), ex.toString());
+		} catch (RuntimeException ex) {
+			report.failed.put(source.getSourceId(), ex.toString());
+		}
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * A nexson to be read by the pipeline, along with the source id under which it will be imported.
+	 */
+	public static abstract class NexsonInput {
+
+		private final String sourceId;
+
+		protected NexsonInput(String sourceId) {
+			this.sourceId = sourceId;
+		}
+
+		public String getSourceId() {
+			return sourceId;
+		}
+
+		public abstract Reader openReader() throws IOException;
+
+		public static NexsonInput fromFile(final File file, String sourceId) {
+			return new NexsonInput(sourceId) {
+				@Override
+				public Reader openReader() throws IOException {
+					return new BufferedReader(new FileReader(file));
+				}
+			};
+		}
+
+		public static NexsonInput fromURL(final String url, String sourceId) {
+			return new NexsonInput(sourceId) {
+				@Override
+				public Reader openReader() throws IOException {
+					return new BufferedReader(new InputStreamReader(new URL(url).openStream()));
+				}
+			};
+		}
+
+		/**
+		 * Create inputs for all the nexson files in a directory. The source id for each study is taken from the file name,
+		 * with any ".json" extension removed. Hidden files and subdirectories (e.g. the .git directory) are ignored.
+		 * @param dir
+		 * @return
+		 */
+		public static List<NexsonInput> fromDirectory(File dir) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				throw new IllegalArgumentException("Could not read the nexson directory " + dir.getAbsolutePath());
+			}
+			java.util.Arrays.sort(files);
+
+			List<NexsonInput> inputs = new ArrayList<NexsonInput>();
+			for (File file : files) {
+				if (file.isDirectory() || file.isHidden() || file.getName().startsWith(".")) {
+					continue;
+				}
+				String name = file.getName();
+				inputs.add(fromFile(file, name.endsWith(".json") ? name.substring(0, name.length() - ".json".length()) : name));
+			}
+			return inputs;
+		}
+	}
+
+	private static class ParseResult {
+		final String sourceId;
+		final ParsedSource source;
+		final String error;
+
+		ParseResult(String sourceId, ParsedSource source, String error) {
+			this.sourceId = sourceId;
+			this.source = source;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * The outcome of a pipeline run.
+	 */
+	public static class ImportReport {
+
+		private final long start = System.currentTimeMillis();
+		private long elapsed;
+
+		private final List<String> addedSourceIds = new ArrayList<String>();
+		private final Map<String, String> failed = new LinkedHashMap<String, String>();
+		private int nTrees = 0;
+		private int nTransactions = 0;
+
+		private void added(ParsedSource source) {
+			addedSourceIds.add(source.getSourceId());
+			nTrees += source.getTrees().size();
+		}
+
+		private void finish() {
+			elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		}
+
+		public List<String> getAddedSourceIds() {
+			return addedSourceIds;
+		}
+
+		public Map<String, String> getFailed() {
+			return failed;
+		}
+
+		public Map<String, Object> toMap() {
+			double seconds = elapsed / 1000.0;
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("added_source_ids", addedSourceIds);
+			result.put("failed", failed);
+			result.put("n_studies", addedSourceIds.size());
+			result.put("n_trees", nTrees);
+			result.put("n_transactions", nTransactions);
+			result.put("seconds", seconds);
+			result.put("studies_per_second", addedSourceIds.size() / seconds);
+			result.put("trees_per_second", nTrees / seconds);
+			return result;
+		}
+	}
+}
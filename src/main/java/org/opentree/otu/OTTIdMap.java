@@ -0,0 +1,336 @@
+package org.opentree.otu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * A read-only map from ott ids to the node ids of the corresponding taxonomy nodes, stored as an open-addressing hash table
+ * in a memory-mapped file next to the graph store. Attaching tree nodes to the taxonomy needs one of these lookups for every
+ * mapped tip, and this avoids a lucene query (and the boxing of the keys and results) for each one.
+ *
+ * The map is built by ConfigurationPlugins.installOTT once the taxonomy has been loaded. Each map is stamped with the time it
+ * was built, and the same stamp is stored in the OTT_ID_MAP_STAMP graph property. A map whose stamp does not match the graph
+ * property (or that does not exist) is considered stale and is not used, in which case callers should fall back to the lucene
+ * ott id index.
+ *
+ * File layout: a header of HEADER_SIZE bytes (magic number, capacity, size, stamp), followed by capacity slots of two longs
+ * each: the ott id + 1 (so that 0 marks an empty slot) and the node id.
+ */
+public final class OTTIdMap {
+
+	public static final long NOT_FOUND = -1;
+
+	private static final long MAGIC = 0x4f5454494d415031L; // "OTTIMAP1"
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+
+	// keep the table at most half full, and within the size of a single mapped buffer
+	private static final int MAX_CAPACITY = 1 << 26;
+
+	// open maps, by canonical file path
+	private static final Map<String, OTTIdMap> openMaps = new HashMap<String, OTTIdMap>();
+
+	private static final MessageLogger logger = new MessageLogger("ottIdMap:");
+
+	private final MappedByteBuffer buffer;
+	private final int mask;
+	private final int size;
+	private final long stamp;
+
+	private OTTIdMap(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		if (buffer.getLong(0) != MAGIC) {
+			throw new IllegalStateException("Not an ott id map");
+		}
+		mask = buffer.getInt(8) - 1;
+		size = buffer.getInt(12);
+		stamp = buffer.getLong(16);
+	}
+
+	/**
+	 * Get the node id of the taxonomy node for this ott id.
+	 * @param ottId
+	 * @return
+	 * 		the node id, or NOT_FOUND if this ott id is not in the map
+	 */
+	public long get(long ottId) {
+		long key = ottId + 1;
+		int slot = slotFor(key, mask);
+		while (true) {
+			int offset = HEADER_SIZE + slot * SLOT_SIZE;
+			long storedKey = buffer.getLong(offset);
+			if (storedKey == key) {
+				return buffer.getLong(offset + 8);
+			} else if (storedKey == 0) {
+				return NOT_FOUND;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Get the ott id map stored in this graph store directory, if it exists and is current. Maps are opened lazily and shared
+	 * by all callers.
+	 *
+	 * @param storeDir
+	 * 		the directory of the graph store
+	 * @param expectedStamp
+	 * 		the value of the OTT_ID_MAP_STAMP graph property
+	 * @return
+	 * 		the map, or null if there is no map, or the map is stale
+	 */
+	public static synchronized OTTIdMap forStoreDir(String storeDir, Long expectedStamp) {
+
+		if (storeDir == null || expectedStamp == null) {
+			return null;
+		}
+
+		File file = getMapFile(storeDir);
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException ex) {
+			return null;
+		}
+
+		OTTIdMap map = openMaps.get(key);
+		if (map == null || map.getStamp() != expectedStamp) {
+			openMaps.remove(key);
+			if (!file.exists()) {
+				return null;
+			}
+			try {
+				map = open(file);
+			} catch (IOException ex) {
+				logger.messageStr("could not open the ott id map " + file.getPath(), "error", ex.toString());
+				return null;
+			} catch (IllegalStateException ex) {
+				logger.messageStr("could not open the ott id map " + file.getPath(), "error", ex.toString());
+				return null;
+			}
+			if (map.getStamp() != expectedStamp) {
+				return null;
+			}
+			openMaps.put(key, map);
+		}
+		return map;
+	}
+
+	/**
+	 * The location of the ott id map for a graph store.
+	 * @param storeDir
+	 * @return
+	 */
+	public static File getMapFile(String storeDir) {
+		return new File(storeDir, OTUConstants.OTT_ID_MAP_FILE_NAME);
+	}
+
+	/**
+	 * Build the ott id map for a taxonomy that has just been loaded from this taxonomy file. The ott ids are read from the
+	 * first column of the file, and each one is looked up once in the lucene ott id index. The map is written to a temporary
+	 * file and then moved into place, so any existing map remains usable until the new one is complete.
+	 *
+	 * @param graphDb
+	 * @param storeDir
+	 * 		the directory of the graph store
+	 * @param taxonomyFile
+	 * 		the taxonomy file that was loaded into the graph
+	 * @param stamp
+	 * 		the stamp to record in the map. This should then be stored in the OTT_ID_MAP_STAMP graph property
+	 * @return
+	 * 		the number of ott ids in the map
+	 * @throws IOException
+	 */
+	public static int build(GraphDatabaseService graphDb, String storeDir, String taxonomyFile, long stamp) throws IOException {
+
+		Index<Node> taxonNodesByOTTId = graphDb.index().forNodes(TaxonomyNodeIndex.TAXON_BY_OTT_ID.indexName());
+
+		// the number of lines is an upper bound on the number of ott ids
+		int nLines = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(taxonomyFile));
+		try {
+			while (reader.readLine() != null) {
+				nLines++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		Writer writer = new Writer(getMapFile(storeDir), nLines, stamp);
+		try {
+			reader = new BufferedReader(new FileReader(taxonomyFile));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					long ottId = parseOTTId(line);
+					if (ottId < 0) {
+						continue; // the header, or a blank line
+					}
+					IndexHits<Node> hits = taxonNodesByOTTId.get(OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId);
+					try {
+						if (hits.size() > 0) {
+							writer.put(ottId, hits.next().getId());
+						}
+					} finally {
+						hits.close();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+
+		return writer.size;
+	}
+
+	// ===== private methods
+
+	private static OTTIdMap open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping remains valid after the file is closed
+			return new OTTIdMap(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int slotFor(long key, int mask) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Read the ott id from the first column of a line of the taxonomy file. Columns are separated by "\t|\t".
+	 * @return the ott id, or -1 if the line does not start with one
+	 */
+	private static long parseOTTId(String line) {
+		int end = line.indexOf('\t');
+		try {
+			return Long.parseLong(end < 0 ? line.trim() : line.substring(0, end).trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * Writes a new map file. Entries are inserted directly into a memory-mapped temporary file, which is moved into place
+	 * when the map is committed.
+	 */
+	static class Writer {
+
+		private final File target;
+		private final File temp;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private final int mask;
+		private int size = 0;
+		private boolean committed = false;
+
+		/**
+		 * @param target
+		 * 		the file to write
+		 * @param maxEntries
+		 * 		the maximum number of entries that will be added
+		 * @param stamp
+		 */
+		Writer(File target, int maxEntries, long stamp) throws IOException {
+
+			int capacity = 2;
+			while (capacity < maxEntries * 2L) {
+				capacity <<= 1;
+			}
+			if (capacity > MAX_CAPACITY) {
+				throw new IllegalArgumentException("Too many entries for an ott id map: " + maxEntries);
+			}
+
+			this.target = target;
+			this.temp = new File(target.getPath() + ".tmp");
+			this.mask = capacity - 1;
+
+			raf = new RandomAccessFile(temp, "rw");
+			long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+			raf.setLength(0);
+			raf.setLength(length); // the extended file is zero filled, so all slots start out empty
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+			buffer.putLong(0, MAGIC);
+			buffer.putInt(8, capacity);
+			buffer.putLong(16, stamp);
+		}
+
+		void put(long ottId, long nodeId) {
+			long key = ottId + 1;
+			int slot = slotFor(key, mask);
+			while (true) {
+				int offset = HEADER_SIZE + slot * SLOT_SIZE;
+				long storedKey = buffer.getLong(offset);
+				if (storedKey == 0) {
+					if (size > mask / 2) {
+						throw new IllegalStateException("The ott id map is full");
+					}
+					buffer.putLong(offset, key);
+					buffer.putLong(offset + 8, nodeId);
+					size++;
+					return;
+				} else if (storedKey == key) {
+					buffer.putLong(offset + 8, nodeId);
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		/**
+		 * Write the header and move the finished map into place.
+		 */
+		void commit() throws IOException {
+			buffer.putInt(12, size);
+			buffer.force();
+			raf.close();
+			if (target.exists() && !target.delete()) {
+				throw new IOException("Could not replace the ott id map " + target.getPath());
+			}
+			if (!temp.renameTo(target)) {
+				throw new IOException("Could not move the ott id map into place at " + target.getPath());
+			}
+			committed = true;
+		}
+
+		void close() throws IOException {
+			if (!committed) {
+				raf.close();
+				temp.delete();
+			}
+		}
+	}
+}
@@ -12,6 +12,7 @@ import org.opentree.graphdb.NodeIndexDescription;
 public class OTUDatabase extends DatabaseAbstractBase {
 
 	public static final String LOCAL_LOCATION = "local";
+	public static final String REMOTE_LOCATION = "remote";
 	
 	public OTUDatabase(GraphDatabaseService graphService) {
 		super(graphService);
@@ -25,10 +26,11 @@ public class OTUDatabase extends DatabaseAbstractBase {
 		super(gdb);
 	}
 	
-	// Currently we always want fulltext indexes for OTU itself, so just we code that in here.
+	// OTU's own indexes are fulltext unless the OTUNodeIndex says otherwise, so we code that in here.
 	// To specify other types of indexes we can just pass the relevant parameters as String... arguments,
 	// which will invoke the analagous underlying method in DatabaseAbstractBase. See DatabaseManager for an example.
 	public Index<Node> getNodeIndex(NodeIndexDescription index) {
-		return graphDb.getNodeIndex(index.indexName(), IndexManager.PROVIDER, "lucene", "type", "fulltext");
+		String type = index instanceof OTUNodeIndex ? ((OTUNodeIndex) index).indexType() : "fulltext";
+		return graphDb.getNodeIndex(index.indexName(), IndexManager.PROVIDER, "lucene", "type", type);
 	}
 }
@@ -47,9 +47,12 @@ public enum OTUNodeIndex implements NodeIndexDescription {
     TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED ("treeRootNodesByMappedTaxonNameWhitespaceFilled"),
     
     /**
-     * Root nodes for trees including a taxon with the supplied ott id. Property is "uid", key is ott id.
+     * Root nodes for trees including a taxon with the supplied ott id. Property is "ot:ottId", key is the ott id. This is an exact
+     * index, and the ott ids are stored as numeric values (see ValueContext.numeric), so they must be searched with numeric
+     * queries (see QueryContext.numericRange). It replaces the fulltext index "treeRootNodesByMappedTaxonMappedOTTId", which
+     * can be migrated with IndexMaintenance.migrateFulltextOTTIdIndex.
      */
-    TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID ("treeRootNodesByMappedTaxonMappedOTTId"),
+    TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID ("treeRootNodesByMappedTaxonOTTIdNumeric", "exact"),
 
     /**
      * Root nodes for trees indexed by the specified ot namespace property. Property is the ot property name (e.g. "ot:curatorName")
@@ -70,16 +73,38 @@ public enum OTUNodeIndex implements NodeIndexDescription {
      * Property is either "localSourceId" or "remoteSourceId", and key is the source id. In the case of nexsons this is study id,
      * but other cases (e.g. a file of newick trees uploaded locally), this could be any identifier string globally unique to the db.
      */
-    SOURCE_METADATA_NODES_BY_SOURCE_ID ("sourceMetaNodesBySourceId");
+    SOURCE_METADATA_NODES_BY_SOURCE_ID ("sourceMetaNodesBySourceId"),
+    
+    // ===== other indexes
+    
+    /**
+     * Tree root and source metadata nodes that are waiting to be added to the search indexes by the DeferredIndexer. Property
+     * is "pending" and key is "1". Nodes are removed from this index once they have been indexed.
+     */
+    PENDING_INDEX_WORK ("pendingIndexWork");
     
     String name;
+    String type;
     
     OTUNodeIndex(String name) {
+    	this(name, "fulltext");
+    }
+    
+    OTUNodeIndex(String name, String type) {
     	this.name = name;
+    	this.type = type;
     }
     
     @Override
     public String indexName() {
     	return name;
     }
+    
+    /**
+     * The lucene index type, either "fulltext" or "exact". Indexes must always be opened with the same type.
+     * @return
+     */
+    public String indexType() {
+    	return type;
+    }
 }
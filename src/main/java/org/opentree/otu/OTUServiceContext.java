@@ -0,0 +1,404 @@
+package org.opentree.otu;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+
+/**
+ * The long-lived services for one database, shared by all the plugin calls made against it. Creating a DatabaseManager,
+ * DatabaseBrowser or ConfigurationManager for every request opens each of their index handles again and rereads the
+ * configuration from the graph; the context creates the indexer, browser, configuration manager and database manager
+ * once, and they are shared by all requests.
+ *
+ * The context also keeps a snapshot of the graph properties (see OTUGraphProperty), which the shared ConfigurationManager
+ * reads from. The snapshot is dropped whenever a transaction is committed or rolled back, and reloaded on the next read,
+ * so it always reflects the committed configuration. Changes to graph properties made in an open transaction are only
+ * visible to the shared configuration once that transaction has finished.
+ *
+ * The search cache, the taxon tree bitmaps and the taxon name index are also kept here, and the indexer reports its
+ * index writes to them, as is the cache of TNRS matches.
+ *
+ * If the database still has the fulltext ott id index of earlier versions, the context migrates it to the numeric
+ * TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID index in the background when it is created. Until that is finished, ott id
+ * searches also read the fulltext index (see isMigratingOTTIdIndex).
+ *
+ * Contexts are created lazily, one per database, and discarded when the database shuts down. All the shared objects are
+ * safe to use from multiple threads.
+ */
+public class OTUServiceContext {
+
+	private static final Map<GraphDatabaseService, OTUServiceContext> contexts = new HashMap<GraphDatabaseService, OTUServiceContext>();
+
+	private static final MessageLogger logger = new MessageLogger("otuServiceContext:");
+
+	private final GraphDatabaseService graphDb;
+	private final String storeDir;
+	private final TransactionManager txManager; // null if the database does not expose it
+	private final ConfigurationManager config;
+	private final DatabaseIndexer indexer;
+	private final DatabaseBrowser browser;
+	private final DatabaseManager manager;
+	private final SearchCache searchCache;
+	private final TaxonTreeBitmaps treeBitmaps;
+	private final TaxonNameIndex taxonNames;
+	private final TNRSCache tnrsCache;
+
+	// the committed graph properties, or null if they need to be reloaded
+	private volatile Map<String, Object> graphProperties = null;
+
+	// incremented on every invalidation, so that a snapshot loaded while a transaction was committing is not kept
+	private long graphPropertiesGeneration = 0;
+
+	// the open transactions that have written graph properties. they read graph properties from the graph, since the
+	// snapshot must not be filled with their uncommitted values
+	private final Set<Transaction> graphPropertyWriters = Collections.synchronizedSet(new HashSet<Transaction>());
+
+	// true until the fulltext ott id index of earlier versions has been migrated. searches hold the read lock while they
+	// use the fulltext index, and the migration holds the write lock to delete it
+	private volatile boolean migratingOTTIdIndex = false;
+	private final ReentrantReadWriteLock fulltextOTTIdIndexLock = new ReentrantReadWriteLock();
+
+	private OTUServiceContext(GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+		this.storeDir = graphDb instanceof GraphDatabaseAPI ? ((GraphDatabaseAPI) graphDb).getStoreDir() : null;
+		this.txManager = graphDb instanceof GraphDatabaseAPI ? ((GraphDatabaseAPI) graphDb).getTxManager() : null;
+		this.config = new ConfigurationManager(graphDb, this);
+		this.searchCache = new SearchCache(this, OTUConstants.SEARCH_CACHE_SIZE);
+		this.treeBitmaps = new TaxonTreeBitmaps(this);
+		this.taxonNames = new TaxonNameIndex(this);
+		this.tnrsCache = new TNRSCache(this);
+		this.indexer = new DatabaseIndexer(graphDb, config, searchCache, treeBitmaps, taxonNames);
+		this.browser = new DatabaseBrowser(this);
+		this.manager = new DatabaseManager(this);
+	}
+
+	/**
+	 * Get the context for this database, creating it if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static synchronized OTUServiceContext getInstance(GraphDatabaseService graphDb) {
+		OTUServiceContext context = contexts.get(graphDb);
+		if (context == null) {
+			context = new OTUServiceContext(graphDb);
+			context.registerEventHandlers();
+			contexts.put(graphDb, context);
+			context.startOTTIdIndexMigration();
+		}
+		return context;
+	}
+
+	public ConfigurationManager getConfig() {
+		return config;
+	}
+
+	public DatabaseIndexer getIndexer() {
+		return indexer;
+	}
+
+	public DatabaseBrowser getBrowser() {
+		return browser;
+	}
+
+	public SearchCache getSearchCache() {
+		return searchCache;
+	}
+
+	public TaxonTreeBitmaps getTreeBitmaps() {
+		return treeBitmaps;
+	}
+
+	public TaxonNameIndex getTaxonNames() {
+		return taxonNames;
+	}
+
+	public TNRSCache getTNRSCache() {
+		return tnrsCache;
+	}
+
+	/**
+	 * The shared DatabaseManager. DatabaseManager keeps the working state of each operation in local variables, so one
+	 * instance can serve concurrent requests.
+	 * @return
+	 */
+	public DatabaseManager getManager() {
+		return manager;
+	}
+
+	public GraphDatabaseService getGraphDatabase() {
+		return graphDb;
+	}
+
+	/**
+	 * The directory of the graph store, or null if it is not known.
+	 * @return
+	 */
+	public String getStoreDir() {
+		return storeDir;
+	}
+
+	/**
+	 * Get the committed value of a graph property from the snapshot. Within a transaction that has written graph
+	 * properties, the value is read from the graph instead, so that the transaction sees its own changes without them
+	 * reaching the shared snapshot before they are committed.
+	 * @param propertyName
+	 * @return
+	 * 		the value, or null if the property is not set
+	 */
+	public Object getGraphProperty(String propertyName) {
+		Transaction tx = currentTransaction();
+		if (tx != null && (graphPropertyWriters.contains(tx) || isMarkedForRollback(tx))) {
+			return graphDb.getNodeById(0).getProperty(propertyName, null);
+		}
+		
+		Map<String, Object> snapshot = graphProperties;
+		if (snapshot == null) {
+			long generation;
+			synchronized (this) {
+				generation = graphPropertiesGeneration;
+			}
+			snapshot = loadGraphProperties();
+			synchronized (this) {
+				if (generation == graphPropertiesGeneration) {
+					graphProperties = snapshot;
+				}
+			}
+		}
+		return snapshot.get(propertyName);
+	}
+
+	/**
+	 * Whether the tree root ott ids are still being migrated from the fulltext index of earlier versions
+	 * (IndexMaintenance.FULLTEXT_OTT_ID_INDEX_NAME). While they are, ott id searches should read that index as well as the
+	 * numeric one, holding the read lock of getFulltextOTTIdIndexLock, and checking this again once they hold it.
+	 * @return
+	 */
+	public boolean isMigratingOTTIdIndex() {
+		return migratingOTTIdIndex;
+	}
+
+	public ReentrantReadWriteLock getFulltextOTTIdIndexLock() {
+		return fulltextOTTIdIndexLock;
+	}
+
+	/**
+	 * Called by IndexMaintenance once the numeric ott id index has been rebuilt, before the fulltext index is deleted.
+	 */
+	void ottIdIndexMigrated() {
+		migratingOTTIdIndex = false;
+	}
+
+	/**
+	 * Drop the snapshot of the graph properties, so that they will be reloaded on the next read.
+	 */
+	public synchronized void invalidateGraphProperties() {
+		graphPropertiesGeneration++;
+		graphProperties = null;
+	}
+
+	/**
+	 * Called by the ConfigurationManager after it writes a graph property. Drops the snapshot, and until the transaction
+	 * running in this thread finishes, its reads of graph properties go to the graph.
+	 */
+	void graphPropertiesWritten() {
+		invalidateGraphProperties();
+
+		final Transaction tx = currentTransaction();
+		if (tx == null || !graphPropertyWriters.add(tx)) {
+			return;
+		}
+		boolean registered = registerSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {}
+			@Override
+			public void afterCompletion(int status) {
+				graphPropertyWriters.remove(tx);
+				invalidateGraphProperties();
+			}
+		});
+		if (!registered) {
+			// the transaction has been marked for rollback, and reads through to the graph until it finishes anyway
+			graphPropertyWriters.remove(tx);
+		}
+	}
+
+	/**
+	 * Have the synchronization called when the transaction running in the current thread finishes, however it finishes.
+	 * Unlike the transaction event handlers, which are not told about a transaction that is rolled back without trying to
+	 * commit, synchronizations are always called.
+	 * @param sync
+	 * @return
+	 * 		false if there is no transaction running in this thread, or it has been marked for rollback
+	 */
+	boolean registerSynchronization(Synchronization sync) {
+		Transaction tx = currentTransaction();
+		if (tx == null) {
+			return false;
+		}
+		try {
+			tx.registerSynchronization(sync);
+			return true;
+		} catch (RollbackException ex) {
+			return false;
+		} catch (SystemException ex) {
+			return false;
+		} catch (IllegalStateException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * The transaction running in the current thread, or null if there is none or the transaction manager is not available.
+	 */
+	Transaction currentTransaction() {
+		if (txManager == null) {
+			return null;
+		}
+		try {
+			return txManager.getTransaction();
+		} catch (SystemException ex) {
+			return null;
+		}
+	}
+
+	// ===== private methods
+
+	private static boolean isMarkedForRollback(Transaction tx) {
+		try {
+			return tx.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+		} catch (SystemException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Whether a transaction set or removed any property of the reference node, which holds the graph properties.
+	 */
+	private static boolean touchesGraphProperties(TransactionData data) {
+		for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+			if (entry.entity().getId() == 0) {
+				return true;
+			}
+		}
+		for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+			if (entry.entity().getId() == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read all the graph properties, which are stored on the reference node.
+	 */
+	private Map<String, Object> loadGraphProperties() {
+		Map<String, Object> snapshot = new HashMap<String, Object>();
+		Node propertyNode = graphDb.getNodeById(0);
+		for (String key : propertyNode.getPropertyKeys()) {
+			snapshot.put(key, propertyNode.getProperty(key));
+		}
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	/**
+	 * Start migrating the fulltext ott id index of earlier versions in the background, if the database still has it. The
+	 * migration waits for any other index check or rebuild to finish. If it fails, it is tried again on the next start.
+	 */
+	private void startOTTIdIndexMigration() {
+		if (!graphDb.index().existsForNodes(IndexMaintenance.FULLTEXT_OTT_ID_INDEX_NAME)) {
+			return;
+		}
+		migratingOTTIdIndex = true;
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				IndexMaintenance maintenance = new IndexMaintenance(graphDb, Runtime.getRuntime().availableProcessors());
+				try {
+					while (true) {
+						try {
+							maintenance.migrateFulltextOTTIdIndex();
+							return;
+						} catch (IllegalStateException ex) {
+							// another check or rebuild is running
+							Thread.sleep(OTUConstants.OTT_ID_INDEX_MIGRATION_RETRY_MS);
+						}
+					}
+				} catch (InterruptedException ex) {
+					// the database is shutting down
+				} catch (RuntimeException ex) {
+					logger.messageStr("could not migrate the fulltext ott id index", "error", ex.toString());
+				}
+			}
+		}, "otu-ott-id-index-migration");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void registerEventHandlers() {
+
+		graphDb.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Object>() {
+			// only changes to the graph properties make the snapshot stale
+			@Override
+			public void afterCommit(TransactionData data, Object state) {
+				if (touchesGraphProperties(data)) {
+					invalidateGraphProperties();
+				}
+			}
+			@Override
+			public void afterRollback(TransactionData data, Object state) {
+				if (touchesGraphProperties(data)) {
+					invalidateGraphProperties();
+				}
+			}
+		});
+
+		graphDb.registerKernelEventHandler(new KernelEventHandler() {
+			@Override
+			public void beforeShutdown() {
+				treeBitmaps.close();
+				tnrsCache.close();
+				discard();
+			}
+			@Override
+			public Object getResource() {
+				return null;
+			}
+			@Override
+			public void kernelPanic(ErrorState error) {
+				discard();
+			}
+			@Override
+			public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+				return ExecutionOrder.DOESNT_MATTER;
+			}
+		});
+	}
+
+	private void discard() {
+		synchronized (OTUServiceContext.class) {
+			contexts.remove(graphDb);
+		}
+	}
+}
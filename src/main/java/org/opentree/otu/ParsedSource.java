@@ -0,0 +1,136 @@
+package org.opentree.otu;
+
+import jade.tree.JadeTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+
+/**
+ * An immutable, fully prepared form of a source that is ready to be written to the graph. Everything that can be
+ * computed without touching the database (tree ids, tip taxon arrays) is computed when this object is built, so that
+ * the expensive parsing work can happen on any thread and the database writer only has to create nodes.
+ *
+ * The JadeTrees held here must not be modified once the ParsedSource has been built.
+ */
+public final class ParsedSource {
+
+	private final String sourceId;
+	private final Map<String, Object> properties;
+	private final List<ParsedTree> trees;
+
+	private ParsedSource(String sourceId, Map<String, Object> properties, List<ParsedTree> trees) {
+		this.sourceId = sourceId;
+		this.properties = Collections.unmodifiableMap(new HashMap<String, Object>(properties));
+		this.trees = Collections.unmodifiableList(trees);
+	}
+
+	/**
+	 * Prepare a source read by the NexsonReader. Tree ids are assigned following the same conventions that
+	 * DatabaseManager.addSource has always used, and null trees returned by the nexson reader are dropped.
+	 * @param source
+	 * @return
+	 */
+	public static ParsedSource fromNexsonSource(NexsonSource source) {
+
+		String sourceId = source.getId();
+		List<ParsedTree> trees = new ArrayList<ParsedTree>();
+
+		int i = 0;
+		Iterator<JadeTree> treesIter = source.getTrees().iterator();
+		while (treesIter.hasNext()) {
+
+			JadeTree tree = treesIter.next();
+
+			// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
+			// really we should fix the nexson reader so it doesn't return null trees
+			if (tree == null) {
+				continue;
+			}
+
+			trees.add(new ParsedTree(makeTreeId(sourceId, tree, i), tree));
+			i++;
+		}
+
+		return new ParsedSource(sourceId, source.getProperties(), trees);
+	}
+
+	/**
+	 * Create the tree id for a tree being imported. Uses the tree id from the nexson if there is one, or creates an
+	 * arbitrary one from the position of the tree within the source if not.
+	 * @param sourceId
+	 * @param tree
+	 * @param position
+	 * 		The position of this tree among the (non-null) trees of the source
+	 * @return
+	 */
+	public static String makeTreeId(String sourceId, JadeTree tree, int position) {
+
+		// get the tree id from the nexson if there is one or create an arbitrary one if not
+		String treeIdSuffix = (String) tree.getObject(OTUNodeProperty.NEXSON_ID.propertyName());
+		if (treeIdSuffix == null) {
+			treeIdSuffix = OTUConstants.LOCAL_TREEID_PREFIX + String.valueOf(position);
+		}
+
+		// create a unique tree id by including the study id, this is the convention from treemachine
+		return sourceId + "_" + treeIdSuffix;
+	}
+
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	public Map<String, Object> getProperties() {
+		return properties;
+	}
+
+	public List<ParsedTree> getTrees() {
+		return trees;
+	}
+
+	/**
+	 * The total number of tips over all the trees in this source. Useful as a rough measure of the size of the source.
+	 */
+	public int getTipCount() {
+		int tips = 0;
+		for (ParsedTree tree : trees) {
+			tips += tree.getTaxa().getTipCount();
+		}
+		return tips;
+	}
+
+	/**
+	 * A single tree of a ParsedSource, with its tree id and tip taxon arrays.
+	 */
+	public static final class ParsedTree {
+
+		private final String treeId;
+		private final JadeTree tree;
+		private final TipTaxonArrays taxa;
+
+		public ParsedTree(String treeId, JadeTree tree) {
+			this.treeId = treeId;
+			this.tree = tree;
+			this.taxa = TipTaxonArrays.fromJadeTree(tree);
+		}
+
+		public String getTreeId() {
+			return treeId;
+		}
+
+		public JadeTree getTree() {
+			return tree;
+		}
+
+		public TipTaxonArrays getTaxa() {
+			return taxa;
+		}
+	}
+}
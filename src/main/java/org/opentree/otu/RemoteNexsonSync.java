@@ -0,0 +1,287 @@
+package org.opentree.otu;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.opentree.MessageLogger;
+import org.opentree.graphdb.DatabaseUtils;
+import org.opentree.nexson.io.NexsonReader;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.exceptions.DuplicateSourceException;
+
+/**
+ * Keeps the remote sources in the db in sync with the remote nexsons repo. The hash of the last commit that was synced
+ * is stored as a graph property for each location, and each sync only fetches the studies that were added, changed, or removed since then,
+ * so the cost of a sync is proportional to the changes in the repo rather than to its size.
+ *
+ * The remote is accessed through two base urls, which are stored as graph properties (see ConfigurationManager):
+ *
+ * REMOTE_NEXSONS_API_URL: a bitbucket 2.0 style repository api. The sync reads [api]/commits to find the most recent commit,
+ * and [api]/diffstat/[new]..[old] to find the changes between two commits. Paged results are followed via their "next" urls.
+ *
+ * REMOTE_NEXSONS_RAW_URL: raw files are read from [raw][commit]/[study id], and [raw][commit]/ is expected to list the files
+ * in the repo, one per line. This is only needed the first time the remote is synced.
+ *
+ * Since these are ordinary urls, a local http stub or a file:// mirror with the same layout can stand in for the remote.
+ */
+public class RemoteNexsonSync {
+
+	private final DatabaseManager manager;
+	private final DatabaseBrowser browser;
+	private final ConfigurationManager config;
+
+	public RemoteNexsonSync(GraphDatabaseService graphDb) {
+		OTUServiceContext context = OTUServiceContext.getInstance(graphDb);
+		this.manager = context.getManager();
+		this.browser = context.getBrowser();
+		this.config = context.getConfig();
+	}
+
+	/**
+	 * Get the hash of the most recent commit in the remote repo.
+	 * @return
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public String getMostRecentCommit() throws IOException, ParseException {
+		JSONObject commits = (JSONObject) readJSON(config.getRemoteNexsonsAPIURL() + "/commits");
+		return (String) ((JSONObject) ((JSONArray) commits.get("values")).get(0)).get("hash");
+	}
+
+	/**
+	 * Bring the sources at the specified location up to date with the most recent commit in the remote repo. All the
+	 * changed studies are downloaded and parsed first. If any of them cannot be read then nothing is changed. Otherwise
+	 * each change is applied on its own, so that addSource can commit large studies in chunks and a study that cannot be
+	 * imported does not undo the others. The last synced commit is only updated if every change was applied, so the next
+	 * sync will try the failed ones again.
+	 *
+	 * @param location
+	 * 		The location under which the remote sources are stored
+	 * @return
+	 * 		A report of the changes
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public SyncReport sync(String location) throws IOException, ParseException {
+
+		String lastCommit = config.getLastSyncedRemoteCommit(location);
+		String newCommit = getMostRecentCommit();
+
+		SyncReport report = new SyncReport(lastCommit, newCommit);
+		if (newCommit.equals(lastCommit)) {
+			return report;
+		}
+
+		// find the studies to update and remove
+		Set<String> changed = new TreeSet<String>();
+		Set<String> removed = new TreeSet<String>();
+		if (lastCommit == null) {
+			// never synced, so compare the whole catalog to what we have
+			changed.addAll(listStudies(newCommit));
+			for (String sourceId : browser.getSourceIds(location)) {
+				if (!changed.contains(sourceId)) {
+					removed.add(sourceId);
+				}
+			}
+		} else {
+			collectChanges(lastCommit, newCommit, changed, removed);
+		}
+
+		// download and prepare the changed studies before touching the graph
+		Map<String, ParsedSource> prepared = new LinkedHashMap<String, ParsedSource>();
+		for (String sourceId : changed) {
+			try {
+				prepared.put(sourceId, readStudy(newCommit, sourceId));
+			} catch (Exception ex) {
+				report.failed.put(sourceId, ex.toString());
+			}
+		}
+		if (!report.failed.isEmpty()) {
+			return report;
+		}
+
+		// apply each change in its own top-level call
+		for (String sourceId : removed) {
+			try {
+				Node sourceMeta = getSourceMetaNode(location, sourceId);
+				if (sourceMeta != null) {
+					manager.deleteSource(sourceMeta);
+					report.removed.add(sourceId);
+				}
+			} catch (RuntimeException ex) {
+				report.failed.put(sourceId, ex.toString());
+			}
+		}
+
+		for (ParsedSource source : prepared.values()) {
+			try {
+				if (source.getTrees().isEmpty()) {
+					// like indexSingleNexson, we only keep sources with trees
+					Node sourceMeta = getSourceMetaNode(location, source.getSourceId());
+					if (sourceMeta != null) {
+						manager.deleteSource(sourceMeta);
+						report.removed.add(source.getSourceId());
+					}
+					report.skipped.add(source.getSourceId());
+				} else {
+					manager.addSource(source, location, true);
+					report.updated.add(source.getSourceId());
+				}
+			} catch (DuplicateSourceException ex) {
+				// should not happen since we are overwriting
+				report.failed.put(source.getSourceId(), ex.toString());
+			} catch (RuntimeException ex) {
+				report.failed.put(source.getSourceId(), ex.toString());
+			}
+		}
+
+		if (report.failed.isEmpty()) {
+			config.setLastSyncedRemoteCommit(location, newCommit);
+			report.applied = true;
+		}
+		return report;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Collect the ids of the studies that were added or changed, and of those that were removed, between the two commits.
+	 */
+	private void collectChanges(String oldCommit, String newCommit, Set<String> changed, Set<String> removed) throws IOException, ParseException {
+
+		String url = config.getRemoteNexsonsAPIURL() + "/diffstat/" + newCommit + ".." + oldCommit;
+		while (url != null) {
+			JSONObject page = (JSONObject) readJSON(url);
+			for (Object value : (JSONArray) page.get("values")) {
+				JSONObject entry = (JSONObject) value;
+				String oldPath = getPath(entry.get("old"));
+				String newPath = getPath(entry.get("new"));
+
+				// renames show up as a removal of the old path and an addition of the new one
+				if (oldPath != null && !oldPath.equals(newPath) && isStudyPath(oldPath)) {
+					removed.add(oldPath);
+				}
+				if (newPath != null && isStudyPath(newPath)) {
+					changed.add(newPath);
+				}
+			}
+			url = (String) page.get("next");
+		}
+
+		// a study that was removed and then added again in the same range is just a change
+		removed.removeAll(changed);
+	}
+
+	/**
+	 * List the studies in the remote repo at the specified commit.
+	 */
+	private List<String> listStudies(String commit) throws IOException {
+		List<String> studies = new ArrayList<String>();
+		BufferedReader listing = new BufferedReader(new InputStreamReader(new URL(config.getRemoteNexsonsRawURL() + commit + "/").openStream()));
+		try {
+			String line = listing.readLine();
+			while (line != null) {
+				if (isStudyPath(line.trim())) {
+					studies.add(line.trim());
+				}
+				line = listing.readLine();
+			}
+		} finally {
+			listing.close();
+		}
+		return studies;
+	}
+
+	private ParsedSource readStudy(String commit, String sourceId) throws IOException {
+		BufferedReader nexson = new BufferedReader(new InputStreamReader(new URL(config.getRemoteNexsonsRawURL() + commit + "/" + sourceId).openStream()));
+		try {
+			return ParsedSource.fromNexsonSource(NexsonReader.readNexson(nexson, sourceId, false, new MessageLogger("")));
+		} finally {
+			nexson.close();
+		}
+	}
+
+	private Node getSourceMetaNode(String location, String sourceId) {
+		return DatabaseUtils.getSingleNodeIndexHit(browser.sourceMetaNodesBySourceId, location + OTUConstants.SOURCE_ID_SUFFIX, sourceId);
+	}
+
+	private static Object readJSON(String url) throws IOException, ParseException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
+		try {
+			return new JSONParser().parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String getPath(Object file) {
+		return file == null ? null : (String) ((JSONObject) file).get("path");
+	}
+
+	/**
+	 * Studies are stored in the top level of the repo, with their study ids as the file names. Following
+	 * Indexing.getNexsonsListFromURL, any other files are ignored.
+	 */
+	private static boolean isStudyPath(String path) {
+		try {
+			Integer.valueOf(path);
+			return true;
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * The outcome of a sync.
+	 */
+	public static class SyncReport {
+
+		private final String previousCommit;
+		private final String commit;
+		private boolean applied = false;
+
+		private final List<String> updated = new ArrayList<String>();
+		private final List<String> removed = new ArrayList<String>();
+		private final List<String> skipped = new ArrayList<String>();
+		private final Map<String, String> failed = new LinkedHashMap<String, String>();
+
+		private SyncReport(String previousCommit, String commit) {
+			this.previousCommit = previousCommit;
+			this.commit = commit;
+		}
+
+		public boolean isApplied() {
+			return applied;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("previous_commit", previousCommit == null ? "" : previousCommit);
+			result.put("commit", commit);
+			result.put("up_to_date", commit.equals(previousCommit));
+			result.put("applied", applied);
+			result.put("updated", updated);
+			result.put("removed", removed);
+			result.put("skipped", skipped);
+			result.put("failed", failed);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.ws.rs.core.MediaType;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opentree.otu.constants.OTUConstants;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+
+/**
+ * Sends names to a remote TNRS service (the taxomachine contextQueryForNames service, or anything that accepts and returns
+ * the same JSON) in chunks, with a bounded number of requests in flight at once. Each chunk is retried on failure, and the
+ * response for each chunk is passed to a ChunkHandler as soon as it arrives, so that the results for one chunk can be
+ * applied to the graph while the others are still being matched.
+ *
+ * All requests share one Jersey client, which is thread safe. Its HttpURLConnections keep their connections alive, so
+ * successive requests to the same service reuse them (up to the http.maxConnections system property per host).
+ */
+public class RemoteTNRS {
+
+	/**
+	 * Receives the response for each chunk that was matched. Handlers are called on the thread that called matchNames, one
+	 * chunk at a time, in the order the responses arrive.
+	 */
+	public interface ChunkHandler {
+
+		/**
+		 * @param response
+		 * 		the parsed response of the TNRS service for one chunk of names
+		 */
+		void handle(JSONObject response);
+	}
+
+	private static final Client client = createClient();
+
+	private final String url;
+	private final int chunkSize;
+	private final int maxConcurrentRequests;
+	private final int maxAttempts;
+
+	/**
+	 * @param url
+	 * 		the url of the TNRS service
+	 * @param chunkSize
+	 * 		the maximum number of names sent in each request
+	 * @param maxConcurrentRequests
+	 * 		the maximum number of requests in flight at once
+	 * @param maxAttempts
+	 * 		the number of times each chunk is sent before it is reported as failed
+	 */
+	public RemoteTNRS(String url, int chunkSize, int maxConcurrentRequests, int maxAttempts) {
+		this.url = url;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * Match a list of names, passing the response for each chunk to the handler. Returns once every chunk has either been
+	 * handled or has failed.
+	 *
+	 * @param ids
+	 * 		an id for each name, sent to the service as its idInts
+	 * @param names
+	 * @param handler
+	 * @return
+	 * 		a report of the requests made for each chunk
+	 * @throws InterruptedException
+	 */
+	public Report matchNames(List<Long> ids, List<String> names, ChunkHandler handler) throws InterruptedException {
+
+		if (ids.size() != names.size()) {
+			throw new IllegalArgumentException("There must be one id for each name");
+		}
+
+		Report report = new Report();
+		int nChunks = (names.size() + chunkSize - 1) / chunkSize;
+		if (nChunks == 0) {
+			report.finish();
+			return report;
+		}
+
+		ExecutorService requests = Executors.newFixedThreadPool(Math.min(maxConcurrentRequests, nChunks));
+		try {
+			CompletionService<ChunkResult> completed = new ExecutorCompletionService<ChunkResult>(requests);
+			for (int i = 0; i < nChunks; i++) {
+				int start = i * chunkSize;
+				int end = Math.min(start + chunkSize, names.size());
+				final Chunk chunk = new Chunk(i, new ArrayList<Long>(ids.subList(start, end)),
+						new ArrayList<String>(names.subList(start, end)));
+				completed.submit(new Callable<ChunkResult>() {
+					@Override
+					public ChunkResult call() throws InterruptedException {
+						return send(chunk);
+					}
+				});
+			}
+
+			// apply each response as it arrives
+			for (int i = 0; i < nChunks; i++) {
+				ChunkResult result;
+				try {
+					result = completed.take().get();
+				} catch (ExecutionException ex) {
+					throw new RuntimeException("TNRS request failed", ex.getCause());
+				}
+				if (result.response != null) {
+					try {
+						handler.handle(result.response);
+					} catch (RuntimeException ex) {
+						result.error = "the results could not be applied: " + ex.toString();
+					}
+				}
+				report.add(result);
+			}
+
+		} finally {
+			requests.shutdownNow();
+		}
+
+		report.finish();
+		return report;
+	}
+
+	// ===== private methods
+
+	private static Client createClient() {
+		ClientConfig config = new DefaultClientConfig();
+		config.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, OTUConstants.TNRS_CONNECT_TIMEOUT_MS);
+		config.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, OTUConstants.TNRS_READ_TIMEOUT_MS);
+		return Client.create(config);
+	}
+
+	/**
+	 * Send one chunk, retrying with an increasing delay until it succeeds or has been tried maxAttempts times. Runs on the
+	 * request threads.
+	 */
+	private ChunkResult send(Chunk chunk) throws InterruptedException {
+
+		Map<String, Object> query = new HashMap<String, Object>();
+		query.put("names", chunk.names);
+		query.put("idInts", chunk.ids);
+		String body = new JSONObject(query).toJSONString();
+
+		WebResource tnrs = client.resource(url);
+		ChunkResult result = new ChunkResult(chunk);
+		long start = System.currentTimeMillis();
+		while (result.attempts < maxAttempts) {
+			if (result.attempts > 0) {
+				Thread.sleep(OTUConstants.TNRS_RETRY_DELAY_MS * result.attempts);
+			}
+			result.attempts++;
+			try {
+				String respJSON = tnrs.accept(MediaType.APPLICATION_JSON_TYPE)
+						.type(MediaType.APPLICATION_JSON_TYPE).post(String.class, body);
+				result.response = (JSONObject) new JSONParser().parse(respJSON);
+				result.error = null;
+				break;
+			} catch (ParseException ex) {
+				result.error = "the response could not be parsed: " + ex.toString();
+			} catch (ClassCastException ex) {
+				result.error = "the response was not a JSON object";
+			} catch (RuntimeException ex) {
+				// the jersey client reports connection failures, timeouts and error statuses with runtime exceptions
+				result.error = ex.toString();
+			}
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	// ===== supporting classes
+
+	private static class Chunk {
+
+		final int index;
+		final List<Long> ids;
+		final List<String> names;
+
+		Chunk(int index, List<Long> ids, List<String> names) {
+			this.index = index;
+			this.ids = ids;
+			this.names = names;
+		}
+	}
+
+	private static class ChunkResult {
+
+		final Chunk chunk;
+		JSONObject response = null;
+		String error = null;
+		int attempts = 0;
+		long millis = 0;
+
+		ChunkResult(Chunk chunk) {
+			this.chunk = chunk;
+		}
+	}
+
+	/**
+	 * The outcome of the requests for each chunk. A chunk fails if no request for it succeeded, or if its results could not
+	 * be applied by the ChunkHandler.
+	 */
+	public static class Report {
+
+		private final long start = System.currentTimeMillis();
+		private long elapsed;
+
+		private final List<Map<String, Object>> chunks = new LinkedList<Map<String, Object>>();
+		private final List<Long> failedNameIds = new ArrayList<Long>();
+		private int nSucceeded = 0;
+		private int nFailed = 0;
+		private int nRetries = 0;
+
+		private void add(ChunkResult result) {
+			Map<String, Object> chunk = new LinkedHashMap<String, Object>();
+			chunk.put("chunk", result.chunk.index);
+			chunk.put("n_names", result.chunk.names.size());
+			chunk.put("attempts", result.attempts);
+			chunk.put("seconds", result.millis / 1000.0);
+			if (result.error == null) {
+				chunk.put("event", "success");
+				nSucceeded++;
+			} else {
+				chunk.put("event", "failure");
+				chunk.put("error", result.error);
+				failedNameIds.addAll(result.chunk.ids);
+				nFailed++;
+			}
+			nRetries += result.attempts - 1;
+			chunks.add(chunk);
+		}
+
+		private void finish() {
+			elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		}
+
+		public int getSucceededChunkCount() {
+			return nSucceeded;
+		}
+
+		public int getFailedChunkCount() {
+			return nFailed;
+		}
+
+		/**
+		 * The ids of the names in chunks that failed.
+		 */
+		public List<Long> getFailedNameIds() {
+			return failedNameIds;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("chunks", chunks);
+			result.put("n_chunks", nSucceeded + nFailed);
+			result.put("n_failed_chunks", nFailed);
+			result.put("n_retries", nRetries);
+			result.put("failed_name_ids", failedNameIds);
+			result.put("seconds", elapsed / 1000.0);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package org.opentree.otu;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.opentree.otu.constants.SearchSort;
+import org.opentree.otu.constants.SearchableProperty;
+
+/**
+ * A bounded, least recently used cache of search result pages, in front of DatabaseBrowser.doBasicSearch.
+ *
+ * Each OTUNodeIndex has a generation counter, which DatabaseIndexer increments whenever it writes to the index. A cached
+ * page records the generations of the indexes it was read from, and is discarded when any of them has changed, so writes
+ * only invalidate the searches that could be affected by them. Index writes are not visible to searches until their
+ * transaction commits, so the generations of the indexes written by a transaction are incremented again when it finishes.
+ * Otherwise a page read between the write and the commit could be cached with the new generation but the old contents.
+ *
+ * The cache is shared by all threads using a database, and is held by the OTUServiceContext.
+ */
+public class SearchCache {
+
+	private final OTUServiceContext context;
+	private final int capacity;
+
+	// in access order, so the first entry is the least recently used
+	private final LinkedHashMap<Key, Entry> entries;
+
+	private final AtomicLongArray generations = new AtomicLongArray(OTUNodeIndex.values().length);
+
+	// the indexes written by each open transaction. each set is only used by the thread running its transaction
+	private final Map<Transaction, Set<OTUNodeIndex>> changedInTransaction = Collections.synchronizedMap(new HashMap<Transaction, Set<OTUNodeIndex>>());
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param context
+	 * 		The context of the database, used to find out when writing transactions finish
+	 * @param capacity
+	 * 		The maximum number of pages to keep
+	 */
+	public SearchCache(OTUServiceContext context, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive.");
+		}
+		this.context = context;
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Get a page of search results from the cache, or run the search with the browser if there is no current page for it.
+	 * The arguments are the same as for DatabaseBrowser.doBasicSearch.
+	 * @return
+	 */
+	public SearchResults search(DatabaseBrowser browser, SearchableProperty search, String searchValue, SearchSort sort,
+			boolean descending, int offset, int limit) {
+
+		Set<OTUNodeIndex> dependencies = getDependencies(search, sort);
+		Key key = new Key(search, DatabaseBrowser.normalizeSearchValue(search, searchValue), sort, descending, offset, limit);
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.isCurrent()) {
+					hits.incrementAndGet();
+					return entry.results;
+				}
+				entries.remove(key);
+				invalidations.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+
+		// record the generations before searching, so that a write made during the search makes the page stale
+		Map<OTUNodeIndex, Long> readGenerations = new HashMap<OTUNodeIndex, Long>();
+		for (OTUNodeIndex index : dependencies) {
+			readGenerations.put(index, generations.get(index.ordinal()));
+		}
+
+		SearchResults results = browser.doBasicSearch(search, searchValue, sort, descending, offset, limit);
+
+		synchronized (this) {
+			entries.put(key, new Entry(results, readGenerations));
+			Iterator<Key> eldest = entries.keySet().iterator();
+			while (entries.size() > capacity) {
+				eldest.next();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Record a write to an index. Called by DatabaseIndexer within the writing transaction.
+	 * @param index
+	 */
+	public void indexChanged(OTUNodeIndex index) {
+		generations.incrementAndGet(index.ordinal());
+
+		final Transaction tx = context.currentTransaction();
+		if (tx == null) {
+			// the database does not expose its transaction manager, so only the increment above is made
+			return;
+		}
+		Set<OTUNodeIndex> changed = changedInTransaction.get(tx);
+		if (changed == null) {
+			changed = EnumSet.noneOf(OTUNodeIndex.class);
+			changedInTransaction.put(tx, changed);
+			final Set<OTUNodeIndex> txChanged = changed;
+			boolean registered = context.registerSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {}
+				@Override
+				public void afterCompletion(int status) {
+					changedInTransaction.remove(tx);
+					for (OTUNodeIndex changedIndex : txChanged) {
+						generations.incrementAndGet(changedIndex.ordinal());
+					}
+				}
+			});
+			if (!registered) {
+				// the transaction has been marked for rollback, so its writes will never be visible
+				changedInTransaction.remove(tx);
+				return;
+			}
+		}
+		changed.add(index);
+	}
+
+	/**
+	 * Remove all the cached pages. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Return the hit, miss, eviction and invalidation counts, and the number of cached pages.
+	 * @return
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		stats.put("invalidations", invalidations.get());
+		synchronized (this) {
+			stats.put("size", entries.size());
+		}
+		stats.put("capacity", capacity);
+		return stats;
+	}
+
+	// ===== private methods
+
+	/**
+	 * The indexes that the results of a search are read from. Sorting by year reads the years of the sources, which are
+	 * indexed in the source metadata property index, so changes to them are caught there.
+	 */
+	private static Set<OTUNodeIndex> getDependencies(SearchableProperty search, SearchSort sort) {
+		Set<OTUNodeIndex> dependencies = EnumSet.of((OTUNodeIndex) search.index);
+		if (search.equals(SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES)) {
+			dependencies.add(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_NAME_WHITESPACE_FILLED);
+		}
+		if (sort == SearchSort.YEAR) {
+			dependencies.add(OTUNodeIndex.SOURCE_METADATA_NODES_BY_OTHER_PROPERTY);
+		}
+		return dependencies;
+	}
+
+	private final class Entry {
+
+		final SearchResults results;
+		final Map<OTUNodeIndex, Long> readGenerations;
+
+		Entry(SearchResults results, Map<OTUNodeIndex, Long> readGenerations) {
+			this.results = results;
+			this.readGenerations = readGenerations;
+		}
+
+		boolean isCurrent() {
+			for (Map.Entry<OTUNodeIndex, Long> read : readGenerations.entrySet()) {
+				if (generations.get(read.getKey().ordinal()) != read.getValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Key {
+
+		final SearchableProperty search;
+		final String value;
+		final SearchSort sort;
+		final boolean descending;
+		final int offset;
+		final int limit;
+
+		Key(SearchableProperty search, String value, SearchSort sort, boolean descending, int offset, int limit) {
+			this.search = search;
+			this.value = value;
+			this.sort = sort;
+			this.descending = descending;
+			this.offset = offset;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return search == key.search && value.equals(key.value) && sort == key.sort && descending == key.descending
+					&& offset == key.offset && limit == key.limit;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = search.hashCode();
+			hash = 31 * hash + value.hashCode();
+			hash = 31 * hash + sort.hashCode();
+			hash = 31 * hash + (descending ? 1 : 0);
+			hash = 31 * hash + offset;
+			return 31 * hash + limit;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentree.otu.constants.SearchSort;
+
+/**
+ * One page of the source ids found by a search, with the total number of index hits for the search and whether there are
+ * more sources after the page.
+ */
+public final class SearchResults {
+
+	private final List<String> sourceIds;
+	private final int totalHits;
+	private final boolean hasMore;
+	private final int offset;
+	private final int limit;
+	private final SearchSort sort;
+
+	public SearchResults(List<String> sourceIds, int totalHits, boolean hasMore, int offset, int limit, SearchSort sort) {
+		this.sourceIds = Collections.unmodifiableList(new ArrayList<String>(sourceIds));
+		this.totalHits = totalHits;
+		this.hasMore = hasMore;
+		this.offset = offset;
+		this.limit = limit;
+		this.sort = sort;
+	}
+
+	/**
+	 * The source ids on this page, in sorted order.
+	 */
+	public List<String> getSourceIds() {
+		return sourceIds;
+	}
+
+	/**
+	 * The number of index hits for the search. A source with several matching trees is hit once for each tree, so this
+	 * can be larger than the number of sources found.
+	 */
+	public int getTotalHits() {
+		return totalHits;
+	}
+
+	/**
+	 * Whether the search found more sources than the ones up to the end of this page.
+	 */
+	public boolean hasMore() {
+		return hasMore;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public SearchSort getSort() {
+		return sort;
+	}
+
+	/**
+	 * Return the page as a map, for the search service response.
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("source_ids", sourceIds);
+		map.put("total_hits", totalHits);
+		map.put("has_more", hasMore);
+		map.put("offset", offset);
+		map.put("limit", limit);
+		map.put("sort", sort.name());
+		return map;
+	}
+}
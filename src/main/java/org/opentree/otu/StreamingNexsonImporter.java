@@ -0,0 +1,420 @@
+package org.opentree.otu;
+
+import jade.tree.JadeTree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.MessageLogger;
+import org.opentree.nexson.io.NexsonReader;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.otu.exceptions.DuplicateSourceException;
+
+/**
+ * Imports a nexson into the graph while it is being read, without ever holding the whole document in memory. The nexson
+ * is read with a streaming JSON tokenizer. Everything except the trees (the study metadata and the otus) is collected
+ * as it arrives, and each tree is written to the graph as soon as it has been read, then discarded.
+ *
+ * Each tree is handed to the NexsonReader as a small nexson document containing the study metadata, the single tree,
+ * and only the otus referenced by that tree, so peak memory is proportional to the largest single tree plus the otus
+ * block rather than to the whole file.
+ */
+public class StreamingNexsonImporter {
+
+	private static final String NEXML = "nexml";
+	private static final String TREES = "trees";
+	private static final String TREE = "tree";
+	private static final String OTUS = "otus";
+	private static final String OTU = "otu";
+	private static final String NODE = "node";
+	private static final String ID = "@id";
+	private static final String OTU_REF = "@otu";
+
+	private final GraphDatabaseService graphDb;
+	private final DatabaseManager manager;
+
+	public StreamingNexsonImporter(GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+		this.manager = OTUServiceContext.getInstance(graphDb).getManager();
+	}
+
+	/**
+	 * Read a nexson from the reader and import it into the graph as it is read.
+	 *
+	 * @param nexson
+	 * @param sourceId
+	 * @param location
+	 * 		See DatabaseManager.addSource
+	 * @param overwrite
+	 * 		See DatabaseManager.addSource
+	 * @return
+	 * 		The source meta node for the new source
+	 * @throws IOException
+	 * @throws ParseException
+	 * 		If the nexson is not valid json
+	 * @throws DuplicateSourceException
+	 */
+	public Node importNexson(Reader nexson, String sourceId, String location, boolean overwrite)
+			throws IOException, ParseException, DuplicateSourceException {
+
+		NexsonStreamHandler handler = new NexsonStreamHandler(sourceId, location, overwrite);
+		try {
+			new JSONParser().parse(nexson, handler);
+			if (handler.duplicate != null) {
+				throw handler.duplicate;
+			}
+			handler.finish();
+
+		} catch (IOException ex) {
+			handler.abort();
+			throw ex;
+		} catch (ParseException ex) {
+			handler.abort();
+			throw ex;
+		} catch (RuntimeException ex) {
+			handler.abort();
+			throw ex;
+		}
+
+		return handler.sourceMeta;
+	}
+
+	/**
+	 * Builds the non-tree parts of the nexson as json objects, and passes each tree to the graph as it is completed.
+	 */
+	private class NexsonStreamHandler implements ContentHandler {
+
+		private final String sourceId;
+		private final String location;
+		private final boolean overwrite;
+
+		// the containers currently being built, and the object keys leading to the current position
+		private final LinkedList<Object> containers = new LinkedList<Object>();
+		private final LinkedList<String> keys = new LinkedList<String>();
+		private Object document = null;
+
+		// the depth in the containers stack of the tree currently being read, or -1 if we are not in a tree
+		private int treeDepth = -1;
+		private int nTrees = 0;
+
+		// the trees block containing the trees currently being read
+		private JSONObject currentTreesBlock = null;
+
+		// trees that were read before the otus, which cannot be imported until the otus have been read
+		private final LinkedList<JSONObject> deferredTrees = new LinkedList<JSONObject>();
+
+		// otus by id, collected from the header when the first tree is read
+		private Map<String, JSONObject> otusById = null;
+
+		private Node sourceMeta = null;
+		private DuplicateSourceException duplicate = null;
+
+		NexsonStreamHandler(String sourceId, String location, boolean overwrite) {
+			this.sourceId = sourceId;
+			this.location = location;
+			this.overwrite = overwrite;
+		}
+
+		// ===== content handler methods
+
+		@Override
+		public void startJSON() {}
+
+		@Override
+		public void endJSON() {}
+
+		@Override
+		public boolean startObject() {
+			JSONObject started = new JSONObject();
+			if (treeDepth < 0 && isAtTreePosition()) {
+				treeDepth = containers.size();
+			} else if (isAtTreesBlockPosition()) {
+				currentTreesBlock = started;
+			}
+			containers.push(started);
+			return true;
+		}
+
+		@Override
+		public boolean endObject() throws IOException {
+			JSONObject completed = (JSONObject) containers.pop();
+			if (containers.size() == treeDepth) {
+				treeDepth = -1;
+				if (getNexml().containsKey(OTUS)) {
+					return addTree(completed);
+				} else {
+					deferredTrees.add(completed);
+					return true;
+				}
+			} else {
+				addToParent(completed);
+				return true;
+			}
+		}
+
+		@Override
+		public boolean startObjectEntry(String key) {
+			keys.push(key);
+			return true;
+		}
+
+		@Override
+		public boolean endObjectEntry() {
+			keys.pop();
+			return true;
+		}
+
+		@Override
+		public boolean startArray() {
+			containers.push(new JSONArray());
+			return true;
+		}
+
+		@Override
+		public boolean endArray() {
+			addToParent(containers.pop());
+			return true;
+		}
+
+		@Override
+		public boolean primitive(Object value) {
+			addToParent(value);
+			return true;
+		}
+
+		// ===== building the document
+
+		@SuppressWarnings("unchecked")
+		private void addToParent(Object value) {
+			if (containers.isEmpty()) {
+				document = value;
+			} else if (containers.peek() instanceof JSONObject) {
+				((JSONObject) containers.peek()).put(keys.peek(), value);
+			} else {
+				((JSONArray) containers.peek()).add(value);
+			}
+		}
+
+		/**
+		 * Whether the next object to be started is a tree, i.e. it is at nexml.trees.tree, possibly within arrays.
+		 */
+		private boolean isAtTreePosition() {
+			return keys.size() == 3 && TREE.equals(keys.get(0)) && TREES.equals(keys.get(1)) && NEXML.equals(keys.get(2));
+		}
+
+		/**
+		 * Whether the next object to be started is a trees block, i.e. it is at nexml.trees, possibly within an array.
+		 */
+		private boolean isAtTreesBlockPosition() {
+			return keys.size() == 2 && TREES.equals(keys.get(0)) && NEXML.equals(keys.get(1));
+		}
+
+		/**
+		 * Return the nexml object of the document read so far. Trees are never added to it.
+		 */
+		private JSONObject getNexml() {
+			JSONObject root = (JSONObject) (document != null ? document : containers.peekLast());
+			Object nexml = root == null ? null : root.get(NEXML);
+			if (nexml instanceof JSONObject) {
+				return (JSONObject) nexml;
+			} else {
+				// the nexml object is still being built, so it is the second container from the bottom of the stack
+				return containers.size() > 1 ? (JSONObject) containers.get(containers.size() - 2) : new JSONObject();
+			}
+		}
+
+		// ===== writing to the graph
+
+		/**
+		 * Read a single tree and add it to the graph, beginning the source first if this is the first tree.
+		 * @return
+		 * 		false if parsing should stop
+		 */
+		private boolean addTree(JSONObject treeJSON) throws IOException {
+
+			if (sourceMeta == null) {
+				try {
+					sourceMeta = manager.beginSourceImport(sourceId, readSourceProperties(), location, overwrite);
+				} catch (DuplicateSourceException ex) {
+					duplicate = ex;
+					return false;
+				}
+			}
+
+			JSONObject nexml = new JSONObject();
+			nexml.putAll(getNexml());
+			nexml.put(OTUS, getOtusForTree(treeJSON));
+			nexml.put(TREES, makeTreesBlock(treeJSON));
+
+			for (JadeTree tree : readNexson(nexml).getTrees()) {
+				// TODO: sometimes the nexson reader returns null trees, just like in DatabaseManager.addSource
+				if (tree != null) {
+					manager.addTree(tree, ParsedSource.makeTreeId(sourceId, tree, nTrees++), TipTaxonArrays.fromJadeTree(tree), sourceMeta);
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Complete the source once the whole document has been read. Source properties that appeared after the trees
+		 * in the document are added now.
+		 * @throws DuplicateSourceException
+		 * @throws IOException
+		 */
+		void finish() throws DuplicateSourceException, IOException {
+
+			// trees that appeared before the otus can be imported now that we have the whole header
+			while (!deferredTrees.isEmpty()) {
+				if (!addTree(deferredTrees.removeFirst())) {
+					throw duplicate;
+				}
+			}
+
+			Map<String, Object> properties = readSourceProperties();
+			if (sourceMeta == null) {
+				sourceMeta = manager.beginSourceImport(sourceId, properties, location, overwrite);
+			} else {
+				Transaction tx = graphDb.beginTx();
+				try {
+					for (Entry<String, Object> property : properties.entrySet()) {
+						if (!sourceMeta.hasProperty(property.getKey())) {
+							sourceMeta.setProperty(property.getKey(), property.getValue());
+						}
+					}
+					tx.success();
+				} finally {
+					tx.finish();
+				}
+			}
+
+			manager.finishSourceImport(sourceMeta);
+		}
+
+		/**
+		 * Remove the partially imported source after a failure. If this fails too, the source will still be marked as
+		 * incomplete and can be removed with DatabaseManager.cleanUpIncompleteImports.
+		 */
+		void abort() {
+			if (sourceMeta != null) {
+				try {
+					manager.deleteSource(sourceMeta);
+				} catch (RuntimeException ex) {}
+				sourceMeta = null;
+			}
+		}
+
+		// ===== building the single-tree nexsons
+
+		/**
+		 * Read the source properties from the nexson metadata that has been read so far.
+		 */
+		private Map<String, Object> readSourceProperties() throws IOException {
+			JSONObject nexml = new JSONObject();
+			nexml.putAll(getNexml());
+			nexml.remove(OTUS);
+			nexml.put(TREES, makeTreesBlock(null));
+			return readNexson(nexml).getProperties();
+		}
+
+		@SuppressWarnings("unchecked")
+		private NexsonSource readNexson(JSONObject nexml) throws IOException {
+			JSONObject root = new JSONObject();
+			root.put(NEXML, nexml);
+
+			StringWriter json = new StringWriter();
+			JSONValue.writeJSONString(root, json);
+			return NexsonReader.readNexson(new StringReader(json.toString()), sourceId, false, new MessageLogger(""));
+		}
+
+		/**
+		 * Make a trees block containing only the specified tree (or no trees if the tree is null), keeping any other
+		 * properties of the trees block from the original document.
+		 */
+		@SuppressWarnings("unchecked")
+		private JSONObject makeTreesBlock(JSONObject tree) {
+			JSONObject trees = new JSONObject();
+			if (currentTreesBlock != null) {
+				trees.putAll(currentTreesBlock);
+			}
+			JSONArray treeList = new JSONArray();
+			if (tree != null) {
+				treeList.add(tree);
+			}
+			trees.put(TREE, treeList);
+			return trees;
+		}
+
+		/**
+		 * Make an otus block containing only the otus referenced by nodes in the specified tree.
+		 */
+		@SuppressWarnings("unchecked")
+		private JSONObject getOtusForTree(JSONObject tree) {
+
+			if (otusById == null) {
+				collectOtus();
+			}
+
+			JSONObject otus = new JSONObject();
+			Object original = getNexml().get(OTUS);
+			if (original instanceof JSONObject) {
+				otus.putAll((JSONObject) original);
+			}
+
+			Set<String> seen = new HashSet<String>();
+			JSONArray otuList = new JSONArray();
+			for (Object node : asList(tree.get(NODE))) {
+				Object otuId = ((JSONObject) node).get(OTU_REF);
+				if (otuId != null && seen.add((String) otuId) && otusById.containsKey(otuId)) {
+					otuList.add(otusById.get(otuId));
+				}
+			}
+			otus.put(OTU, otuList);
+			return otus;
+		}
+
+		/**
+		 * Index the otus from the header by their ids. The otus block may be a single object or an array of them.
+		 */
+		private void collectOtus() {
+			otusById = new HashMap<String, JSONObject>();
+			for (Object otusBlock : asList(getNexml().get(OTUS))) {
+				for (Object otu : asList(((JSONObject) otusBlock).get(OTU))) {
+					otusById.put((String) ((JSONObject) otu).get(ID), (JSONObject) otu);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Badgerfish represents single elements as objects and multiple elements as arrays. Return either as a list.
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONArray asList(Object value) {
+		if (value instanceof JSONArray) {
+			return (JSONArray) value;
+		}
+		JSONArray list = new JSONArray();
+		if (value != null) {
+			list.add(value);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,442 @@
+package org.opentree.otu;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.opentree.MessageLogger;
+import org.opentree.nexson.io.NexsonReader;
+import org.opentree.nexson.io.NexsonSource;
+
+/**
+ * Generates synthetic nexson studies for benchmarking and load testing, along with a matching synthetic ott taxonomy. All
+ * output is determined by the seed, so two generators created with the same seed and settings produce identical studies in
+ * the same order.
+ *
+ * Studies contain the metadata properties used for searching (see SearchableProperty), and trees whose tips are drawn
+ * from a pool of synthetic taxa, some of which are mapped to ott ids. Values for the categorical properties (curator names,
+ * tags, etc.) are drawn from small vocabularies with a skewed distribution, so that a few values are very common and most
+ * are rare, as in the real nexsons.
+ *
+ * The synthetic taxonomy contains every taxon in the pool as a species, grouped into genera, under a single root. Species
+ * have ott ids from 1 to the taxon pool size, so the tips of the generated trees can be attached to the taxonomy once it
+ * has been installed with installOTT.
+ *
+ * Usage: SyntheticStudyGenerator <output dir> <number of studies> [seed]
+ *
+ * This writes the studies to the output dir as nexson files named 1, 2, ... (the naming used for the nexsons repo), and
+ * the taxonomy to taxonomy.tsv in the same directory.
+ */
+public class SyntheticStudyGenerator {
+
+	/**
+	 * The topologies of the generated trees.
+	 */
+	public enum TreeShape {
+
+		/** Every internal node splits its tips as evenly as possible between two children */
+		BALANCED,
+
+		/** Every internal node has one tip child and one internal child (a ladder) */
+		CATERPILLAR,
+
+		/** A single polytomy: every tip is a child of the root */
+		STAR
+	}
+
+	public static final String TAXONOMY_FILE_NAME = "taxonomy.tsv";
+	public static final int SPECIES_PER_GENUS = 10;
+
+	private static final String[] SYLLABLES = {"ba", "ce", "di", "fo", "gu", "la", "me", "ni", "po", "ru", "sa", "te", "vi", "xo", "zu"};
+	private static final String[] CURATORS = {"Romina Gazis", "Bryan Drew", "Stephen Smith", "Cody Hinchliff", "Joseph Brown",
+		"Karen Cranston", "Jonathan Rees", "Mark Holder", "Emily Jane McTavish", "Peter Midford"};
+	private static final String[] TAGS = {"bootstrap", "bayesian", "parsimony", "ml", "chronogram", "phylogram", "supertree",
+		"consensus", "dated", "rbcL", "matK", "ITS", "COI", "16S"};
+	private static final String[] BRANCH_LENGTH_MODES = {"ot:substitutionCount", "ot:changesCount", "ot:time", "ot:bootstrapValues",
+		"ot:posteriorSupport", "ot:other"};
+
+	private static final String OTT_COLUMN_SEPARATOR = "\t|\t";
+
+	private final long seed;
+	private final Random random;
+
+	private int treesPerStudy = 1;
+	private int tipsPerTree = 100;
+	private int tipCountVariation = 0;
+	private TreeShape treeShape = TreeShape.BALANCED;
+	private int taxonPoolSize = 100000;
+	private double mappedTaxonFraction = 0.8;
+	private double propertySkew = 1.0;
+	private double missingPropertyFraction = 0.1;
+
+	/**
+	 * @param seed
+	 * 		The seed for all random choices
+	 */
+	public SyntheticStudyGenerator(long seed) {
+		this.seed = seed;
+		random = new Random(seed);
+	}
+
+	public void setTreesPerStudy(int treesPerStudy) {
+		this.treesPerStudy = treesPerStudy;
+	}
+
+	public void setTipsPerTree(int tipsPerTree) {
+		if (tipsPerTree < 2) {
+			throw new IllegalArgumentException("trees must have at least two tips");
+		}
+		this.tipsPerTree = tipsPerTree;
+	}
+
+	/**
+	 * Vary the number of tips in each tree uniformly by up to this many tips either way from the tips per tree.
+	 * @param tipCountVariation
+	 */
+	public void setTipCountVariation(int tipCountVariation) {
+		this.tipCountVariation = tipCountVariation;
+	}
+
+	public void setTreeShape(TreeShape treeShape) {
+		this.treeShape = treeShape;
+	}
+
+	/**
+	 * Set the number of distinct taxa that tips are drawn from. This is also the number of species in the taxonomy.
+	 * @param taxonPoolSize
+	 */
+	public void setTaxonPoolSize(int taxonPoolSize) {
+		this.taxonPoolSize = taxonPoolSize;
+	}
+
+	/**
+	 * Set the fraction of tips that are mapped to ott ids.
+	 * @param mappedTaxonFraction
+	 */
+	public void setMappedTaxonFraction(double mappedTaxonFraction) {
+		this.mappedTaxonFraction = mappedTaxonFraction;
+	}
+
+	/**
+	 * Set the skew of the distribution of values for categorical properties. The ith most common value is chosen with
+	 * weight 1 / i^skew, so 0 gives a uniform distribution, and 1 (the default) gives a zipf distribution.
+	 * @param propertySkew
+	 */
+	public void setPropertySkew(double propertySkew) {
+		this.propertySkew = propertySkew;
+	}
+
+	/**
+	 * Set the fraction of studies and trees from which each optional metadata property is left out.
+	 * @param missingPropertyFraction
+	 */
+	public void setMissingPropertyFraction(double missingPropertyFraction) {
+		this.missingPropertyFraction = missingPropertyFraction;
+	}
+
+	/**
+	 * Generate the next study as a NexsonSource, as the NexsonReader would read it from a file.
+	 * @param sourceId
+	 * @return
+	 * @throws IOException
+	 */
+	public NexsonSource makeSource(String sourceId) throws IOException {
+		return NexsonReader.readNexson(new StringReader(makeNexson(sourceId)), sourceId, false, new MessageLogger(""));
+	}
+
+	/**
+	 * Generate the next study as a nexson string.
+	 * @param sourceId
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public String makeNexson(String sourceId) {
+
+		JSONObject nexml = new JSONObject();
+
+		JSONArray meta = new JSONArray();
+		int year = 1990 + random.nextInt(25);
+		meta.add(makeMeta("ot:curatorName", chooseSkewed(CURATORS)));
+		meta.add(makeMeta("ot:studyPublicationReference", makeWords(8) + " " + year));
+		addOptionalMeta(meta, "ot:studyPublication", "http://dx.doi.org/10.9999/" + sourceId);
+		addOptionalMeta(meta, "ot:dataDeposit", "http://purl.org/phylo/treebase/phylows/study/TB2:S" + sourceId);
+		addOptionalMeta(meta, "ot:studyYear", year);
+		addOptionalMeta(meta, "ot:tag", chooseSkewed(TAGS));
+		nexml.put("meta", meta);
+
+		JSONArray otuList = new JSONArray();
+		JSONArray treeList = new JSONArray();
+		for (int i = 0; i < treesPerStudy; i++) {
+			treeList.add(makeTree("tree" + i, "t" + i + "_", otuList));
+		}
+
+		JSONObject otus = new JSONObject();
+		otus.put("@id", "otus1");
+		otus.put("otu", otuList);
+		nexml.put("otus", otus);
+
+		JSONObject trees = new JSONObject();
+		trees.put("@id", "trees1");
+		trees.put("@otus", "otus1");
+		trees.put("tree", treeList);
+		nexml.put("trees", trees);
+
+		JSONObject root = new JSONObject();
+		root.put("nexml", nexml);
+		return root.toJSONString();
+	}
+
+	/**
+	 * Write studies to nexson files named 1 to nStudies in the directory, along with the matching taxonomy.
+	 * @param dir
+	 * @param nStudies
+	 * @throws IOException
+	 */
+	public void writeStudies(File dir, int nStudies) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create the directory " + dir.getPath());
+		}
+		for (int i = 1; i <= nStudies; i++) {
+			String sourceId = String.valueOf(i);
+			Writer out = new BufferedWriter(new FileWriter(new File(dir, sourceId)));
+			try {
+				out.write(makeNexson(sourceId));
+			} finally {
+				out.close();
+			}
+		}
+		writeTaxonomy(new File(dir, TAXONOMY_FILE_NAME));
+	}
+
+	/**
+	 * Write the synthetic taxonomy in the ott taxonomy format read by installOTT. The taxonomy only depends on the taxon
+	 * pool size, so it can be written at any time.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTaxonomy(File file) throws IOException {
+
+		long rootId = taxonPoolSize + 1;
+		long firstGenusId = rootId + 1;
+		int nGenera = (taxonPoolSize + SPECIES_PER_GENUS - 1) / SPECIES_PER_GENUS;
+
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			writeTaxonomyLine(out, "uid", "parent_uid", "name", "rank");
+			writeTaxonomyLine(out, String.valueOf(rootId), "", "life", "no rank");
+			for (int g = 0; g < nGenera; g++) {
+				writeTaxonomyLine(out, String.valueOf(firstGenusId + g), String.valueOf(rootId), getGenusName(g), "genus");
+			}
+			for (long ottId = 1; ottId <= taxonPoolSize; ottId++) {
+				int genus = (int) ((ottId - 1) / SPECIES_PER_GENUS);
+				writeTaxonomyLine(out, String.valueOf(ottId), String.valueOf(firstGenusId + genus), getTaxonName(ottId), "species");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * The name of the synthetic species with this ott id. Species are numbered from 1 to the taxon pool size, and
+	 * consecutive groups of SPECIES_PER_GENUS species share a genus.
+	 * @param ottId
+	 * @return
+	 */
+	public static String getTaxonName(long ottId) {
+		int genus = (int) ((ottId - 1) / SPECIES_PER_GENUS);
+		int species = (int) ((ottId - 1) % SPECIES_PER_GENUS);
+		return getGenusName(genus) + " " + SYLLABLES[species] + SYLLABLES[(species + genus) % SYLLABLES.length] + "us";
+	}
+
+	// ===== private methods
+
+	private static String getGenusName(int genus) {
+		StringBuilder name = new StringBuilder();
+		int n = genus;
+		do {
+			name.append(SYLLABLES[n % SYLLABLES.length]);
+			n /= SYLLABLES.length;
+		} while (n > 0);
+		name.append("ia");
+		name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+		return name.toString();
+	}
+
+	/**
+	 * Make a tree with the configured shape. The otus for its tips are added to the otu list.
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject makeTree(String treeId, String idPrefix, JSONArray otuList) {
+
+		int nTips = tipsPerTree;
+		if (tipCountVariation > 0) {
+			nTips = Math.max(2, nTips - tipCountVariation + random.nextInt(2 * tipCountVariation + 1));
+		}
+
+		JSONArray nodes = new JSONArray();
+		JSONArray edges = new JSONArray();
+
+		JSONObject root = makeNode(idPrefix + "n0");
+		root.put("@root", "true");
+		nodes.add(root);
+
+		// assign the tips to the children of each node, breadth first. each entry is {node number, tip count}
+		int nNodes = 1;
+		LinkedList<int[]> pending = new LinkedList<int[]>();
+		pending.add(new int[] {0, nTips});
+		String ingroupNodeId = null;
+		while (!pending.isEmpty()) {
+			int[] cur = pending.removeFirst();
+			if (cur[1] == 1) {
+				// a tip. nodes are numbered in the order they are added, so the number gives the position in the list
+				String otuId = idPrefix + "otu" + cur[0];
+				((JSONObject) nodes.get(cur[0])).put("@otu", otuId);
+				otuList.add(makeOtu(otuId, 1 + random.nextInt(taxonPoolSize)));
+				continue;
+			}
+
+			for (int tips : splitTips(cur[1])) {
+				String childId = idPrefix + "n" + nNodes;
+				nodes.add(makeNode(childId));
+				JSONObject edge = new JSONObject();
+				edge.put("@id", idPrefix + "e" + nNodes);
+				edge.put("@source", idPrefix + "n" + cur[0]);
+				edge.put("@target", childId);
+				edge.put("@length", random.nextDouble());
+				edges.add(edge);
+				pending.add(new int[] {nNodes, tips});
+				if (ingroupNodeId == null && tips > 1) {
+					ingroupNodeId = childId;
+				}
+				nNodes++;
+			}
+		}
+
+		JSONArray meta = new JSONArray();
+		addOptionalMeta(meta, "ot:branchLengthMode", chooseSkewed(BRANCH_LENGTH_MODES));
+		addOptionalMeta(meta, "ot:tag", chooseSkewed(TAGS));
+		if (ingroupNodeId != null) {
+			addOptionalMeta(meta, "ot:inGroupClade", ingroupNodeId);
+		}
+
+		JSONObject tree = new JSONObject();
+		tree.put("@id", treeId);
+		tree.put("meta", meta);
+		tree.put("node", nodes);
+		tree.put("edge", edges);
+		return tree;
+	}
+
+	/**
+	 * Divide the tips below an internal node among its children, according to the tree shape.
+	 */
+	private int[] splitTips(int nTips) {
+		switch (treeShape) {
+		case CATERPILLAR:
+			return new int[] {1, nTips - 1};
+		case STAR:
+			int[] tips = new int[nTips];
+			for (int i = 0; i < nTips; i++) {
+				tips[i] = 1;
+			}
+			return tips;
+		default:
+			return new int[] {nTips / 2, nTips - nTips / 2};
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject makeNode(String nodeId) {
+		JSONObject node = new JSONObject();
+		node.put("@id", nodeId);
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject makeOtu(String otuId, long ottId) {
+		String name = getTaxonName(ottId);
+		JSONArray meta = new JSONArray();
+		meta.add(makeMeta("ot:originalLabel", name));
+		if (random.nextDouble() < mappedTaxonFraction) {
+			meta.add(makeMeta("ot:ottId", ottId));
+			meta.add(makeMeta("ot:ottTaxonName", name));
+		}
+		JSONObject otu = new JSONObject();
+		otu.put("@id", otuId);
+		otu.put("@label", name);
+		otu.put("meta", meta);
+		return otu;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addOptionalMeta(JSONArray meta, String property, Object value) {
+		if (random.nextDouble() >= missingPropertyFraction) {
+			meta.add(makeMeta(property, value));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject makeMeta(String property, Object value) {
+		JSONObject meta = new JSONObject();
+		meta.put("@property", property);
+		meta.put("@xsi:type", "nex:LiteralMeta");
+		meta.put("$", value);
+		return meta;
+	}
+
+	private static void writeTaxonomyLine(Writer out, String uid, String parentUid, String name, String rank) throws IOException {
+		out.write(uid + OTT_COLUMN_SEPARATOR + parentUid + OTT_COLUMN_SEPARATOR + name + OTT_COLUMN_SEPARATOR + rank
+				+ OTT_COLUMN_SEPARATOR + OTT_COLUMN_SEPARATOR + OTT_COLUMN_SEPARATOR + OTT_COLUMN_SEPARATOR + "\n");
+	}
+
+	private String makeWords(int n) {
+		StringBuilder words = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				words.append(" ");
+			}
+			words.append(SYLLABLES[random.nextInt(SYLLABLES.length)]).append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		}
+		return words.toString();
+	}
+
+	/**
+	 * Choose a value, where the ith value has weight 1 / i^propertySkew.
+	 */
+	private String chooseSkewed(String[] choices) {
+		double total = 0;
+		for (int i = 1; i <= choices.length; i++) {
+			total += Math.pow(i, -propertySkew);
+		}
+		double r = random.nextDouble() * total;
+		for (int i = 1; i <= choices.length; i++) {
+			r -= Math.pow(i, -propertySkew);
+			if (r < 0) {
+				return choices[i - 1];
+			}
+		}
+		return choices[choices.length - 1];
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2 || args.length > 3) {
+			System.out.println("usage: SyntheticStudyGenerator <output dir> <number of studies> [seed]");
+			System.exit(1);
+		}
+
+		SyntheticStudyGenerator generator = new SyntheticStudyGenerator(args.length > 2 ? Long.valueOf(args[2]) : 1);
+		generator.writeStudies(new File(args[0]), Integer.valueOf(args[1]));
+	}
+}
@@ -0,0 +1,476 @@
+package org.opentree.otu;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+
+/**
+ * A bounded, least recently used cache of TNRS matches by name, so that names which have already been matched (the same
+ * tip labels appear in many studies) are not sent to the TNRS again. doTNRSForDescendants looks up every name before
+ * matching, sends only the names that were not found, and stores the matches for those names when they come back.
+ *
+ * Matches are cached by the TNRS that produced them (the url of a remote service, or the local taxonomy), the context the
+ * names were matched in, and the normalized name. doTNRSForDescendants caches tips under their original labels, which are
+ * not replaced by the matched names, so a tree can be matched again from the cache. Names are looked up under the context of the tree if it is known, and
+ * then under no context. Only matches that do not depend on the context are stored under no context: a single exact match
+ * that is neither approximate nor a homonym. Other matches, such as a homonym that the TNRS narrowed to one taxon by the
+ * context, are only stored under their own context, so they are not reused for trees in another context. Names that the
+ * TNRS could not match are cached under their context too, with no matches.
+ *
+ * A cached match is discarded when it is older than OTUConstants.TNRS_CACHE_TTL_MS. Matches made against the local
+ * taxonomy are also discarded when a different taxonomy has been installed since (as recorded by the OTT_ID_MAP_STAMP
+ * graph property). The taxonomy of a remote TNRS is not known, so its matches only expire by age.
+ *
+ * The cache is saved to a file in the graph store directory when the database shuts down, and loaded from it on first
+ * use. Held by the OTUServiceContext. All the public methods are safe to call from multiple threads.
+ */
+public class TNRSCache {
+
+	/**
+	 * The source under which matches made against the local taxonomy are cached.
+	 */
+	public static final String LOCAL_SOURCE = "local";
+
+	private static final MessageLogger logger = new MessageLogger("tnrsCache:");
+
+	private final OTUServiceContext context;
+	private final int capacity;
+
+	// null if the graph store directory is not known, in which case the cache is not saved
+	private final File file;
+
+	// the following are guarded by this
+	private boolean loaded = false;
+	private boolean fileClean = true;
+	// in access order, so the first entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	// the last error reading or writing the file, or null
+	private volatile String lastFileError = null;
+
+	TNRSCache(OTUServiceContext context) {
+		this.context = context;
+		this.capacity = OTUConstants.TNRS_CACHE_MAX_ENTRIES;
+		this.file = context.getStoreDir() == null ? null : new File(context.getStoreDir(), OTUConstants.TNRS_CACHE_FILE_NAME);
+	}
+
+	/**
+	 * Look up a list of names. The matches for the names that were found are returned as a TNRS response for their ids,
+	 * which can be applied in the same way as a response from the TNRS.
+	 *
+	 * @param source
+	 * 		the url of the TNRS service, or LOCAL_SOURCE
+	 * @param tnrsContext
+	 * 		the context the names are expected to be in, or null if it is not known
+	 * @param ids
+	 * 		an id for each name
+	 * @param names
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public Lookup lookup(String source, String tnrsContext, List<Long> ids, List<String> names) {
+
+		Long stamp = getStamp(source);
+		long now = System.currentTimeMillis();
+
+		Lookup lookup = new Lookup();
+		JSONArray results = new JSONArray();
+		JSONArray unmatched = new JSONArray();
+		JSONArray matched = new JSONArray();
+		JSONArray unambiguous = new JSONArray();
+		Map<String, Integer> contextSizes = new HashMap<String, Integer>();
+
+		synchronized (this) {
+			ensureLoaded();
+			for (int i = 0; i < names.size(); i++) {
+				Long id = ids.get(i);
+				String name = names.get(i);
+
+				Entry entry = null;
+				if (tnrsContext != null) {
+					entry = get(toKey(source, tnrsContext, name), stamp, now);
+				}
+				if (entry == null) {
+					entry = get(toKey(source, "", name), stamp, now);
+				}
+				if (entry == null) {
+					lookup.missedIds.add(id);
+					lookup.missedNames.add(name);
+					continue;
+				}
+
+				if (entry.matches.isEmpty()) {
+					unmatched.add(id);
+					continue;
+				}
+				JSONObject result = new JSONObject();
+				result.put("id", id);
+				result.put("matches", entry.matches);
+				results.add(result);
+				matched.add(id);
+				if (entry.unambiguous) {
+					unambiguous.add(id);
+				}
+				if (entry.context != null) {
+					Integer size = contextSizes.get(entry.context);
+					contextSizes.put(entry.context, (size == null ? 0 : size) + 1);
+				}
+			}
+		}
+
+		// the context of the cached names is the one that applies to the most of them
+		String responseContext = null;
+		for (Map.Entry<String, Integer> contextSize : contextSizes.entrySet()) {
+			if (responseContext == null || contextSize.getValue() > contextSizes.get(responseContext)) {
+				responseContext = contextSize.getKey();
+			}
+		}
+
+		lookup.hitCount = names.size() - lookup.missedNames.size();
+		hits.addAndGet(lookup.hitCount);
+		misses.addAndGet(lookup.missedNames.size());
+
+		lookup.response = new JSONObject();
+		lookup.response.put("results", results);
+		lookup.response.put("unmatched_name_ids", unmatched);
+		lookup.response.put("matched_name_ids", matched);
+		lookup.response.put("unambiguous_name_ids", unambiguous);
+		lookup.response.put("context", responseContext);
+		return lookup;
+	}
+
+	/**
+	 * Cache the matches in a TNRS response. Names whose ids are in neither the matched nor the unmatched ids of the
+	 * response, or that are reported as matched without any matches, are not cached.
+	 *
+	 * @param source
+	 * 		the url of the TNRS service, or LOCAL_SOURCE
+	 * @param namesById
+	 * 		the names to cache the matches under, by the ids they were sent to the TNRS with
+	 * @param response
+	 * 		the response of the TNRS
+	 */
+	public void store(String source, Map<Long, String> namesById, JSONObject response) {
+
+		Map<Long, JSONArray> matchesById = new HashMap<Long, JSONArray>();
+		for (Object nameResult : (JSONArray) response.get("results")) {
+			matchesById.put(((Number) ((JSONObject) nameResult).get("id")).longValue(),
+					(JSONArray) ((JSONObject) nameResult).get("matches"));
+		}
+		Set<Long> unambiguousIds = new HashSet<Long>();
+		for (Object id : (JSONArray) response.get("unambiguous_name_ids")) {
+			unambiguousIds.add(((Number) id).longValue());
+		}
+		List<Long> ids = new ArrayList<Long>();
+		for (Object id : (JSONArray) response.get("matched_name_ids")) {
+			if (matchesById.containsKey(((Number) id).longValue())) {
+				ids.add(((Number) id).longValue());
+			}
+		}
+		for (Object id : (JSONArray) response.get("unmatched_name_ids")) {
+			ids.add(((Number) id).longValue());
+		}
+		String responseContext = (String) response.get("context");
+
+		Long stamp = getStamp(source);
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			ensureLoaded();
+			for (Long id : ids) {
+				String name = namesById.get(id);
+				if (name == null) {
+					continue;
+				}
+				JSONArray matches = matchesById.get(id);
+				Entry entry = new Entry(matches == null ? new JSONArray() : matches, unambiguousIds.contains(id),
+						responseContext, stamp, now);
+				if (responseContext != null) {
+					put(toKey(source, responseContext, name), entry);
+				}
+				if (isContextIndependent(entry.matches)) {
+					put(toKey(source, "", name), entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all the cached matches, and the cache file. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		loaded = true;
+		if (file != null && file.exists() && !file.delete()) {
+			fileClean = false;
+		} else {
+			fileClean = true;
+		}
+	}
+
+	/**
+	 * Write the cache to the file, if it has been loaded and has changed since it was written. Called when the database
+	 * shuts down.
+	 */
+	public synchronized void close() {
+		if (loaded && !fileClean) {
+			save();
+		}
+	}
+
+	/**
+	 * Return the hit, miss, eviction and expiration counts, the number of cached entries, and the state of the file.
+	 * @return
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		long lookups = hits.get() + misses.get();
+		stats.put("hit_rate", lookups == 0 ? 0.0 : (double) hits.get() / lookups);
+		stats.put("evictions", evictions.get());
+		stats.put("expirations", expirations.get());
+		synchronized (this) {
+			stats.put("loaded", loaded);
+			stats.put("size", entries.size());
+			stats.put("file_up_to_date", file != null && file.exists() && fileClean);
+			stats.put("last_file_error", lastFileError);
+		}
+		stats.put("capacity", capacity);
+		stats.put("file", file == null ? null : file.getPath());
+		return stats;
+	}
+
+	// ===== private methods
+
+	/**
+	 * The stamp of the taxonomy that matches from a source are made against: the installed ott id map for the local
+	 * taxonomy, and null for remote sources.
+	 */
+	private Long getStamp(String source) {
+		return LOCAL_SOURCE.equals(source) ? context.getConfig().getOTTIdMapStamp() : null;
+	}
+
+	private static String toKey(String source, String tnrsContext, String name) {
+		return source + "\t" + tnrsContext + "\t" + TaxonAutocomplete.normalizeName(name);
+	}
+
+	/**
+	 * Get a current entry, discarding it if it has expired. Must hold the lock.
+	 */
+	private Entry get(String key, Long stamp, long now) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (now - entry.time > OTUConstants.TNRS_CACHE_TTL_MS
+				|| (stamp == null ? entry.stamp != null : !stamp.equals(entry.stamp))) {
+			entries.remove(key);
+			expirations.incrementAndGet();
+			fileClean = false;
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Add an entry, evicting the least recently used ones if the cache is full. Must hold the lock.
+	 */
+	private void put(String key, Entry entry) {
+		entries.put(key, entry);
+		Iterator<String> eldest = entries.keySet().iterator();
+		while (entries.size() > capacity) {
+			eldest.next();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+		fileClean = false;
+	}
+
+	/**
+	 * Read the cache file, one entry per line, from the least to the most recently used. Unreadable lines are skipped. Must
+	 * hold the lock.
+	 */
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (file == null || !file.exists()) {
+			return;
+		}
+
+		JSONParser parser = new JSONParser();
+		boolean clean = true;
+		long evicted = evictions.get();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					try {
+						JSONObject stored = (JSONObject) parser.parse(line);
+						Entry entry = new Entry((JSONArray) stored.get("matches"), (Boolean) stored.get("unambiguous"),
+								(String) stored.get("context"), (Long) stored.get("stamp"), (Long) stored.get("time"));
+						String key = (String) stored.get("key");
+						if (key.contains("\t\t") && !isContextIndependent(entry.matches)) {
+							// stored under no context by an earlier version, which did so for every match
+							clean = false;
+							continue;
+						}
+						put(key, entry);
+					} catch (ParseException ex) {
+						clean = false;
+					} catch (RuntimeException ex) {
+						// a line with missing or mistyped fields
+						clean = false;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			// start with an empty cache
+			reportFileError("could not read", ex);
+			entries.clear();
+		}
+		fileClean = clean && evictions.get() == evicted;
+	}
+
+	/**
+	 * Write the cache to a temporary file and move it into place. Must hold the lock.
+	 */
+	@SuppressWarnings("unchecked")
+	private void save() {
+		if (file == null) {
+			return;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			try {
+				for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+					Entry entry = cached.getValue();
+					JSONObject stored = new JSONObject();
+					stored.put("key", cached.getKey());
+					stored.put("matches", entry.matches);
+					stored.put("unambiguous", entry.unambiguous);
+					stored.put("context", entry.context);
+					stored.put("stamp", entry.stamp);
+					stored.put("time", entry.time);
+					writer.write(stored.toJSONString());
+					writer.newLine();
+				}
+			} finally {
+				writer.close();
+			}
+
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Could not replace the TNRS cache file " + file.getPath());
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not move the TNRS cache file into place at " + file.getPath());
+			}
+			fileClean = true;
+
+		} catch (IOException ex) {
+			// the names will be matched again
+			reportFileError("could not write", ex);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Whether a name's matches would be the same in any context: a single exact match that is neither approximate nor a
+	 * homonym. Matches without the is_approximate_match and is_homonym flags are treated as context dependent.
+	 */
+	private static boolean isContextIndependent(JSONArray matches) {
+		if (matches.size() != 1) {
+			return false;
+		}
+		JSONObject match = (JSONObject) matches.get(0);
+		Object score = match.get("score");
+		return score instanceof Number && ((Number) score).doubleValue() == 1.0
+				&& Boolean.FALSE.equals(match.get("is_approximate_match")) && Boolean.FALSE.equals(match.get("is_homonym"));
+	}
+
+	private void reportFileError(String action, Exception ex) {
+		lastFileError = action + " " + file.getPath() + ": " + ex.toString();
+		logger.messageStr(action + " the TNRS cache file " + file.getPath(), "error", ex.toString());
+	}
+
+	// ===== supporting classes
+
+	private static final class Entry {
+
+		final JSONArray matches;
+		final boolean unambiguous;
+		final String context;
+		final Long stamp;
+		final long time;
+
+		Entry(JSONArray matches, boolean unambiguous, String context, Long stamp, long time) {
+			this.matches = matches;
+			this.unambiguous = unambiguous;
+			this.context = context;
+			this.stamp = stamp;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The result of looking up a list of names: a TNRS response for the names that were found, and the ids and names of
+	 * the ones that were not.
+	 */
+	public static class Lookup {
+
+		private JSONObject response;
+		private int hitCount;
+		private final List<Long> missedIds = new ArrayList<Long>();
+		private final List<String> missedNames = new ArrayList<String>();
+
+		/**
+		 * A response in the format of the TNRS service, holding the cached matches for the names that were found.
+		 */
+		public JSONObject getResponse() {
+			return response;
+		}
+
+		public int getHitCount() {
+			return hitCount;
+		}
+
+		public List<Long> getMissedIds() {
+			return missedIds;
+		}
+
+		public List<String> getMissedNames() {
+			return missedNames;
+		}
+	}
+}
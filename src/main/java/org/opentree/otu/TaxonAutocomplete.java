@@ -0,0 +1,1005 @@
+package org.opentree.otu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+
+/**
+ * A read-only prefix index over the names (and optionally the synonyms) of the installed taxonomy, stored in a
+ * memory-mapped file next to the graph store. It answers the autocomplete queries of the taxon assignment form without
+ * sending each keystroke to a remote TNRS service. LocalTNRS also uses it to match names to taxa, for which the index
+ * records the parent of each taxon.
+ *
+ * The index holds one entry per name, sorted by the lower-cased UTF-8 bytes of the name, so the names that start with a
+ * query form a contiguous range found by binary search. Each entry also has a fixed score, where lower is better: accepted
+ * names come before synonyms, then taxa with more descendants in the taxonomy before taxa with fewer (in powers of two), then
+ * higher ranks before lower ones, then shorter names. A segment tree over the scores gives the best entry in any range, so
+ * the best few matches for a query are found without looking at the rest of the range, however large it is. Names that are
+ * equal to the query are suggested before those that only start with it.
+ *
+ * The index is built by ConfigurationPlugins.installOTT along with the OTTIdMap, and shares its stamp, so it is considered
+ * stale under the same conditions (see OTTIdMap.forStoreDir). Callers should fall back to the remote TNRS service when no
+ * current index exists.
+ *
+ * File layout: a header of HEADER_SIZE bytes (magic number, stamp, number of entries, number of segment tree leaves, the
+ * offsets of the sections, and the number of taxa), followed by the entries of ENTRY_SIZE bytes each (ott id, node id,
+ * score, record offset), the segment tree (two ints per leaf, each the index of the best entry below that node or -1), the
+ * variable length records (the length and bytes of the normalized name that is matched, the length and bytes of the
+ * accepted taxon name, and a flags byte), and the taxa in ott id order, of TAXON_SIZE bytes each (ott id, index of the
+ * parent taxon or -1, offset of the record for the accepted name).
+ */
+public final class TaxonAutocomplete {
+
+	private static final long MAGIC = 0x4f54544155544f32L; // "OTTAUTO2"
+	private static final int HEADER_SIZE = 48;
+	private static final int ENTRY_SIZE = 24;
+	private static final int TAXON_SIZE = 16;
+	private static final int MAX_NAME_BYTES = 0xffff;
+
+	private static final byte FLAG_HIGHER = 1;
+	private static final byte FLAG_SYNONYM = 2;
+
+	/**
+	 * Ranks in taxonomic order. Taxa with other ranks (including "no rank") are placed after all of these.
+	 */
+	private static final String[] RANKS = {"domain", "superkingdom", "kingdom", "subkingdom", "infrakingdom", "superphylum",
+		"phylum", "division", "subphylum", "superclass", "class", "subclass", "infraclass", "superorder", "order", "suborder",
+		"infraorder", "parvorder", "superfamily", "family", "subfamily", "tribe", "subtribe", "genus", "subgenus", "section",
+		"subsection", "species group", "species subgroup", "species", "subspecies", "varietas", "variety", "forma"};
+	private static final Map<String, Integer> rankOrder = new HashMap<String, Integer>();
+	private static final int SPECIES_RANK;
+	static {
+		for (int i = 0; i < RANKS.length; i++) {
+			rankOrder.put(RANKS[i], i);
+		}
+		SPECIES_RANK = rankOrder.get("species");
+	}
+
+	// open indexes, by canonical file path
+	private static final Map<String, TaxonAutocomplete> openIndexes = new HashMap<String, TaxonAutocomplete>();
+
+	private static final MessageLogger logger = new MessageLogger("taxonAutocomplete:");
+
+	private final MappedByteBuffer buffer;
+	private final long stamp;
+	private final int size;
+	private final int leaves;
+	private final int entriesOffset;
+	private final int treeOffset;
+	private final int taxaOffset;
+	private final int nTaxa;
+
+	private TaxonAutocomplete(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		if (buffer.getLong(0) != MAGIC) {
+			throw new IllegalStateException("Not a taxon autocomplete index");
+		}
+		stamp = buffer.getLong(8);
+		size = buffer.getInt(16);
+		leaves = buffer.getInt(20);
+		entriesOffset = buffer.getInt(24);
+		treeOffset = buffer.getInt(28);
+		taxaOffset = buffer.getInt(36);
+		nTaxa = buffer.getInt(40);
+	}
+
+	/**
+	 * Find the taxa whose names or synonyms start with the query, ignoring case. Each taxon is suggested at most once.
+	 *
+	 * @param query
+	 * @param maxResults
+	 * @return
+	 * 		a list of maps with the same keys as the results of the taxomachine autocompleteBoxQuery service: the accepted
+	 * 		name, the ott id, the node id of the taxonomy node (if it was found when the index was built), and whether the
+	 * 		taxon is above the species level
+	 */
+	public List<Map<String, Object>> complete(String query, int maxResults) {
+
+		List<Map<String, Object>> results = new LinkedList<Map<String, Object>>();
+		byte[] key = toKey(query);
+		if (key == null || key.length == 0 || maxResults < 1) {
+			return results;
+		}
+
+		int start = searchPrefix(key, false);
+		int end = searchPrefix(key, true);
+		if (start >= end) {
+			return results;
+		}
+
+		// the names equal to the query sort first in its range, since they are the shortest
+		int exactEnd = exactEnd(start, end, key.length);
+
+		Set<Long> seen = new HashSet<Long>();
+		addBest(start, exactEnd, maxResults, seen, results);
+		addBest(exactEnd, end, maxResults, seen, results);
+		return results;
+	}
+
+	// ===== lookups for LocalTNRS. Entries are identified by their position in name order, and taxa by their position in
+	// ott id order
+
+	/**
+	 * The range [start, end) of the entries whose normalized names are equal to this key (if exact is true), or start with it.
+	 */
+	int[] findEntries(byte[] key, boolean exact) {
+		int start = searchPrefix(key, false);
+		int end = searchPrefix(key, true);
+		return new int[] {start, exact ? exactEnd(start, end, key.length) : end};
+	}
+
+	long getOTTId(int entry) {
+		return buffer.getLong(entryOffset(entry));
+	}
+
+	long getNodeId(int entry) {
+		return buffer.getLong(entryOffset(entry) + 8);
+	}
+
+	int getKeyLength(int entry) {
+		return keyLength(entry);
+	}
+
+	/**
+	 * The accepted name of the taxon of an entry.
+	 */
+	String getName(int entry) {
+		return readName(buffer.getInt(entryOffset(entry) + 20));
+	}
+
+	boolean isSynonym(int entry) {
+		return (readFlags(buffer.getInt(entryOffset(entry) + 20)) & FLAG_SYNONYM) != 0;
+	}
+
+	/**
+	 * The edit distance between the normalized name of an entry and the key, or any value greater than maxEdits if it is
+	 * greater than maxEdits. Only the band of the table within maxEdits of the diagonal is filled in.
+	 */
+	int editDistance(int entry, byte[] key, int maxEdits) {
+		int record = buffer.getInt(entryOffset(entry) + 20);
+		int n = buffer.getShort(record) & 0xffff;
+		int m = key.length;
+		if (Math.abs(n - m) > maxEdits) {
+			return maxEdits + 1;
+		}
+		int big = maxEdits + 1;
+		int[] previous = new int[m + 1];
+		int[] current = new int[m + 1];
+		for (int j = 0; j <= m; j++) {
+			previous[j] = j <= maxEdits ? j : big;
+		}
+		for (int i = 1; i <= n; i++) {
+			byte b = buffer.get(record + 1 + i);
+			int from = Math.max(1, i - maxEdits);
+			int to = Math.min(m, i + maxEdits);
+			Arrays.fill(current, big);
+			current[0] = i <= maxEdits ? i : big;
+			int rowMin = current[0];
+			for (int j = from; j <= to; j++) {
+				int cost = b == key[j - 1] ? 0 : 1;
+				int d = Math.min(previous[j - 1] + cost, Math.min(previous[j] + 1, current[j - 1] + 1));
+				current[j] = Math.min(d, big);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if (rowMin > maxEdits) {
+				return big;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[m];
+	}
+
+	/**
+	 * The taxon with this ott id, or -1 if it is not in the index.
+	 */
+	int getTaxon(long ottId) {
+		int lo = 0;
+		int hi = nTaxa - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long midId = buffer.getLong(taxaOffset + mid * TAXON_SIZE);
+			if (midId < ottId) {
+				lo = mid + 1;
+			} else if (midId > ottId) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The parent of a taxon, or -1 if it is a root of the taxonomy.
+	 */
+	int getParent(int taxon) {
+		return buffer.getInt(taxaOffset + taxon * TAXON_SIZE + 8);
+	}
+
+	String getTaxonName(int taxon) {
+		return readName(buffer.getInt(taxaOffset + taxon * TAXON_SIZE + 12));
+	}
+
+	/**
+	 * The key under which a name is indexed and searched: the UTF-8 bytes of the normalized name.
+	 */
+	static byte[] toKey(String name) {
+		if (name == null) {
+			return null;
+		}
+		return toUTF8(normalizeName(name));
+	}
+
+	/**
+	 * Normalize a name for comparison: lower-case it, replace underscores with spaces and reduce runs of whitespace to
+	 * single spaces.
+	 */
+	static String normalizeName(String name) {
+		return name.replace('_', ' ').trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Get the autocomplete index stored in this graph store directory, if it exists and is current. Indexes are opened
+	 * lazily and shared by all callers.
+	 *
+	 * @param storeDir
+	 * 		the directory of the graph store
+	 * @param expectedStamp
+	 * 		the value of the OTT_ID_MAP_STAMP graph property
+	 * @return
+	 * 		the index, or null if there is no index, or the index is stale
+	 */
+	public static synchronized TaxonAutocomplete forStoreDir(String storeDir, Long expectedStamp) {
+
+		if (storeDir == null || expectedStamp == null) {
+			return null;
+		}
+
+		File file = getIndexFile(storeDir);
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException ex) {
+			return null;
+		}
+
+		TaxonAutocomplete index = openIndexes.get(key);
+		if (index == null || index.getStamp() != expectedStamp) {
+			openIndexes.remove(key);
+			if (!file.exists()) {
+				return null;
+			}
+			try {
+				index = open(file);
+			} catch (IOException ex) {
+				logger.messageStr("could not open the taxon autocomplete index " + file.getPath(), "error", ex.toString());
+				return null;
+			} catch (IllegalStateException ex) {
+				logger.messageStr("could not open the taxon autocomplete index " + file.getPath(), "error", ex.toString());
+				return null;
+			}
+			if (index.getStamp() != expectedStamp) {
+				return null;
+			}
+			openIndexes.put(key, index);
+		}
+		return index;
+	}
+
+	/**
+	 * The location of the autocomplete index for a graph store.
+	 * @param storeDir
+	 * @return
+	 */
+	public static File getIndexFile(String storeDir) {
+		return new File(storeDir, OTUConstants.TAXON_AUTOCOMPLETE_FILE_NAME);
+	}
+
+	/**
+	 * Build the autocomplete index for a taxonomy that has just been loaded from this taxonomy file. The ott ids, parent ott
+	 * ids, names and ranks are read from the columns of the file named by its header (uid, parent_uid, name and rank), or
+	 * from the first four columns if it has no header. Synonyms are read in the same way from the name and uid columns of the
+	 * synonym file, if one is given. The index is written to a temporary file and then moved into place, so any existing
+	 * index remains usable until the new one is complete.
+	 *
+	 * @param ottIdMap
+	 * 		the ott id map for the same taxonomy, used to record the node ids of the taxa. May be null
+	 * @param storeDir
+	 * 		the directory of the graph store
+	 * @param taxonomyFile
+	 * 		the taxonomy file that was loaded into the graph
+	 * @param synonymFile
+	 * 		the synonym file for the taxonomy, or null
+	 * @param stamp
+	 * 		the stamp to record in the index. This should be the stamp of the ott id map
+	 * @return
+	 * 		the number of names in the index
+	 * @throws IOException
+	 */
+	public static int build(OTTIdMap ottIdMap, String storeDir, String taxonomyFile, String synonymFile, long stamp)
+			throws IOException {
+
+		Taxa taxa = Taxa.read(taxonomyFile);
+
+		// one entry per name, with the synonyms after the accepted names
+		int nTaxa = taxa.size;
+		List<byte[]> synonymKeys = new ArrayList<byte[]>();
+		List<Integer> synonymTaxa = new ArrayList<Integer>();
+		if (synonymFile != null && synonymFile.length() > 0) {
+			readSynonyms(synonymFile, taxa, synonymKeys, synonymTaxa);
+		}
+
+		int n = nTaxa + synonymKeys.size();
+		final byte[][] keys = new byte[n][];
+		final int[] entryTaxa = new int[n];
+		for (int i = 0; i < nTaxa; i++) {
+			keys[i] = toKey(taxa.names[i]);
+			entryTaxa[i] = i;
+		}
+		for (int i = nTaxa; i < n; i++) {
+			keys[i] = synonymKeys.get(i - nTaxa);
+			entryTaxa[i] = synonymTaxa.get(i - nTaxa);
+		}
+
+		// score the entries
+		final int[] popularity = taxa.getPopularity();
+		final int[] ranks = taxa.ranks;
+		final int nAccepted = nTaxa;
+		Integer[] byScore = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			byScore[i] = i;
+		}
+		Arrays.sort(byScore, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = (a < nAccepted ? 0 : 1) - (b < nAccepted ? 0 : 1);
+				if (c == 0) {
+					c = popularity[entryTaxa[b]] - popularity[entryTaxa[a]];
+				}
+				if (c == 0) {
+					c = ranks[entryTaxa[a]] - ranks[entryTaxa[b]];
+				}
+				if (c == 0) {
+					c = keys[a].length - keys[b].length;
+				}
+				return c != 0 ? c : compareKeys(keys[a], keys[b]);
+			}
+		});
+		final int[] scores = new int[n];
+		for (int i = 0; i < n; i++) {
+			scores[byScore[i]] = i;
+		}
+
+		// then order them by name
+		Integer[] byName = byScore;
+		Arrays.sort(byName, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = compareKeys(keys[a], keys[b]);
+				return c != 0 ? c : scores[a] - scores[b];
+			}
+		});
+
+		Writer writer = new Writer(getIndexFile(storeDir), n, recordsSize(keys, entryTaxa, taxa), nTaxa, stamp);
+		try {
+			for (int i = 0; i < n; i++) {
+				int entry = byName[i];
+				int taxon = entryTaxa[entry];
+				long nodeId = ottIdMap == null ? OTTIdMap.NOT_FOUND : ottIdMap.get(taxa.ottIds[taxon]);
+				byte flags = 0;
+				if (ranks[taxon] < SPECIES_RANK || (ranks[taxon] == RANKS.length && taxa.hasChildren(taxon))) {
+					flags |= FLAG_HIGHER;
+				}
+				if (entry >= nAccepted) {
+					flags |= FLAG_SYNONYM;
+				}
+				int record = writer.add(taxa.ottIds[taxon], nodeId, scores[entry], keys[entry], toUTF8(taxa.names[taxon]), flags);
+				if (entry < nAccepted) {
+					taxa.records[taxon] = record;
+				}
+			}
+			for (int i = 0; i < nTaxa; i++) {
+				int taxon = taxa.sortedTaxa[i];
+				int parent = taxa.parents[taxon];
+				writer.addTaxon(taxa.ottIds[taxon], parent < 0 ? -1 : taxa.positionOf(taxa.ottIds[parent]), taxa.records[taxon]);
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+
+		return n;
+	}
+
+	// ===== private methods
+
+	private static TaxonAutocomplete open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping remains valid after the file is closed
+			return new TaxonAutocomplete(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Add the best entries in the range [start, end) to the results, in order of their scores, skipping taxa that have
+	 * already been suggested, until there are maxResults results.
+	 */
+	private void addBest(int start, int end, int maxResults, Set<Long> seen, List<Map<String, Object>> results) {
+
+		PriorityQueue<int[]> ranges = new PriorityQueue<int[]>(16, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return score(a[0]) - score(b[0]);
+			}
+		});
+		if (start < end) {
+			ranges.add(new int[] {bestIn(start, end), start, end});
+		}
+
+		while (results.size() < maxResults && !ranges.isEmpty()) {
+			int[] range = ranges.poll();
+			int best = range[0];
+			if (range[1] < best) {
+				ranges.add(new int[] {bestIn(range[1], best), range[1], best});
+			}
+			if (best + 1 < range[2]) {
+				ranges.add(new int[] {bestIn(best + 1, range[2]), best + 1, range[2]});
+			}
+
+			long ottId = buffer.getLong(entryOffset(best));
+			if (seen.add(ottId)) {
+				results.add(getResult(best, ottId));
+			}
+		}
+	}
+
+	/**
+	 * The index of the entry with the best score in the range [start, end), which must not be empty.
+	 */
+	private int bestIn(int start, int end) {
+		int best = -1;
+		for (int l = start + leaves, r = end + leaves; l < r; l >>>= 1, r >>>= 1) {
+			if ((l & 1) == 1) {
+				best = better(best, buffer.getInt(treeOffset + 4 * l++));
+			}
+			if ((r & 1) == 1) {
+				best = better(best, buffer.getInt(treeOffset + 4 * --r));
+			}
+		}
+		return best;
+	}
+
+	private int better(int a, int b) {
+		if (a < 0) {
+			return b;
+		} else if (b < 0) {
+			return a;
+		}
+		return score(a) <= score(b) ? a : b;
+	}
+
+	private Map<String, Object> getResult(int entry, long ottId) {
+		int offset = entryOffset(entry);
+		long nodeId = buffer.getLong(offset + 8);
+		int record = buffer.getInt(offset + 20);
+		byte flags = readFlags(record);
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("name", readName(record));
+		result.put("ottId", ottId);
+		if (nodeId != OTTIdMap.NOT_FOUND) {
+			result.put("nodeId", nodeId);
+		}
+		result.put("isHigher", (flags & FLAG_HIGHER) != 0);
+		return result;
+	}
+
+	/**
+	 * Binary search for the first entry whose name, cut to the length of the key, is not less than the key (or is greater
+	 * than the key, if after is true).
+	 */
+	private int searchPrefix(byte[] key, boolean after) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = comparePrefix(mid, key);
+			if (c < 0 || (after && c == 0)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int comparePrefix(int entry, byte[] key) {
+		int record = buffer.getInt(entryOffset(entry) + 20);
+		int length = buffer.getShort(record) & 0xffff;
+		for (int i = 0; i < key.length; i++) {
+			if (i == length) {
+				return -1;
+			}
+			int c = (buffer.get(record + 2 + i) & 0xff) - (key[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The end of the names that are equal to a key of this length in the range [start, end) of names that start with it.
+	 */
+	private int exactEnd(int start, int end, int length) {
+		int exactEnd = start;
+		while (exactEnd < end && keyLength(exactEnd) == length) {
+			exactEnd++;
+		}
+		return exactEnd;
+	}
+
+	private int keyLength(int entry) {
+		return buffer.getShort(buffer.getInt(entryOffset(entry) + 20)) & 0xffff;
+	}
+
+	private int score(int entry) {
+		return buffer.getInt(entryOffset(entry) + 16);
+	}
+
+	private int entryOffset(int entry) {
+		return entriesOffset + entry * ENTRY_SIZE;
+	}
+
+	private String readName(int record) {
+		int nameOffset = record + 2 + (buffer.getShort(record) & 0xffff);
+		return readUTF8(nameOffset + 2, buffer.getShort(nameOffset) & 0xffff);
+	}
+
+	private byte readFlags(int record) {
+		int nameOffset = record + 2 + (buffer.getShort(record) & 0xffff);
+		return buffer.get(nameOffset + 2 + (buffer.getShort(nameOffset) & 0xffff));
+	}
+
+	private String readUTF8(int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static byte[] toUTF8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Compare keys by their unsigned bytes, which orders UTF-8 strings by code point.
+	 */
+	private static int compareKeys(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	private static long recordsSize(byte[][] keys, int[] entryTaxa, Taxa taxa) {
+		long total = 0;
+		for (int i = 0; i < keys.length; i++) {
+			total += 5 + keys[i].length + toUTF8(taxa.names[entryTaxa[i]]).length;
+		}
+		return total;
+	}
+
+	private static void readSynonyms(String synonymFile, Taxa taxa, List<byte[]> keys, List<Integer> synonymTaxa)
+			throws IOException {
+
+		BufferedReader reader = new BufferedReader(new FileReader(synonymFile));
+		try {
+			int nameColumn = 0;
+			int uidColumn = 1;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] columns = splitColumns(line);
+				int header = Arrays.asList(columns).indexOf("uid");
+				if (header >= 0) {
+					uidColumn = header;
+					nameColumn = Arrays.asList(columns).indexOf("name");
+					continue;
+				}
+				if (columns.length <= Math.max(nameColumn, uidColumn) || nameColumn < 0) {
+					continue;
+				}
+				int taxon = taxa.indexOf(parseOTTId(columns[uidColumn]));
+				byte[] key = toKey(columns[nameColumn]);
+				if (taxon < 0 || key.length == 0 || key.length > MAX_NAME_BYTES
+						|| Arrays.equals(key, toKey(taxa.names[taxon]))) {
+					continue;
+				}
+				keys.add(key);
+				synonymTaxa.add(taxon);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Split a line of a taxonomy file into its columns, which are separated by "\t|\t".
+	 */
+	private static String[] splitColumns(String line) {
+		String[] columns = line.split("\t\\|\t?");
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = columns[i].trim();
+		}
+		return columns;
+	}
+
+	private static long parseOTTId(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	// ===== supporting classes
+
+	/**
+	 * The taxa read from a taxonomy file, in the order of the file.
+	 */
+	private static class Taxa {
+
+		int size = 0;
+		long[] ottIds = new long[1024];
+		long[] parentOTTIds = new long[1024];
+		String[] names = new String[1024];
+		int[] ranks = new int[1024];
+
+		// the ott ids in ascending order, and the index of the taxon with each one
+		long[] sortedOTTIds;
+		int[] sortedTaxa;
+		int[] parents;
+
+		// the offsets of the records of the accepted names, once they have been written
+		int[] records;
+		private int[] popularity;
+
+		static Taxa read(String taxonomyFile) throws IOException {
+
+			Taxa taxa = new Taxa();
+			int uidColumn = 0;
+			int parentColumn = 1;
+			int nameColumn = 2;
+			int rankColumn = 3;
+
+			BufferedReader reader = new BufferedReader(new FileReader(taxonomyFile));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					String[] columns = splitColumns(line);
+					List<String> columnList = Arrays.asList(columns);
+					if (columnList.contains("uid")) {
+						uidColumn = columnList.indexOf("uid");
+						parentColumn = columnList.indexOf("parent_uid");
+						nameColumn = columnList.indexOf("name");
+						rankColumn = columnList.indexOf("rank");
+						continue;
+					}
+					if (nameColumn < 0 || columns.length <= Math.max(uidColumn, nameColumn)) {
+						continue;
+					}
+					long ottId = parseOTTId(columns[uidColumn]);
+					String name = columns[nameColumn];
+					if (ottId < 0 || name.length() == 0 || toUTF8(name).length > MAX_NAME_BYTES) {
+						continue;
+					}
+					long parent = parentColumn >= 0 && parentColumn < columns.length ? parseOTTId(columns[parentColumn]) : -1;
+					String rank = rankColumn >= 0 && rankColumn < columns.length ? columns[rankColumn] : null;
+					taxa.add(ottId, parent, name, rank);
+				}
+			} finally {
+				reader.close();
+			}
+
+			taxa.sortOTTIds();
+			return taxa;
+		}
+
+		private void add(long ottId, long parentOTTId, String name, String rank) {
+			if (size == ottIds.length) {
+				int capacity = size * 2;
+				ottIds = Arrays.copyOf(ottIds, capacity);
+				parentOTTIds = Arrays.copyOf(parentOTTIds, capacity);
+				names = Arrays.copyOf(names, capacity);
+				ranks = Arrays.copyOf(ranks, capacity);
+			}
+			Integer order = rank == null ? null : rankOrder.get(rank.toLowerCase(Locale.ENGLISH));
+			ottIds[size] = ottId;
+			parentOTTIds[size] = parentOTTId;
+			names[size] = name;
+			ranks[size] = order == null ? RANKS.length : order;
+			size++;
+		}
+
+		private void sortOTTIds() {
+			sortedOTTIds = Arrays.copyOf(ottIds, size);
+			Arrays.sort(sortedOTTIds);
+			sortedTaxa = new int[size];
+			for (int i = 0; i < size; i++) {
+				sortedTaxa[Arrays.binarySearch(sortedOTTIds, ottIds[i])] = i;
+			}
+			parents = new int[size];
+			for (int i = 0; i < size; i++) {
+				parents[i] = indexOf(parentOTTIds[i]);
+			}
+			records = new int[size];
+		}
+
+		/**
+		 * The position of this ott id in ott id order.
+		 */
+		int positionOf(long ottId) {
+			return Arrays.binarySearch(sortedOTTIds, ottId);
+		}
+
+		/**
+		 * The index of the taxon with this ott id, or -1.
+		 */
+		int indexOf(long ottId) {
+			int i = ottId < 0 ? -1 : Arrays.binarySearch(sortedOTTIds, ottId);
+			return i < 0 ? -1 : sortedTaxa[i];
+		}
+
+		boolean hasChildren(int taxon) {
+			return getPopularity()[taxon] > 1;
+		}
+
+		/**
+		 * The popularity of each taxon: the bit length of the number of taxa in its subtree, so that taxa whose subtrees
+		 * are within a factor of two of each other are considered equally popular.
+		 */
+		int[] getPopularity() {
+
+			if (popularity != null) {
+				return popularity;
+			}
+
+			// find the depth of each taxon, following parents up to the first taxon whose depth is already known
+			int[] depths = new int[size];
+			Arrays.fill(depths, -1);
+			int[] path = new int[64];
+			int maxDepth = 0;
+			for (int i = 0; i < size; i++) {
+				int n = 0;
+				int t = i;
+				while (t >= 0 && depths[t] < 0 && n <= size) {
+					if (n == path.length) {
+						path = Arrays.copyOf(path, n * 2);
+					}
+					path[n++] = t;
+					depths[t] = Integer.MAX_VALUE; // in progress, which guards against cycles
+					t = parents[t];
+				}
+				int depth = t < 0 || depths[t] == Integer.MAX_VALUE ? 0 : depths[t] + 1;
+				for (int j = n - 1; j >= 0; j--) {
+					depths[path[j]] = depth++;
+				}
+				maxDepth = Math.max(maxDepth, depth);
+			}
+
+			// then add the size of each subtree to its parent, deepest taxa first
+			int[] byDepth = new int[maxDepth + 2];
+			for (int i = 0; i < size; i++) {
+				byDepth[depths[i] + 1]++;
+			}
+			for (int d = 1; d < byDepth.length; d++) {
+				byDepth[d] += byDepth[d - 1];
+			}
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[byDepth[depths[i]]++] = i;
+			}
+			int[] subtreeSizes = new int[size];
+			Arrays.fill(subtreeSizes, 1);
+			for (int i = size - 1; i >= 0; i--) {
+				int t = order[i];
+				if (parents[t] >= 0 && depths[parents[t]] < depths[t]) {
+					subtreeSizes[parents[t]] += subtreeSizes[t];
+				}
+			}
+
+			popularity = new int[size];
+			for (int i = 0; i < size; i++) {
+				popularity[i] = 32 - Integer.numberOfLeadingZeros(subtreeSizes[i]);
+			}
+			return popularity;
+		}
+	}
+
+	/**
+	 * Writes a new index file. Entries must be added in name order. They are written directly into a memory-mapped
+	 * temporary file, which is moved into place when the index is committed.
+	 */
+	static class Writer {
+
+		private final File target;
+		private final File temp;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private final int leaves;
+		private final int entriesOffset;
+		private final int treeOffset;
+		private final int taxaOffset;
+		private int nextRecord;
+		private int nTaxa = 0;
+		private int size = 0;
+		private boolean committed = false;
+
+		/**
+		 * @param target
+		 * 		the file to write
+		 * @param n
+		 * 		the number of entries that will be added
+		 * @param recordsSize
+		 * 		the total size of their records
+		 * @param maxTaxa
+		 * 		the number of taxa that will be added
+		 * @param stamp
+		 */
+		Writer(File target, int n, long recordsSize, int maxTaxa, long stamp) throws IOException {
+
+			int leaves = 1;
+			while (leaves < n) {
+				leaves <<= 1;
+			}
+			long length = HEADER_SIZE + (long) n * ENTRY_SIZE + 8L * leaves + recordsSize + (long) maxTaxa * TAXON_SIZE;
+			if (length > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many names for a taxon autocomplete index: " + n);
+			}
+
+			this.target = target;
+			this.temp = new File(target.getPath() + ".tmp");
+			this.leaves = leaves;
+			this.entriesOffset = HEADER_SIZE;
+			this.treeOffset = entriesOffset + n * ENTRY_SIZE;
+			this.nextRecord = treeOffset + 8 * leaves;
+			this.taxaOffset = (int) (nextRecord + recordsSize);
+
+			raf = new RandomAccessFile(temp, "rw");
+			raf.setLength(0);
+			raf.setLength(length);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+			buffer.putLong(0, MAGIC);
+			buffer.putLong(8, stamp);
+			buffer.putInt(16, n);
+			buffer.putInt(20, leaves);
+			buffer.putInt(24, entriesOffset);
+			buffer.putInt(28, treeOffset);
+			buffer.putInt(32, nextRecord);
+			buffer.putInt(36, taxaOffset);
+		}
+
+		/**
+		 * Add the next entry in name order.
+		 * @return
+		 * 		the offset of its record
+		 */
+		int add(long ottId, long nodeId, int score, byte[] key, byte[] name, byte flags) {
+			int offset = entriesOffset + size * ENTRY_SIZE;
+			buffer.putLong(offset, ottId);
+			buffer.putLong(offset + 8, nodeId);
+			buffer.putInt(offset + 16, score);
+			buffer.putInt(offset + 20, nextRecord);
+
+			int record = nextRecord;
+			buffer.putShort(nextRecord, (short) key.length);
+			for (int i = 0; i < key.length; i++) {
+				buffer.put(nextRecord + 2 + i, key[i]);
+			}
+			nextRecord += 2 + key.length;
+			buffer.putShort(nextRecord, (short) name.length);
+			for (int i = 0; i < name.length; i++) {
+				buffer.put(nextRecord + 2 + i, name[i]);
+			}
+			nextRecord += 2 + name.length;
+			buffer.put(nextRecord++, flags);
+			size++;
+			return record;
+		}
+
+		/**
+		 * Add the next taxon in ott id order.
+		 */
+		void addTaxon(long ottId, int parent, int record) {
+			int offset = taxaOffset + nTaxa * TAXON_SIZE;
+			buffer.putLong(offset, ottId);
+			buffer.putInt(offset + 8, parent);
+			buffer.putInt(offset + 12, record);
+			nTaxa++;
+		}
+
+		/**
+		 * Build the segment tree over the scores, then move the finished index into place.
+		 */
+		void commit() throws IOException {
+			buffer.putInt(40, nTaxa);
+			for (int i = 0; i < leaves; i++) {
+				buffer.putInt(treeOffset + 4 * (leaves + i), i < size ? i : -1);
+			}
+			for (int node = leaves - 1; node > 0; node--) {
+				int a = buffer.getInt(treeOffset + 8 * node);
+				int b = buffer.getInt(treeOffset + 8 * node + 4);
+				int best = a;
+				if (a < 0 || (b >= 0 && scoreOf(b) < scoreOf(a))) {
+					best = b;
+				}
+				buffer.putInt(treeOffset + 4 * node, best);
+			}
+
+			buffer.force();
+			raf.close();
+			if (target.exists() && !target.delete()) {
+				throw new IOException("Could not replace the taxon autocomplete index " + target.getPath());
+			}
+			if (!temp.renameTo(target)) {
+				throw new IOException("Could not move the taxon autocomplete index into place at " + target.getPath());
+			}
+			committed = true;
+		}
+
+		void close() throws IOException {
+			if (!committed) {
+				raf.close();
+				temp.delete();
+			}
+		}
+
+		private int scoreOf(int entry) {
+			return buffer.getInt(entriesOffset + entry * ENTRY_SIZE + 16);
+		}
+	}
+}
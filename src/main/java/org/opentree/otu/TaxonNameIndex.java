@@ -0,0 +1,444 @@
+package org.opentree.otu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import opentree.tnrs.queries.AbstractBaseQuery;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.SearchableProperty;
+
+/**
+ * A trigram index over the terms of the taxon name indexes, used to make typo-tolerant taxon name searches without a
+ * lucene FuzzyQuery. A FuzzyQuery compares the search term to every term in the index, which gets slower as the number of
+ * distinct names grows. Here each term is listed under the trigrams it contains, and a term within k edits of the search
+ * term must share all but 3k of its distinct trigrams, so only the terms in the shortest few trigram lists need to be
+ * compared. The matching terms are then searched for exactly, with a lucene TermQuery for each.
+ *
+ * Terms are accepted by the same rule as FuzzyQuery, with the minimum similarity given by AbstractBaseQuery.getMinIdentity,
+ * so a search finds the same terms it would have with a FuzzyQuery. Search values are split and lower cased as the
+ * fulltext indexes split and lower case names when they are indexed, and each word must match a term.
+ *
+ * The terms are collected from the tree roots in the indexes the first time a search needs them, and DatabaseIndexer adds
+ * the names of each tree as it indexes it. Terms are never removed, since a term that is no longer indexed just finds no
+ * hits.
+ *
+ * Held by the OTUServiceContext. All the public methods are safe to call from multiple threads.
+ */
+public class TaxonNameIndex {
+
+	private static final int GRAM_LENGTH = 3;
+	private static final char START = '\u0002';
+	private static final char END = '\u0003';
+
+	private final OTUServiceContext context;
+	private final Map<OTUNodeIndex, Terms> termsByIndex = new HashMap<OTUNodeIndex, Terms>();
+
+	private final Object buildLock = new Object();
+	private volatile boolean built = false;
+
+	TaxonNameIndex(OTUServiceContext context) {
+		this.context = context;
+		for (SearchableProperty search : getSearchableProperties()) {
+			termsByIndex.put((OTUNodeIndex) search.index, new Terms());
+		}
+	}
+
+	/**
+	 * The searches that are served by this index.
+	 * @return
+	 */
+	public static SearchableProperty[] getSearchableProperties() {
+		return new SearchableProperty[] {
+				SearchableProperty.DESCENDANT_ORIGINAL_TAXON_NAMES,
+				SearchableProperty.DESCENDANT_MAPPED_TAXON_NAMES};
+	}
+
+	/**
+	 * Whether searches of this property can use this index.
+	 * @param search
+	 * @return
+	 */
+	public boolean serves(SearchableProperty search) {
+		return termsByIndex.containsKey(search.index);
+	}
+
+	/**
+	 * Add the terms of some names that have been added to an index. Names for other indexes are ignored. Called by
+	 * DatabaseIndexer.
+	 * @param index
+	 * @param names
+	 */
+	public void addNames(OTUNodeIndex index, String[] names) {
+		Terms terms = termsByIndex.get(index);
+		if (terms != null) {
+			terms.addNames(names);
+		}
+	}
+
+	/**
+	 * Make a query for the fuzzy matches of a search value.
+	 * @param search
+	 * 		one of the properties for which serves is true
+	 * @param searchValue
+	 * @return
+	 * 		a query matching the index entries that contain a term similar to each word of the search value
+	 */
+	public Query getQuery(SearchableProperty search, String searchValue) {
+
+		ensureBuilt();
+		Terms terms = termsByIndex.get(search.index);
+		String field = search.property.propertyName();
+
+		List<BooleanQuery> wordQueries = new ArrayList<BooleanQuery>();
+		for (String word : tokenize(searchValue)) {
+			BooleanQuery wordQuery = new BooleanQuery(true);
+			for (Match match : terms.findSimilar(word, AbstractBaseQuery.getMinIdentity(word))) {
+				TermQuery termQuery = new TermQuery(new Term(field, match.term));
+				termQuery.setBoost(match.similarity);
+				wordQuery.add(termQuery, Occur.SHOULD);
+			}
+			wordQueries.add(wordQuery);
+		}
+
+		if (wordQueries.size() == 1) {
+			return wordQueries.get(0);
+		}
+		BooleanQuery query = new BooleanQuery();
+		for (BooleanQuery wordQuery : wordQueries) {
+			query.add(wordQuery, Occur.MUST);
+		}
+		return query;
+	}
+
+	/**
+	 * Return the numbers of terms and trigrams for each index.
+	 * @return
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("built", built);
+		for (Map.Entry<OTUNodeIndex, Terms> entry : termsByIndex.entrySet()) {
+			stats.put(entry.getKey().indexName(), entry.getValue().getStats());
+		}
+		return stats;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Collect the terms of all the tree roots in the indexes. Names added by the indexer while this runs are added
+	 * directly, and adding a term twice has no effect, so the indexer does not have to wait.
+	 */
+	private void ensureBuilt() {
+		if (built) {
+			return;
+		}
+		synchronized (buildLock) {
+			if (built) {
+				return;
+			}
+			for (Map.Entry<OTUNodeIndex, Terms> entry : termsByIndex.entrySet()) {
+				String arrayProperty = entry.getKey() == OTUNodeIndex.TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME
+						? OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName()
+						: OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName();
+				IndexHits<Node> hits = context.getIndexer().getNodeIndex(entry.getKey()).query("*:*");
+				try {
+					for (Node root : hits) {
+						entry.getValue().addNames((String[]) root.getProperty(arrayProperty, new String[0]));
+					}
+				} finally {
+					hits.close();
+				}
+			}
+			built = true;
+		}
+	}
+
+	/**
+	 * Split a name into terms the way the fulltext indexes do: on whitespace, in lower case.
+	 */
+	private static List<String> tokenize(String name) {
+		List<String> words = new ArrayList<String>();
+		for (String word : name.trim().toLowerCase(Locale.ENGLISH).split("\\s+")) {
+			if (word.length() > 0) {
+				words.add(word);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * The distinct trigrams of a term, with the start and end marked so that the first and last letters are in as many
+	 * trigrams as the others.
+	 */
+	private static String[] getGrams(String term) {
+		StringBuilder padded = new StringBuilder(term.length() + 2 * (GRAM_LENGTH - 1));
+		for (int i = 1; i < GRAM_LENGTH; i++) {
+			padded.append(START);
+		}
+		padded.append(term);
+		for (int i = 1; i < GRAM_LENGTH; i++) {
+			padded.append(END);
+		}
+		List<String> grams = new ArrayList<String>();
+		for (int i = 0; i + GRAM_LENGTH <= padded.length(); i++) {
+			String gram = padded.substring(i, i + GRAM_LENGTH);
+			if (!grams.contains(gram)) {
+				grams.add(gram);
+			}
+		}
+		return grams.toArray(new String[grams.size()]);
+	}
+
+	/**
+	 * The edit distance between a and b, or any value greater than maxEdits if it is greater than maxEdits. Only the band
+	 * of the table within maxEdits of the diagonal is filled in.
+	 */
+	private static int editDistance(String a, String b, int maxEdits) {
+		int n = a.length();
+		int m = b.length();
+		if (Math.abs(n - m) > maxEdits) {
+			return maxEdits + 1;
+		}
+		int big = maxEdits + 1;
+		int[] previous = new int[m + 1];
+		int[] current = new int[m + 1];
+		for (int j = 0; j <= m; j++) {
+			previous[j] = j <= maxEdits ? j : big;
+		}
+		for (int i = 1; i <= n; i++) {
+			int from = Math.max(1, i - maxEdits);
+			int to = Math.min(m, i + maxEdits);
+			Arrays.fill(current, big);
+			current[0] = i <= maxEdits ? i : big;
+			int rowMin = current[0];
+			for (int j = from; j <= to; j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(previous[j - 1] + cost, Math.min(previous[j] + 1, current[j - 1] + 1));
+				current[j] = Math.min(d, big);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if (rowMin > maxEdits) {
+				return big;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[m];
+	}
+
+	// ===== supporting classes
+
+	private static final class Match {
+
+		final String term;
+		final float similarity;
+
+		Match(String term, float similarity) {
+			this.term = term;
+			this.similarity = similarity;
+		}
+	}
+
+	/**
+	 * The terms of one index, numbered in the order they were added, and the numbers of the terms containing each
+	 * trigram. The term lists are also kept by length, for searches too short for the trigram filter.
+	 */
+	private static final class Terms {
+
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final List<String> terms = new ArrayList<String>();
+		private final Map<String, Integer> termIds = new HashMap<String, Integer>();
+		private final Map<String, IntList> termsByGram = new HashMap<String, IntList>();
+		private final List<IntList> termsByLength = new ArrayList<IntList>();
+
+		// reused by each thread to mark the terms it has already collected, without clearing an array for each search
+		private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+
+		void addNames(String[] names) {
+			lock.writeLock().lock();
+			try {
+				for (String name : names) {
+					for (String term : tokenize(name)) {
+						addTerm(term);
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void addTerm(String term) {
+			if (termIds.containsKey(term)) {
+				return;
+			}
+			int id = terms.size();
+			terms.add(term);
+			termIds.put(term, id);
+			for (String gram : getGrams(term)) {
+				IntList ids = termsByGram.get(gram);
+				if (ids == null) {
+					ids = new IntList();
+					termsByGram.put(gram, ids);
+				}
+				ids.add(id);
+			}
+			while (termsByLength.size() <= term.length()) {
+				termsByLength.add(new IntList());
+			}
+			termsByLength.get(term.length()).add(id);
+		}
+
+		/**
+		 * Find the terms that a FuzzyQuery for word with this minimum similarity would match, best first, up to the lucene
+		 * clause limit. As in FuzzyQuery, the similarity of a term is 1 - edits / (the length of the shorter of the term
+		 * and the word), and it must be greater than the minimum.
+		 */
+		List<Match> findSimilar(String word, float minSimilarity) {
+
+			int maxEdits = Math.max(0, (int) ((1 - minSimilarity) * word.length()));
+			List<Match> matches = new ArrayList<Match>();
+
+			lock.readLock().lock();
+			try {
+				int[] candidates = getCandidates(word, maxEdits);
+				for (int i = 0; i < candidates.length; i++) {
+					String term = terms.get(candidates[i]);
+					int edits = editDistance(word, term, maxEdits);
+					if (edits <= maxEdits) {
+						float similarity = 1 - (float) edits / Math.min(word.length(), term.length());
+						if (similarity > minSimilarity || edits == 0) {
+							matches.add(new Match(term, similarity));
+						}
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			Collections.sort(matches, new Comparator<Match>() {
+				@Override
+				public int compare(Match a, Match b) {
+					return Float.compare(b.similarity, a.similarity);
+				}
+			});
+			int maxClauses = BooleanQuery.getMaxClauseCount();
+			return matches.size() > maxClauses ? matches.subList(0, maxClauses) : matches;
+		}
+
+		/**
+		 * The ids of the terms that could be within maxEdits of the word. Every edit changes at most GRAM_LENGTH of the
+		 * word's distinct trigrams, so a match shares at least (the number of trigrams - GRAM_LENGTH * maxEdits) of them,
+		 * and must therefore be in at least one of the shortest (the number of trigrams - that bound + 1) trigram lists.
+		 * When the bound is not positive the trigrams cannot rule anything out, and all the terms of a possible length are
+		 * returned. Must hold the read lock.
+		 */
+		private int[] getCandidates(String word, int maxEdits) {
+
+			String[] grams = getGrams(word);
+			int minShared = grams.length - GRAM_LENGTH * maxEdits;
+
+			List<IntList> lists = new ArrayList<IntList>();
+			if (minShared > 0) {
+				for (String gram : grams) {
+					IntList ids = termsByGram.get(gram);
+					lists.add(ids == null ? new IntList() : ids);
+				}
+				Collections.sort(lists, new Comparator<IntList>() {
+					@Override
+					public int compare(IntList a, IntList b) {
+						return a.size < b.size ? -1 : (a.size == b.size ? 0 : 1);
+					}
+				});
+				lists = lists.subList(0, grams.length - minShared + 1);
+			} else {
+				for (int length = Math.max(0, word.length() - maxEdits); length <= word.length() + maxEdits
+						&& length < termsByLength.size(); length++) {
+					lists.add(termsByLength.get(length));
+				}
+			}
+
+			// merge the lists, skipping the terms already collected in this search
+			Scratch marks = scratch.get();
+			int search = marks.startSearch(terms.size());
+			IntList candidates = new IntList();
+			for (IntList ids : lists) {
+				for (int i = 0; i < ids.size; i++) {
+					int id = ids.values[i];
+					if (marks.searchByTerm[id] != search) {
+						marks.searchByTerm[id] = search;
+						candidates.add(id);
+					}
+				}
+			}
+			return Arrays.copyOf(candidates.values, candidates.size);
+		}
+
+		Map<String, Object> getStats() {
+			Map<String, Object> stats = new HashMap<String, Object>();
+			lock.readLock().lock();
+			try {
+				stats.put("terms", terms.size());
+				stats.put("trigrams", termsByGram.size());
+			} finally {
+				lock.readLock().unlock();
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * The number of the last search in which each term was collected. Each search has a new number, so the marks of
+	 * earlier searches do not need to be cleared.
+	 */
+	private static final class Scratch {
+
+		int[] searchByTerm = new int[0];
+		int search = 0;
+
+		int startSearch(int nTerms) {
+			if (searchByTerm.length < nTerms || search == Integer.MAX_VALUE) {
+				searchByTerm = new int[nTerms + nTerms / 2];
+				search = 0;
+			}
+			return ++search;
+		}
+	}
+
+	/**
+	 * A growable list of ints, without boxing.
+	 */
+	private static final class IntList {
+
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+	}
+}
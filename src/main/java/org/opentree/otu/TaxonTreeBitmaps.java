@@ -0,0 +1,698 @@
+package org.opentree.otu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.MessageLogger;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+
+/**
+ * An in-memory index from ott ids to the trees that contain them, for queries over sets of taxa ("the trees that contain
+ * all of these taxa", or any of them, or at least k of them). Each tree root in the lucene ott id index is given a dense
+ * ordinal, and each ott id maps to a TreeBitmap of the ordinals of the trees that contain it, so a query over thousands
+ * of ids is a series of bitmap intersections or unions, without looking up any nodes until the results are known.
+ *
+ * The bitmaps mirror TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID. DatabaseIndexer reports each write to that index, and the
+ * changes are applied when the writing transaction commits, so queries only see committed trees. Indexers created from
+ * a GraphDatabaseAgent do not report their writes, so changes made through them are only picked up by a rebuild.
+ *
+ * Removing a tree only retires its ordinal, without clearing its bits, since the ott ids it had may already have been
+ * replaced on the root. Retired ordinals are left out of query results, and the bitmaps are compacted when they outnumber
+ * the live ones.
+ *
+ * The bitmaps are saved to a file in the graph store directory when the database shuts down, and loaded from it on first
+ * use. The file is marked as out of date as soon as a change is applied after it was written, so if the database is not
+ * shut down cleanly the bitmaps are rebuilt from the lucene index instead.
+ *
+ * Held by the OTUServiceContext. All the public methods are safe to call from multiple threads.
+ */
+public class TaxonTreeBitmaps {
+
+	private static final long MAGIC = 0x5454424954534d31L; // "TTBITSM1"
+	private static final int HEADER_SIZE = 32;
+	private static final int CLEAN_FLAG_OFFSET = 8;
+
+	private static final long RETIRED = -1;
+
+	private static final MessageLogger logger = new MessageLogger("taxonTreeBitmaps:");
+
+	private final OTUServiceContext context;
+
+	// null if the graph store directory is not known, in which case the bitmaps are rebuilt on every start
+	private final File file;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// the following are guarded by the lock
+	private volatile boolean loaded = false;
+	private boolean fileClean = true; // true unless we know the file is out of date
+	private final Map<Long, TreeBitmap> treesByOTTId = new HashMap<Long, TreeBitmap>();
+	private final Map<Long, Integer> ordinalsByNodeId = new HashMap<Long, Integer>();
+	private long[] nodeIdsByOrdinal = new long[1024];
+	private int nOrdinals = 0;
+	private TreeBitmap liveOrdinals = new TreeBitmap();
+
+	// the last error reading or writing the file, or null
+	private volatile String lastFileError = null;
+
+	// the changes recorded by each open transaction. each list is only used by the thread running its transaction
+	private final Map<Transaction, List<Change>> pendingChanges = Collections.synchronizedMap(new HashMap<Transaction, List<Change>>());
+
+	TaxonTreeBitmaps(OTUServiceContext context) {
+		this.context = context;
+		this.file = context.getStoreDir() == null ? null : new File(context.getStoreDir(), OTUConstants.TAXON_TREE_BITMAPS_FILE_NAME);
+	}
+
+	// ===== recording changes
+
+	/**
+	 * Record that a tree root has been added to the ott id index, with the ott ids in its descendant ott id array. Replaces
+	 * any earlier entry for the root. Called by DatabaseIndexer within the writing transaction.
+	 * @param root
+	 */
+	public void treeIndexed(Node root) {
+		long[] ottIds = (long[]) root.getProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), new long[0]);
+		record(new Change(root.getId(), ottIds, null, null));
+	}
+
+	/**
+	 * Record that a tree root has been removed from the ott id index. Called by DatabaseIndexer within the writing
+	 * transaction.
+	 * @param root
+	 */
+	public void treeRemoved(Node root) {
+		record(new Change(root.getId(), null, null, null));
+	}
+
+	/**
+	 * Record that one ott id has been removed from an indexed tree, and/or another has been added. Called by
+	 * DatabaseIndexer within the writing transaction.
+	 * @param root
+	 * @param removedOTTId
+	 * 		the ott id that was removed, or null
+	 * @param addedOTTId
+	 * 		the ott id that was added, or null
+	 */
+	public void taxonChanged(Node root, Long removedOTTId, Long addedOTTId) {
+		record(new Change(root.getId(), null, removedOTTId, addedOTTId));
+	}
+
+	/**
+	 * Add a change to the ones recorded by the transaction running in this thread. When the transaction finishes, its
+	 * changes are applied if it committed, and discarded otherwise.
+	 */
+	private void record(Change change) {
+		final Transaction tx = context.currentTransaction();
+		if (tx == null) {
+			// only possible if the database does not expose its transaction manager. we cannot tell when the change
+			// is committed, so drop the bitmaps to have them rebuilt from the index. a query made before the commit
+			// can still miss the change, as with changes made through a GraphDatabaseAgent
+			discardBitmaps();
+			return;
+		}
+
+		List<Change> changes = pendingChanges.get(tx);
+		if (changes == null) {
+			changes = new ArrayList<Change>();
+			pendingChanges.put(tx, changes);
+			final List<Change> txChanges = changes;
+			boolean registered = context.registerSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {}
+				@Override
+				public void afterCompletion(int status) {
+					pendingChanges.remove(tx);
+					if (status == Status.STATUS_COMMITTED) {
+						applyCommitted(txChanges);
+					}
+				}
+			});
+			if (!registered) {
+				// the transaction has been marked for rollback, so its changes will never be applied
+				pendingChanges.remove(tx);
+				return;
+			}
+		}
+		changes.add(change);
+	}
+
+	/**
+	 * Apply the changes recorded by a transaction that has committed.
+	 */
+	private void applyCommitted(List<Change> changes) {
+		if (changes.isEmpty()) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			// the file no longer matches the committed graph, whether or not the bitmaps have been loaded
+			markFileOutOfDate();
+			if (loaded) {
+				for (Change change : changes) {
+					apply(change);
+				}
+				if (nOrdinals - liveOrdinals.getCardinality() > Math.max(liveOrdinals.getCardinality(),
+						OTUConstants.TAXON_TREE_BITMAPS_MIN_RETIRED_FOR_COMPACTION)) {
+					compact();
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forget the loaded bitmaps and mark the file as out of date, so that they are rebuilt from the index on next use.
+	 */
+	private void discardBitmaps() {
+		lock.writeLock().lock();
+		try {
+			markFileOutOfDate();
+			loaded = false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// ===== queries
+
+	/**
+	 * Get the node ids of the roots of the trees that contain all of these ott ids.
+	 * @param ottIds
+	 * @return
+	 */
+	public List<Long> findTreesWithAll(long[] ottIds) {
+		long[] distinct = distinct(ottIds);
+		return distinct.length == 0 ? new ArrayList<Long>() : findTreesWithAtLeast(distinct, distinct.length);
+	}
+
+	/**
+	 * Get the node ids of the roots of the trees that contain any of these ott ids.
+	 * @param ottIds
+	 * @return
+	 */
+	public List<Long> findTreesWithAny(long[] ottIds) {
+		return findTreesWithAtLeast(ottIds, 1);
+	}
+
+	/**
+	 * Get the node ids of the roots of the trees that contain at least minMatches of these ott ids. Duplicate ids are
+	 * only counted once.
+	 * @param ottIds
+	 * @param minMatches
+	 * @return
+	 */
+	public List<Long> findTreesWithAtLeast(long[] ottIds, int minMatches) {
+
+		long[] distinct = distinct(ottIds);
+		if (minMatches < 1 || minMatches > Math.max(distinct.length, 1)) {
+			throw new IllegalArgumentException("The number of ott ids to match must be from 1 to the number of distinct ott ids ("
+					+ distinct.length + "), but was " + minMatches);
+		}
+		if (distinct.length == 0) {
+			return new ArrayList<Long>();
+		}
+
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			List<TreeBitmap> bitmaps = new ArrayList<TreeBitmap>();
+			for (long ottId : distinct) {
+				TreeBitmap bitmap = treesByOTTId.get(ottId);
+				if (bitmap != null) {
+					bitmaps.add(bitmap);
+				}
+			}
+			if (bitmaps.size() < minMatches) {
+				return new ArrayList<Long>();
+			}
+
+			TreeBitmap found;
+			if (minMatches == bitmaps.size()) {
+				found = intersect(bitmaps);
+			} else if (minMatches == 1) {
+				found = TreeBitmap.and(union(bitmaps), liveOrdinals);
+			} else {
+				found = countAtLeast(bitmaps, minMatches);
+			}
+
+			int[] ordinals = found.toArray();
+			List<Long> nodeIds = new ArrayList<Long>(ordinals.length);
+			for (int ordinal : ordinals) {
+				nodeIds.add(nodeIdsByOrdinal[ordinal]);
+			}
+			return nodeIds;
+
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// ===== maintenance
+
+	/**
+	 * Discard the bitmaps and build them again from the lucene ott id index, then save them.
+	 */
+	public void rebuild() {
+		lock.writeLock().lock();
+		try {
+			rebuildFromIndex();
+			save();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Write the bitmaps to the file, if they have been loaded and have changed since it was written. Called when the
+	 * database shuts down.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (loaded && !fileClean) {
+				save();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the numbers of trees, ott ids and retired ordinals, and the state of the file.
+	 * @return
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		lock.readLock().lock();
+		try {
+			stats.put("loaded", loaded);
+			stats.put("trees", liveOrdinals.getCardinality());
+			stats.put("ott_ids", treesByOTTId.size());
+			stats.put("retired_ordinals", nOrdinals - liveOrdinals.getCardinality());
+			stats.put("file", file == null ? null : file.getPath());
+			stats.put("file_up_to_date", file != null && file.exists() && fileClean);
+			stats.put("last_file_error", lastFileError);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return stats;
+	}
+
+	// ===== private methods
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				if (!load()) {
+					rebuildFromIndex();
+					save();
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Apply one committed change. Must hold the write lock.
+	 */
+	private void apply(Change change) {
+		if (change.removedOTTId != null || change.addedOTTId != null) {
+			Integer ordinal = ordinalsByNodeId.get(change.nodeId);
+			if (ordinal == null) {
+				return;
+			}
+			if (change.removedOTTId != null) {
+				TreeBitmap trees = treesByOTTId.get(change.removedOTTId);
+				if (trees != null) {
+					trees.remove(ordinal);
+					if (trees.isEmpty()) {
+						treesByOTTId.remove(change.removedOTTId);
+					}
+				}
+			}
+			if (change.addedOTTId != null) {
+				addTree(change.addedOTTId, ordinal);
+			}
+		} else {
+			retire(change.nodeId);
+			if (change.ottIds != null) {
+				int ordinal = assignOrdinal(change.nodeId);
+				for (long ottId : change.ottIds) {
+					addTree(ottId, ordinal);
+				}
+			}
+		}
+	}
+
+	private void addTree(long ottId, int ordinal) {
+		TreeBitmap trees = treesByOTTId.get(ottId);
+		if (trees == null) {
+			trees = new TreeBitmap();
+			treesByOTTId.put(ottId, trees);
+		}
+		trees.add(ordinal);
+	}
+
+	private int assignOrdinal(long nodeId) {
+		if (nOrdinals == nodeIdsByOrdinal.length) {
+			nodeIdsByOrdinal = Arrays.copyOf(nodeIdsByOrdinal, nodeIdsByOrdinal.length * 2);
+		}
+		int ordinal = nOrdinals++;
+		nodeIdsByOrdinal[ordinal] = nodeId;
+		ordinalsByNodeId.put(nodeId, ordinal);
+		liveOrdinals.add(ordinal);
+		return ordinal;
+	}
+
+	private void retire(long nodeId) {
+		Integer ordinal = ordinalsByNodeId.remove(nodeId);
+		if (ordinal != null) {
+			nodeIdsByOrdinal[ordinal] = RETIRED;
+			liveOrdinals.remove(ordinal);
+		}
+	}
+
+	/**
+	 * Renumber the live ordinals densely, and drop the bits of the retired ones. Must hold the write lock.
+	 */
+	private void compact() {
+
+		int[] newOrdinals = new int[nOrdinals];
+		long[] newNodeIds = new long[Math.max(1024, liveOrdinals.getCardinality() * 2)];
+		TreeBitmap newLive = new TreeBitmap();
+		int n = 0;
+		for (int ordinal = 0; ordinal < nOrdinals; ordinal++) {
+			if (nodeIdsByOrdinal[ordinal] == RETIRED) {
+				newOrdinals[ordinal] = -1;
+			} else {
+				newOrdinals[ordinal] = n;
+				newNodeIds[n] = nodeIdsByOrdinal[ordinal];
+				ordinalsByNodeId.put(newNodeIds[n], n);
+				newLive.add(n);
+				n++;
+			}
+		}
+
+		Iterator<Map.Entry<Long, TreeBitmap>> entries = treesByOTTId.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Long, TreeBitmap> entry = entries.next();
+			TreeBitmap renumbered = new TreeBitmap();
+			for (int ordinal : entry.getValue().toArray()) {
+				if (newOrdinals[ordinal] >= 0) {
+					renumbered.add(newOrdinals[ordinal]);
+				}
+			}
+			if (renumbered.isEmpty()) {
+				entries.remove();
+			} else {
+				entry.setValue(renumbered);
+			}
+		}
+
+		nodeIdsByOrdinal = newNodeIds;
+		nOrdinals = n;
+		liveOrdinals = newLive;
+	}
+
+	/**
+	 * Intersect the bitmaps, smallest first, so the intermediate results are as small as possible.
+	 */
+	private TreeBitmap intersect(List<TreeBitmap> bitmaps) {
+		List<TreeBitmap> sorted = new ArrayList<TreeBitmap>(bitmaps);
+		Collections.sort(sorted, new Comparator<TreeBitmap>() {
+			@Override
+			public int compare(TreeBitmap a, TreeBitmap b) {
+				return Integer.valueOf(a.getCardinality()).compareTo(b.getCardinality());
+			}
+		});
+		TreeBitmap result = liveOrdinals;
+		for (TreeBitmap bitmap : sorted) {
+			result = TreeBitmap.and(bitmap, result);
+			if (result.isEmpty()) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Union the bitmaps pairwise, so each member is copied about log(n) times rather than n times.
+	 */
+	private static TreeBitmap union(List<TreeBitmap> bitmaps) {
+		List<TreeBitmap> level = bitmaps;
+		while (level.size() > 1) {
+			List<TreeBitmap> next = new ArrayList<TreeBitmap>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				next.add(i + 1 < level.size() ? TreeBitmap.or(level.get(i), level.get(i + 1)) : level.get(i));
+			}
+			level = next;
+		}
+		return level.get(0);
+	}
+
+	/**
+	 * Count the bitmaps each live ordinal is in, and return those in at least minMatches of them.
+	 */
+	private TreeBitmap countAtLeast(List<TreeBitmap> bitmaps, int minMatches) {
+		int[] counts = new int[nOrdinals];
+		for (TreeBitmap bitmap : bitmaps) {
+			bitmap.addCounts(counts);
+		}
+		TreeBitmap result = new TreeBitmap();
+		for (int ordinal = 0; ordinal < nOrdinals; ordinal++) {
+			if (counts[ordinal] >= minMatches && nodeIdsByOrdinal[ordinal] != RETIRED) {
+				result.add(ordinal);
+			}
+		}
+		return result;
+	}
+
+	private static long[] distinct(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		return Arrays.copyOf(sorted, n);
+	}
+
+	private void clear() {
+		treesByOTTId.clear();
+		ordinalsByNodeId.clear();
+		nodeIdsByOrdinal = new long[1024];
+		nOrdinals = 0;
+		liveOrdinals = new TreeBitmap();
+	}
+
+	/**
+	 * Build the bitmaps from the tree roots in the lucene ott id index. Must hold the write lock. Transactions that commit
+	 * while this is running wait for the lock and then apply their changes again, which leaves the same result.
+	 */
+	private void rebuildFromIndex() {
+		clear();
+		IndexHits<Node> hits = context.getIndexer().getNodeIndex(OTUNodeIndex.TREE_ROOT_NODES_BY_MAPPED_TAXON_OTT_ID).query("*:*");
+		try {
+			for (Node root : hits) {
+				int ordinal = assignOrdinal(root.getId());
+				for (long ottId : (long[]) root.getProperty(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), new long[0])) {
+					addTree(ottId, ordinal);
+				}
+			}
+		} finally {
+			hits.close();
+		}
+		loaded = true;
+		fileClean = false;
+	}
+
+	// ===== the file
+	//
+	// a header of HEADER_SIZE bytes (magic number, clean flag, number of ordinals, number of ott ids), then the node id for
+	// each ordinal (RETIRED for retired ones), then for each ott id the id followed by its bitmap (see TreeBitmap.writeTo).
+
+	/**
+	 * Load the bitmaps from the file. Must hold the write lock.
+	 * @return
+	 * 		true if they were loaded, or false if there is no file or it is out of date or unreadable
+	 */
+	private boolean load() {
+		if (file == null || !file.exists()) {
+			return false;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (buffer.getLong(0) != MAGIC || buffer.getInt(CLEAN_FLAG_OFFSET) != 1) {
+					return false;
+				}
+				clear();
+				int n = buffer.getInt(12);
+				int nOTTIds = buffer.getInt(16);
+				buffer.position(HEADER_SIZE);
+				nodeIdsByOrdinal = new long[Math.max(1024, n * 2)];
+				for (int ordinal = 0; ordinal < n; ordinal++) {
+					long nodeId = buffer.getLong();
+					nodeIdsByOrdinal[ordinal] = nodeId;
+					if (nodeId != RETIRED) {
+						ordinalsByNodeId.put(nodeId, ordinal);
+						liveOrdinals.add(ordinal);
+					}
+				}
+				nOrdinals = n;
+				for (int i = 0; i < nOTTIds; i++) {
+					long ottId = buffer.getLong();
+					treesByOTTId.put(ottId, TreeBitmap.readFrom(buffer));
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			reportFileError("could not read", ex);
+			clear();
+			return false;
+		} catch (RuntimeException ex) {
+			// a truncated or corrupt file
+			reportFileError("could not read", ex);
+			clear();
+			return false;
+		}
+		loaded = true;
+		fileClean = true;
+		return true;
+	}
+
+	/**
+	 * Write the bitmaps to a temporary file and move it into place. Must hold the write lock.
+	 */
+	private void save() {
+		if (file == null) {
+			return;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			long length = HEADER_SIZE + (long) nOrdinals * 8;
+			for (TreeBitmap trees : treesByOTTId.values()) {
+				length += 8 + trees.serializedSize();
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("The taxon tree bitmaps are too large to save in a single mapped file");
+			}
+
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.setLength(0);
+				raf.setLength(length);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+				buffer.putLong(0, MAGIC);
+				buffer.putInt(CLEAN_FLAG_OFFSET, 1);
+				buffer.putInt(12, nOrdinals);
+				buffer.putInt(16, treesByOTTId.size());
+				buffer.position(HEADER_SIZE);
+				for (int ordinal = 0; ordinal < nOrdinals; ordinal++) {
+					buffer.putLong(nodeIdsByOrdinal[ordinal]);
+				}
+				for (Map.Entry<Long, TreeBitmap> entry : treesByOTTId.entrySet()) {
+					buffer.putLong(entry.getKey());
+					entry.getValue().writeTo(buffer);
+				}
+				buffer.force();
+			} finally {
+				raf.close();
+			}
+
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Could not replace the taxon tree bitmaps file " + file.getPath());
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not move the taxon tree bitmaps file into place at " + file.getPath());
+			}
+			fileClean = true;
+
+		} catch (IOException ex) {
+			// the bitmaps will be rebuilt on the next start
+			reportFileError("could not write", ex);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Clear the clean flag in the file, the first time it is needed after the file was written. If that fails the file is
+	 * deleted. Must hold the write lock.
+	 */
+	private void markFileOutOfDate() {
+		if (!fileClean) {
+			return;
+		}
+		fileClean = false;
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(CLEAN_FLAG_OFFSET);
+				raf.writeInt(0);
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			reportFileError("could not mark as out of date", ex);
+			file.delete();
+		}
+	}
+
+	private void reportFileError(String action, Exception ex) {
+		lastFileError = action + " " + file.getPath() + ": " + ex.toString();
+		logger.messageStr(action + " the taxon tree bitmaps file " + file.getPath(), "error", ex.toString());
+	}
+
+	/**
+	 * A change to the ott id index. ottIds is set when a tree is indexed, removedOTTId and/or addedOTTId when one of its
+	 * ott ids changes, and none of them when it is removed.
+	 */
+	private static final class Change {
+
+		final long nodeId;
+		final long[] ottIds;
+		final Long removedOTTId;
+		final Long addedOTTId;
+
+		Change(long nodeId, long[] ottIds, Long removedOTTId, Long addedOTTId) {
+			this.nodeId = nodeId;
+			this.ottIds = ottIds;
+			this.removedOTTId = removedOTTId;
+			this.addedOTTId = addedOTTId;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.opentree.otu;
+
+import jade.tree.JadeNode;
+import jade.tree.JadeTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.opentree.GeneralUtils;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * An immutable container for the taxonomic names and ids of the tips of a single tree. These arrays are stored as
+ * properties of tree root nodes and are used to build the taxonomic tree root indexes.
+ */
+public final class TipTaxonArrays {
+
+	private final String[] originalTaxonNames;
+	private final String[] mappedTaxonNames;
+	private final String[] mappedTaxonNamesNoSpaces;
+	private final long[] mappedOTTIds;
+	private final int tipCount;
+
+	private TipTaxonArrays(int tipCount, List<String> originalTaxonNames, List<String> mappedTaxonNames,
+			List<String> mappedTaxonNamesNoSpaces, List<Long> mappedOTTIds) {
+		this.tipCount = tipCount;
+		this.originalTaxonNames = GeneralUtils.convertToStringArray(originalTaxonNames);
+		this.mappedTaxonNames = GeneralUtils.convertToStringArray(mappedTaxonNames);
+		this.mappedTaxonNamesNoSpaces = GeneralUtils.convertToStringArray(mappedTaxonNamesNoSpaces);
+		this.mappedOTTIds = GeneralUtils.convertToLongArray(mappedOTTIds);
+	}
+
+	/**
+	 * Collect the taxonomic names and ids for all the tips of the provided JadeTree. Follows the same rules as
+	 * DatabaseManager uses when importing trees, so the resulting arrays are identical to the ones stored by addTree.
+	 * @param tree
+	 * @return
+	 */
+	public static TipTaxonArrays fromJadeTree(JadeTree tree) {
+
+		List<String> originalTaxonNames = new ArrayList<String>();
+		List<String> mappedTaxonNames = new ArrayList<String>();
+		List<String> mappedTaxonNamesNoSpaces = new ArrayList<String>();
+		List<Long> mappedOTTIds = new ArrayList<Long>();
+
+		int tipCount = 0;
+		for (JadeNode treeNode : tree.getRoot().getDescendantLeaves()) {
+
+			tipCount++;
+
+			// tips without labels (e.g. unnamed tips in newick trees) are skipped, since arrays stored in the graph cannot contain nulls
+			String originalLabel = (String) treeNode.getObject(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName());
+			if (originalLabel != null) {
+				originalTaxonNames.add(originalLabel);
+			}
+
+			if (treeNode.hasAssocObject(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
+				// If the node has not been explicitly mapped, we will not record the name as a mapped name
+				String name = treeNode.getName();
+				mappedTaxonNames.add(name);
+				mappedTaxonNamesNoSpaces.add(name.replace("\\s+", OTUConstants.WHITESPACE_SUBSTITUTE_FOR_SEARCH));
+			}
+
+			Long ottId = (Long) treeNode.getObject(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+			if (ottId != null) {
+				mappedOTTIds.add(ottId);
+			}
+		}
+
+		return new TipTaxonArrays(tipCount, originalTaxonNames, mappedTaxonNames, mappedTaxonNamesNoSpaces, mappedOTTIds);
+	}
+
+	/**
+	 * Collect the taxonomic names and ids for all the tips of the tree below the given graph node. Follows the same rules as
+	 * fromJadeTree, except that mapped names are only recorded for tips that have an explicit mapped taxon name.
+	 * @param root
+	 * @return
+	 */
+	public static TipTaxonArrays fromGraph(Node root) {
+
+		List<String> originalTaxonNames = new ArrayList<String>();
+		List<String> mappedTaxonNames = new ArrayList<String>();
+		List<String> mappedTaxonNamesNoSpaces = new ArrayList<String>();
+		List<Long> mappedOTTIds = new ArrayList<Long>();
+
+		int tipCount = 0;
+		for (Node tip : DatabaseBrowser.getDescendantTips(root)) {
+
+			tipCount++;
+
+			if (tip.hasProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName())) {
+				originalTaxonNames.add((String) tip.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()));
+			}
+
+			if (tip.hasProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName())) {
+				String name = (String) tip.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+				mappedTaxonNames.add(name);
+				mappedTaxonNamesNoSpaces.add(name.replace("\\s+", OTUConstants.WHITESPACE_SUBSTITUTE_FOR_SEARCH));
+			}
+
+			if (tip.hasProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
+				mappedOTTIds.add((Long) tip.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName()));
+			}
+		}
+
+		return new TipTaxonArrays(tipCount, originalTaxonNames, mappedTaxonNames, mappedTaxonNamesNoSpaces, mappedOTTIds);
+	}
+
+	/**
+	 * Return a map of the tree root node properties that hold these arrays, keyed by property name.
+	 */
+	public Map<String, Object> toPropertyMap() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(OTUNodeProperty.DESCENDANT_ORIGINAL_TAXON_NAMES.propertyName(), originalTaxonNames.clone());
+		properties.put(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(), mappedTaxonNames.clone());
+		properties.put(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_NAMES_WHITESPACE_FILLED.propertyName(), mappedTaxonNamesNoSpaces.clone());
+		properties.put(OTUNodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), mappedOTTIds.clone());
+		return Collections.unmodifiableMap(properties);
+	}
+
+	public String[] getOriginalTaxonNames() {
+		return originalTaxonNames.clone();
+	}
+
+	public String[] getMappedTaxonNames() {
+		return mappedTaxonNames.clone();
+	}
+
+	public String[] getMappedTaxonNamesNoSpaces() {
+		return mappedTaxonNamesNoSpaces.clone();
+	}
+
+	public long[] getMappedOTTIds() {
+		return mappedOTTIds.clone();
+	}
+
+	/**
+	 * The number of tips in the tree these arrays were collected from.
+	 */
+	public int getTipCount() {
+		return tipCount;
+	}
+}
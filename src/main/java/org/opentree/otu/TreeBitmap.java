@@ -0,0 +1,540 @@
+package org.opentree.otu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints, used by TaxonTreeBitmaps to hold the ordinals of the trees that contain a taxon.
+ *
+ * The layout follows Roaring bitmaps: the ints are split into chunks by their high 16 bits, and each chunk is stored as a
+ * sorted array of its low 16 bits while it has at most 4096 members, or as a bitmap of 2^16 bits (8 kB) once it has more.
+ * Sparse sets cost two bytes per member and dense ones at most one bit, and intersections and unions are done chunk by
+ * chunk, a word at a time where both chunks are bitmaps.
+ *
+ * Not thread safe. The results of and and or share nothing with their arguments.
+ */
+public final class TreeBitmap {
+
+	// the largest number of members held in an array container
+	private static final int ARRAY_MAX = 4096;
+	private static final int BITMAP_WORDS = 1024;
+
+	// the high bits of each chunk, in increasing order, and the corresponding containers
+	private char[] keys;
+	private Container[] containers;
+	private int nContainers;
+
+	public TreeBitmap() {
+		keys = new char[4];
+		containers = new Container[4];
+		nContainers = 0;
+	}
+
+	public void add(int value) {
+		char key = highBits(value);
+		int i = findKey(key);
+		if (i >= 0) {
+			containers[i] = containers[i].add(lowBits(value));
+		} else {
+			insertContainer(-i - 1, key, new ArrayContainer().add(lowBits(value)));
+		}
+	}
+
+	public void remove(int value) {
+		int i = findKey(highBits(value));
+		if (i >= 0) {
+			Container container = containers[i].remove(lowBits(value));
+			if (container.cardinality == 0) {
+				removeContainer(i);
+			} else {
+				containers[i] = container;
+			}
+		}
+	}
+
+	public boolean contains(int value) {
+		int i = findKey(highBits(value));
+		return i >= 0 && containers[i].contains(lowBits(value));
+	}
+
+	public boolean isEmpty() {
+		return nContainers == 0;
+	}
+
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < nContainers; i++) {
+			cardinality += containers[i].cardinality;
+		}
+		return cardinality;
+	}
+
+	/**
+	 * The members, in increasing order.
+	 * @return
+	 */
+	public int[] toArray() {
+		int[] values = new int[getCardinality()];
+		int n = 0;
+		for (int i = 0; i < nContainers; i++) {
+			n = containers[i].fill(values, n, keys[i] << 16);
+		}
+		return values;
+	}
+
+	/**
+	 * Add one to counts[v] for every member v. Used to find the values that are members of at least k of a group of sets.
+	 * @param counts
+	 * 		must be longer than the largest member
+	 */
+	public void addCounts(int[] counts) {
+		for (int i = 0; i < nContainers; i++) {
+			containers[i].addCounts(counts, keys[i] << 16);
+		}
+	}
+
+	/**
+	 * The intersection of two sets.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static TreeBitmap and(TreeBitmap a, TreeBitmap b) {
+		TreeBitmap result = new TreeBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < a.nContainers && j < b.nContainers) {
+			if (a.keys[i] < b.keys[j]) {
+				i++;
+			} else if (a.keys[i] > b.keys[j]) {
+				j++;
+			} else {
+				Container container = a.containers[i].and(b.containers[j]);
+				if (container.cardinality > 0) {
+					result.appendContainer(a.keys[i], container);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The union of two sets.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static TreeBitmap or(TreeBitmap a, TreeBitmap b) {
+		TreeBitmap result = new TreeBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < a.nContainers || j < b.nContainers) {
+			if (j == b.nContainers || (i < a.nContainers && a.keys[i] < b.keys[j])) {
+				result.appendContainer(a.keys[i], a.containers[i].copy());
+				i++;
+			} else if (i == a.nContainers || a.keys[i] > b.keys[j]) {
+				result.appendContainer(b.keys[j], b.containers[j].copy());
+				j++;
+			} else {
+				result.appendContainer(a.keys[i], a.containers[i].or(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	// ===== serialization
+
+	/**
+	 * The number of bytes written by writeTo.
+	 * @return
+	 */
+	public int serializedSize() {
+		int size = 4;
+		for (int i = 0; i < nContainers; i++) {
+			size += 6 + containers[i].dataSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Write the set at the current position of the buffer: the number of containers, then for each one its key, its
+	 * cardinality and its contents, as an array or a bitmap.
+	 * @param buffer
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(nContainers);
+		for (int i = 0; i < nContainers; i++) {
+			buffer.putChar(keys[i]);
+			buffer.putInt(containers[i].cardinality);
+			containers[i].writeData(buffer);
+		}
+	}
+
+	/**
+	 * Read a set written by writeTo from the current position of the buffer.
+	 * @param buffer
+	 * @return
+	 */
+	public static TreeBitmap readFrom(ByteBuffer buffer) {
+		TreeBitmap bitmap = new TreeBitmap();
+		int n = buffer.getInt();
+		for (int i = 0; i < n; i++) {
+			char key = buffer.getChar();
+			int cardinality = buffer.getInt();
+			Container container;
+			if (cardinality > ARRAY_MAX) {
+				BitmapContainer bitmapContainer = new BitmapContainer();
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					bitmapContainer.words[w] = buffer.getLong();
+				}
+				bitmapContainer.cardinality = cardinality;
+				container = bitmapContainer;
+			} else {
+				char[] values = new char[cardinality];
+				for (int v = 0; v < cardinality; v++) {
+					values[v] = buffer.getChar();
+				}
+				container = new ArrayContainer(values, cardinality);
+			}
+			bitmap.appendContainer(key, container);
+		}
+		return bitmap;
+	}
+
+	// ===== private methods
+
+	private static char highBits(int value) {
+		return (char) (value >>> 16);
+	}
+
+	private static char lowBits(int value) {
+		return (char) value;
+	}
+
+	private int findKey(char key) {
+		return Arrays.binarySearch(keys, 0, nContainers, key);
+	}
+
+	private void insertContainer(int i, char key, Container container) {
+		if (nContainers == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			containers = Arrays.copyOf(containers, containers.length * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, nContainers - i);
+		System.arraycopy(containers, i, containers, i + 1, nContainers - i);
+		keys[i] = key;
+		containers[i] = container;
+		nContainers++;
+	}
+
+	private void appendContainer(char key, Container container) {
+		insertContainer(nContainers, key, container);
+	}
+
+	private void removeContainer(int i) {
+		System.arraycopy(keys, i + 1, keys, i, nContainers - i - 1);
+		System.arraycopy(containers, i + 1, containers, i, nContainers - i - 1);
+		nContainers--;
+		containers[nContainers] = null;
+	}
+
+	// ===== containers
+
+	/**
+	 * The members of one chunk. add and remove may return a different container, when the chunk changes between the array
+	 * and bitmap forms, and the caller must keep the returned one.
+	 */
+	private abstract static class Container {
+
+		int cardinality = 0;
+
+		abstract Container add(char value);
+
+		abstract Container remove(char value);
+
+		abstract boolean contains(char value);
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container copy();
+
+		/** Write the members, with the high bits added, into values from offset, and return the next offset. */
+		abstract int fill(int[] values, int offset, int high);
+
+		abstract void addCounts(int[] counts, int high);
+
+		abstract int dataSize();
+
+		abstract void writeData(ByteBuffer buffer);
+	}
+
+	private static final class ArrayContainer extends Container {
+
+		char[] values;
+
+		ArrayContainer() {
+			values = new char[4];
+		}
+
+		ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) {
+				return this;
+			}
+			if (cardinality == ARRAY_MAX) {
+				return toBitmap().add(value);
+			}
+			i = -i - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, values.length * 2)));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		Container and(Container other) {
+			char[] result = new char[cardinality];
+			int n = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0;
+				int j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					if (values[i] < array.values[j]) {
+						i++;
+					} else if (values[i] > array.values[j]) {
+						j++;
+					} else {
+						result[n++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						result[n++] = values[i];
+					}
+				}
+			}
+			return new ArrayContainer(result, n);
+		}
+
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer array = (ArrayContainer) other;
+			char[] result = new char[cardinality + array.cardinality];
+			int n = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < array.cardinality) {
+				if (j == array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+					result[n++] = values[i++];
+				} else if (i == cardinality || values[i] > array.values[j]) {
+					result[n++] = array.values[j++];
+				} else {
+					result[n++] = values[i];
+					i++;
+					j++;
+				}
+			}
+			ArrayContainer union = new ArrayContainer(result, n);
+			return n > ARRAY_MAX ? union.toBitmap() : union;
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+		}
+
+		@Override
+		int fill(int[] out, int offset, int high) {
+			for (int i = 0; i < cardinality; i++) {
+				out[offset++] = high | values[i];
+			}
+			return offset;
+		}
+
+		@Override
+		void addCounts(int[] counts, int high) {
+			for (int i = 0; i < cardinality; i++) {
+				counts[high | values[i]]++;
+			}
+		}
+
+		@Override
+		int dataSize() {
+			return cardinality * 2;
+		}
+
+		@Override
+		void writeData(ByteBuffer buffer) {
+			for (int i = 0; i < cardinality; i++) {
+				buffer.putChar(values[i]);
+			}
+		}
+
+		BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				bitmap.add(values[i]);
+			}
+			return bitmap;
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+
+		final long[] words = new long[BITMAP_WORDS];
+
+		@Override
+		Container add(char value) {
+			long bit = 1L << value;
+			if ((words[value >>> 6] & bit) == 0) {
+				words[value >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			long bit = 1L << value;
+			if ((words[value >>> 6] & bit) != 0) {
+				words[value >>> 6] &= ~bit;
+				cardinality--;
+				if (cardinality <= ARRAY_MAX) {
+					return toArray();
+				}
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			BitmapContainer result = new BitmapContainer();
+			long[] otherWords = ((BitmapContainer) other).words;
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				result.words[w] = words[w] & otherWords[w];
+				result.cardinality += Long.bitCount(result.words[w]);
+			}
+			return result.cardinality <= ARRAY_MAX ? result.toArray() : result;
+		}
+
+		@Override
+		Container or(Container other) {
+			BitmapContainer result = (BitmapContainer) copy();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					result.add(array.values[i]);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				result.cardinality = 0;
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					result.words[w] |= otherWords[w];
+					result.cardinality += Long.bitCount(result.words[w]);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer copy = new BitmapContainer();
+			System.arraycopy(words, 0, copy.words, 0, BITMAP_WORDS);
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		@Override
+		int fill(int[] out, int offset, int high) {
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					out[offset++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+
+		@Override
+		void addCounts(int[] counts, int high) {
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					counts[high | (w << 6) | Long.numberOfTrailingZeros(word)]++;
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		int dataSize() {
+			return BITMAP_WORDS * 8;
+		}
+
+		@Override
+		void writeData(ByteBuffer buffer) {
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				buffer.putLong(words[w]);
+			}
+		}
+
+		ArrayContainer toArray() {
+			char[] values = new char[cardinality];
+			int n = 0;
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, n);
+		}
+	}
+}
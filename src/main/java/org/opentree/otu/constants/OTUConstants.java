@@ -78,6 +78,105 @@ public enum OTUConstants {
 	public static final String TREE_ID_SUFFIX = "TreeId";
 	public static final String WHITESPACE_SUBSTITUTE_FOR_SEARCH = "%s%";
 	public static final String LOCAL_TREEID_PREFIX = "__local_id_";
+
+	/**
+	 * The number of tree nodes to create in each transaction when importing trees. Keeps the transaction state bounded
+	 * for very large trees. Has no effect when trees are imported within an enclosing transaction.
+	 */
+	public static final int TREE_IMPORT_COMMIT_INTERVAL = 10000;
+
+	/**
+	 * The maximum number of nodes the DeferredIndexer adds to the search indexes in a single transaction, and the time it
+	 * waits between checks for new work when the queue is empty.
+	 */
+	public static final int DEFERRED_INDEXING_BATCH_SIZE = 1000;
+	public static final long DEFERRED_INDEXING_POLL_INTERVAL_MS = 1000;
+
+	/**
+	 * How long the automatic migration of the ott id index waits before trying again when another index check or rebuild
+	 * is running. See OTUServiceContext.
+	 */
+	public static final long OTT_ID_INDEX_MIGRATION_RETRY_MS = 60000;
+
+	/**
+	 * The default number of trees committed in each transaction when importing multi-tree newick sources.
+	 */
+	public static final int NEWICK_TREES_PER_TRANSACTION = 10;
+
+	/**
+	 * The name of the file in the graph store directory that holds the OTTIdMap.
+	 */
+	public static final String OTT_ID_MAP_FILE_NAME = "ott_id_map.bin";
+
+	/**
+	 * The number of nodes IndexMaintenance reindexes in each transaction, and the number of node ids it lists as examples
+	 * of missing or stale entries for each index.
+	 */
+	public static final int INDEX_MAINTENANCE_NODES_PER_TRANSACTION = 100;
+	public static final int INDEX_MAINTENANCE_SAMPLE_SIZE = 20;
+
+	/**
+	 * The number of sources returned by a search when no limit is given.
+	 */
+	public static final int SEARCH_DEFAULT_LIMIT = 100;
+
+	/**
+	 * The number of search result pages kept by the SearchCache.
+	 */
+	public static final int SEARCH_CACHE_SIZE = 1000;
+
+	/**
+	 * The name of the file in the graph store directory that holds the TaxonTreeBitmaps, and the smallest number of
+	 * retired tree ordinals that will cause the bitmaps to be compacted.
+	 */
+	public static final String TAXON_TREE_BITMAPS_FILE_NAME = "taxon_tree_bitmaps.bin";
+	public static final int TAXON_TREE_BITMAPS_MIN_RETIRED_FOR_COMPACTION = 10000;
+
+	/**
+	 * The name of the file in the graph store directory that holds the TaxonAutocomplete index, and the number of taxa it
+	 * suggests for each query.
+	 */
+	public static final String TAXON_AUTOCOMPLETE_FILE_NAME = "taxon_autocomplete.bin";
+	public static final int TAXON_AUTOCOMPLETE_MAX_RESULTS = 10;
+
+	/**
+	 * LocalTNRS only looks for approximate matches among names that start with the same LOCAL_TNRS_FUZZY_PREFIX_LENGTH
+	 * characters as the name being matched, and reports at most LOCAL_TNRS_MAX_FUZZY_MATCHES of them for each name. Names
+	 * are matched in parallel, with at least LOCAL_TNRS_MIN_NAMES_PER_THREAD names for each thread. The context reported
+	 * when the names do not share a taxon is LOCAL_TNRS_DEFAULT_CONTEXT_NAME.
+	 */
+	public static final int LOCAL_TNRS_FUZZY_PREFIX_LENGTH = 3;
+	public static final int LOCAL_TNRS_MAX_FUZZY_MATCHES = 10;
+	public static final int LOCAL_TNRS_MIN_NAMES_PER_THREAD = 100;
+	public static final String LOCAL_TNRS_DEFAULT_CONTEXT_NAME = "All life";
+
+	/**
+	 * The default number of names sent in each request to a remote TNRS service, the default number of requests in flight
+	 * at once, and the number of times a request is tried before its names are reported as failed. Retries wait
+	 * TNRS_RETRY_DELAY_MS times the number of attempts so far.
+	 */
+	public static final int TNRS_CHUNK_SIZE = 500;
+	public static final int TNRS_MAX_CONCURRENT_REQUESTS = 4;
+	public static final int TNRS_MAX_ATTEMPTS = 3;
+	public static final long TNRS_RETRY_DELAY_MS = 1000;
+	public static final int TNRS_CONNECT_TIMEOUT_MS = 10000;
+	public static final int TNRS_READ_TIMEOUT_MS = 120000;
+
+	/**
+	 * The name of the file in the graph store directory that holds the TNRSCache, the maximum number of names it keeps,
+	 * and the age after which a cached match is discarded (cached matches are also discarded whenever the taxonomy is
+	 * reinstalled).
+	 */
+	public static final String TNRS_CACHE_FILE_NAME = "tnrs_cache.json";
+	public static final int TNRS_CACHE_MAX_ENTRIES = 200000;
+	public static final long TNRS_CACHE_TTL_MS = 30L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * The default locations of the remote nexsons repo. These can be changed with the REMOTE_NEXSONS_API_URL and
+	 * REMOTE_NEXSONS_RAW_URL graph properties.
+	 */
+	public static final String DEFAULT_REMOTE_NEXSONS_API_URL = "https://bitbucket.org/api/2.0/repositories/blackrim/avatol_nexsons";
+	public static final String DEFAULT_REMOTE_NEXSONS_RAW_URL = "https://bitbucket.org/api/1.0/repositories/blackrim/avatol_nexsons/raw/";
 	
 	/**
 	 * All tree root node properties not specified here are fair game for user editing
@@ -18,7 +18,26 @@ public enum OTUGraphProperty implements OTPropertyPredicate {
 	TAXONOMY_IS_LOADING ("taxonomy_is_loading", boolean.class),
 
 	/** Whether or not the taxonomy has been installed into the OTU db */
-	HAS_TAXONOMY ("has_taxonomy", boolean.class);
+	HAS_TAXONOMY ("has_taxonomy", boolean.class),
+
+	/** An array containing the node ids of the source meta nodes for all sources whose import has not completed */
+	INCOMPLETE_IMPORTS ("incomplete_imports", long[].class),
+
+	/** The base url of the repository api for the remote nexsons repo. Can be a file:// url for a local mirror */
+	REMOTE_NEXSONS_API_URL ("remote_nexsons_api_url", String.class),
+
+	/** The base url for raw nexson files in the remote nexsons repo. Can be a file:// url for a local mirror */
+	REMOTE_NEXSONS_RAW_URL ("remote_nexsons_raw_url", String.class),
+
+	/** The hash of the remote nexsons repo commit that the remote sources were last synced to. Stored separately for each
+	 * location, under this name followed by "_" and the location (see ConfigurationManager.getLastSyncedRemoteCommit) */
+	REMOTE_NEXSONS_LAST_SYNCED_COMMIT ("remote_nexsons_last_synced_commit", String.class),
+
+	/** Whether search indexing should be done in the background by the DeferredIndexer instead of within write transactions */
+	DEFERRED_INDEXING ("deferred_indexing", boolean.class),
+
+	/** The stamp of the current OTTIdMap. Maps with any other stamp are stale and will not be used */
+	OTT_ID_MAP_STAMP ("ott_id_map_stamp", long.class);
 
 	private String propertyName;
 	private final Class<?> type;
@@ -50,6 +50,26 @@ public enum OTUNodeProperty implements OTPropertyPredicate {
 	 * The id of the graph node. This is referenced when storing graph node ids in JadeNode objects for display in the browser.
 	 */
 	NODE_ID ("id", Long.class),
+
+	/**
+	 * A boolean marking a source meta node or tree root node whose import has not yet completed. Large trees are imported
+	 * over several transactions, so if this property is found on a node after an import has finished (e.g. after a crash),
+	 * then the source is incomplete and should be removed. See DatabaseManager.cleanUpIncompleteImports.
+	 */
+	IMPORT_IN_PROGRESS ("import_in_progress", boolean.class),
+
+	/**
+	 * Set on an incomplete source that will replace the existing source with the same source id and location. The existing
+	 * source is kept until the import finishes, and is then found through the source id index and deleted in the same
+	 * transaction that completes the new one, so a failed import leaves it untouched. See DatabaseManager.beginSourceImport.
+	 */
+	REPLACES_EXISTING_SOURCE ("replaces_existing_source", boolean.class),
+
+	/**
+	 * The time (in milliseconds) at which a source meta node or tree root node was queued to be added to the search indexes
+	 * by the DeferredIndexer. Only set while the node is waiting to be indexed.
+	 */
+	PENDING_INDEX_SINCE ("pending_index_since", long.class),
 		
 	// ===== tree root nodes
 
@@ -0,0 +1,22 @@
+package org.opentree.otu.constants;
+
+/**
+ * The orders in which search results can be returned.
+ */
+public enum SearchSort {
+
+	/**
+	 * Best matches first, as scored by the index. Sources are listed in the order of their best matching hit.
+	 */
+	RELEVANCE,
+
+	/**
+	 * By the publication year of the source. Sources without a year are listed last.
+	 */
+	YEAR,
+
+	/**
+	 * By source id.
+	 */
+	SOURCE_ID;
+}
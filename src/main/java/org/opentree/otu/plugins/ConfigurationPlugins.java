@@ -1,5 +1,6 @@
 package org.opentree.otu.plugins;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +11,7 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.server.plugins.Description;
 import org.neo4j.server.plugins.Parameter;
 import org.neo4j.server.plugins.PluginTarget;
@@ -18,11 +20,12 @@ import org.neo4j.server.plugins.Source;
 import org.neo4j.server.rest.repr.OTRepresentationConverter;
 import org.neo4j.server.rest.repr.Representation;
 import org.opentree.graphdb.DatabaseUtils;
-import org.opentree.graphdb.GraphDatabaseAgent;
 import org.opentree.otu.ConfigurationManager;
 import org.opentree.otu.DatabaseBrowser;
 import org.opentree.otu.DatabaseManager;
-import org.opentree.otu.constants.OTUGraphProperty;
+import org.opentree.otu.OTTIdMap;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.TaxonAutocomplete;
 import org.opentree.otu.constants.OTURelType;
 
 public class ConfigurationPlugins extends ServerPlugin {
@@ -30,7 +33,7 @@ public class ConfigurationPlugins extends ServerPlugin {
 	@Description( "" )
 	@PluginTarget( GraphDatabaseService.class )
 	public Representation getNexsonGitDir(@Source GraphDatabaseService graphDb) {
-		ConfigurationManager config = new ConfigurationManager(graphDb);
+		ConfigurationManager config = OTUServiceContext.getInstance(graphDb).getConfig();
 		
 		String dir = config.getNexsonGitDir();
 		Map<String, Object> result = new HashMap<String, Object>();
@@ -45,7 +48,7 @@ public class ConfigurationPlugins extends ServerPlugin {
 			@Description( "Nexson Git Directory String")
 			@Parameter(name = "nexsongitdir", optional = false) String dir) {
 
-		ConfigurationManager config = new ConfigurationManager(graphDb);
+		ConfigurationManager config = OTUServiceContext.getInstance(graphDb).getConfig();
 
 		boolean success = config.setNexsonGitDir(dir);
 
@@ -64,7 +67,7 @@ public class ConfigurationPlugins extends ServerPlugin {
 	public Representation getGraphProperty(@Source GraphDatabaseService graphDb,
 			@Description("The name of the graph property to retrieve") @Parameter(name="propertyName", optional=false) String propertyName) {
 		
-		ConfigurationManager config = new ConfigurationManager(graphDb);
+		ConfigurationManager config = OTUServiceContext.getInstance(graphDb).getConfig();
 		Object value = config.getGraphProperty(propertyName);
 		
 		Map<String, Object> result = new HashMap<String, Object>();
@@ -89,7 +92,7 @@ public class ConfigurationPlugins extends ServerPlugin {
 			@Description("The datatype of the value. This is case-insensitive and must be one of 'boolean', 'integer', 'decimal', or 'string'.")
 				@Parameter(name="type", optional=false) String type) {
 		
-		ConfigurationManager config = new ConfigurationManager(graphDb);
+		ConfigurationManager config = OTUServiceContext.getInstance(graphDb).getConfig();
 		config.setGraphProperty(propertyName, value, type);
 		
 		Map<String, Object> result = new HashMap<String, Object>();
@@ -101,10 +104,15 @@ public class ConfigurationPlugins extends ServerPlugin {
 	@PluginTarget( GraphDatabaseService.class )
 	public Representation installOTT(@Source GraphDatabaseService graphDb,
 			@Description( "Taxonomy file")
-			@Parameter(name = "taxonomyFile", optional = false) String taxonomyFile) {
+			@Parameter(name = "taxonomyFile", optional = false) String taxonomyFile,
+			@Description( "Synonym file for the taxonomy. The synonyms are only used to autocomplete taxon names")
+			@Parameter(name = "synonymFile", optional = true) String synonymFile) {
 
-		GraphDatabaseAgent gdb = new GraphDatabaseAgent(graphDb);
-		gdb.setGraphProperty(OTUGraphProperty.TAXONOMY_IS_LOADING.propertyName(), true);
+		ConfigurationManager config = OTUServiceContext.getInstance(graphDb).getConfig();
+		config.setTaxonomyLoading(true);
+		
+		// any existing ott id map will be stale once the taxonomy is reloaded
+		config.removeOTTIdMapStamp();
 		
 		TaxonomyLoaderOTT loader = new TaxonomyLoaderOTT(graphDb);
 
@@ -119,11 +127,33 @@ public class ConfigurationPlugins extends ServerPlugin {
 		
 		loader.loadOTTIntoGraph("ott", taxonomyFile, "");
 		
-		gdb.setGraphProperty(OTUGraphProperty.HAS_TAXONOMY.propertyName(), true);
-		gdb.removeGraphProperty(OTUGraphProperty.TAXONOMY_IS_LOADING);
+		config.setHasTaxonomy();
+		config.setTaxonomyLoading(false);
 		
 		Map<String, Object> results = new HashMap<String, Object>();
 		results.put("event", "success");
+		results.putAll(buildOTTIdMap(graphDb, taxonomyFile, synonymFile));
+		return OTRepresentationConverter.convert(results);
+	}
+
+	@Description( "Rebuild the map used to find taxonomy nodes by ott id, and the index used to autocomplete taxon names. This is done "
+			+ "automatically by installOTT, and only needs to be done for taxonomies installed before the map existed. Without the map, "
+			+ "taxonomy nodes are found using the lucene ott id index, and taxon names are autocompleted by the remote TNRS service." )
+	@PluginTarget( GraphDatabaseService.class )
+	public Representation rebuildOTTIdMap(@Source GraphDatabaseService graphDb,
+			@Description( "The taxonomy file that was installed")
+			@Parameter(name = "taxonomyFile", optional = false) String taxonomyFile,
+			@Description( "Synonym file for the taxonomy. The synonyms are only used to autocomplete taxon names")
+			@Parameter(name = "synonymFile", optional = true) String synonymFile) {
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		if (!OTUServiceContext.getInstance(graphDb).getConfig().hasTaxonomy()) {
+			results.put("event", "failure");
+			results.put("message", "there is no taxonomy installed");
+		} else {
+			results.put("event", "success");
+			results.putAll(buildOTTIdMap(graphDb, taxonomyFile, synonymFile));
+		}
 		return OTRepresentationConverter.convert(results);
 	}
 
@@ -131,8 +161,9 @@ public class ConfigurationPlugins extends ServerPlugin {
 	@PluginTarget( GraphDatabaseService.class )
 	public Representation connectAllTreesToOTT(@Source GraphDatabaseService graphDb) {
 
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		OTUServiceContext context = OTUServiceContext.getInstance(graphDb);
+		DatabaseBrowser browser = context.getBrowser();
+		DatabaseManager manager = context.getManager();
 
 		List<String> localSourceIds = browser.getSourceIds(DatabaseBrowser.LOCAL_LOCATION);
 
@@ -156,4 +187,32 @@ public class ConfigurationPlugins extends ServerPlugin {
 		result.put("event", "success");
 		return OTRepresentationConverter.convert(result);		
 	}
+	
+	/**
+	 * Build the ott id map and the taxon autocomplete index, and record their stamp. If they cannot be built the taxonomy is
+	 * still usable through the lucene index and the remote TNRS service, so failures are reported rather than thrown.
+	 */
+	private Map<String, Object> buildOTTIdMap(GraphDatabaseService graphDb, String taxonomyFile, String synonymFile) {
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		String storeDir = ((GraphDatabaseAPI) graphDb).getStoreDir();
+		long stamp = System.currentTimeMillis();
+		try {
+			int size = OTTIdMap.build(graphDb, storeDir, taxonomyFile, stamp);
+			results.put("ott_id_map_size", size);
+		} catch (IOException ex) {
+			results.put("ott_id_map_error", ex.toString());
+			return results;
+		}
+		try {
+			int size = TaxonAutocomplete.build(OTTIdMap.forStoreDir(storeDir, stamp), storeDir, taxonomyFile, synonymFile, stamp);
+			results.put("taxon_autocomplete_size", size);
+		} catch (IOException ex) {
+			results.put("taxon_autocomplete_error", ex.toString());
+		} catch (IllegalArgumentException ex) {
+			results.put("taxon_autocomplete_error", ex.toString());
+		}
+		OTUServiceContext.getInstance(graphDb).getConfig().setOTTIdMapStamp(stamp);
+		return results;
+	}
 }
@@ -1,20 +1,25 @@
 package org.opentree.otu.plugins;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
-import org.json.simple.JSONObject;
-import org.json.simple.JSONArray;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.server.plugins.Description;
 import org.neo4j.server.plugins.Parameter;
 import org.neo4j.server.plugins.PluginTarget;
@@ -28,8 +33,24 @@ import org.neo4j.server.rest.repr.ValueRepresentation;
 import org.opentree.MessageLogger;
 import org.opentree.nexson.io.NexsonReader;
 import org.opentree.nexson.io.NexsonSource;
+import org.opentree.otu.CompoundQuery;
+import org.opentree.otu.ConfigurationManager;
 import org.opentree.otu.DatabaseBrowser;
 import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.DeferredIndexer;
+import org.opentree.otu.IndexMaintenance;
+import org.opentree.otu.NexsonImportPipeline;
+import org.opentree.otu.NexsonImportPipeline.ImportReport;
+import org.opentree.otu.NexsonImportPipeline.NexsonInput;
+import org.opentree.otu.OTUNodeIndex;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.RemoteNexsonSync;
+import org.opentree.otu.SearchResults;
+import org.opentree.otu.TNRSCache;
+import org.opentree.otu.TaxonTreeBitmaps;
+import org.opentree.otu.constants.OTUConstants;
+import org.opentree.otu.constants.OTUNodeProperty;
+import org.opentree.otu.constants.SearchSort;
 import org.opentree.otu.constants.SearchableProperty;
 import org.opentree.otu.exceptions.DuplicateSourceException;
 
@@ -41,9 +62,6 @@ import org.opentree.otu.exceptions.DuplicateSourceException;
  */
 public class Indexing extends ServerPlugin {
 
-	private String nexsonCommitsURLStr = "https://bitbucket.org/api/2.0/repositories/blackrim/avatol_nexsons/commits";
-	private String nexsonsBaseURL = "https://bitbucket.org/api/1.0/repositories/blackrim/avatol_nexsons/raw/";
-
 	/**
 	 * Return the url of the most recent commit in the public repo. Facilitates working with these independently in javascript.
 	 * 
@@ -57,14 +75,9 @@ public class Indexing extends ServerPlugin {
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getMostCurrentNexsonsURL(@Source GraphDatabaseService graphDb) throws InterruptedException, IOException, ParseException {
 
-		JSONParser parser = new JSONParser();
-
-		// get the commits from the public repo
-		BufferedReader nexsonCommits = new BufferedReader(new InputStreamReader(new URL(nexsonCommitsURLStr).openStream()));
-		JSONObject commitsJSON = (JSONObject) parser.parse(nexsonCommits);
-
-		// get just the most recent commit
-		String mostRecentCommitHash = (String) ((JSONObject) ((JSONArray) commitsJSON.get("values")).get(0)).get("hash");
+		// get the most recent commit from the public repo
+		String mostRecentCommitHash = new RemoteNexsonSync(graphDb).getMostRecentCommit();
+		String nexsonsBaseURL = OTUServiceContext.getInstance(graphDb).getConfig().getRemoteNexsonsRawURL();
 
 		Map<String, Object> result = new HashMap<String, Object>();
 		result.put("base_url", nexsonsBaseURL);
@@ -130,17 +143,322 @@ public class Indexing extends ServerPlugin {
 			@Description("source id under which this source will be indexed locally")
 				@Parameter(name = "sourceId", optional = false) String sourceId) throws MalformedURLException, IOException, DuplicateSourceException {
 
-		DatabaseManager dm = new DatabaseManager(graphDb);
+		DatabaseManager dm = OTUServiceContext.getInstance(graphDb).getManager();
 		NexsonSource source = readRemoteNexson(url, sourceId);
 
 		if (source.getTrees().iterator().hasNext() == false) {
 			return ValueRepresentation.bool(false);
 		} else {
-			dm.addSource(source, "remote", true);
+			dm.addSource(source, DatabaseManager.REMOTE_LOCATION, true);
 			return ValueRepresentation.bool(true);
 		} 
 	}
 	
+	/**
+	 * Import all the nexsons in a local directory using the NexsonImportPipeline. Nexsons are parsed in parallel and
+	 * committed in batches by a single writer.
+	 *
+	 * @param graphDb
+	 * @param dir
+	 * @param nThreads
+	 * @param queueCapacity
+	 * @param studiesPerTransaction
+	 * @param location
+	 * @param overwrite
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Description("Import all the nexson files in a local directory. Nexsons are parsed in parallel and written to the database in batches. "
+			+ "Returns a report containing the ids of the added sources, any failures, and the import rate.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation importNexsonDirectory(@Source GraphDatabaseService graphDb,
+			@Description("The directory containing the nexson files. Defaults to the configured nexson git directory.")
+				@Parameter(name = "dir", optional = true) String dir,
+			@Description("The number of parser threads. Defaults to the number of available processors.")
+				@Parameter(name = "nThreads", optional = true) Integer nThreads,
+			@Description("The maximum number of parsed studies waiting to be written. Defaults to twice the number of threads.")
+				@Parameter(name = "queueCapacity", optional = true) Integer queueCapacity,
+			@Description("The maximum number of studies committed in a single transaction. Defaults to 10. Studies with many tips are "
+					+ "committed on their own.")
+				@Parameter(name = "studiesPerTransaction", optional = true) Integer studiesPerTransaction,
+			@Description("The location under which to record the sources. Defaults to 'local'.")
+				@Parameter(name = "location", optional = true) String location,
+			@Description("Whether to replace existing sources with the same ids. Defaults to false.")
+				@Parameter(name = "overwrite", optional = true) Boolean overwrite) throws InterruptedException {
+
+		if (dir == null) {
+			dir = OTUServiceContext.getInstance(graphDb).getConfig().getNexsonGitDir();
+			if (dir == null) {
+				throw new IllegalArgumentException("No directory was specified and the nexson git directory has not been configured.");
+			}
+		}
+		if (nThreads == null) {
+			nThreads = Runtime.getRuntime().availableProcessors();
+		}
+		if (queueCapacity == null) {
+			queueCapacity = nThreads * 2;
+		}
+		if (studiesPerTransaction == null) {
+			studiesPerTransaction = 10;
+		}
+
+		NexsonImportPipeline pipeline = new NexsonImportPipeline(graphDb, nThreads, queueCapacity, studiesPerTransaction);
+		ImportReport report = pipeline.run(NexsonInput.fromDirectory(new File(dir)),
+				location == null ? DatabaseManager.LOCAL_LOCATION : location,
+				overwrite == null ? false : overwrite);
+
+		return OTRepresentationConverter.convert(report.toMap());
+	}
+
+	/**
+	 * Sync the remote sources with the most recent commit in the remote nexsons repo.
+	 * 
+	 * @param graphDb
+	 * @param location
+	 * @return
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	@Description("Update the remote sources to match the most recent commit in the remote nexsons repo. Only the studies that have been added, "
+			+ "changed, or removed since the last sync of this location are fetched, and each change is applied on its own. If any change fails, "
+			+ "the others are kept and the failed ones are tried again by the next sync. The remote repo urls can be set with the "
+			+ "REMOTE_NEXSONS_API_URL and REMOTE_NEXSONS_RAW_URL graph properties. Returns a report of the changes.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation syncRemoteNexsons(@Source GraphDatabaseService graphDb,
+			@Description("The location under which the remote sources are stored. Defaults to 'remote'.")
+				@Parameter(name = "location", optional = true) String location) throws IOException, ParseException {
+
+		RemoteNexsonSync sync = new RemoteNexsonSync(graphDb);
+		return OTRepresentationConverter.convert(sync.sync(location == null ? DatabaseManager.REMOTE_LOCATION : location).toMap());
+	}
+
+	/**
+	 * Remove any sources whose import was interrupted before it completed.
+	 * 
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Remove any sources whose import was interrupted (e.g. by a server crash) before it completed. Returns a list of the "
+			+ "source ids for the sources that were removed. Should not be called while sources are being imported.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation cleanUpIncompleteImports(@Source GraphDatabaseService graphDb) {
+		DatabaseManager dm = OTUServiceContext.getInstance(graphDb).getManager();
+		return ListRepresentation.string(dm.cleanUpIncompleteImports());
+	}
+
+	/**
+	 * Report how far the search indexes are behind the graph when deferred indexing is on.
+	 * 
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Return the number of sources and trees that are waiting to be added to the search indexes, and the age in milliseconds of the "
+			+ "oldest waiting change. These are always zero unless deferred indexing has been turned on with the DEFERRED_INDEXING graph property.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getIndexLag(@Source GraphDatabaseService graphDb) {
+		return OTRepresentationConverter.convert(DeferredIndexer.getIndexLag(graphDb));
+	}
+
+	/**
+	 * Wait for the deferred indexer to empty its queue.
+	 * 
+	 * @param graphDb
+	 * @param timeoutSeconds
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Description("Wait until all the sources and trees waiting to be added to the search indexes have been indexed. Returns true if the "
+			+ "search indexes caught up before the timeout, and false otherwise.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation awaitIndexCatchUp(@Source GraphDatabaseService graphDb,
+			@Description("The maximum number of seconds to wait. Defaults to 60.")
+				@Parameter(name = "timeoutSeconds", optional = true) Integer timeoutSeconds) throws InterruptedException {
+
+		if (timeoutSeconds == null) {
+			timeoutSeconds = 60;
+		}
+		boolean caughtUp = DeferredIndexer.getInstance(graphDb).awaitCatchUp(timeoutSeconds * 1000L);
+		return ValueRepresentation.bool(caughtUp);
+	}
+
+	/**
+	 * Check all the indexes against the graph.
+	 * 
+	 * @param graphDb
+	 * @param nThreads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Description("Check every index against the graph. Returns, for each index, the number of nodes that should be in it and the number "
+			+ "that are, along with the number (and a sample of the ids) of nodes that are missing from it or should no longer be in it. "
+			+ "Does not change the database, and can be run while the server is in use.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation checkIndexes(@Source GraphDatabaseService graphDb,
+			@Description("The number of threads used to walk the graph. Defaults to the number of available processors.")
+				@Parameter(name = "nThreads", optional = true) Integer nThreads) throws InterruptedException {
+
+		IndexMaintenance maintenance = new IndexMaintenance(graphDb, nThreads == null ? Runtime.getRuntime().availableProcessors() : nThreads);
+		return OTRepresentationConverter.convert(maintenance.check());
+	}
+
+	/**
+	 * Rebuild some or all of the indexes from the graph.
+	 * 
+	 * @param graphDb
+	 * @param indexes
+	 * @param nThreads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Description("Rebuild indexes from the graph. Each node's entries are replaced in small transactions and stale entries are removed, "
+			+ "so the indexes remain available for searching while they are rebuilt. Returns the same report as checkIndexes, made after the "
+			+ "entries were rewritten, so it lists the stale nodes that were removed. Progress can be followed with getIndexMaintenanceStatus.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation rebuildIndexes(@Source GraphDatabaseService graphDb,
+			@Description("The names of the indexes to rebuild, e.g. TREE_ROOT_NODES_BY_ORIGINAL_TAXON_NAME. Defaults to all indexes.")
+				@Parameter(name = "indexes", optional = true) String[] indexes,
+			@Description("The number of threads used to rebuild the indexes. Defaults to the number of available processors.")
+				@Parameter(name = "nThreads", optional = true) Integer nThreads) throws InterruptedException {
+
+		Set<OTUNodeIndex> toRebuild = null;
+		if (indexes != null && indexes.length > 0) {
+			toRebuild = EnumSet.noneOf(OTUNodeIndex.class);
+			for (String index : indexes) {
+				toRebuild.add(OTUNodeIndex.valueOf(index));
+			}
+		}
+
+		IndexMaintenance maintenance = new IndexMaintenance(graphDb, nThreads == null ? Runtime.getRuntime().availableProcessors() : nThreads);
+		return OTRepresentationConverter.convert(maintenance.rebuild(toRebuild));
+	}
+
+	/**
+	 * Report the progress of a running index check or rebuild.
+	 * 
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Return the progress of the running index check or rebuild: the current phase, the number of sources processed so far out "
+			+ "of the total, and the processing rate.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getIndexMaintenanceStatus(@Source GraphDatabaseService graphDb) {
+		return OTRepresentationConverter.convert(IndexMaintenance.getStatus());
+	}
+
+	/**
+	 * Move the ott id entries from the old fulltext index to the numeric one.
+	 * 
+	 * @param graphDb
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Description("Rebuild the tree root ott id index as an exact numeric index, and remove the fulltext ott id index used by earlier versions. "
+			+ "Returns the rebuild report, or false if there was nothing to migrate. This is also started automatically in the background "
+			+ "when the database is first used, and ott id searches read both indexes until it has finished.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation migrateOTTIdIndex(@Source GraphDatabaseService graphDb) throws InterruptedException {
+		Map<String, Object> report = new IndexMaintenance(graphDb, Runtime.getRuntime().availableProcessors()).migrateFulltextOTTIdIndex();
+		return report == null ? ValueRepresentation.bool(false) : OTRepresentationConverter.convert(report);
+	}
+
+	/**
+	 * Find the trees containing any of a set of ott ids, or any ott id within a range.
+	 * 
+	 * @param graphDb
+	 * @param ottIds
+	 * @param minOTTId
+	 * @param maxOTTId
+	 * @return
+	 */
+	@Description("Get the ids of the trees that contain any of the specified ott ids, or any ott id in the range from minOTTId to maxOTTId "
+			+ "(inclusive). Either ottIds or both minOTTId and maxOTTId must be supplied. All the ids are matched in a single index search.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation searchTreesByOTTIds(@Source GraphDatabaseService graphDb,
+			@Description("The ott ids to search for") @Parameter(name = "ottIds", optional = true) String[] ottIds,
+			@Description("The smallest ott id in the range to search for") @Parameter(name = "minOTTId", optional = true) Long minOTTId,
+			@Description("The largest ott id in the range to search for") @Parameter(name = "maxOTTId", optional = true) Long maxOTTId) {
+
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
+		List<Node> roots;
+		if (ottIds != null && ottIds.length > 0) {
+			long[] ids = new long[ottIds.length];
+			for (int i = 0; i < ottIds.length; i++) {
+				ids[i] = Long.valueOf(ottIds[i].trim());
+			}
+			roots = browser.getTreeRootNodesForOTTIds(ids);
+		} else if (minOTTId != null && maxOTTId != null) {
+			roots = browser.getTreeRootNodesForOTTIdRange(minOTTId, maxOTTId);
+		} else {
+			throw new IllegalArgumentException("Either ottIds or both minOTTId and maxOTTId must be supplied.");
+		}
+
+		List<String> treeIds = new ArrayList<String>();
+		for (Node root : roots) {
+			treeIds.add((String) root.getProperty(OTUNodeProperty.TREE_ID.propertyName()));
+		}
+		return ListRepresentation.string(treeIds);
+	}
+
+	/**
+	 * Get the ids of the trees that contain all, any, or at least some number of the specified ott ids, using the taxon
+	 * tree bitmaps.
+	 * @param graphDb
+	 * @param ottIds
+	 * @param match
+	 * @param minMatches
+	 * @return
+	 */
+	@Description("Get the ids of the trees that contain all of the specified ott ids, any of them, or at least minMatches of them. The "
+			+ "query is answered from in-memory bitmaps of the trees containing each ott id, which are loaded or built on first use.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation searchTreesByTaxonSet(@Source GraphDatabaseService graphDb,
+			@Description("The ott ids to search for") @Parameter(name = "ottIds", optional = false) String[] ottIds,
+			@Description("One of 'all' (the default), 'any' or 'at_least'") @Parameter(name = "match", optional = true) String match,
+			@Description("The number of the ott ids a tree must contain when match is 'at_least'")
+				@Parameter(name = "minMatches", optional = true) Integer minMatches) {
+
+		long[] ids = new long[ottIds.length];
+		for (int i = 0; i < ottIds.length; i++) {
+			ids[i] = Long.valueOf(ottIds[i].trim());
+		}
+
+		TaxonTreeBitmaps treeBitmaps = OTUServiceContext.getInstance(graphDb).getTreeBitmaps();
+		List<Long> rootIds;
+		if (match == null || match.equalsIgnoreCase("all")) {
+			rootIds = treeBitmaps.findTreesWithAll(ids);
+		} else if (match.equalsIgnoreCase("any")) {
+			rootIds = treeBitmaps.findTreesWithAny(ids);
+		} else if (match.equalsIgnoreCase("at_least") && minMatches != null) {
+			rootIds = treeBitmaps.findTreesWithAtLeast(ids, minMatches);
+		} else {
+			throw new IllegalArgumentException("match must be 'all', 'any' or 'at_least', and minMatches must be given for 'at_least'.");
+		}
+
+		List<String> treeIds = new ArrayList<String>();
+		for (Long rootId : rootIds) {
+			try {
+				treeIds.add((String) graphDb.getNodeById(rootId).getProperty(OTUNodeProperty.TREE_ID.propertyName()));
+			} catch (NotFoundException ex) {
+				// deleted by a transaction whose changes have not been applied to the bitmaps yet
+			}
+		}
+		return ListRepresentation.string(treeIds);
+	}
+
+	/**
+	 * Rebuild the taxon tree bitmaps from the ott id index
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Rebuild the bitmaps used by searchTreesByTaxonSet from the ott id index, and save them. Only needed if trees have been "
+			+ "indexed by other means than this server. Returns the numbers of trees and ott ids in the bitmaps.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation rebuildTaxonTreeBitmaps(@Source GraphDatabaseService graphDb) {
+		TaxonTreeBitmaps treeBitmaps = OTUServiceContext.getInstance(graphDb).getTreeBitmaps();
+		treeBitmaps.rebuild();
+		return OTRepresentationConverter.convert(treeBitmaps.getStats());
+	}
+
 	/**
 	 * Return a map containing available property names and the names of the SearchableProperty enum elements they
 	 * correspond to.
@@ -161,23 +479,107 @@ public class Indexing extends ServerPlugin {
 	}
 
 	/**
-	 * Perform a basic search on the stored indexes
+	 * Perform a basic search on the stored indexes, and return one page of the results
 	 * @param graphDb
 	 * @param propertyName
 	 * @param value
 	 * @return
 	 */
-	@Description("Get a list of properties that can be searched")
+	@Description("Search the stored indexes. Returns one page of the ids of the matching sources (source_ids), whether there are more "
+			+ "sources after the page (has_more), and the total number of index hits for the search (total_hits). A source with several "
+			+ "matching trees is hit once for each tree.")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation search(@Source GraphDatabaseService graphDb,
 			@Description("The property to be searched on. A list of searchable properties is available from the getSearchableProperties service.")
 				@Parameter(name = "property", optional = false) String property,
 			@Description("The value to be searched. This must be passed as a string, but will be converted to the datatype corresponding to the "
-					+ "specified searchable value.") @Parameter(name = "value", optional = false) String value) {
+					+ "specified searchable value.") @Parameter(name = "value", optional = false) String value,
+			@Description("The maximum number of sources to return. Defaults to " + OTUConstants.SEARCH_DEFAULT_LIMIT + ".")
+				@Parameter(name = "limit", optional = true) Integer limit,
+			@Description("The number of sources to skip. Defaults to 0.") @Parameter(name = "offset", optional = true) Integer offset,
+			@Description("The order of the results: one of 'relevance' (the default), 'year' or 'source_id'.")
+				@Parameter(name = "sortBy", optional = true) String sortBy,
+			@Description("If true, the year and source_id orders are reversed. Relevance is always best first.")
+				@Parameter(name = "descending", optional = true) Boolean descending) {
 		
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		OTUServiceContext context = OTUServiceContext.getInstance(graphDb);
 		SearchableProperty searchProperty = SearchableProperty.valueOf(property);
-		return ListRepresentation.string(browser.doBasicSearch(searchProperty, value));
+		SearchSort sort = sortBy == null ? SearchSort.RELEVANCE : SearchSort.valueOf(sortBy.toUpperCase());
+		
+		SearchResults results = context.getSearchCache().search(context.getBrowser(), searchProperty, value, sort,
+				descending != null && descending, offset == null ? 0 : offset, limit == null ? OTUConstants.SEARCH_DEFAULT_LIMIT : limit);
+		return OTRepresentationConverter.convert(results.toMap());
+	}
+
+	/**
+	 * Perform a boolean combination of basic searches, and return the matching trees
+	 * @param graphDb
+	 * @param query
+	 * @return
+	 * @throws ParseException
+	 */
+	@Description("Find the trees matching a boolean combination of searches. The query is JSON: a clause is {\"property\": \"TAG_TREE\", "
+			+ "\"value\": \"x\"}, using the searchable property names, and clauses are combined with {\"and\": [...]}, {\"or\": [...]} and "
+			+ "{\"not\": {...}}. A 'not' can only appear in an 'and' with another clause. A clause on a source property matches all the "
+			+ "trees of the matching sources. Returns the ids of the matching trees (tree_ids) and of their sources (source_ids).")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation compoundSearch(@Source GraphDatabaseService graphDb,
+			@Description("The query, as JSON") @Parameter(name = "query", optional = false) String query) throws ParseException {
+
+		CompoundQuery compoundQuery = CompoundQuery.fromJSON(new JSONParser().parse(query));
+		List<Node> roots = compoundQuery.findTreeRoots(OTUServiceContext.getInstance(graphDb).getBrowser());
+
+		Set<String> treeIds = new TreeSet<String>();
+		Set<String> sourceIds = new TreeSet<String>();
+		for (Node root : roots) {
+			treeIds.add((String) root.getProperty(OTUNodeProperty.TREE_ID.propertyName()));
+			if (root.hasProperty(OTUNodeProperty.SOURCE_ID.propertyName())) {
+				sourceIds.add((String) root.getProperty(OTUNodeProperty.SOURCE_ID.propertyName()));
+			}
+		}
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		results.put("tree_ids", new ArrayList<String>(treeIds));
+		results.put("source_ids", new ArrayList<String>(sourceIds));
+		return OTRepresentationConverter.convert(results);
+	}
+
+	/**
+	 * Report the search cache counters
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Return the numbers of search cache hits, misses, evictions and invalidations (pages discarded because an index they were "
+			+ "read from has changed), and the number of cached pages.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getSearchCacheStats(@Source GraphDatabaseService graphDb) {
+		return OTRepresentationConverter.convert(OTUServiceContext.getInstance(graphDb).getSearchCache().getStats());
+	}
+
+	/**
+	 * Report the TNRS cache counters
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Return the numbers of TNRS cache hits and misses (names that did and did not have to be sent to the TNRS), "
+			+ "evictions and expirations (matches discarded because they were too old or the taxonomy has changed), and the number "
+			+ "of cached names.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation getTNRSCacheStats(@Source GraphDatabaseService graphDb) {
+		return OTRepresentationConverter.convert(OTUServiceContext.getInstance(graphDb).getTNRSCache().getStats());
+	}
+
+	/**
+	 * Remove all the cached TNRS matches
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Remove all the cached TNRS matches, so that every name is sent to the TNRS again.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation clearTNRSCache(@Source GraphDatabaseService graphDb) {
+		TNRSCache tnrsCache = OTUServiceContext.getInstance(graphDb).getTNRSCache();
+		tnrsCache.clear();
+		return OTRepresentationConverter.convert(tnrsCache.getStats());
 	}
 
 	/**
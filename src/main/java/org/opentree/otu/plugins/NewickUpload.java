@@ -0,0 +1,55 @@
+package org.opentree.otu.plugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.simple.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * An unmanaged extension for uploading files of newick trees as the raw request body. Trees are streamed from the request
+ * body directly into the NewickSourceImporter, so files with any number of trees can be uploaded. See NexsonUpload for how
+ * to enable these extensions.
+ *
+ * Newick files can then be uploaded with e.g.:
+ *
+ * curl -X POST http://localhost:7474/otu/newick/mySourceId?treesPerTransaction=20 -H "Content-Type: text/plain" --data-binary @trees.tre
+ */
+@Path("/newick")
+public class NewickUpload {
+
+	private final GraphDatabaseService graphDb;
+
+	public NewickUpload(@Context GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	@POST
+	@Path("/{sourceId}")
+	@Consumes({MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM})
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response putSourceNewick(@PathParam("sourceId") String sourceId, @QueryParam("treesPerTransaction") Integer treesPerTransaction,
+			InputStream body) throws IOException {
+
+		BufferedReader newick = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+		try {
+			Map<String, Object> result = sourceJsons.importNewick(graphDb, newick, sourceId, treesPerTransaction);
+			return Response.ok(JSONObject.toJSONString(result), MediaType.APPLICATION_JSON).build();
+		} finally {
+			newick.close();
+		}
+	}
+}
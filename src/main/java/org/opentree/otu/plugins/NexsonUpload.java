@@ -0,0 +1,57 @@
+package org.opentree.otu.plugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.simple.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * An unmanaged extension for uploading nexsons as the raw request body. Server plugins receive their parameters as a
+ * fully parsed json document, which means very large nexsons are held in memory several times over before they reach
+ * the importer. This resource instead streams the request body directly into the StreamingNexsonImporter.
+ *
+ * To enable it, add the following line to conf/neo4j-server.properties (setup_otu.sh does this automatically):
+ *
+ * org.neo4j.server.thirdparty_jaxrs_classes=org.opentree.otu.plugins=/otu
+ *
+ * Nexsons can then be uploaded with e.g.:
+ *
+ * curl -X POST http://localhost:7474/otu/nexson/mySourceId -H "Content-Type: application/json" --data-binary @study.json
+ */
+@Path("/nexson")
+public class NexsonUpload {
+
+	private final GraphDatabaseService graphDb;
+
+	public NexsonUpload(@Context GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	@POST
+	@Path("/{sourceId}")
+	@Consumes({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM, MediaType.TEXT_PLAIN})
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response putSourceNexson(@PathParam("sourceId") String sourceId, InputStream body) throws IOException {
+
+		BufferedReader nexson = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+		try {
+			Map<String, Object> result = sourceJsons.importNexson(graphDb, nexson, sourceId);
+			return Response.ok(JSONObject.toJSONString(result), MediaType.APPLICATION_JSON).build();
+		} finally {
+			nexson.close();
+		}
+	}
+}
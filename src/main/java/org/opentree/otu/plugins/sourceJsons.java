@@ -1,6 +1,10 @@
 package org.opentree.otu.plugins;
 
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -24,16 +28,18 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.Traversal;
 import org.neo4j.server.plugins.*;
 import org.neo4j.server.rest.repr.OTRepresentationConverter;
 import org.neo4j.server.rest.repr.Representation;
-import org.opentree.MessageLogger;
 import org.opentree.graphdb.GraphDatabaseAgent;
-import org.opentree.nexson.io.NexsonReader;
-import org.opentree.nexson.io.NexsonSource;
 import org.opentree.otu.DatabaseBrowser;
 import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.NewickSourceImporter;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.StreamingNexsonImporter;
+import org.opentree.otu.TaxonAutocomplete;
 import org.opentree.otu.constants.OTUConstants;
 import org.opentree.otu.OTUDatabaseUtils;
 import org.opentree.otu.constants.OTUGraphProperty;
@@ -60,7 +66,7 @@ public class sourceJsons extends ServerPlugin {
 				excludedTreeIds.add((String) tid);
 			}
 		}
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);	
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();	
 		Map<String, Object> results = new HashMap<String, Object>();
 		results.put("trees", browser.getTreeIdsForSourceId(browser.LOCAL_LOCATION, "*", excludedTreeIds));
 		return OTRepresentationConverter.convert(results);
@@ -78,7 +84,7 @@ public class sourceJsons extends ServerPlugin {
 				excludedTreeIds.add((String) tid);
 			}
 		}
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		Map<String, Object> results = new HashMap<String, Object>();
 		results.put("trees", browser.getTreeIdsForSourceId(browser.LOCAL_LOCATION, sourceId, excludedTreeIds));
 		return OTRepresentationConverter.convert(results);
@@ -94,7 +100,7 @@ public class sourceJsons extends ServerPlugin {
 				excludedSourceIds.add((String) sid);
 			}
 		}
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		Map<String, Object> results = new HashMap<String, Object>();
 		results.put("sources", browser.getSourceIds(browser.LOCAL_LOCATION, excludedSourceIds));
 		return OTRepresentationConverter.convert(results);
@@ -106,32 +112,14 @@ public class sourceJsons extends ServerPlugin {
 	 * @param nodeid
 	 * @return
 	 */
-	@Description("Load a single newick tree into the graph") // TODO: this crashes the db (at least sometimes?)... Not sure why
+	@Description("Load a single newick tree into the graph")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation putSourceNewickSingle(
 			@Source GraphDatabaseService graphDb,
 			@Description("A string to be used as the source id for for this source. Source ids must be unique.") @Parameter(name = "sourceId", optional = false) String sourceId,
 			@Description("A newick string containing the tree to be added.") @Parameter(name = "newickString", optional = false) String newickString) {
 
-		Map<String, Object> result = new HashMap<String, Object>();
-		
-		GraphDatabaseAgent gdb = new GraphDatabaseAgent(graphDb);
-		DatabaseManager dm = new DatabaseManager(gdb);
-		NexsonSource source = new NexsonSource(sourceId);
-
-		TreeReader tr = new TreeReader();
-		source.addTree(tr.readTree(newickString));
-
-		try {
-			dm.addSource(source, DatabaseManager.LOCAL_LOCATION);
-		} catch (DuplicateSourceException e) {
-			result.put("event", "warning");
-			result.put("message", "A local source with id " + sourceId + " already exists in the database.");
-		}
-	
-		result.put("event", "added");
-		result.put("sourceId", sourceId);
-		return OTRepresentationConverter.convert(result);
+		return OTRepresentationConverter.convert(importNewick(graphDb, new StringReader(newickString), sourceId, null));
 	}
 
 	/**
@@ -140,55 +128,185 @@ public class sourceJsons extends ServerPlugin {
 	 * @param graphDb
 	 * @param sourceId
 	 * @param newickString
+	 * @param treesPerTransaction
 	 * @return
 	 */
-	@Description("Incomplete placeholder for multi-tree upload")
+	@Description("Load one or more newick trees into the graph as a single source. Trees are separated by semicolons. Returns the "
+			+ "tree id and number of tips for each tree.")
 	@PluginTarget(GraphDatabaseService.class)
-	public String putSourceNewickMultiple(
+	public Representation putSourceNewickMultiple(
 			@Source GraphDatabaseService graphDb,
 			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
 			@Parameter(name = "sourceId", optional = false) String sourceId,
-			@Description("A newick string containing the tree to be added.")
-			@Parameter(name = "newickString", optional = false) String newickString) {
+			@Description("A string containing the newick trees to be added.")
+			@Parameter(name = "newickString", optional = false) String newickString,
+			@Description("The number of trees to commit in each transaction. Defaults to 10.")
+			@Parameter(name = "treesPerTransaction", optional = true) Integer treesPerTransaction) {
 
-		return null;
+		return OTRepresentationConverter.convert(importNewick(graphDb, new StringReader(newickString), sourceId, treesPerTransaction));
 	}
 
-	@Description("Load a nexson file into the graph database")
+	/**
+	 * Load a file of newick trees from the server. Trees are read from the file one at a time, so this should be used instead
+	 * of putSourceNewickMultiple for files with many trees. For uploading newick files that are not on the server, see NewickUpload.
+	 * 
+	 * @param graphDb
+	 * @param sourceId
+	 * @param path
+	 * @param treesPerTransaction
+	 * @return
+	 */
+	@Description("Load a file of one or more newick trees that is on the server's local filesystem into the graph as a single source. "
+			+ "Trees are imported as the file is read, so the entire file is never held in memory.")
 	@PluginTarget(GraphDatabaseService.class)
-	public Representation putSourceNexsonFile(
+	public Representation putSourceNewickLocalFile(
 			@Source GraphDatabaseService graphDb,
 			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
 			@Parameter(name = "sourceId", optional = false) String sourceId,
-			@Description("A nexson string to be parsed")
-			@Parameter(name = "nexsonString", optional = false) String nexsonString) {
+			@Description("The path to the newick file on the server")
+			@Parameter(name = "path", optional = false) String path,
+			@Description("The number of trees to commit in each transaction. Defaults to 10.")
+			@Parameter(name = "treesPerTransaction", optional = true) Integer treesPerTransaction) {
+
+		Reader newick = null;
+		try {
+			newick = new BufferedReader(new FileReader(path));
+		} catch (FileNotFoundException ex) {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("event", "warning");
+			result.put("message", "Could not find the file " + path);
+			return OTRepresentationConverter.convert(result);
+		}
+		try {
+			return OTRepresentationConverter.convert(importNewick(graphDb, newick, sourceId, treesPerTransaction));
+		} finally {
+			try {
+				newick.close();
+			} catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Stream newick trees into the graph as a new local source, and return a map describing the result in the form used by
+	 * the newick upload services. Also used by NewickUpload.
+	 * 
+	 * @param graphDb
+	 * @param newick
+	 * @param sourceId
+	 * @param treesPerTransaction
+	 * 		The number of trees to commit in each transaction, or null for the default
+	 * @return
+	 */
+	public static Map<String, Object> importNewick(GraphDatabaseService graphDb, Reader newick, String sourceId, Integer treesPerTransaction) {
 
 		Map<String, Object> result = new HashMap<String, Object>();
 
-		MessageLogger msgLogger = new MessageLogger("");
-		StringReader sr = new StringReader(nexsonString);
-		NexsonSource source = null;
-		try {
-			source = NexsonReader.readNexson(sr, sourceId, false, msgLogger);
-		} catch (IOException e) {
+		if (treesPerTransaction != null && treesPerTransaction < 1) {
 			result.put("event", "warning");
-			result.put("message", e.toString());
+			result.put("message", "treesPerTransaction must be at least 1");
+			return result;
 		}
 
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		NewickSourceImporter importer = treesPerTransaction == null
+				? new NewickSourceImporter(graphDb)
+				: new NewickSourceImporter(graphDb, treesPerTransaction);
 		try {
-			manager.addSource(source, DatabaseManager.LOCAL_LOCATION);
+			result.putAll(importer.importNewick(newick, sourceId, DatabaseManager.LOCAL_LOCATION, false));
+			result.put("event", "added");
 		} catch (DuplicateSourceException ex) {
 			result.put("event", "warning");
 			result.put("message", "A local source with id " + sourceId + " already exists in the database.");
+		} catch (IOException ex) {
+			result.put("event", "warning");
+			result.put("message", ex.toString());
+		} catch (IllegalArgumentException ex) {
+			result.put("event", "warning");
+			result.put("message", ex.toString());
 		}
 
-		if (result.size() < 1) {
+		return result;
+	}
+
+	@Description("Load a nexson file into the graph database")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation putSourceNexsonFile(
+			@Source GraphDatabaseService graphDb,
+			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
+			@Parameter(name = "sourceId", optional = false) String sourceId,
+			@Description("A nexson string to be parsed")
+			@Parameter(name = "nexsonString", optional = false) String nexsonString) {
+
+		return OTRepresentationConverter.convert(importNexson(graphDb, new StringReader(nexsonString), sourceId));
+	}
+
+	/**
+	 * Load a nexson from a file on the server. The file is streamed into the graph, so this should be used instead of
+	 * putSourceNexsonFile for very large nexsons. For uploading large nexsons that are not on the server, see NexsonUpload.
+	 * 
+	 * @param graphDb
+	 * @param sourceId
+	 * @param path
+	 * @return
+	 */
+	@Description("Load a nexson file that is on the server's local filesystem into the graph database. Trees are imported as the "
+			+ "file is read, so the entire file is never held in memory.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation putSourceNexsonLocalFile(
+			@Source GraphDatabaseService graphDb,
+			@Description("A string to be used as the source id for for this source. Source ids must be unique.")
+			@Parameter(name = "sourceId", optional = false) String sourceId,
+			@Description("The path to the nexson file on the server")
+			@Parameter(name = "path", optional = false) String path) {
+
+		Reader nexson = null;
+		try {
+			nexson = new BufferedReader(new FileReader(path));
+		} catch (FileNotFoundException ex) {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("event", "warning");
+			result.put("message", "Could not find the file " + path);
+			return OTRepresentationConverter.convert(result);
+		}
+		
+		try {
+			return OTRepresentationConverter.convert(importNexson(graphDb, nexson, sourceId));
+		} finally {
+			try {
+				nexson.close();
+			} catch (IOException ex) {}
+		}
+	}
+	
+	/**
+	 * Stream a nexson into the graph as a new local source, and return a map describing the result in the form used by
+	 * the nexson upload services. Also used by NexsonUpload.
+	 * 
+	 * @param graphDb
+	 * @param nexson
+	 * @param sourceId
+	 * @return
+	 */
+	public static Map<String, Object> importNexson(GraphDatabaseService graphDb, Reader nexson, String sourceId) {
+		
+		Map<String, Object> result = new HashMap<String, Object>();
+
+		StreamingNexsonImporter importer = new StreamingNexsonImporter(graphDb);
+		try {
+			importer.importNexson(nexson, sourceId, DatabaseManager.LOCAL_LOCATION, false);
 			result.put("event", "added");
 			result.put("sourceId", sourceId);
+		} catch (DuplicateSourceException ex) {
+			result.put("event", "warning");
+			result.put("message", "A local source with id " + sourceId + " already exists in the database.");
+		} catch (IOException ex) {
+			result.put("event", "warning");
+			result.put("message", ex.toString());
+		} catch (ParseException ex) {
+			result.put("event", "warning");
+			result.put("message", ex.toString());
 		}
 
-		return OTRepresentationConverter.convert(result);
+		return result;
 	}
 
 	@Description("Get source metadata")
@@ -197,7 +315,7 @@ public class sourceJsons extends ServerPlugin {
 			@Description("source Id")
 			@Parameter(name = "sourceId", optional = false) String sourceId) {
 		
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 
 		// look for local first since it's faster
 		Node sourceMeta = browser.getSourceMetaNode(sourceId, DatabaseBrowser.LOCAL_LOCATION);
@@ -231,19 +349,11 @@ public class sourceJsons extends ServerPlugin {
 		// TODO: would be better to have this all contained in a single transaction.
 		
 		GraphDatabaseService gds = node.getGraphDatabase();
-		DatabaseManager manager = new DatabaseManager(gds);
+		DatabaseManager manager = OTUServiceContext.getInstance(gds).getManager();
 
 		// first remove all indicated properties
-		Transaction tx = gds.beginTx();
-		try {
-			if (propertiesToRemove != null) {
-				for (String key : propertiesToRemove) {
-					node.removeProperty(key);
-				}
-			}
-			tx.success();
-		} finally {
-			tx.finish();
+		if (propertiesToRemove != null) {
+			manager.removeProperties(node, propertiesToRemove);
 		}
 
 		// now set properties we have been told to set
@@ -257,21 +367,21 @@ public class sourceJsons extends ServerPlugin {
 	@Description("Report a list of available properties for source metadata nodes")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getSourceProperties(@Source GraphDatabaseService graphDb) {
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		return OTRepresentationConverter.convert(browser.getAvailableSourceProperties());
 	}
 
 	@Description("Report a list of available properties for trees (i.e. tree root nodes)")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getTreeProperties(@Source GraphDatabaseService graphDb) {
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		return OTRepresentationConverter.convert(browser.getAvailableTreeProperties());
 	}
 
 	@Description("Report a list of available properties for internal tree nodes")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation getTreeNodeProperties(@Source GraphDatabaseService graphDb) {
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		return OTRepresentationConverter.convert(browser.getAvailableTreeNodeProperties());
 	}
 
@@ -298,8 +408,9 @@ public class sourceJsons extends ServerPlugin {
 			@Description("The name of the ott taxon corresponding to this ott id") @Parameter(name="taxonName", optional=false) String taxonName) {
 		
 		GraphDatabaseAgent graphDb = new GraphDatabaseAgent(node.getGraphDatabase());
-		ConfigurationManager config = new ConfigurationManager(graphDb);
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		OTUServiceContext context = OTUServiceContext.getInstance(node.getGraphDatabase());
+		ConfigurationManager config = context.getConfig();
+		DatabaseManager manager = context.getManager();
 		
 		Map<String, Object> properties = new HashMap<String, Object>();
 		properties.put(OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId);
@@ -348,7 +459,7 @@ public class sourceJsons extends ServerPlugin {
 	public Representation getNodeIdForSourceId(@Source GraphDatabaseService graphDb,
 			@Description("The source id to look up") @Parameter(name="sourceId", optional=false) String sourceId) {
 		
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		return OTRepresentationConverter.convert(browser.getSourceMetaNode(sourceId, browser.LOCAL_LOCATION).getId());
 	}
 
@@ -364,8 +475,9 @@ public class sourceJsons extends ServerPlugin {
 	public Representation deleteSourceFromSourceId(@Source GraphDatabaseService graphDb,
 			@Description("source Id") @Parameter(name = "sourceId", optional = false) String sourceId) {
 
-		DatabaseManager dm = new DatabaseManager(graphDb);
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		OTUServiceContext context = OTUServiceContext.getInstance(graphDb);
+		DatabaseManager dm = context.getManager();
+		DatabaseBrowser browser = context.getBrowser();
 		Node sourceMeta = browser.getSourceMetaNode(sourceId, DatabaseBrowser.LOCAL_LOCATION);
 
 		dm.deleteSource(sourceMeta);
@@ -379,6 +491,8 @@ public class sourceJsons extends ServerPlugin {
 	
 	/**
 	 * Send an autocomplete query to taxomachine and pass the results back through. Just a wrapper to circumvent the single-origin policy.
+	 * If no url is given and a taxonomy is installed with a current TaxonAutocomplete index, the query is answered locally instead,
+	 * with results of the same form.
 	 * 
 	 * @param tnrsURL
 	 * @param queryString
@@ -395,7 +509,15 @@ public class sourceJsons extends ServerPlugin {
 			@Parameter(name="queryString", optional=false) String queryString) throws IOException, ParseException {
 		
 		if (tnrsURL == null) {
-			// TODO: get this from a graph property, which will be set to use local tnrs if it is installed
+			ConfigurationManager config = OTUServiceContext.getInstance(graphDb).getConfig();
+			if (config.hasTaxonomy()) {
+				TaxonAutocomplete autocomplete = TaxonAutocomplete.forStoreDir(((GraphDatabaseAPI) graphDb).getStoreDir(),
+						config.getOTTIdMapStamp());
+				if (autocomplete != null) {
+					return OTRepresentationConverter.convert(autocomplete.complete(queryString,
+							OTUConstants.TAXON_AUTOCOMPLETE_MAX_RESULTS));
+				}
+			}
 			tnrsURL = "http://dev.opentreeoflife.org/taxomachine/ext/TNRS/graphdb/autocompleteBoxQuery/";
 		}
 		
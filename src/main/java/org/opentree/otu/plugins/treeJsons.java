@@ -1,24 +1,25 @@
 package org.opentree.otu.plugins;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-
-import javax.ws.rs.core.MediaType;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import jade.tree.*;
 
 import org.opentree.otu.ConfigurationManager;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.Traversal;
 import org.neo4j.server.plugins.*;
 import org.neo4j.server.rest.repr.OTRepresentationConverter;
@@ -27,16 +28,17 @@ import org.opentree.exceptions.TreeNotFoundException;
 import org.opentree.graphdb.GraphDatabaseAgent;
 import org.opentree.otu.DatabaseBrowser;
 import org.opentree.otu.DatabaseManager;
+import org.opentree.otu.LocalTNRS;
+import org.opentree.otu.OTUServiceContext;
+import org.opentree.otu.RemoteTNRS;
+import org.opentree.otu.TNRSCache;
+import org.opentree.otu.TaxonAutocomplete;
+import org.opentree.otu.constants.OTUConstants;
 import org.opentree.otu.constants.OTUGraphProperty;
 import org.opentree.otu.constants.OTUNodeProperty;
 import org.opentree.otu.constants.OTURelType;
 import org.opentree.properties.OTVocabularyPredicate;
 
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
-
 public class treeJsons extends ServerPlugin{
 	
 	/**
@@ -50,7 +52,7 @@ public class treeJsons extends ServerPlugin{
 			@Description( "The id of the tree to be found.")
 			@Parameter(name = "treeId", optional = false) String treeId) throws TreeNotFoundException {
 
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 
 		// TODO: add check for whether tree is imported. If not then return this information
 		
@@ -70,7 +72,7 @@ public class treeJsons extends ServerPlugin{
 					+ "If no node with this id is found in the original tree, then null will be returned for the corresponding node id.")
 				@Parameter(name="nodeIdOfInterest", optional=true) Long nodeIdOfInterest) throws TreeNotFoundException {
 
-		DatabaseManager manager = new DatabaseManager(root.getGraphDatabase());
+		DatabaseManager manager = OTUServiceContext.getInstance(root.getGraphDatabase()).getManager();
 
 		// TODO: add check for whether the provided node is the root node of a tree. If not then return this information
 
@@ -103,7 +105,7 @@ public class treeJsons extends ServerPlugin{
 	@PluginTarget( Node.class )
 	public Representation saveWorkingCopy(@Source Node root) throws TreeNotFoundException {
 
-		DatabaseManager manager = new DatabaseManager(root.getGraphDatabase());
+		DatabaseManager manager = OTUServiceContext.getInstance(root.getGraphDatabase()).getManager();
 
 		// TODO: add check for whether the provided node is the root node of a tree. If not then return this information
 
@@ -137,7 +139,7 @@ public class treeJsons extends ServerPlugin{
 	@PluginTarget( Node.class )
 	public Representation discardWorkingCopy(@Source Node root) throws TreeNotFoundException {
 
-		DatabaseManager manager = new DatabaseManager(root.getGraphDatabase());
+		DatabaseManager manager = OTUServiceContext.getInstance(root.getGraphDatabase()).getManager();
 
 		// TODO: add check for whether the provided node is the root node of a tree. If not then return this information
 
@@ -173,8 +175,9 @@ public class treeJsons extends ServerPlugin{
 			@Description( "The id of the tree to be deleted")
 			@Parameter(name = "treeId", optional = false) String treeId) {
 		
-		DatabaseManager manager = new DatabaseManager(graphDb);
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		OTUServiceContext context = OTUServiceContext.getInstance(graphDb);
+		DatabaseManager manager = context.getManager();
+		DatabaseBrowser browser = context.getBrowser();
 		
 		Node root = browser.getTreeRootNode(treeId, browser.LOCAL_LOCATION);
 		manager.deleteTree(root);
@@ -195,7 +198,7 @@ public class treeJsons extends ServerPlugin{
 	public Long rerootTree(@Source GraphDatabaseService graphDb,
 			@Description( "The Neo4j node id of the node to be used as the root for its tree.")
 			@Parameter(name = "nodeId", optional = false) Long nodeId) {
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		DatabaseManager manager = OTUServiceContext.getInstance(graphDb).getManager();
 		Node rootNode = graphDb.getNodeById(nodeId);
 		Node newroot = manager.rerootTree(rootNode);
 		return newroot.getId();
@@ -210,7 +213,7 @@ public class treeJsons extends ServerPlugin{
 	public Long ingroupSelect(@Source GraphDatabaseService graphDb,
 			@Description( "The Neo4j node id of the node to be used as the ingroup for its tree.")
 			@Parameter(name = "nodeId", optional = false) Long nodeId) {
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		DatabaseManager manager = OTUServiceContext.getInstance(graphDb).getManager();
 		Node rootNode = graphDb.getNodeById(nodeId);
 		manager.designateIngroup(rootNode);
 		return rootNode.getId();
@@ -241,7 +244,7 @@ public class treeJsons extends ServerPlugin{
 			@Description( "The database tree id for the tree")
 			@Parameter(name = "treeId", optional = false) String treeId) {
 		
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 		Node root = browser.getTreeRootNode(treeId, browser.LOCAL_LOCATION);
 		return OTRepresentationConverter.convert(browser.getMetadataForTree(root));
 	}
@@ -252,7 +255,7 @@ public class treeJsons extends ServerPlugin{
 			@Description( "The tree id to use")
 			@Parameter(name = "treeId", optional = false) String treeId) {
 	
-		DatabaseBrowser browser = new DatabaseBrowser(graphDb);
+		DatabaseBrowser browser = OTUServiceContext.getInstance(graphDb).getBrowser();
 
 		Node treeRoot = browser.getTreeRootNode(treeId, browser.LOCAL_LOCATION);
 		Node sourceMeta = treeRoot.getSingleRelationship(OTURelType.METADATAFOR, Direction.INCOMING).getStartNode();
@@ -265,7 +268,7 @@ public class treeJsons extends ServerPlugin{
 	@Deprecated
 	public Representation getOTUMetaData(@Source Node node) {
 
-		DatabaseBrowser browser = new DatabaseBrowser(node.getGraphDatabase());
+		DatabaseBrowser browser = OTUServiceContext.getInstance(node.getGraphDatabase()).getBrowser();
 		return OTRepresentationConverter.convert(browser.getMetadataForOTU(node));
 	}
 
@@ -273,70 +276,241 @@ public class treeJsons extends ServerPlugin{
 	@PluginTarget(Node.class)
 	public Representation getTNRSMappings(@Source Node node) {
 
-		DatabaseBrowser browser = new DatabaseBrowser(node.getGraphDatabase());
+		DatabaseBrowser browser = OTUServiceContext.getInstance(node.getGraphDatabase()).getBrowser();
 		Map<String, Object> results = browser.getAlternativeMappingsForNode(node);
 		
 		return OTRepresentationConverter.convert(results);
 	}
 	
-	@Description ("Hit the TNRS for all the names in a subtree. Return the results.")
+	@Description ("Hit the TNRS for all the names in a subtree. Return the results. Names are sent to a remote TNRS service in chunks, "
+			+ "several chunks at a time, and the results for each chunk are saved as soon as they arrive, so a failed request only "
+			+ "loses the results for its own chunk. The names in failed chunks are returned as failed_name_ids. Their tips and the "
+			+ "internal nodes of the subtree, including the root, are not marked as processed, so the subtree can be TNRS'd again.")
 	@PluginTarget( Node.class )
 	public Representation doTNRSForDescendants(@Source Node root,
 		@Description ("The url of the TNRS service to use. If not supplied then the public OT TNRS will be used.")
 			@Parameter (name="TNRS Service URL", optional=true) String tnrsURL,
 		@Description ("NOT IMPLEMENTED. If it were, this would just say: If set to false (default), only the original " +
 				"otu labels will be used for TNRS. If set to true, currently mapped names will be used (if they exist).")
-			@Parameter(name="useMappedNames", optional=true) boolean useMappedNames) throws IOException, ParseException {
+			@Parameter(name="useMappedNames", optional=true) boolean useMappedNames,
+		@Description ("If set to true, the names will be matched against the locally installed taxonomy instead of sending them " +
+				"to a TNRS service. Requires a taxonomy installed by installOTT.")
+			@Parameter(name="useLocalTNRS", optional=true) Boolean useLocalTNRS,
+		@Description ("The maximum number of names to send to the TNRS service in each request. Defaults to " + OTUConstants.TNRS_CHUNK_SIZE)
+			@Parameter(name="chunkSize", optional=true) Integer chunkSize,
+		@Description ("The maximum number of requests to the TNRS service in flight at once. Defaults to " + OTUConstants.TNRS_MAX_CONCURRENT_REQUESTS)
+			@Parameter(name="maxConcurrentRequests", optional=true) Integer maxConcurrentRequests,
+		@Description ("If set to false, all the names will be sent to the TNRS, instead of only the ones that have no cached " +
+				"matches. The cache is updated with the results either way. Defaults to true.")
+			@Parameter(name="useTNRSCache", optional=true) Boolean useTNRSCache) throws InterruptedException {
+
+		OTUServiceContext context = OTUServiceContext.getInstance(root.getGraphDatabase());
+		final DatabaseManager manager = context.getManager();
+		final ConfigurationManager config = context.getConfig();
+
+		LocalTNRS localTNRS = null;
+		if (Boolean.TRUE.equals(useLocalTNRS)) {
+			TaxonAutocomplete taxonNames = config.hasTaxonomy() ? TaxonAutocomplete.forStoreDir(
+					((GraphDatabaseAPI) root.getGraphDatabase()).getStoreDir(), config.getOTTIdMapStamp()) : null;
+			if (taxonNames == null) {
+				Map<String, Object> result = new HashMap<String, Object>();
+				result.put("event", "failure");
+				result.put("message", "there is no current local taxonomy index. Install the taxonomy with installOTT, or rebuild the "
+						+ "index with rebuildOTTIdMap");
+				return OTRepresentationConverter.convert(result);
+			}
+			localTNRS = new LocalTNRS(taxonNames, Runtime.getRuntime().availableProcessors());
+		}
 
-		// start a transaction for edits
-        GraphDatabaseAgent graphDb = new GraphDatabaseAgent(root.getGraphDatabase()) ;
-		DatabaseManager manager = new DatabaseManager(graphDb);
-		ConfigurationManager config = new ConfigurationManager(graphDb);
-        Transaction tx = graphDb.beginTx();
+        final GraphDatabaseAgent graphDb = new GraphDatabaseAgent(root.getGraphDatabase()) ;
 		
 		// get ids and names to send to tnrs
+		LinkedList<Node> clade = new LinkedList<Node>();
 		LinkedList<Long> nodeIds = new LinkedList<Long>();
 		LinkedList<String> names = new LinkedList<String>();
+		LinkedList<String> cacheNames = new LinkedList<String>();
+		Map<Long, String> namesByNodeId = new HashMap<Long, String>();
 //		for (Node otu : DatabaseUtils.DESCENDANT_OTU_TRAVERSAL.traverse(root).nodes()) {
 		for (Node child : Traversal.description().relationships(OTURelType.CHILDOF, Direction.INCOMING).traverse(root).nodes()) {
 			// TODO: allow the choice to use mapped or original names... currently that leads to nullpointerexceptions
 
-			// record that we have TNRS'd this node (i.e. this clade on the tree)
-			child.setProperty(OTUNodeProperty.PROCESSED_BY_TNRS.propertyName(), true);
+			clade.add(child);
 			
 			// for tip nodes, record names to hit against tnrs
 			if (!child.hasRelationship(OTURelType.CHILDOF, Direction.INCOMING)) {
 				if (child.hasProperty(OTUNodeProperty.NAME.propertyName())) {
+					String name = (String) child.getProperty(OTUNodeProperty.NAME.propertyName());
 					nodeIds.add(child.getId());
-					names.add((String) child.getProperty(OTUNodeProperty.NAME.propertyName()));
+					names.add(name);
+					namesByNodeId.put(child.getId(), name);
+					// matches are cached under the original label, since the name is replaced by the matched name
+					cacheNames.add((String) child.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName(), name));
 				}
 			}
 		}
-		
+
+		// save the results for each chunk of names in its own transaction, and collect the name ids and contexts
+		final JSONArray unmatchedNameIds = new JSONArray();
+		final JSONArray matchedNameIds = new JSONArray();
+		final JSONArray unambiguousNameIds = new JSONArray();
+		final Map<Object, Integer> contextSizes = new HashMap<Object, Integer>();
+		final RemoteTNRS.ChunkHandler handler = new RemoteTNRS.ChunkHandler() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void handle(JSONObject response) {
+				applyTNRSResults(graphDb, response, manager, config);
+				unmatchedNameIds.addAll((JSONArray) response.get("unmatched_name_ids"));
+				matchedNameIds.addAll((JSONArray) response.get("matched_name_ids"));
+				unambiguousNameIds.addAll((JSONArray) response.get("unambiguous_name_ids"));
+				Object chunkContext = response.get("context");
+				if (chunkContext != null) {
+					Integer size = contextSizes.get(chunkContext);
+					contextSizes.put(chunkContext, (size == null ? 0 : size) + ((JSONArray) response.get("matched_name_ids")).size());
+				}
+			}
+		};
+
 		if (tnrsURL == null) {
 			tnrsURL = "http://dev.opentreeoflife.org/taxomachine/ext/TNRS/graphdb/contextQueryForNames/";
 		}
-		
-		// gather the data to be sent to tnrs
-		Map<String, Object> query = new HashMap<String, Object>();
-		query.put("names", names);
-		query.put("idInts", nodeIds);
-
-        // set up the connection
-        ClientConfig cc = new DefaultClientConfig();
-        Client c = Client.create(cc);
-        WebResource tnrs = c.resource(tnrsURL);
-
-        // send the query (get the response)
-        String respJSON = tnrs.accept(MediaType.APPLICATION_JSON_TYPE)
-        		.type(MediaType.APPLICATION_JSON_TYPE).post(String.class, new JSONObject(query).toJSONString());
+		final TNRSCache tnrsCache = context.getTNRSCache();
+		final String cacheSource = localTNRS != null ? TNRSCache.LOCAL_SOURCE : tnrsURL;
+
+		// apply the cached matches for names that have been matched before, and only send the rest to the TNRS
+		List<Long> queryIds = nodeIds;
+		List<String> queryNames = names;
+		if (!Boolean.FALSE.equals(useTNRSCache)) {
+			Object knownContext = root.getProperty(OTUNodeProperty.CONTEXT_NAME.propertyName(), null);
+			TNRSCache.Lookup lookup = tnrsCache.lookup(cacheSource, knownContext instanceof String ? (String) knownContext : null,
+					nodeIds, cacheNames);
+			if (lookup.getHitCount() > 0) {
+				handler.handle(lookup.getResponse());
+			}
+			queryIds = lookup.getMissedIds();
+			queryNames = new ArrayList<String>();
+			for (Long id : queryIds) {
+				queryNames.add(namesByNodeId.get(id));
+			}
+		}
+		Map<String, Object> cacheReport = new HashMap<String, Object>();
+		cacheReport.put("hits", names.size() - queryNames.size());
+		cacheReport.put("misses", queryNames.size());
+
+		// cache the matches for each chunk once they have been applied
+		final Map<Long, String> namesById = new HashMap<Long, String>();
+		for (int i = 0; i < nodeIds.size(); i++) {
+			namesById.put(nodeIds.get(i), cacheNames.get(i));
+		}
+		RemoteTNRS.ChunkHandler cachingHandler = new RemoteTNRS.ChunkHandler() {
+			@Override
+			public void handle(JSONObject response) {
+				handler.handle(response);
+				tnrsCache.store(cacheSource, namesById, response);
+			}
+		};
+
+		RemoteTNRS.Report report = null;
+		if (queryNames.isEmpty()) {
+			// every name was cached
+
+		} else if (localTNRS != null) {
+			cachingHandler.handle(localTNRS.matchNames(queryIds, queryNames));
+
+		} else {
+			RemoteTNRS tnrs = new RemoteTNRS(tnrsURL,
+					chunkSize == null ? OTUConstants.TNRS_CHUNK_SIZE : chunkSize,
+					maxConcurrentRequests == null ? OTUConstants.TNRS_MAX_CONCURRENT_REQUESTS : maxConcurrentRequests,
+					OTUConstants.TNRS_MAX_ATTEMPTS);
+			report = tnrs.matchNames(queryIds, queryNames, cachingHandler);
+		}
+
+		// the context of the whole clade is the one that applies to the most matched names
+		Object cladeContext = null;
+		for (Entry<Object, Integer> contextSize : contextSizes.entrySet()) {
+			if (cladeContext == null || contextSize.getValue() > contextSizes.get(cladeContext)) {
+				cladeContext = contextSize.getKey();
+			}
+		}
+
+		boolean failed = report != null && report.getFailedChunkCount() > 0 && report.getSucceededChunkCount() == 0
+				&& queryNames.size() == names.size();
+		if (!failed) {
+			// the tips whose chunk failed have not been TNRS'd, and neither has any part of the clade that contains them
+			Set<Long> failedIds = report == null ? new HashSet<Long>() : new HashSet<Long>(report.getFailedNameIds());
+			boolean complete = failedIds.isEmpty();
+
+			Transaction tx = graphDb.beginTx();
+			try {
+				// record that we have TNRS'd these nodes (i.e. this clade on the tree)
+				for (Node child : clade) {
+					boolean isTip = !child.hasRelationship(OTURelType.CHILDOF, Direction.INCOMING);
+					if (isTip ? !failedIds.contains(child.getId()) : complete) {
+						child.setProperty(OTUNodeProperty.PROCESSED_BY_TNRS.propertyName(), true);
+					}
+				}
+				if (cladeContext != null) {
+					root.setProperty(OTUNodeProperty.CONTEXT_NAME.propertyName(), cladeContext);
+				}
+				if (complete) {
+					root.setProperty(OTUNodeProperty.PROCESSED_BY_TNRS.propertyName(), true);
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+        
+        // return relevant info
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("event", failed ? "failure" : "success");
+        result.put("treeId", DatabaseBrowser.getRootOfTreeContaining(root).getProperty(OTUNodeProperty.TREE_ID.propertyName()));
+        result.put("rootNodeId", root.getId());
+        result.put("unmatched_name_ids", unmatchedNameIds);
+        result.put("matched_name_ids", matchedNameIds);
+        result.put("unambiguous_name_ids", unambiguousNameIds);
+        result.put("context", cladeContext);
+        result.put("tnrs_cache", cacheReport);
+        if (report != null) {
+        	result.put("failed_name_ids", report.getFailedNameIds());
+        	result.put("tnrs_requests", report.toMap());
+        }
+        return OTRepresentationConverter.convert(result);
         
-        JSONParser parser = new JSONParser();
-        JSONObject response = (JSONObject) parser.parse(respJSON);
+        /*
+		// save the result to a local file
         
-        root.setProperty(OTUNodeProperty.CONTEXT_NAME.propertyName(), response.get("context"));
-        root.setProperty(OTUNodeProperty.PROCESSED_BY_TNRS.propertyName(), true);
+        // TODO: the tnrs files get saved into the neo4j directory root. it would be better to save them in the
+        // otu directory, but to do that we will have to do some some finagling...
+        String savedResultsFilePath = "tnrs." + root.getId() + "." + System.currentTimeMillis() + ".json";
+        File resultsFile = new File(savedResultsFilePath);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter( new FileWriter(resultsFile));
+            writer.write(respJSON);
+
+        } finally {
+        	if ( writer != null) {
+        		writer.close( );
+        	}
+        }
         
+        // return some JSON with the information for to use when reloading the page
+        Map<String, Object> results = new HashMap<String, Object>();
+        results.put("event", "success");
+        results.put("treeId", DatabaseUtils.getRootOfTreeContaining(root).getProperty(NodeProperty.TREE_ID.propertyName()));
+        results.put("results_file", resultsFile.getAbsolutePath());
+		
+        return(OpentreeRepresentationConverter.convert(results)); */
+	}
+
+	/**
+	 * Save the results of a TNRS query in the graph, in a transaction of its own. Exact matches are stored on the otu nodes,
+	 * and the alternatives for other names are stored as TNRS result nodes.
+	 */
+	private static void applyTNRSResults(GraphDatabaseAgent graphDb, JSONObject response, DatabaseManager manager,
+			ConfigurationManager config) {
+
+		Transaction tx = graphDb.beginTx();
         try {
 	        // walk the results
 	        for (Object nameResult : (JSONArray) response.get("results")) {
@@ -398,42 +572,5 @@ public class treeJsons extends ServerPlugin{
         } finally {
         	tx.finish();
         }
-        
-        // return relevant info
-        Map<String, Object> result = new HashMap<String, Object>();
-        result.put("event", "success");
-        result.put("treeId", DatabaseBrowser.getRootOfTreeContaining(root).getProperty(OTUNodeProperty.TREE_ID.propertyName()));
-        result.put("rootNodeId", root.getId());
-        result.put("unmatched_name_ids", response.get("unmatched_name_ids"));
-        result.put("matched_name_ids", response.get("matched_name_ids"));
-        result.put("unambiguous_name_ids", response.get("unambiguous_name_ids"));
-        result.put("context", response.get("context"));
-        return OTRepresentationConverter.convert(result);
-        
-        /*
-		// save the result to a local file
-        
-        // TODO: the tnrs files get saved into the neo4j directory root. it would be better to save them in the
-        // otu directory, but to do that we will have to do some some finagling...
-        String savedResultsFilePath = "tnrs." + root.getId() + "." + System.currentTimeMillis() + ".json";
-        File resultsFile = new File(savedResultsFilePath);
-        BufferedWriter writer = null;
-        try {
-            writer = new BufferedWriter( new FileWriter(resultsFile));
-            writer.write(respJSON);
-
-        } finally {
-        	if ( writer != null) {
-        		writer.close( );
-        	}
-        }
-        
-        // return some JSON with the information for to use when reloading the page
-        Map<String, Object> results = new HashMap<String, Object>();
-        results.put("event", "success");
-        results.put("treeId", DatabaseUtils.getRootOfTreeContaining(root).getProperty(NodeProperty.TREE_ID.propertyName()));
-        results.put("results_file", resultsFile.getAbsolutePath());
-		
-        return(OpentreeRepresentationConverter.convert(results)); */
 	}
 }